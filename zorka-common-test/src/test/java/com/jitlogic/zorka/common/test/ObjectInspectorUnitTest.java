@@ -351,6 +351,52 @@ public class ObjectInspectorUnitTest extends CommonFixture {
     }
 
 
+    public interface Named {
+        String getName();
+    }
+
+
+    private static class PrivateNamed implements Named {
+        private String name;
+
+        private PrivateNamed(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isShort() {
+            return name.length() < 4;
+        }
+    }
+
+
+    @Test
+    public void testRepeatedInspectionOfNonPublicClass() {
+        for (int i = 0; i < 3; i++) {
+            PrivateNamed obj = new PrivateNamed("abc" + i);
+            assertEquals("abc" + i, ObjectInspector.get(obj, "name"));
+            assertEquals("abc" + i, ObjectInspector.get(obj, ".name"));
+            assertEquals("abc" + i, ObjectInspector.get(obj, "getName()"));
+            assertEquals(false, ObjectInspector.get(obj, "short"));
+            assertNull(ObjectInspector.get(obj, "nonexistent"));
+            assertNull(ObjectInspector.get(obj, "nonexistent()"));
+        }
+    }
+
+
+    @Test
+    public void testTheSameKeyResolvedSeparatelyForEachClass() {
+        Properties props = props("AAA", "BBB");
+        assertSame(props, ObjectInspector.get(new TestInspectorClass2(props), "props"));
+        assertEquals("xyz", ObjectInspector.get(new PrivateNamed("xyz"), "name"));
+        assertEquals(3, ObjectInspector.get("abc", "length()"));
+        assertEquals(1, ObjectInspector.get(new ArrayList<String>(Arrays.asList("a")), "size()"));
+    }
+
+
     // TODO tests for tabular data
 
 }
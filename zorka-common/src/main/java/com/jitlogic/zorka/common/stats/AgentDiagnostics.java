@@ -58,6 +58,27 @@ public class AgentDiagnostics {
     public static final int ZICO_PACKETS_DROPPED = 32;  // Packets dropped due to queue overflow
     public static final int ZICO_PACKETS_LOST = 33;     // Packets lost due to communication errors
     public static final int ZICO_RECONNECTS = 34;       // ZICO reconnects
+    public static final int FILE_TRACES_DROPPED = 35;   // Traces dropped by file output due to queue overflow
+    public static final int ZABBIX_TRACES_DROPPED = 36; // Traces dropped by zabbix output due to queue overflow
+    public static final int ZICO_TRACES_SPILLED = 37;   // Traces written to spill journal when collector was unavailable
+    public static final int ZICO_TRACES_REPLAYED = 38;  // Traces replayed from spill journal
+    public static final int ZICO_TRACES_EVICTED = 39;   // Traces evicted from spill journal due to size limit
+    public static final int QUERY_CACHE_HITS = 40;      // Agent queries found in compiled query cache
+    public static final int QUERY_CACHE_MISSES = 41;    // Agent queries that had to be compiled
+    public static final int QUERY_DIRECT_CALLS = 42;    // Agent queries evaluated without interpreter
+    public static final int JMX_CACHE_HITS = 43;        // JMX names and attributes found in registry cache
+    public static final int JMX_CACHE_MISSES = 44;      // JMX names and attributes fetched from mbean server
+    public static final int PMON_TIMEOUTS = 45;         // Scanner queries that started but did not finish in time
+    public static final int PMON_QUERY_TIME = 46;       // Time spent in scanner queries (summed over all queries)
+    public static final int ZABBIX_ACTIVE_SENT = 47;    // Active check results accepted by zabbix server
+    public static final int ZABBIX_ACTIVE_DROPPED = 48; // Active check results dropped due to queue overflow
+    public static final int ZABBIX_ACTIVE_COALESCED = 49; // Active check results replaced by newer results of the same item
+    public static final int ZABBIX_ACTIVE_ERRORS = 50;  // Errors sending active check results
+    public static final int TRACER_AUTO_EXCLUDED = 51;  // Methods automatically excluded from tracer
+    public static final int FILE_TRACES_LOST = 52;      // Traces lost by file output due to I/O errors
+    public static final int PCT_CNT_ERRORS = 53;        // Percentile counter queries pointing to objects without histogram
+    public static final int PCT_CNT_CREATED = 54;       // Percentile counter windows created
+    public static final int PMON_SKIPPED = 55;          // Scanner queries skipped (not started due to timeouts or stuck workers)
 
 
     private static final String[] counterNames = {
@@ -96,10 +117,31 @@ public class AgentDiagnostics {
             "ZicoPacketsDropped",   // ZICO_PACKETS_DROPPED = 33
             "ZicoPacketsLost",      // ZICO_PACKETS_LOST    = 34
             "ZicoReconnects",       // ZICO_RECONNECTS      = 35;
+            "FileTracesDropped",    // FILE_TRACES_DROPPED  = 36;
+            "ZabbixTracesDropped",  // ZABBIX_TRACES_DROPPED = 37;
+            "ZicoTracesSpilled",    // ZICO_TRACES_SPILLED  = 38;
+            "ZicoTracesReplayed",   // ZICO_TRACES_REPLAYED = 39;
+            "ZicoTracesEvicted",    // ZICO_TRACES_EVICTED  = 40;
+            "QueryCacheHits",       // QUERY_CACHE_HITS     = 41;
+            "QueryCacheMisses",     // QUERY_CACHE_MISSES   = 42;
+            "QueryDirectCalls",     // QUERY_DIRECT_CALLS   = 43;
+            "JmxCacheHits",         // JMX_CACHE_HITS       = 44;
+            "JmxCacheMisses",       // JMX_CACHE_MISSES     = 45;
+            "PerfMonTimeouts",      // PMON_TIMEOUTS        = 46;
+            "PerfMonQueryTime",     // PMON_QUERY_TIME      = 47;
+            "ZabbixActiveSent",     // ZABBIX_ACTIVE_SENT   = 48;
+            "ZabbixActiveDropped",  // ZABBIX_ACTIVE_DROPPED = 49;
+            "ZabbixActiveCoalesced", // ZABBIX_ACTIVE_COALESCED = 50;
+            "ZabbixActiveErrors",   // ZABBIX_ACTIVE_ERRORS = 51;
+            "TracerAutoExcluded",   // TRACER_AUTO_EXCLUDED = 52;
+            "FileTracesLost",       // FILE_TRACES_LOST     = 53;
+            "PctCounterErrors",     // PCT_CNT_ERRORS       = 54;
+            "PctCountersCreated",   // PCT_CNT_CREATED      = 55;
+            "PerfMonSkipped",       // PMON_SKIPPED         = 56;
     };
 
 
-    private static Set<Integer> timeCounters = ZorkaUtil.set(AGENT_TIME, ZABBIX_TIME, NAGIOS_TIME, PMON_TIME);
+    private static Set<Integer> timeCounters = ZorkaUtil.set(AGENT_TIME, ZABBIX_TIME, NAGIOS_TIME, PMON_TIME, PMON_QUERY_TIME);
 
 
     private static AtomicLong[] counters;
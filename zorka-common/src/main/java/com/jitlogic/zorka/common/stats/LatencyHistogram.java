@@ -0,0 +1,217 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ *
+ * ZORKA is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ZORKA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * ZORKA. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.common.stats;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size log-linear histogram of execution times (in nanoseconds). Each power of 2 range
+ * is split into SUB_BUCKETS linear buckets, so relative error of reported percentiles does not
+ * exceed 1/SUB_BUCKETS (12.5%). Values above 2^40ns (~18 minutes) fall into last bucket.
+ * <p/>
+ * Histogram is cumulative and recording is allocation free (single atomic increment). Interval
+ * data is obtained by subtracting counts taken earlier, so readers never have to reset
+ * (and thus block) recorders. Each consumer keeps its own earlier counts (see PercentileCounter),
+ * so consumers don't interfere with each other.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class LatencyHistogram {
+
+    /**
+     * Number of bits of linear sub-buckets
+     */
+    private static final int SUB_BITS = 3;
+
+    /**
+     * Number of linear buckets in each power of 2 range
+     */
+    public static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /**
+     * Highest exponent tracked
+     */
+    private static final int MAX_EXP = 39;
+
+    /**
+     * Number of buckets
+     */
+    public static final int BUCKETS = (MAX_EXP - SUB_BITS + 2) * SUB_BUCKETS;
+
+    /**
+     * Bucket counters
+     */
+    private final AtomicLongArray counts;
+
+
+    /**
+     * Creates empty histogram.
+     */
+    public LatencyHistogram() {
+        counts = new AtomicLongArray(BUCKETS);
+    }
+
+
+    /**
+     * Creates histogram initialized with given bucket counters (eg. snapshot merged from several histograms).
+     *
+     * @param counts bucket counters
+     */
+    public LatencyHistogram(long[] counts) {
+        this.counts = new AtomicLongArray(counts);
+    }
+
+
+    /**
+     * Returns bucket index for a value.
+     *
+     * @param v value (nanoseconds)
+     *
+     * @return bucket index
+     */
+    public static int bucket(long v) {
+        if (v < SUB_BUCKETS) {
+            return v > 0 ? (int) v : 0;
+        }
+
+        int e = 63 - Long.numberOfLeadingZeros(v);
+
+        if (e > MAX_EXP) {
+            return BUCKETS - 1;
+        }
+
+        return (e - SUB_BITS + 1) * SUB_BUCKETS + (int) ((v >>> (e - SUB_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+
+    /**
+     * Returns highest value that falls into given bucket.
+     *
+     * @param idx bucket index
+     *
+     * @return highest value (nanoseconds)
+     */
+    public static long bucketValue(int idx) {
+        if (idx < SUB_BUCKETS) {
+            return idx;
+        }
+
+        int shift = idx / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS | (idx & (SUB_BUCKETS - 1))) << shift;
+
+        return lower + (1L << shift) - 1;
+    }
+
+
+    /**
+     * Records a value.
+     *
+     * @param v value (nanoseconds)
+     */
+    public void record(long v) {
+        counts.incrementAndGet(bucket(v));
+    }
+
+
+    /**
+     * Returns copy of bucket counters.
+     *
+     * @return bucket counters
+     */
+    public long[] getCounts() {
+        return addCounts(new long[BUCKETS]);
+    }
+
+
+    /**
+     * Adds bucket counters to given array (eg. when merging several histograms).
+     *
+     * @param rslt array of BUCKETS counters
+     *
+     * @return the same array
+     */
+    public long[] addCounts(long[] rslt) {
+        for (int i = 0; i < BUCKETS; i++) {
+            rslt[i] += counts.get(i);
+        }
+
+        return rslt;
+    }
+
+
+    /**
+     * Returns total number of recorded values.
+     *
+     * @return number of values
+     */
+    public long getCount() {
+        long n = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            n += counts.get(i);
+        }
+
+        return n;
+    }
+
+
+    /**
+     * Returns percentile of all recorded values.
+     *
+     * @param p percentile (eg. 99.9)
+     *
+     * @return percentile value (nanoseconds) or 0 if no values have been recorded
+     */
+    public long getPercentile(double p) {
+        return percentile(getCounts(), p);
+    }
+
+
+    /**
+     * Calculates percentile from bucket counters.
+     *
+     * @param counts bucket counters (as returned by getCounts() or differences of such counters)
+     *
+     * @param p      percentile (eg. 99.9)
+     *
+     * @return percentile value (nanoseconds) or 0 if there are no values
+     */
+    public static long percentile(long[] counts, double p) {
+        long total = 0;
+
+        for (long c : counts) {
+            total += c;
+        }
+
+        if (total == 0) {
+            return 0;
+        }
+
+        long limit = Math.max(1, (long) Math.ceil(total * p / 100.0));
+        long n = 0;
+
+        for (int i = 0; i < counts.length; i++) {
+            n += counts[i];
+            if (n >= limit) {
+                return bucketValue(i);
+            }
+        }
+
+        return bucketValue(counts.length - 1);
+    }
+}
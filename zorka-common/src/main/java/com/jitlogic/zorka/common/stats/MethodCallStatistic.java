@@ -49,6 +49,11 @@ public class MethodCallStatistic implements ZorkaStat {
      */
     private AtomicLong throughput, maxThroughput;
 
+    /**
+     * Execution time distribution
+     */
+    private LatencyHistogram histogram = new LatencyHistogram();
+
 
     /**
      * Standard constructor.
@@ -217,6 +222,83 @@ public class MethodCallStatistic implements ZorkaStat {
     }
 
 
+    /**
+     * Returns execution time histogram.
+     *
+     * @return histogram
+     */
+    public LatencyHistogram getHistogram() {
+        return histogram;
+    }
+
+
+    /**
+     * Adds execution time histogram counters to given array.
+     *
+     * @param counts array of LatencyHistogram.BUCKETS counters
+     *
+     * @return the same array
+     */
+    public long[] addHistogramCounts(long[] counts) {
+        return histogram.addCounts(counts);
+    }
+
+
+    private long percentile(double p) {
+        return LatencyHistogram.percentile(addHistogramCounts(new long[LatencyHistogram.BUCKETS]), p);
+    }
+
+
+    /**
+     * Returns median execution time (since statistic creation).
+     *
+     * @return median execution time (in milliseconds)
+     */
+    public long getP50() {
+        return percentile(50.0) / MS;
+    }
+
+
+    /**
+     * Returns 90th percentile of execution time (since statistic creation).
+     *
+     * @return execution time (in milliseconds)
+     */
+    public long getP90() {
+        return percentile(90.0) / MS;
+    }
+
+
+    /**
+     * Returns 99th percentile of execution time (since statistic creation).
+     *
+     * @return execution time (in milliseconds)
+     */
+    public long getP99() {
+        return percentile(99.0) / MS;
+    }
+
+
+    /**
+     * Returns 99.9th percentile of execution time (since statistic creation).
+     *
+     * @return execution time (in milliseconds)
+     */
+    public long getP999() {
+        return percentile(99.9) / MS;
+    }
+
+
+    /**
+     * Returns 99th percentile of execution time (since statistic creation).
+     *
+     * @return execution time (in microseconds)
+     */
+    public long getP99Us() {
+        return percentile(99.0) / US;
+    }
+
+
     /**
      * Marks method entry. This is used for contention monitoring.
      */
@@ -322,6 +404,7 @@ public class MethodCallStatistic implements ZorkaStat {
         this.calls.incrementAndGet();
         this.time.addAndGet(time);
         this.setMax(maxTime, time);
+        this.histogram.record(time);
     }
 
 
@@ -350,6 +433,7 @@ public class MethodCallStatistic implements ZorkaStat {
         this.calls.incrementAndGet();
         this.time.addAndGet(time);
         this.setMax(maxTime, time);
+        this.histogram.record(time);
     }
 
 
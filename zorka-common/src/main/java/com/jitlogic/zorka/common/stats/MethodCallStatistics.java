@@ -31,6 +31,35 @@ public class MethodCallStatistics implements ZorkaStats {
      */
     private ConcurrentHashMap<String, MethodCallStatistic> stats = new ConcurrentHashMap<String, MethodCallStatistic>();
 
+    /**
+     * If true, striped statistics will be created (see StripedMethodCallStatistic)
+     */
+    private boolean striped;
+
+
+    /**
+     * Creates statistics group with standard (non-striped) statistics.
+     */
+    public MethodCallStatistics() {
+        this(false);
+    }
+
+
+    /**
+     * Creates statistics group.
+     *
+     * @param striped if true, striped statistics will be created (suitable for heavily contended methods)
+     */
+    public MethodCallStatistics(boolean striped) {
+        this.striped = striped;
+    }
+
+
+    public boolean isStriped() {
+        return striped;
+    }
+
+
     @Override
     public ZorkaStat getStatistic(String statisticName) {
         return stats.get(statisticName);
@@ -59,7 +88,8 @@ public class MethodCallStatistics implements ZorkaStats {
         MethodCallStatistic ret = stats.get(name);
 
         if (ret == null) {
-            MethodCallStatistic st = stats.putIfAbsent(name, ret = new MethodCallStatistic(name));
+            MethodCallStatistic st = stats.putIfAbsent(name, ret = striped
+                    ? new StripedMethodCallStatistic(name) : new MethodCallStatistic(name));
             if (st != null) {
                 ret = st;
             }
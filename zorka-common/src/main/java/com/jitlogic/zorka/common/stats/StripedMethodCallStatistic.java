@@ -0,0 +1,433 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ *
+ * ZORKA is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ZORKA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * ZORKA. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.common.stats;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Method call statistic that spreads its counters over a number of stripes (cells), so that
+ * threads calling the same hot method on many CPUs do not contend on shared counters. Each
+ * thread updates cell selected by its thread ID, so cells are mostly owned by single threads
+ * and their CAS operations practically never fail. Cells are padded to avoid false sharing
+ * and are created lazily, so statistics of rarely called methods stay small. Getters sum
+ * (or take maximum of) values from all cells, so reading is more expensive than in
+ * standard statistic. Each cell has its own execution time histogram, histograms are
+ * merged when read.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class StripedMethodCallStatistic extends MethodCallStatistic {
+
+    private static final long US = 1000L;
+    private static final long MS = 1000000L;
+
+    /**
+     * Maximum number of stripes
+     */
+    private static final int MAX_STRIPES = 64;
+
+    /**
+     * Default number of stripes (number of CPUs rounded up to power of 2)
+     */
+    private static final int NUM_STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Counter cells (created lazily)
+     */
+    private final AtomicReferenceArray<Cell> cells;
+
+    /**
+     * Cell index mask
+     */
+    private final int mask;
+
+    /**
+     * Creates striped statistic with default number of stripes.
+     *
+     * @param name statistic name
+     */
+    public StripedMethodCallStatistic(String name) {
+        this(name, NUM_STRIPES);
+    }
+
+
+    /**
+     * Creates striped statistic.
+     *
+     * @param name    statistic name
+     * @param stripes number of stripes (will be rounded up to power of 2)
+     */
+    public StripedMethodCallStatistic(String name, int stripes) {
+        super(name);
+        int n = stripes(stripes);
+        cells = new AtomicReferenceArray<Cell>(n);
+        mask = n - 1;
+    }
+
+
+    private static int stripes(int n) {
+        int s = 1;
+        while (s < n && s < MAX_STRIPES) {
+            s <<= 1;
+        }
+        return s;
+    }
+
+
+    /**
+     * Returns number of stripes.
+     *
+     * @return number of stripes
+     */
+    public int getStripes() {
+        return mask + 1;
+    }
+
+
+    /**
+     * Returns cell assigned to current thread (creating it if necessary).
+     *
+     * @return counter cell
+     */
+    private Cell cell() {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        int idx = (h ^ (h >>> 16)) & mask;
+
+        Cell c = cells.get(idx);
+
+        if (c == null) {
+            cells.compareAndSet(idx, null, new Cell());
+            c = cells.get(idx);
+        }
+
+        return c;
+    }
+
+
+    @Override
+    public long getCalls() {
+        long v = 0;
+        for (int i = 0; i <= mask; i++) {
+            Cell c = cells.get(i);
+            if (c != null) {
+                v += c.calls;
+            }
+        }
+        return v;
+    }
+
+
+    @Override
+    public long getErrors() {
+        long v = 0;
+        for (int i = 0; i <= mask; i++) {
+            Cell c = cells.get(i);
+            if (c != null) {
+                v += c.errors;
+            }
+        }
+        return v;
+    }
+
+
+    @Override
+    public long getTime() {
+        return getTimeNs() / MS;
+    }
+
+
+    @Override
+    public long getTimeUs() {
+        return getTimeNs() / US;
+    }
+
+
+    @Override
+    public long getTimeNs() {
+        long v = 0;
+        for (int i = 0; i <= mask; i++) {
+            Cell c = cells.get(i);
+            if (c != null) {
+                v += c.time;
+            }
+        }
+        return v;
+    }
+
+
+    @Override
+    public long getMaxTime() {
+        return getMaxTimeNs() / MS;
+    }
+
+
+    @Override
+    public long getMaxTimeUs() {
+        return getMaxTimeNs() / US;
+    }
+
+
+    @Override
+    public long getMaxTimeNs() {
+        long v = 0;
+        for (int i = 0; i <= mask; i++) {
+            Cell c = cells.get(i);
+            if (c != null) {
+                v = Math.max(v, c.maxTime);
+            }
+        }
+        return v;
+    }
+
+
+    @Override
+    public long getMaxTimeCLR() {
+        return getMaxTimeNsCLR() / MS;
+    }
+
+
+    @Override
+    public long getMaxTimeUsCLR() {
+        return getMaxTimeNsCLR() / US;
+    }
+
+
+    @Override
+    public long getMaxTimeNsCLR() {
+        long v = 0;
+        for (int i = 0; i <= mask; i++) {
+            Cell c = cells.get(i);
+            if (c != null) {
+                v = Math.max(v, Cell.MAX_TIME.getAndSet(c, 0));
+            }
+        }
+        return v;
+    }
+
+
+    /**
+     * Marks method entry. Current and maximum number of threads are tracked per stripe, so
+     * entering thread touches only its own cell.
+     */
+    @Override
+    public void markEnter() {
+        Cell c = cell();
+        c.setMax(Cell.MAX_THREADS, Cell.CUR_THREADS.incrementAndGet(c));
+    }
+
+
+    @Override
+    public void markExit() {
+        Cell.CUR_THREADS.decrementAndGet(cell());
+    }
+
+
+    /**
+     * Returns sum of per-stripe maxima. Stripes may reach their maxima at different times,
+     * so this is an upper bound of number of threads executing method in parallel.
+     *
+     * @return number of threads
+     */
+    @Override
+    public long getMaxThreads() {
+        long v = 0;
+        for (int i = 0; i <= mask; i++) {
+            Cell c = cells.get(i);
+            if (c != null) {
+                v += c.maxThreads;
+            }
+        }
+        return v;
+    }
+
+
+    @Override
+    public long getMaxThreadsCLR() {
+        long v = 0;
+        for (int i = 0; i <= mask; i++) {
+            Cell c = cells.get(i);
+            if (c != null) {
+                v += Cell.MAX_THREADS.getAndSet(c, 0);
+            }
+        }
+        return v;
+    }
+
+
+    @Override
+    public long getCurThreads() {
+        long v = 0;
+        for (int i = 0; i <= mask; i++) {
+            Cell c = cells.get(i);
+            if (c != null) {
+                v += c.curThreads;
+            }
+        }
+        // Thread may exit method on different stripe than it entered, so cells can be temporarily negative
+        return v > 0 ? v : 0;
+    }
+
+
+    /**
+     * Returns snapshot of execution time histogram merged from all cells. Snapshot is not
+     * updated by subsequent calls.
+     *
+     * @return histogram
+     */
+    @Override
+    public LatencyHistogram getHistogram() {
+        return new LatencyHistogram(addHistogramCounts(new long[LatencyHistogram.BUCKETS]));
+    }
+
+
+    @Override
+    public long[] addHistogramCounts(long[] counts) {
+        for (int i = 0; i <= mask; i++) {
+            Cell c = cells.get(i);
+            if (c != null) {
+                c.histogram.addCounts(counts);
+            }
+        }
+        return counts;
+    }
+
+
+    @Override
+    public long getThroughput() {
+        long v = 0;
+        for (int i = 0; i <= mask; i++) {
+            Cell c = cells.get(i);
+            if (c != null) {
+                v += c.throughput;
+            }
+        }
+        return v;
+    }
+
+
+    @Override
+    public long getMaxThroughput() {
+        long v = 0;
+        for (int i = 0; i <= mask; i++) {
+            Cell c = cells.get(i);
+            if (c != null) {
+                v = Math.max(v, c.maxThroughput);
+            }
+        }
+        return v;
+    }
+
+
+    @Override
+    public long getMaxThroughputCLR() {
+        long v = 0;
+        for (int i = 0; i <= mask; i++) {
+            Cell c = cells.get(i);
+            if (c != null) {
+                v = Math.max(v, Cell.MAX_THROUGHPUT.getAndSet(c, 0));
+            }
+        }
+        return v;
+    }
+
+
+    @Override
+    public void logCall(long time) {
+        cell().logCall(time);
+    }
+
+
+    @Override
+    public void logCall(long time, long throughput) {
+        Cell c = cell();
+        c.logCall(time);
+        c.logThroughput(throughput);
+    }
+
+
+    @Override
+    public void logError(long time) {
+        Cell c = cell();
+        Cell.ERRORS.incrementAndGet(c);
+        c.logCall(time);
+    }
+
+
+    @Override
+    public void logError(long time, long throughput) {
+        Cell c = cell();
+        Cell.ERRORS.incrementAndGet(c);
+        c.logCall(time);
+        c.logThroughput(throughput);
+    }
+
+
+    /**
+     * Single stripe of counters. Padding fields keep counters of neighbouring cells
+     * in separate cache lines.
+     */
+    private static class Cell {
+
+        private static final AtomicLongFieldUpdater<Cell> CALLS
+                = AtomicLongFieldUpdater.newUpdater(Cell.class, "calls");
+        private static final AtomicLongFieldUpdater<Cell> ERRORS
+                = AtomicLongFieldUpdater.newUpdater(Cell.class, "errors");
+        private static final AtomicLongFieldUpdater<Cell> TIME
+                = AtomicLongFieldUpdater.newUpdater(Cell.class, "time");
+        private static final AtomicLongFieldUpdater<Cell> MAX_TIME
+                = AtomicLongFieldUpdater.newUpdater(Cell.class, "maxTime");
+        private static final AtomicLongFieldUpdater<Cell> CUR_THREADS
+                = AtomicLongFieldUpdater.newUpdater(Cell.class, "curThreads");
+        private static final AtomicLongFieldUpdater<Cell> MAX_THREADS
+                = AtomicLongFieldUpdater.newUpdater(Cell.class, "maxThreads");
+        private static final AtomicLongFieldUpdater<Cell> THROUGHPUT
+                = AtomicLongFieldUpdater.newUpdater(Cell.class, "throughput");
+        private static final AtomicLongFieldUpdater<Cell> MAX_THROUGHPUT
+                = AtomicLongFieldUpdater.newUpdater(Cell.class, "maxThroughput");
+
+        long p0, p1, p2, p3, p4, p5, p6, p7;
+
+        volatile long calls, errors, time, maxTime, curThreads, maxThreads, throughput, maxThroughput;
+
+        long q0, q1, q2, q3, q4, q5, q6, q7;
+
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        private void logCall(long t) {
+            CALLS.incrementAndGet(this);
+            TIME.addAndGet(this, t);
+            setMax(MAX_TIME, t);
+            histogram.record(t);
+        }
+
+        private void logThroughput(long tp) {
+            THROUGHPUT.addAndGet(this, tp);
+            setMax(MAX_THROUGHPUT, tp);
+        }
+
+        private void setMax(AtomicLongFieldUpdater<Cell> updater, long v) {
+            long v2 = updater.get(this);
+
+            while (v > v2 && !updater.compareAndSet(this, v2, v)) {
+                v2 = updater.get(this);
+            }
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.jitlogic.zorka.common.tracedata;
 
+import com.jitlogic.zorka.common.stats.AgentDiagnostics;
 import com.jitlogic.zorka.common.util.ZorkaAsyncThread;
 import com.jitlogic.zorka.common.util.ZorkaLog;
 import com.jitlogic.zorka.common.util.ZorkaLogger;
@@ -82,6 +83,8 @@ public class FileTraceOutput extends ZorkaAsyncThread<SymbolicRecord> implements
     public FileTraceOutput(TraceWriter traceWriter, File path, int maxArchiveFiles, long maxFileSize, boolean compress) {
         super("file-output");
 
+        dropCounter = AgentDiagnostics.FILE_TRACES_DROPPED;
+
         this.traceWriter = traceWriter;
         this.path = path;
         this.maxArchiveFiles = maxArchiveFiles;
@@ -314,7 +314,8 @@ public class FressianTraceFormat {
 
             w.writeInt(e.getClassId());
             w.writeString(e.getMessage());
-            w.writeObject(Arrays.asList(e.getStackTrace()));
+            // Identical stack traces (eg. from error storms) are encoded once and referenced later on
+            w.writeObject(Arrays.asList(e.getStackTrace()), true);
             w.writeObject(e.getCause());
         }
     };
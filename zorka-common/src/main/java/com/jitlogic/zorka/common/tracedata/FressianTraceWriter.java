@@ -32,6 +32,13 @@ public class FressianTraceWriter implements MetadataChecker, TraceWriter {
 
     private static ZorkaLog log = ZorkaLogger.getLog(FressianTraceWriter.class);
 
+    /**
+     * Number of records written before Fressian caches are reset. Writer caches stack traces of all
+     * exceptions written (see FressianTraceFormat.EXCEPTION_WH) until reset, so long-lived writers
+     * (eg. in FileTraceOutput) have to reset their caches periodically.
+     */
+    private static final int CACHE_RESET_RECORDS = 1024;
+
     /**
      * Symbol registry used by event sender.
      */
@@ -47,6 +54,16 @@ public class FressianTraceWriter implements MetadataChecker, TraceWriter {
 
     private Writer writer;
 
+    /**
+     * Number of metadata objects (symbols, metrics, templates) written so far
+     */
+    private long metadataWritten;
+
+    /**
+     * Number of records written since writer caches have been reset
+     */
+    private int recordsCached;
+
     public FressianTraceWriter(SymbolRegistry symbols, MetricsRegistry metrics) {
         this.symbols = symbols;
         this.metrics = metrics;
@@ -56,6 +73,15 @@ public class FressianTraceWriter implements MetadataChecker, TraceWriter {
     @Override
     public void write(SymbolicRecord record) throws IOException {
         checkOutput();
+        if (++recordsCached > CACHE_RESET_RECORDS) {
+            // Reset is written between records, so readers reset their caches at the same point
+            writer.resetCaches();
+            recordsCached = 1;
+        }
+        if (record instanceof TraceRecord) {
+            // Exceptions are passed from application threads as is, symbolic forms are created here
+            ((TraceRecord) record).fixup(symbols);
+        }
         record.traverse(this);
         writer.writeObject(record);
     }
@@ -69,6 +95,7 @@ public class FressianTraceWriter implements MetadataChecker, TraceWriter {
 
     public void softReset() {
         writer = new FressianWriter(os, FressianTraceFormat.WRITE_LOOKUP);
+        recordsCached = 0;
     }
 
 
@@ -78,6 +105,18 @@ public class FressianTraceWriter implements MetadataChecker, TraceWriter {
         metricsSent.reset();
         templatesSent.reset();
         this.writer = new FressianWriter(os, FressianTraceFormat.WRITE_LOOKUP);
+        recordsCached = 0;
+    }
+
+
+    /**
+     * Returns number of metadata objects (symbols, metrics, metric templates) written so far. Comparing
+     * this value before and after writing a record tells if record has been preceded by metadata.
+     *
+     * @return number of metadata objects
+     */
+    public long getMetadataWritten() {
+        return metadataWritten;
     }
 
 
@@ -96,6 +135,7 @@ public class FressianTraceWriter implements MetadataChecker, TraceWriter {
             log.debug(ZorkaLogger.ZTR_SYMBOL_ENRICHMENT, "Enriching output stream with symbol '%s', id=%s", sym, id);
             writer.writeObject(new Symbol(id, sym));
             symbolsSent.set(id);
+            metadataWritten++;
         }
         return id;
     }
@@ -110,6 +150,7 @@ public class FressianTraceWriter implements MetadataChecker, TraceWriter {
             checkTemplate(metric.getTemplateId());
             writer.writeObject(metric);
             metricsSent.set(id);
+            metadataWritten++;
         }
     }
 
@@ -121,6 +162,7 @@ public class FressianTraceWriter implements MetadataChecker, TraceWriter {
             log.debug(ZorkaLogger.ZTR_SYMBOL_ENRICHMENT, "Enriching output stream with metric '" + template + "', id=" + id);
             writer.writeObject(template);
             templatesSent.set(id);
+            metadataWritten++;
         }
     }
 
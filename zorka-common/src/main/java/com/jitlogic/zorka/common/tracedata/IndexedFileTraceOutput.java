@@ -0,0 +1,457 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ *
+ * ZORKA is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ZORKA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * ZORKA. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.common.tracedata;
+
+import com.jitlogic.zorka.common.stats.AgentDiagnostics;
+import com.jitlogic.zorka.common.util.ZorkaAsyncThread;
+import com.jitlogic.zorka.common.util.ZorkaLog;
+import com.jitlogic.zorka.common.util.ZorkaLogger;
+import com.jitlogic.zorka.common.util.ZorkaUtil;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+
+/**
+ * Stores trace data in indexed segment files. Each segment consists of data file (.zts) and index file (.ztx).
+ * Data files are preallocated and memory mapped. Each submitted record is encoded (and optionally compressed)
+ * as a separate chunk, so it can be decoded without reading preceding data. Symbols are written once per
+ * segment, chunks containing them are marked in index, so reader needs to decode only those chunks and
+ * chunks it is interested in. Index entries (offset, timestamp, duration, flags, trace ID) are appended
+ * to index file after chunk data has been written. Use IndexedTraceReader to read indexed trace files.
+ * <p/>
+ * Data file layout: magic (ZTSC - plain, ZTSZ - compressed), then chunks: length (4 bytes) followed by
+ * chunk data. Segments are numbered, oldest segments are removed when maximum number of segments is exceeded.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class IndexedFileTraceOutput extends ZorkaAsyncThread<SymbolicRecord> implements TraceOutput {
+
+    private static final ZorkaLog log = ZorkaLogger.getLog(IndexedFileTraceOutput.class);
+
+    public static final String DATA_SUFFIX = ".zts", INDEX_SUFFIX = ".ztx";
+
+    /**
+     * Uncompressed segment signature
+     */
+    public static final byte[] ZTSC_MAGIC = new byte[]{'Z', 'T', 'S', 'C'};
+
+    /**
+     * Compressed segment signature
+     */
+    public static final byte[] ZTSZ_MAGIC = new byte[]{'Z', 'T', 'S', 'Z'};
+
+    /**
+     * Segment file names: base name, segment number, suffix
+     */
+    private static final Pattern RE_SEGMENT = Pattern.compile("^(.*)\\.([0-9]{8})\\.(zts|ztx)$");
+
+    /**
+     * Directory containing segment files
+     */
+    private File dir;
+
+    /**
+     * Base name of segment files
+     */
+    private String base;
+
+    /**
+     * Maximum number of segments kept
+     */
+    private int maxSegments;
+
+    /**
+     * Segment size
+     */
+    private int segmentSize;
+
+    /**
+     * If true, chunks will be compressed
+     */
+    private boolean compress;
+
+    /**
+     * Trace writer responsible for encoding output data
+     */
+    private FressianTraceWriter traceWriter;
+
+    /**
+     * Buffer for encoding single chunk
+     */
+    private ChunkBuffer chunk = new ChunkBuffer(64 * 1024);
+
+    private Deflater deflater;
+
+    private byte[] zbuf = new byte[64 * 1024];
+
+    /**
+     * Current segment number
+     */
+    private long segment;
+
+    /**
+     * Current segment data (memory mapped)
+     */
+    private MappedByteBuffer data;
+
+    /**
+     * Current segment data file
+     */
+    private File dataFile;
+
+    /**
+     * Write position in current segment
+     */
+    private int pos;
+
+    /**
+     * Current segment index
+     */
+    private DataOutputStream index;
+
+    /**
+     * Set when segment cannot be opened. Opening is retried with each record, records are lost in the meantime.
+     */
+    private boolean failed;
+
+
+    /**
+     * Creates indexed file output for tracer.
+     *
+     * @param traceWriter trace writer
+     * @param path        path to trace file (segment files will be named after it)
+     * @param maxSegments max number of segments
+     * @param segmentSize segment size
+     * @param compress    enable compression
+     */
+    public IndexedFileTraceOutput(FressianTraceWriter traceWriter, File path, int maxSegments, long segmentSize,
+                                  boolean compress) {
+        super("indexed-file-output");
+
+        dropCounter = AgentDiagnostics.FILE_TRACES_DROPPED;
+
+        this.traceWriter = traceWriter;
+        this.dir = path.getAbsoluteFile().getParentFile();
+        this.base = baseName(path);
+        this.maxSegments = maxSegments;
+        this.segmentSize = (int) Math.min(segmentSize, Integer.MAX_VALUE);
+        this.compress = compress;
+        this.deflater = compress ? new Deflater(6, true) : null;
+
+        traceWriter.setOutput(this);
+    }
+
+
+    /**
+     * Returns base name of segment files. Trace file extension (.ztr) is omitted.
+     * If path points to segment file, base name of its segment files is returned.
+     *
+     * @param path path to trace file (or segment file)
+     * @return base name
+     */
+    public static String baseName(File path) {
+        String name = path.getName();
+        Matcher m = RE_SEGMENT.matcher(name);
+
+        if (m.matches()) {
+            return m.group(1);
+        }
+
+        return name.endsWith(".ztr") ? name.substring(0, name.length() - 4) : name;
+    }
+
+
+    /**
+     * Returns segment number if file name is segment file (with given base name) or -1 otherwise.
+     *
+     * @param base   base name
+     * @param name   file name
+     * @param suffix segment file suffix
+     * @return segment number or -1
+     */
+    public static long segmentNum(String base, String name, String suffix) {
+        Matcher m = RE_SEGMENT.matcher(name);
+        return m.matches() && m.group(1).equals(base) && name.endsWith(suffix) ? Long.parseLong(m.group(2)) : -1;
+    }
+
+
+    /**
+     * Returns segment file.
+     *
+     * @param dir     directory containing segment files
+     * @param base    base name
+     * @param segment segment number
+     * @param suffix  suffix (data or index file)
+     * @return segment file
+     */
+    public static File segmentFile(File dir, String base, long segment, String suffix) {
+        return new File(dir, String.format("%s.%08d%s", base, segment, suffix));
+    }
+
+
+    @Override
+    public OutputStream getOutputStream() {
+        return chunk;
+    }
+
+
+    @Override
+    protected synchronized void process(List<SymbolicRecord> objs) {
+        for (SymbolicRecord obj : objs) {
+            try {
+                write(obj);
+            } catch (IOException e) {
+                log.error(ZorkaLogger.ZSP_SUBMIT, "Error writing trace data to file.", e);
+                AgentDiagnostics.inc(AgentDiagnostics.FILE_TRACES_LOST);
+                roll(0);
+            }
+        }
+    }
+
+
+    /**
+     * Encodes record and appends it as a new chunk. If chunk does not fit in current segment, new segment
+     * is started and record is encoded again (new segment needs its own metadata).
+     *
+     * @param rec record to be written
+     * @throws IOException if I/O error occurs
+     */
+    private void write(SymbolicRecord rec) throws IOException {
+        long meta = traceWriter.getMetadataWritten();
+        int len = encode(rec);
+
+        if (data == null || data.capacity() - pos < 4 + len) {
+            roll(4 + len);
+            meta = traceWriter.getMetadataWritten();
+            len = encode(rec);
+        }
+
+        if (data == null) {
+            AgentDiagnostics.inc(AgentDiagnostics.FILE_TRACES_LOST);
+            return;
+        }
+
+        byte[] buf = compress ? zbuf : chunk.buffer();
+
+        ByteBuffer b = data.duplicate();
+        b.position(pos + 4);
+        b.put(buf, 0, len);
+        data.putInt(pos, len);
+
+        int flags = meta != traceWriter.getMetadataWritten() ? TraceIndexEntry.METADATA : 0;
+        long clock = 0, duration = 0;
+        int traceId = 0;
+
+        if (rec instanceof TraceRecord && ((TraceRecord) rec).hasFlag(TraceRecord.TRACE_BEGIN)) {
+            TraceRecord tr = (TraceRecord) rec;
+            flags |= TraceIndexEntry.TRACE;
+            if (tr.getMarker().hasFlag(TraceMarker.ERROR_MARK) || tr.getException() != null) {
+                flags |= TraceIndexEntry.ERROR;
+            }
+            clock = tr.getClock();
+            duration = tr.getTime();
+            traceId = tr.getTraceId();
+        }
+
+        new TraceIndexEntry(segment, pos + 4, len, flags, clock, duration, traceId).write(index);
+
+        pos += 4 + len;
+    }
+
+
+    /**
+     * Encodes (and optionally compresses) record.
+     *
+     * @param rec record
+     * @return encoded chunk length
+     * @throws IOException if I/O error occurs
+     */
+    private int encode(SymbolicRecord rec) throws IOException {
+        chunk.reset();
+        traceWriter.softReset();
+        traceWriter.write(rec);
+
+        if (!compress) {
+            return chunk.size();
+        }
+
+        deflater.reset();
+        deflater.setInput(chunk.buffer(), 0, chunk.size());
+        deflater.finish();
+
+        int len = 0;
+
+        while (!deflater.finished()) {
+            if (len == zbuf.length) {
+                byte[] b = new byte[zbuf.length * 2];
+                System.arraycopy(zbuf, 0, b, 0, len);
+                zbuf = b;
+            }
+            len += deflater.deflate(zbuf, len, zbuf.length - len);
+        }
+
+        return len;
+    }
+
+
+    /**
+     * Closes current segment and opens new one. Removes segments exceeding maximum number of segments.
+     * If previous attempt failed, opening the same segment is retried. Only first failure is logged
+     * as error, so broken output does not flood logs.
+     *
+     * @param minSize minimum space needed in new segment
+     */
+    private void roll(int minSize) {
+        closeSegment();
+
+        if (!failed) {
+            segment++;
+
+            File f = segmentFile(dir, base, segment - maxSegments, DATA_SUFFIX);
+            if (f.exists()) {
+                f.delete();
+            }
+
+            f = segmentFile(dir, base, segment - maxSegments, INDEX_SUFFIX);
+            if (f.exists()) {
+                f.delete();
+            }
+
+            dataFile = segmentFile(dir, base, segment, DATA_SUFFIX);
+
+            log.info(ZorkaLogger.ZSP_SUBMIT, "Opening trace segment: " + dataFile);
+        }
+
+        try {
+            RandomAccessFile raf = new RandomAccessFile(dataFile, "rw");
+            try {
+                data = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, minSize + 4));
+            } finally {
+                raf.close();
+            }
+            data.put(compress ? ZTSZ_MAGIC : ZTSC_MAGIC);
+            pos = 4;
+
+            index = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(segmentFile(dir, base, segment, INDEX_SUFFIX))));
+
+            if (failed) {
+                log.info(ZorkaLogger.ZSP_SUBMIT, "Trace segment " + dataFile + " opened. Resuming trace output.");
+                failed = false;
+            }
+        } catch (IOException e) {
+            if (!failed) {
+                log.error(ZorkaLogger.ZTR_ERRORS, "Cannot open trace segment " + dataFile
+                        + ". Traces will be lost until it can be opened (see FileTracesLost counter).", e);
+                failed = true;
+            } else {
+                log.debug(ZorkaLogger.ZTR_ERRORS, "Cannot open trace segment " + dataFile + ": " + e);
+            }
+            data = null;
+        }
+
+        traceWriter.reset();
+    }
+
+
+    /**
+     * Flushes and closes current segment. Segment is unmapped and preallocated space after last
+     * chunk is truncated. As segment memory must not be accessed after unmapping, this is called
+     * only with output lock held (close() can be called by other threads via shutdown()).
+     */
+    private void closeSegment() {
+        if (data != null) {
+            data.force();
+            ZorkaUtil.unmap(data);
+            data = null;
+            try {
+                index.close();
+            } catch (IOException e) {
+                log.error(ZorkaLogger.ZTR_ERRORS, "Cannot close trace index of " + dataFile, e);
+            }
+            index = null;
+            try {
+                RandomAccessFile raf = new RandomAccessFile(dataFile, "rw");
+                try {
+                    raf.setLength(pos);
+                } finally {
+                    raf.close();
+                }
+            } catch (IOException e) {
+                // Some platforms do not allow truncating files still mapped (if unmap is not supported),
+                // reader relies on index anyway
+                log.debug(ZorkaLogger.ZTR_ERRORS, "Cannot truncate trace segment " + dataFile + ": " + e);
+            }
+        }
+    }
+
+
+    @Override
+    public void open() {
+        log.info(ZorkaLogger.ZSP_CONFIG, "Starting indexed file tracer output: " + dir + "/" + base);
+
+        // Continue numbering after segments left by previous runs
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                segment = Math.max(segment, segmentNum(base, name, DATA_SUFFIX));
+            }
+        }
+
+        roll(0);
+    }
+
+
+    @Override
+    public synchronized void close() {
+        log.info(ZorkaLogger.ZSP_CONFIG, "Stopping indexed file tracer output: " + dir + "/" + base);
+        closeSegment();
+    }
+
+
+    @Override
+    protected synchronized void flush() {
+        try {
+            if (index != null) {
+                index.flush();
+            }
+        } catch (IOException e) {
+            log.error(ZorkaLogger.ZTR_ERRORS, "Cannot flush trace index of " + dataFile, e);
+        }
+    }
+
+
+    /**
+     * Output buffer giving access to its internal array, so encoded chunks don't have to be copied.
+     */
+    private static class ChunkBuffer extends ByteArrayOutputStream {
+
+        private ChunkBuffer(int size) {
+            super(size);
+        }
+
+        private byte[] buffer() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ *
+ * ZORKA is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ZORKA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * ZORKA. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.common.tracedata;
+
+import com.jitlogic.zorka.common.zico.ZicoDataProcessor;
+import org.fressian.FressianReader;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static com.jitlogic.zorka.common.tracedata.IndexedFileTraceOutput.*;
+
+/**
+ * Reads trace files written by IndexedFileTraceOutput. Traces can be selected using index (by time range
+ * or error flag) and only selected chunks (and chunks containing metadata they need) are read and decoded.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class IndexedTraceReader {
+
+    /**
+     * Directory containing segment files
+     */
+    private File dir;
+
+    /**
+     * Base name of segment files
+     */
+    private String base;
+
+    /**
+     * Index entries of all segments (ordered by segment and offset)
+     */
+    private List<TraceIndexEntry> entries = new ArrayList<TraceIndexEntry>();
+
+
+    /**
+     * Opens indexed trace files.
+     *
+     * @param path path to trace file (as configured in output) or to any of its segment files
+     * @throws IOException if index files cannot be read
+     */
+    public IndexedTraceReader(File path) throws IOException {
+        this.dir = path.getAbsoluteFile().getParentFile();
+        this.base = baseName(path);
+        reload();
+    }
+
+
+    /**
+     * Reads index files again (eg. when trace files are still being written).
+     *
+     * @throws IOException if index files cannot be read
+     */
+    public synchronized void reload() throws IOException {
+        List<Long> segments = new ArrayList<Long>();
+
+        String[] names = dir.list();
+
+        if (names != null) {
+            for (String name : names) {
+                long segment = segmentNum(base, name, INDEX_SUFFIX);
+                if (segment >= 0) {
+                    segments.add(segment);
+                }
+            }
+        }
+
+        Collections.sort(segments);
+
+        List<TraceIndexEntry> lst = new ArrayList<TraceIndexEntry>();
+
+        for (long segment : segments) {
+            File f = segmentFile(dir, base, segment, INDEX_SUFFIX);
+            DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            try {
+                // Skip partially written entry at the end (if any)
+                for (long n = f.length() / TraceIndexEntry.SIZE; n > 0; n--) {
+                    lst.add(TraceIndexEntry.read(segment, is));
+                }
+            } finally {
+                is.close();
+            }
+        }
+
+        entries = lst;
+    }
+
+
+    /**
+     * Returns all index entries.
+     *
+     * @return index entries (ordered by segment and offset)
+     */
+    public List<TraceIndexEntry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+
+    /**
+     * Finds traces started in given time range.
+     *
+     * @param from       start of time range (inclusive, wall clock in milliseconds)
+     * @param to         end of time range (exclusive)
+     * @param errorsOnly if true, only traces marked as errors are returned
+     * @return index entries of matching traces
+     */
+    public List<TraceIndexEntry> find(long from, long to, boolean errorsOnly) {
+        List<TraceIndexEntry> rslt = new ArrayList<TraceIndexEntry>();
+
+        for (TraceIndexEntry e : entries) {
+            if (e.hasFlag(TraceIndexEntry.TRACE) && e.getClock() >= from && e.getClock() < to
+                    && (!errorsOnly || e.hasFlag(TraceIndexEntry.ERROR))) {
+                rslt.add(e);
+            }
+        }
+
+        return rslt;
+    }
+
+
+    /**
+     * Reads and decodes single chunk. Note that symbols used by records in chunk might be stored in
+     * preceding chunks of the same segment (use load() to get them as well).
+     *
+     * @param entry index entry
+     * @return decoded objects
+     * @throws IOException if segment file cannot be read or is malformed
+     */
+    public List<Object> read(TraceIndexEntry entry) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(segmentFile(dir, base, entry.getSegment(), DATA_SUFFIX), "r");
+        try {
+            return read(raf, entry);
+        } finally {
+            raf.close();
+        }
+    }
+
+
+    private List<Object> read(RandomAccessFile raf, TraceIndexEntry entry) throws IOException {
+        byte[] magic = new byte[4];
+        raf.seek(0);
+        raf.readFully(magic);
+
+        boolean compressed;
+
+        if (Arrays.equals(magic, ZTSZ_MAGIC)) {
+            compressed = true;
+        } else if (Arrays.equals(magic, ZTSC_MAGIC)) {
+            compressed = false;
+        } else {
+            throw new IOException("Invalid header (invalid file type).");
+        }
+
+        byte[] data = new byte[entry.getLength()];
+        raf.seek(entry.getOffset());
+        raf.readFully(data);
+
+        InputStream is = compressed ? new ByteArrayInputStream(inflate(data)) : new ByteArrayInputStream(data);
+        FressianReader reader = new FressianReader(is, FressianTraceFormat.READ_LOOKUP);
+
+        List<Object> rslt = new ArrayList<Object>();
+
+        try {
+            for (Object obj = reader.readObject(); obj != null; obj = reader.readObject()) {
+                rslt.add(obj);
+            }
+        } catch (EOFException e) {
+            // End of chunk
+        }
+
+        return rslt;
+    }
+
+
+    private static byte[] inflate(byte[] data) throws IOException {
+        Inflater inflater = new Inflater(true);
+        ByteArrayOutputStream os = new ByteArrayOutputStream(data.length * 4);
+        byte[] buf = new byte[16384];
+
+        // Extra byte is needed by inflater in nowrap mode
+        byte[] input = new byte[data.length + 1];
+        System.arraycopy(data, 0, input, 0, data.length);
+        inflater.setInput(input);
+
+        try {
+            while (!inflater.finished()) {
+                int len = inflater.inflate(buf);
+                if (len == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                os.write(buf, 0, len);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed compressed chunk: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+
+        return os.toByteArray();
+    }
+
+
+    /**
+     * Loads selected chunks. Metadata (symbols, metrics) stored in preceding chunks of the same segments
+     * is loaded as well, so records can be resolved. Objects are passed to processor in file order.
+     * Records from chunks that have been read only for their metadata are skipped.
+     *
+     * @param selected  selected index entries (as returned by find() or getEntries())
+     * @param processor processor receiving decoded objects
+     * @throws IOException if segment files cannot be read or processor fails
+     */
+    public void load(Collection<TraceIndexEntry> selected, ZicoDataProcessor processor) throws IOException {
+        Map<Long, Set<Long>> offsets = new TreeMap<Long, Set<Long>>();
+
+        for (TraceIndexEntry e : selected) {
+            Set<Long> s = offsets.get(e.getSegment());
+            if (s == null) {
+                s = new HashSet<Long>();
+                offsets.put(e.getSegment(), s);
+            }
+            s.add(e.getOffset());
+        }
+
+        for (Map.Entry<Long, Set<Long>> seg : offsets.entrySet()) {
+            long segment = seg.getKey();
+            Set<Long> s = seg.getValue();
+            long maxOffset = Collections.max(s);
+
+            RandomAccessFile raf = new RandomAccessFile(segmentFile(dir, base, segment, DATA_SUFFIX), "r");
+
+            try {
+                for (TraceIndexEntry e : entries) {
+                    if (e.getSegment() != segment || e.getOffset() > maxOffset) {
+                        continue;
+                    }
+
+                    boolean sel = s.contains(e.getOffset());
+
+                    if (sel || e.hasFlag(TraceIndexEntry.METADATA)) {
+                        for (Object obj : read(raf, e)) {
+                            if (sel || !(obj instanceof SymbolicRecord)) {
+                                processor.process(obj);
+                            }
+                        }
+                    }
+                }
+            } finally {
+                raf.close();
+            }
+        }
+
+        processor.commit();
+    }
+}
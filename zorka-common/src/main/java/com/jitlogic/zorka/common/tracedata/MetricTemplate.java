@@ -16,6 +16,7 @@
 
 package com.jitlogic.zorka.common.tracedata;
 
+import com.jitlogic.zorka.common.util.StringTemplate;
 import com.jitlogic.zorka.common.util.ZorkaUtil;
 
 import java.io.Serializable;
@@ -50,6 +51,11 @@ public class MetricTemplate implements Serializable {
      */
     private String name;
 
+    /**
+     * Compiled metric name template (created on first use)
+     */
+    private transient StringTemplate nameTemplate;
+
     /**
      * Units of measure (human readable string)
      */
@@ -179,6 +185,19 @@ public class MetricTemplate implements Serializable {
     }
 
 
+    /**
+     * Returns metric name as compiled template (metric names can contain attribute references).
+     *
+     * @return name template
+     */
+    public StringTemplate getNameTemplate() {
+        if (nameTemplate == null) {
+            nameTemplate = StringTemplate.compile(name);
+        }
+        return nameTemplate;
+    }
+
+
     public String getUnits() {
         return units;
     }
@@ -0,0 +1,159 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.common.tracedata;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Entry of indexed trace file. Describes single chunk of trace data stored in a segment.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class TraceIndexEntry {
+
+    /**
+     * Entry size in index file (bytes)
+     */
+    public static final int SIZE = 40;
+
+    /**
+     * Chunk contains trace (record with trace marker)
+     */
+    public static final int TRACE = 0x01;
+
+    /**
+     * Trace ended with error
+     */
+    public static final int ERROR = 0x02;
+
+    /**
+     * Chunk contains metadata (symbols, metrics) used by subsequent chunks of the same segment
+     */
+    public static final int METADATA = 0x04;
+
+    private long segment;
+
+    private long offset;
+
+    private int length;
+
+    private int flags;
+
+    private long clock;
+
+    private long duration;
+
+    private int traceId;
+
+
+    public TraceIndexEntry(long segment, long offset, int length, int flags, long clock, long duration, int traceId) {
+        this.segment = segment;
+        this.offset = offset;
+        this.length = length;
+        this.flags = flags;
+        this.clock = clock;
+        this.duration = duration;
+        this.traceId = traceId;
+    }
+
+
+    /**
+     * Reads entry from index file.
+     *
+     * @param segment segment number
+     * @param in      index file
+     * @return index entry
+     * @throws IOException if I/O error occurs
+     */
+    public static TraceIndexEntry read(long segment, DataInput in) throws IOException {
+        long offset = in.readLong();
+        int length = in.readInt();
+        int flags = in.readInt();
+        long clock = in.readLong();
+        long duration = in.readLong();
+        int traceId = in.readInt();
+        in.readInt(); // Reserved
+
+        return new TraceIndexEntry(segment, offset, length, flags, clock, duration, traceId);
+    }
+
+
+    /**
+     * Writes entry to index file.
+     *
+     * @param out index file
+     * @throws IOException if I/O error occurs
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeLong(offset);
+        out.writeInt(length);
+        out.writeInt(flags);
+        out.writeLong(clock);
+        out.writeLong(duration);
+        out.writeInt(traceId);
+        out.writeInt(0);
+    }
+
+
+    public long getSegment() {
+        return segment;
+    }
+
+
+    public long getOffset() {
+        return offset;
+    }
+
+
+    public int getLength() {
+        return length;
+    }
+
+
+    public int getFlags() {
+        return flags;
+    }
+
+
+    public boolean hasFlag(int flag) {
+        return 0 != (flags & flag);
+    }
+
+
+    public long getClock() {
+        return clock;
+    }
+
+
+    public long getDuration() {
+        return duration;
+    }
+
+
+    public int getTraceId() {
+        return traceId;
+    }
+
+
+    @Override
+    public String toString() {
+        return "TraceIndexEntry(segment=" + segment + ", offset=" + offset + ", length=" + length
+                + ", flags=" + flags + ", clock=" + clock + ", duration=" + duration + ")";
+    }
+}
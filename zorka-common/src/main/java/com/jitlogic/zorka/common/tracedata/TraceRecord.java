@@ -468,6 +468,16 @@ public class TraceRecord implements SymbolicRecord, Serializable {
     }
 
 
+    /**
+     * Cleans up record and detaches it from its parent, so it can be kept in
+     * trace builder's record pool and reused for another frame later.
+     */
+    public void reset() {
+        parent = null;
+        clean();
+    }
+
+
     /**
      * Enabled additional flag bits.
      *
@@ -522,11 +532,17 @@ public class TraceRecord implements SymbolicRecord, Serializable {
 
     /**
      * Traverses through call tree and converts all exception objects into symbolic forms.
-     * This operation is performed just before submitting tracer to output (file or collector).
+     * This operation is performed by output threads just before writing trace (so application
+     * threads are not slowed down by symbolization). As the same record can be written by
+     * more than one output (and nested traces are also written as parts of outer traces),
+     * conversion is synchronized. Note that until then records waiting in output submit
+     * queues keep raw exception objects, so exceptions (and through their stack frames and
+     * classes, class loaders of undeployed applications) stay reachable until all queued
+     * records are written. Output queue sizes bound number of such records.
      *
      * @param symbols agent's symbol registry
      */
-    public void fixup(SymbolRegistry symbols) {
+    public synchronized void fixup(SymbolRegistry symbols) {
 
         if (children != null) {
             for (int i = 0; i < children.size(); i++) {
@@ -534,8 +550,10 @@ public class TraceRecord implements SymbolicRecord, Serializable {
             }
         }
 
-        if (exception instanceof Throwable) {
-            exception = new SymbolicException((Throwable) exception, symbols, 0 == (flags & EXCEPTION_WRAP));
+        Object e = exception;
+
+        if (e instanceof Throwable) {
+            exception = new SymbolicException((Throwable) e, symbols, 0 == (flags & EXCEPTION_WRAP));
         }
     }
 
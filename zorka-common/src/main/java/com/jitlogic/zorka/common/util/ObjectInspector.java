@@ -27,11 +27,17 @@ import javax.management.openmbean.TabularData;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -50,12 +56,122 @@ public final class ObjectInspector {
      */
     public static final String STACK_TRACE_KEY = "printStackTrace";
 
+    /**
+     * Resolved accessors (per class and attribute key). Classes are weakly referenced and accessor maps
+     * are softly referenced (as accessors refer to their classes), so classes of undeployed applications
+     * can still be unloaded. Both levels are concurrent maps, so lookups never take locks.
+     */
+    private static final ConcurrentMap<Object, SoftReference<ConcurrentMap<String, Accessor>>> accessors
+            = new ConcurrentHashMap<Object, SoftReference<ConcurrentMap<String, Accessor>>>();
+
+    /**
+     * Class references of unloaded classes (their entries are removed from accessors map)
+     */
+    private static final ReferenceQueue<Class<?>> staleClasses = new ReferenceQueue<Class<?>>();
+
+    /**
+     * Negative accessor entry (no method nor field matches attribute key).
+     */
+    private static final Accessor NO_ACCESSOR = new Accessor(null, null);
+
     /**
      * Private constructor to block instantiation of utility class.
      */
     private ObjectInspector() {
     }
 
+
+    /**
+     * Weak reference to class used as key in accessors map.
+     */
+    private static class ClassRef extends WeakReference<Class<?>> {
+
+        private final int hash;
+
+        private ClassRef(Class<?> clazz) {
+            super(clazz, staleClasses);
+            hash = System.identityHashCode(clazz);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+
+            Class<?> clazz = get();
+
+            return clazz != null && (obj instanceof ClassRef ? ((ClassRef) obj).get() == clazz
+                    : obj instanceof ClassKey && ((ClassKey) obj).clazz == clazz);
+        }
+    }
+
+
+    /**
+     * Strong class key used for lookups in accessors map (no reference object is created on lookup).
+     */
+    private static class ClassKey {
+
+        private final Class<?> clazz;
+
+        private ClassKey(Class<?> clazz) {
+            this.clazz = clazz;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(clazz);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof ClassRef ? ((ClassRef) obj).get() == clazz
+                    : obj instanceof ClassKey && ((ClassKey) obj).clazz == clazz;
+        }
+    }
+
+
+    /**
+     * Resolved attribute accessor: getter method or field (unlocked for access if needed).
+     */
+    private static class Accessor {
+
+        private final Method method;
+
+        private final Field field;
+
+        private Accessor(Method method, Field field) {
+            this.method = method;
+            this.field = field;
+        }
+
+        private Object get(Object obj) {
+            if (method != null) {
+                try {
+                    return method.invoke(obj);
+                } catch (Exception e) {
+                    log.error(ZorkaLogger.ZSP_ERRORS, "Method '" + method.getName() + "' invocation failed", e);
+                    return null;
+                }
+            }
+
+            if (field != null) {
+                try {
+                    return field.get(obj);
+                } catch (Exception e) {
+                    return null;
+                }
+            }
+
+            return null;
+        }
+    }
+
     /**
      * Gets a chain of attributes from an object. That is, gets first attribute from obj, then
      * gets second attribute from obtained object, then gets third attribute from second obtained object etc.
@@ -93,6 +209,10 @@ public final class ObjectInspector {
         // TODO refactoring of this method (badly) needed
         Class<?> clazz = obj.getClass();
 
+        if (key instanceof String && !(obj instanceof Class) && isExplicit((String) key)) {
+            return accessor(clazz, (String) key).get(obj);
+        }
+
         if (key instanceof String && key.toString().endsWith("()")) {
             // Explicit method call for attributes ending with '()'
             String name = key.toString();
@@ -144,6 +264,10 @@ public final class ObjectInspector {
             return ((JmxObject) obj).get(key);
         }
 
+        if (key instanceof String && !(obj instanceof Class)) {
+            return accessor(clazz, (String) key).get(obj);
+        }
+
         if (key instanceof String) {
             String name = (String) key;
 
@@ -179,6 +303,105 @@ public final class ObjectInspector {
         return null;
     }
 
+
+    private static boolean isExplicit(String key) {
+        return key.endsWith("()") || key.startsWith(".");
+    }
+
+
+    /**
+     * Returns accessor for given attribute key. Accessors are resolved once and cached.
+     *
+     * @param clazz class of inspected object
+     * @param key   attribute key (plain name, method call 'name()' or field access '.name')
+     * @return accessor (possibly NO_ACCESSOR if nothing matches)
+     */
+    private static Accessor accessor(Class<?> clazz, String key) {
+        SoftReference<ConcurrentMap<String, Accessor>> ref = accessors.get(new ClassKey(clazz));
+        ConcurrentMap<String, Accessor> classAccessors = ref != null ? ref.get() : null;
+
+        if (classAccessors == null) {
+            expungeStaleClasses();
+            classAccessors = new ConcurrentHashMap<String, Accessor>();
+            // Racing threads may replace each other's maps, this only costs repeated resolving
+            accessors.put(new ClassRef(clazz), new SoftReference<ConcurrentMap<String, Accessor>>(classAccessors));
+        }
+
+        Accessor accessor = classAccessors.get(key);
+
+        if (accessor == null) {
+            accessor = resolve(clazz, key);
+            classAccessors.put(key, accessor);
+        }
+
+        return accessor;
+    }
+
+
+    /**
+     * Removes accessor maps of unloaded classes.
+     */
+    private static void expungeStaleClasses() {
+        Reference<? extends Class<?>> ref;
+
+        while ((ref = staleClasses.poll()) != null) {
+            accessors.remove(ref);
+        }
+    }
+
+
+    /**
+     * Resolves accessor for given attribute key.
+     *
+     * @param clazz class of inspected object
+     * @param key   attribute key
+     * @return accessor (possibly NO_ACCESSOR if nothing matches)
+     */
+    private static Accessor resolve(Class<?> clazz, String key) {
+        Method method = null;
+        Field field = null;
+
+        if (key.endsWith("()")) {
+            method = lookupMethod(clazz, key.substring(0, key.length() - 2));
+        } else if (key.startsWith(".")) {
+            field = lookupField(clazz, key.substring(1));
+        } else if (key.length() > 0) {
+            String name = key.substring(0, 1).toUpperCase() + key.substring(1);
+
+            method = lookupMethod(clazz, "get" + name);
+
+            if (method == null) {
+                method = lookupMethod(clazz, "is" + name);
+            }
+
+            if (method == null) {
+                method = lookupMethod(clazz, key);
+            }
+
+            if (method == null) {
+                field = lookupField(clazz, key);
+            }
+        }
+
+        if (method == null && field == null) {
+            return NO_ACCESSOR;
+        }
+
+        try {
+            if (method != null) {
+                method.setAccessible(true);
+            } else {
+                field.setAccessible(true);
+            }
+        } catch (RuntimeException e) {
+            // Security manager (or JVM) does not allow it, public members will still be accessible
+            log.debug(ZorkaLogger.ZSP_ARGPROC, "Cannot unlock '" + key + "' of class " + clazz.getName(), e);
+        }
+
+        return new Accessor(method, field);
+    }
+
+
     private static Object inspectArray(Object obj, Object key) {
         if (obj instanceof Object[]) {
             if ("length".equals(key)) {
@@ -386,22 +609,17 @@ public final class ObjectInspector {
      * @return field object of null if no such field exists
      */
     public static Field lookupField(Class<?> clazz, String name) {
-        try {
-            Field field = clazz.getDeclaredField(name);
-            if (field != null) {
-                return field;
-            } else if (clazz.getSuperclass() != Object.class && clazz.getSuperclass() != null) {
-                return lookupField(clazz.getSuperclass(), name);
-            } else {
-                return null;
+        for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (field.getName().equals(name)) {
+                    return field;
+                }
             }
-        } catch (NoSuchFieldException e) {
-            if (clazz.getSuperclass() != Object.class && clazz.getSuperclass() != null) {
-                return lookupField(clazz.getSuperclass(), name);
-            } else {
-                return null;
+            if (c.getSuperclass() == Object.class) {
+                break;
             }
         }
+        return null;
     }
 
 
@@ -458,56 +676,19 @@ public final class ObjectInspector {
      */
     public static final Pattern reVarSubstPattern = Pattern.compile("\\$\\{([^\\}]+)\\}");
 
-    private static final Pattern reDollarSign = Pattern.compile("$", Pattern.LITERAL);
-    private static final String reDollarReplacement = Matcher.quoteReplacement("\\$");
 
     /**
      * Substitutes marked variables in a string with record fields. Variables are marked with
      * '${FIELD.attr1.attr2...}'. Fields are resolved directly from records passed as second
      * parameter, subsequent attribute chains are used to obtain subsequent values as in
-     * ObjectInspector.get() method.
+     * ObjectInspector.get() method. Use StringTemplate if the same template is used repeatedly.
      *
      * @param input  input (template) string
      * @param record spy record to be substituted
      * @return string with substitutions filled with values from record
      */
     public static String substitute(String input, Map<String, Object> record) {
-        Matcher m = reVarSubstPattern.matcher(input);
-        StringBuffer sb = new StringBuffer();
-
-        while (m.find()) {
-            String expr = m.group(1), def = null;
-            if (expr.contains(":")) {
-                String[] s = expr.split(":");
-                expr = s[0];
-                def = s[1];
-            }
-            Integer len = null;
-            if (expr.contains("~")) {
-                String[] s = expr.split("~");
-                expr = s[0];
-                len = Integer.parseInt(s[1]);
-            }
-            Object val = null;
-            for (String exp : expr.split("\\|")) {
-                String[] segs = exp.split("\\.");
-                val = record.get(segs[0]);
-                for (int i = 1; i < segs.length; i++) {
-                    val = getAttr(val, segs[i]);
-                }
-                if (val != null) break;
-            }
-            val = val != null ? val : def;
-            String s = ZorkaUtil.castString(val);
-            if (len != null && s.length() > len) {
-                s = s.substring(0, len);
-            }
-            m.appendReplacement(sb, reDollarSign.matcher(s).replaceAll(reDollarReplacement));
-        }
-
-        m.appendTail(sb);
-
-        return sb.toString();
+        return StringTemplate.compile(input).format(record);
     }
 
 
@@ -567,41 +748,7 @@ public final class ObjectInspector {
      * @return string with substitutions filled with values from record
      */
     public static String substitute(String input, Object[] vals) {
-        Matcher m = reVarSubstPattern.matcher(input);
-        StringBuffer sb = new StringBuffer();
-        while (m.find()) {
-            String expr = m.group(1), def = null;
-            if (expr.contains(":")) {
-                String[] s = expr.split(":");
-                expr = s[0];
-                def = s[1];
-            }
-            Integer len = null;
-            if (expr.contains("~")) {
-                String[] s = expr.split("~");
-                expr = s[0];
-                len = Integer.parseInt(s[1]);
-            }
-            Object val = null;
-            for (String exp : expr.split("\\|")) {
-                String[] segs = exp.split("\\.");
-                val = vals[Integer.parseInt(segs[0])];
-                for (int i = 1; i < segs.length; i++) {
-                    val = getAttr(val, segs[i]);
-                }
-                if (val != null) break;
-            }
-            val = val != null ? val : def;
-            String s = ZorkaUtil.castString(val);
-            if (len != null && s.length() > len) {
-                s = s.substring(0, len);
-            }
-            m.appendReplacement(sb, s);
-        }
-
-        m.appendTail(sb);
-
-        return sb.toString();
+        return StringTemplate.compile(input).format(vals);
     }
 
 
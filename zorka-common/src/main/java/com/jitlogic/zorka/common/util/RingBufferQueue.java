@@ -0,0 +1,351 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.common.util;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, lock-free multi-producer/single-consumer queue. Producers claim slots with a single CAS
+ * and never block, so offer() fails immediately when queue is full. Consumer side waits for data
+ * according to configured wait strategy (parking, busy spinning or yielding).
+ * <p/>
+ * Note that all retrieving operations (poll(), take(), drainTo() etc.) must be called from a single
+ * consumer thread.
+ *
+ * @param <T> type of queued elements
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class RingBufferQueue<T> extends AbstractQueue<T> implements BlockingQueue<T> {
+
+    /**
+     * Consumer parks when queue is empty and is woken up by producers.
+     */
+    public static final int WAIT_PARK = 0;
+
+    /**
+     * Consumer busy spins when queue is empty (lowest latency, burns CPU).
+     */
+    public static final int WAIT_SPIN = 1;
+
+    /**
+     * Consumer yields processor when queue is empty.
+     */
+    public static final int WAIT_YIELD = 2;
+
+    /**
+     * Number of empty polls consumer spins before it starts parking (for WAIT_PARK strategy)
+     */
+    private static final int PARK_SPINS = 64;
+
+    /**
+     * Maximum park time (in nanoseconds), so lost wakeups cannot stall consumer for long.
+     */
+    private static final long PARK_NANOS = 10000000L;
+
+    /**
+     * Queued elements
+     */
+    private final AtomicReferenceArray<T> buffer;
+
+    /**
+     * Slot sequence numbers (slot is free for producer claiming position n when its sequence is n,
+     * it contains element ready for consumer when its sequence is n+1).
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * Capacity (always power of 2)
+     */
+    private final int capacity;
+
+    /**
+     * Index mask
+     */
+    private final int mask;
+
+    /**
+     * Next position to be claimed by producers
+     */
+    private final AtomicLong tail = new AtomicLong(0);
+
+    /**
+     * Next position to be read by consumer
+     */
+    private volatile long head = 0;
+
+    /**
+     * Consumer wait strategy
+     */
+    private final int waitStrategy;
+
+    /**
+     * Consumer thread (set only when it is about to park)
+     */
+    private volatile Thread consumer;
+
+
+    /**
+     * Creates new ring buffer.
+     *
+     * @param capacity     requested capacity (will be rounded up to nearest power of 2)
+     *
+     * @param waitStrategy consumer wait strategy (WAIT_PARK, WAIT_SPIN or WAIT_YIELD)
+     */
+    public RingBufferQueue(int capacity, int waitStrategy) {
+        int cap = 2;
+        while (cap < capacity) {
+            cap <<= 1;
+        }
+
+        this.capacity = cap;
+        this.mask = cap - 1;
+        this.waitStrategy = waitStrategy;
+
+        buffer = new AtomicReferenceArray<T>(cap);
+        sequences = new AtomicLongArray(cap);
+
+        for (int i = 0; i < cap; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+
+    /**
+     * Parses wait strategy name.
+     *
+     * @param name strategy name: park, spin or yield
+     *
+     * @return wait strategy constant or -1 if name is not recognized
+     */
+    public static int waitStrategy(String name) {
+        if ("park".equalsIgnoreCase(name)) {
+            return WAIT_PARK;
+        } else if ("spin".equalsIgnoreCase(name)) {
+            return WAIT_SPIN;
+        } else if ("yield".equalsIgnoreCase(name)) {
+            return WAIT_YIELD;
+        }
+        return -1;
+    }
+
+
+    @Override
+    public boolean offer(T obj) {
+        if (obj == null) {
+            throw new NullPointerException();
+        }
+
+        long pos;
+        int idx;
+
+        for (;;) {
+            pos = tail.get();
+            idx = (int) (pos & mask);
+            long dif = sequences.get(idx) - pos;
+            if (dif == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            } else if (dif < 0) {
+                return false;
+            }
+        }
+
+        buffer.lazySet(idx, obj);
+        sequences.set(idx, pos + 1);
+
+        Thread t = consumer;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+
+        return true;
+    }
+
+
+    @Override
+    public T poll() {
+        long pos = head;
+        int idx = (int) (pos & mask);
+
+        if (sequences.get(idx) != pos + 1) {
+            return null;
+        }
+
+        T obj = buffer.get(idx);
+        buffer.lazySet(idx, null);
+        sequences.set(idx, pos + capacity);
+        head = pos + 1;
+
+        return obj;
+    }
+
+
+    @Override
+    public T peek() {
+        long pos = head;
+        int idx = (int) (pos & mask);
+        return sequences.get(idx) == pos + 1 ? buffer.get(idx) : null;
+    }
+
+
+    @Override
+    public int size() {
+        long sz = tail.get() - head;
+        return sz < 0 ? 0 : (int) Math.min(sz, capacity);
+    }
+
+
+    @Override
+    public Iterator<T> iterator() {
+        List<T> lst = new ArrayList<T>(size());
+
+        for (long pos = head; pos < tail.get(); pos++) {
+            T obj = buffer.get((int) (pos & mask));
+            if (obj != null) {
+                lst.add(obj);
+            }
+        }
+
+        return Collections.unmodifiableList(lst).iterator();
+    }
+
+
+    @Override
+    public void put(T obj) throws InterruptedException {
+        while (!offer(obj)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            Thread.yield();
+        }
+    }
+
+
+    @Override
+    public boolean offer(T obj, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        while (!offer(obj)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            Thread.yield();
+        }
+
+        return true;
+    }
+
+
+    @Override
+    public T take() throws InterruptedException {
+        T obj;
+
+        for (int n = 0; null == (obj = poll()); n++) {
+            idle(n, PARK_NANOS);
+        }
+
+        return obj;
+    }
+
+
+    @Override
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        T obj;
+
+        for (int n = 0; null == (obj = poll()); n++) {
+            long t = deadline - System.nanoTime();
+            if (t <= 0) {
+                return null;
+            }
+            idle(n, Math.min(t, PARK_NANOS));
+        }
+
+        return obj;
+    }
+
+
+    /**
+     * Waits for producers according to configured wait strategy.
+     *
+     * @param n     number of consecutive empty polls so far
+     *
+     * @param nanos maximum park time
+     *
+     * @throws InterruptedException if consumer thread has been interrupted
+     */
+    private void idle(int n, long nanos) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+
+        switch (waitStrategy) {
+            case WAIT_SPIN:
+                break;
+            case WAIT_YIELD:
+                Thread.yield();
+                break;
+            default:
+                if (n < PARK_SPINS) {
+                    break;
+                }
+                consumer = Thread.currentThread();
+                if (isEmpty()) {
+                    LockSupport.parkNanos(this, nanos);
+                }
+                consumer = null;
+                break;
+        }
+    }
+
+
+    @Override
+    public int remainingCapacity() {
+        return capacity - size();
+    }
+
+
+    @Override
+    public int drainTo(Collection<? super T> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+
+    @Override
+    public int drainTo(Collection<? super T> c, int maxElements) {
+        int n = 0;
+        T obj;
+
+        while (n < maxElements && null != (obj = poll())) {
+            c.add(obj);
+            n++;
+        }
+
+        return n;
+    }
+}
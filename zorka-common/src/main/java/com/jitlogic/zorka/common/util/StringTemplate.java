@@ -0,0 +1,270 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.common.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+
+/**
+ * Precompiled substitution template. Template string is parsed once into a sequence of literal
+ * strings and variables, so formatting does not involve any regular expressions nor string splitting.
+ * Variables have the same syntax as in ObjectInspector.substitute(): ${FIELD.attr1.attr2|ALT~LEN:DEFAULT}.
+ * Templates are immutable and can be shared between threads.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public final class StringTemplate {
+
+    /**
+     * Initial and maximum retained capacity of per-thread formatting buffers.
+     */
+    private static final int BUF_SIZE = 256, MAX_BUF_SIZE = 4096;
+
+    /**
+     * Formatting buffers (reused by subsequent format() calls in the same thread). Buffer is taken
+     * out while in use, so nested calls (eg. from instrumented toString() methods) get their own.
+     */
+    private static final ThreadLocal<StringBuilder> buffers = new ThreadLocal<StringBuilder>();
+
+    /**
+     * Template segments: String objects for literal parts and Variable objects for substituted parts
+     */
+    private final Object[] segments;
+
+    /**
+     * Original template string
+     */
+    private final String input;
+
+
+    /**
+     * Substituted variable.
+     */
+    private static class Variable {
+
+        /**
+         * Alternative paths (first non-null value is used). Path head is record field name
+         * (or array index), remaining elements are attribute chain passed to ObjectInspector.get().
+         */
+        private final String[][] paths;
+
+        /**
+         * Path heads parsed as array indexes (or -1 if head is not a number)
+         */
+        private final int[] indexes;
+
+        /**
+         * Default value (or null)
+         */
+        private final String def;
+
+        /**
+         * Maximum length (or -1 if not limited)
+         */
+        private final int len;
+
+        private Variable(String[][] paths, String def, int len) {
+            this.paths = paths;
+            this.def = def;
+            this.len = len;
+            this.indexes = new int[paths.length];
+
+            for (int i = 0; i < paths.length; i++) {
+                try {
+                    indexes[i] = Integer.parseInt(paths[i][0]);
+                } catch (NumberFormatException e) {
+                    indexes[i] = -1;
+                }
+            }
+        }
+
+        private Object fetch(Object val, String[] path) {
+            for (int i = 1; i < path.length && val != null; i++) {
+                val = ObjectInspector.get(val, path[i]);
+            }
+            return val;
+        }
+
+        private void append(StringBuilder sb, Object val) {
+            String s = ZorkaUtil.castString(val != null ? val : def);
+            sb.append(s, 0, len >= 0 && s.length() > len ? len : s.length());
+        }
+    }
+
+
+    private StringTemplate(String input, Object[] segments) {
+        this.input = input;
+        this.segments = segments;
+    }
+
+
+    /**
+     * Parses template string.
+     *
+     * @param input template string
+     * @return compiled template
+     */
+    public static StringTemplate compile(String input) {
+        List<Object> segments = new ArrayList<Object>();
+
+        Matcher m = ObjectInspector.reVarSubstPattern.matcher(input);
+        int pos = 0;
+
+        while (m.find()) {
+            if (m.start() > pos) {
+                segments.add(input.substring(pos, m.start()));
+            }
+            segments.add(variable(m.group(1)));
+            pos = m.end();
+        }
+
+        if (pos < input.length()) {
+            segments.add(input.substring(pos));
+        }
+
+        return new StringTemplate(input, segments.toArray());
+    }
+
+
+    private static Variable variable(String expr) {
+        String def = null;
+        int len = -1;
+
+        if (expr.contains(":")) {
+            String[] s = expr.split(":");
+            expr = s.length > 0 ? s[0] : "";
+            def = s.length > 1 ? s[1] : "";
+        }
+
+        if (expr.contains("~")) {
+            String[] s = expr.split("~");
+            expr = s[0];
+            len = Integer.parseInt(s[1]);
+        }
+
+        String[] alts = expr.split("\\|");
+        String[][] paths = new String[alts.length][];
+
+        for (int i = 0; i < alts.length; i++) {
+            paths[i] = alts[i].split("\\.");
+        }
+
+        return new Variable(paths, def, len);
+    }
+
+
+    /**
+     * Returns true if template contains no variables.
+     */
+    public boolean isConstant() {
+        return segments.length == 0 || (segments.length == 1 && segments[0] instanceof String);
+    }
+
+
+    /**
+     * Fills template with values from record. Path heads are record keys.
+     *
+     * @param record spy record (or any other map)
+     * @return formatted string
+     */
+    public String format(Map<String, Object> record) {
+        if (isConstant()) {
+            return input;
+        }
+
+        StringBuilder sb = buffer();
+
+        for (Object seg : segments) {
+            if (seg instanceof Variable) {
+                Variable v = (Variable) seg;
+                Object val = null;
+                for (int i = 0; i < v.paths.length && val == null; i++) {
+                    val = v.fetch(record.get(v.paths[i][0]), v.paths[i]);
+                }
+                v.append(sb, val);
+            } else {
+                sb.append((String) seg);
+            }
+        }
+
+        return release(sb);
+    }
+
+
+    /**
+     * Fills template with values from array. Path heads are array indexes.
+     *
+     * @param vals values
+     * @return formatted string
+     */
+    public String format(Object[] vals) {
+        if (isConstant()) {
+            return input;
+        }
+
+        StringBuilder sb = buffer();
+
+        for (Object seg : segments) {
+            if (seg instanceof Variable) {
+                Variable v = (Variable) seg;
+                Object val = null;
+                for (int i = 0; i < v.paths.length && val == null; i++) {
+                    int idx = v.indexes[i];
+                    val = idx >= 0 && idx < vals.length ? v.fetch(vals[idx], v.paths[i]) : null;
+                }
+                v.append(sb, val);
+            } else {
+                sb.append((String) seg);
+            }
+        }
+
+        return release(sb);
+    }
+
+
+    private static StringBuilder buffer() {
+        StringBuilder sb = buffers.get();
+
+        if (sb == null) {
+            return new StringBuilder(BUF_SIZE);
+        }
+
+        buffers.set(null);
+        sb.setLength(0);
+
+        return sb;
+    }
+
+
+    private static String release(StringBuilder sb) {
+        String s = sb.toString();
+
+        if (sb.capacity() <= MAX_BUF_SIZE) {
+            buffers.set(sb);
+        }
+
+        return s;
+    }
+
+
+    @Override
+    public String toString() {
+        return input;
+    }
+}
@@ -16,6 +16,7 @@
 package com.jitlogic.zorka.common.util;
 
 import com.jitlogic.zorka.common.ZorkaService;
+import com.jitlogic.zorka.common.stats.AgentDiagnostics;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -23,6 +24,7 @@ import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Implements asunchronous processing thread with submit queue.
@@ -33,6 +35,16 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public abstract class ZorkaAsyncThread<T> implements Runnable, ZorkaService {
 
+    /**
+     * Standard blocking queue: submitters contend on a lock and wait up to 1ms when queue is full.
+     */
+    public static final String QUEUE_BLOCKING = "blocking";
+
+    /**
+     * Default queue strategy for newly created threads (see setDefaultQueueStrategy()).
+     */
+    private static volatile String defaultQueueStrategy = QUEUE_BLOCKING;
+
     /**
      * Logger
      */
@@ -43,6 +55,26 @@ public abstract class ZorkaAsyncThread<T> implements Runnable, ZorkaService {
      */
     protected BlockingQueue<T> submitQueue;
 
+    /**
+     * If true, submit() will never wait for free space in submit queue.
+     */
+    private boolean dropOnFull;
+
+    /**
+     * Submit queue length
+     */
+    private final int qlen;
+
+    /**
+     * Number of objects dropped due to submit queue overflow
+     */
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    /**
+     * Agent diagnostics counter incremented when submitted object is dropped (or -1 if none).
+     */
+    protected int dropCounter = -1;
+
     /**
      * Thred name (will be prefixed with ZORKA-)
      */
@@ -80,7 +112,8 @@ public abstract class ZorkaAsyncThread<T> implements Runnable, ZorkaService {
     public ZorkaAsyncThread(String name, int qlen, int plen) {
         this.name = "ZORKA-" + name;
         this.plen = plen;
-        submitQueue = new ArrayBlockingQueue<T>(qlen);
+        this.qlen = qlen;
+        setQueueStrategy(defaultQueueStrategy);
     }
     
     /**
@@ -98,6 +131,45 @@ public abstract class ZorkaAsyncThread<T> implements Runnable, ZorkaService {
     }
     
 
+    /**
+     * Sets queue strategy used by newly created async threads.
+     *
+     * @param strategy queue strategy (see setQueueStrategy())
+     */
+    public static void setDefaultQueueStrategy(String strategy) {
+        defaultQueueStrategy = strategy;
+    }
+
+
+    /**
+     * Selects submit queue implementation. Passing "blocking" selects standard array blocking queue,
+     * "park", "spin" or "yield" selects lock-free ring buffer with non-blocking drop-on-full submission
+     * and given wait strategy of processing thread. This has to be called before thread is started.
+     *
+     * @param strategy queue strategy
+     */
+    public synchronized void setQueueStrategy(String strategy) {
+        if (thread != null) {
+            log.error(ZorkaLogger.ZAG_ERRORS, "Cannot change queue strategy of running thread: " + name);
+            return;
+        }
+
+        int waitStrategy = RingBufferQueue.waitStrategy(strategy);
+
+        if (waitStrategy >= 0) {
+            submitQueue = new RingBufferQueue<T>(qlen, waitStrategy);
+            dropOnFull = true;
+        } else {
+            if (strategy != null && !QUEUE_BLOCKING.equalsIgnoreCase(strategy)) {
+                log.error(ZorkaLogger.ZAG_ERRORS, "Invalid queue strategy: '" + strategy
+                        + "'. Using blocking queue for " + name);
+            }
+            submitQueue = new ArrayBlockingQueue<T>(qlen);
+            dropOnFull = false;
+        }
+    }
+
+
     /**
      * This method starts thread.
      */
@@ -169,11 +241,31 @@ public abstract class ZorkaAsyncThread<T> implements Runnable, ZorkaService {
      * @param obj object to be submitted
      */
     public boolean submit(T obj) {
+        boolean submitted = false;
+
         try {
-            return submitQueue.offer(obj, 1, TimeUnit.MILLISECONDS);
+            submitted = dropOnFull ? submitQueue.offer(obj) : submitQueue.offer(obj, 1, TimeUnit.MILLISECONDS);
         } catch (InterruptedException e) {
-            return false;
         }
+
+        if (!submitted) {
+            dropped.incrementAndGet();
+            if (dropCounter >= 0) {
+                AgentDiagnostics.inc(dropCounter);
+            }
+        }
+
+        return submitted;
+    }
+
+
+    /**
+     * Returns number of objects dropped due to submit queue overflow.
+     *
+     * @return number of dropped objects
+     */
+    public long getDropped() {
+        return dropped.get();
     }
 
 
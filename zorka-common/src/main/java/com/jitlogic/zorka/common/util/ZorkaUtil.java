@@ -19,6 +19,9 @@ package com.jitlogic.zorka.common.util;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
@@ -865,4 +868,51 @@ public class ZorkaUtil {
         } catch (InterruptedException e) {
         }
     }
+
+
+    /**
+     * Releases memory mapping of a buffer immediately instead of waiting for garbage collector
+     * (mapped files cannot be deleted or truncated on some platforms until then). Uses cleaner
+     * of direct buffer (JDK 6-8) or Unsafe.invokeCleaner() (JDK 9+). Buffer (and all its
+     * duplicates) must not be accessed afterwards.
+     *
+     * @param buf mapped buffer
+     *
+     * @return true if mapping has been released, false if this is not supported by JVM
+     */
+    public static boolean unmap(ByteBuffer buf) {
+        if (buf == null || !buf.isDirect()) {
+            return false;
+        }
+
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buf);
+            return true;
+        } catch (NoSuchMethodException e) {
+            // Older JVM, try buffer cleaner below
+        } catch (Exception e) {
+            log.debug(ZorkaLogger.ZAG_ERRORS, "Cannot unmap buffer: " + e);
+            return false;
+        }
+
+        try {
+            Method cleanerMethod = buf.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buf);
+            if (cleaner != null) {
+                Method clean = cleaner.getClass().getMethod("clean");
+                clean.setAccessible(true);
+                clean.invoke(cleaner);
+                return true;
+            }
+        } catch (Exception e) {
+            log.debug(ZorkaLogger.ZAG_ERRORS, "Cannot unmap buffer: " + e);
+        }
+
+        return false;
+    }
 }
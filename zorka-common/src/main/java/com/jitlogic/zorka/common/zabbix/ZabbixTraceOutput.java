@@ -25,7 +25,6 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
 
 import com.jitlogic.zorka.common.stats.AgentDiagnostics;
 import com.jitlogic.zorka.common.tracedata.MethodCallCounterRecord;
@@ -110,6 +109,8 @@ public class ZabbixTraceOutput extends ZorkaAsyncThread<SymbolicRecord> implemen
 
 		super("zabbix-output", qlen, 1, interval);
 
+		dropCounter = AgentDiagnostics.ZABBIX_TRACES_DROPPED;
+
 		log.debug(ZorkaLogger.ZAG_DEBUG, "Configured tracer output: host=" + hostname
 				+ ", addr=" + addr 
 				+ ", port=" + port
@@ -141,22 +142,6 @@ public class ZabbixTraceOutput extends ZorkaAsyncThread<SymbolicRecord> implemen
 	}
 
 
-	@Override
-	public boolean submit(SymbolicRecord obj) {
-		boolean submitted = false;
-		try {
-			submitted = submitQueue.offer(obj, 1, TimeUnit.MILLISECONDS);
-		} catch (InterruptedException e) {
-		}
-
-		if (!submitted) {
-			AgentDiagnostics.inc(AgentDiagnostics.ZICO_PACKETS_DROPPED);
-		}
-
-		return submitted;
-	}
-
-
 	@Override
 	protected void process(List<SymbolicRecord> records) {
 		long clock;
@@ -22,7 +22,8 @@ import org.fressian.FressianWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
 
 import static com.jitlogic.zorka.common.zico.ZicoPacket.*;
 
@@ -62,12 +63,15 @@ public class ZicoClientConnector extends ZicoConnector {
 
 
     /**
-     * (Re)connects to ZICO server
+     * (Re)connects to ZICO server. Connection is opened as blocking socket channel, so outgoing
+     * packets can be written from direct buffers while replies are read via socket stream
+     * (which honors socket timeout).
      *
      * @throws IOException if connection fails
      */
     public void connect() throws IOException {
-        socket = new Socket(addr, port);
+        channel = SocketChannel.open(new InetSocketAddress(addr, port));
+        socket = channel.socket();
         socket.setSoTimeout(socketTimeout);
         in = socket.getInputStream();
         out = socket.getOutputStream();
@@ -20,6 +20,7 @@ import java.io.*;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.zip.CRC32;
 
 
@@ -55,6 +56,17 @@ public abstract class ZicoConnector implements Closeable {
     protected InputStream in;
     protected OutputStream out;
 
+    /**
+     * Socket channel (if connection has been opened via NIO). If present, packets are sent
+     * using reusable direct buffer instead of socket output stream.
+     */
+    protected SocketChannel channel;
+
+    /**
+     * Reusable send buffer (used only when sending via socket channel)
+     */
+    private ByteBuffer sendBuf;
+
     // TODO implement recv with timeout
 
 
@@ -80,7 +92,7 @@ public abstract class ZicoConnector implements Closeable {
         }
 
         byte[] b = new byte[HEADER_LENGTH];
-        in.read(b);
+        readFully(b);
 
         ByteBuffer buf = ByteBuffer.wrap(b);
 
@@ -89,16 +101,7 @@ public abstract class ZicoConnector implements Closeable {
         long crc32 = buf.getLong();
 
         byte[] d = new byte[length];
-        int offs = 0;
-
-        while (offs < length) {
-            int rlen = in.read(d, offs, length - offs);
-            if (rlen >= 0) {
-                offs += rlen;
-            } else {
-                throw new ZicoException(ZicoPacket.ZICO_BAD_REQUEST, "Unexpected end of stream.");
-            }
-        }
+        readFully(d);
 
         CRC32 crc = new CRC32();
         crc.update(d);
@@ -111,6 +114,26 @@ public abstract class ZicoConnector implements Closeable {
     }
 
 
+    /**
+     * Reads exactly as many bytes as buffer length.
+     *
+     * @param d buffer
+     * @throws IOException when stream ends prematurely or network error occurs
+     */
+    private void readFully(byte[] d) throws IOException {
+        int offs = 0;
+
+        while (offs < d.length) {
+            int rlen = in.read(d, offs, d.length - offs);
+            if (rlen >= 0) {
+                offs += rlen;
+            } else {
+                throw new ZicoException(ZicoPacket.ZICO_BAD_REQUEST, "Unexpected end of stream.");
+            }
+        }
+    }
+
+
     /**
      * Sends packet of given type.
      *
@@ -119,8 +142,46 @@ public abstract class ZicoConnector implements Closeable {
      * @throws IOException when network error occurs.
      */
     public void send(int type, byte... data) throws IOException {
+        send(type, data, 0, data.length);
+    }
+
+
+    /**
+     * Sends packet of given type with payload taken from a fragment of byte array.
+     *
+     * @param type   packet type
+     * @param data   data buffer
+     * @param offs   payload offset
+     * @param length payload length
+     * @throws IOException when network error occurs.
+     */
+    public void send(int type, byte[] data, int offs, int length) throws IOException {
         CRC32 crc = new CRC32();
-        crc.update(data);
+        crc.update(data, offs, length);
+
+        if (channel != null) {
+            int size = ZICO_MAGIC.length + HEADER_LENGTH + length;
+
+            if (sendBuf == null || sendBuf.capacity() < size) {
+                sendBuf = ByteBuffer.allocateDirect(Math.max(size, 64 * 1024));
+            }
+
+            sendBuf.clear();
+            for (int i : ZICO_MAGIC) {
+                sendBuf.put((byte) i);
+            }
+            sendBuf.putShort((short) type);
+            sendBuf.putInt(length);
+            sendBuf.putLong(crc.getValue());
+            sendBuf.put(data, offs, length);
+            sendBuf.flip();
+
+            while (sendBuf.hasRemaining()) {
+                channel.write(sendBuf);
+            }
+
+            return;
+        }
 
         for (int i : ZICO_MAGIC) {
             out.write(i);
@@ -129,12 +190,12 @@ public abstract class ZicoConnector implements Closeable {
         byte[] b = new byte[HEADER_LENGTH];
         ByteBuffer buf = ByteBuffer.wrap(b);
         buf.putShort((short) type);
-        buf.putInt(data.length);
+        buf.putInt(length);
         buf.putLong(crc.getValue());
 
         out.write(b);
-        if (data.length > 0) {
-            out.write(data);
+        if (length > 0) {
+            out.write(data, offs, length);
         }
     }
 
@@ -153,6 +214,7 @@ public abstract class ZicoConnector implements Closeable {
             out = null;
             socket.close();
             socket = null;
+            channel = null;
         }
     }
 
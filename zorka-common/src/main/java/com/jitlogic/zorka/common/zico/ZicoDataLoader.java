@@ -16,11 +16,14 @@
 package com.jitlogic.zorka.common.zico;
 
 import com.jitlogic.zorka.common.tracedata.FressianTraceFormat;
+import com.jitlogic.zorka.common.tracedata.IndexedTraceReader;
+import com.jitlogic.zorka.common.tracedata.TraceIndexEntry;
 import com.jitlogic.zorka.common.tracedata.TraceRecord;
 import org.fressian.FressianReader;
 import org.fressian.FressianWriter;
 
 import java.io.*;
+import java.util.List;
 import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
@@ -150,6 +153,47 @@ public class ZicoDataLoader {
         }
     }
 
+    /**
+     * Submits selected traces from indexed trace files (written by IndexedFileTraceOutput) to collector server.
+     * Only chunks containing selected traces (and metadata they need) are read.
+     *
+     * @param path       path to indexed trace file (or any of its segment files)
+     * @param from       start of time range (inclusive, wall clock in milliseconds)
+     * @param to         end of time range (exclusive)
+     * @param errorsOnly if true, only traces marked as errors will be submitted
+     * @throws IOException if files cannot be read, connection breaks or server-side data processing error occurs;
+     */
+    public void load(String path, long from, long to, boolean errorsOnly) throws IOException {
+        IndexedTraceReader reader = new IndexedTraceReader(new File(path));
+        List<TraceIndexEntry> entries = reader.find(from, to, errorsOnly);
+
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final FressianWriter writer = new FressianWriter(os, FressianTraceFormat.WRITE_LOOKUP);
+
+        reader.load(entries, new ZicoDataProcessor() {
+            @Override
+            public void process(Object obj) throws IOException {
+                writer.writeObject(obj);
+                if (obj instanceof TraceRecord) {
+                    records++;
+                }
+            }
+
+            @Override
+            public void commit() {
+            }
+        });
+
+        if (os.size() > 0) {
+            conn.send(ZicoPacket.ZICO_DATA, os.toByteArray());
+            ZicoPacket rslt = conn.recv();
+            if (rslt.getStatus() != ZicoPacket.ZICO_OK) {
+                throw new ZicoException(rslt.getStatus(), "Error submitting data.");
+            }
+            bytes += os.size();
+        }
+    }
+
     public int getRecords() {
         return records;
     }
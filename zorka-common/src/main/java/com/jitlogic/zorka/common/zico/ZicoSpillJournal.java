@@ -0,0 +1,348 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.common.zico;
+
+import com.jitlogic.zorka.common.stats.AgentDiagnostics;
+import com.jitlogic.zorka.common.util.ZorkaLog;
+import com.jitlogic.zorka.common.util.ZorkaLogger;
+import com.jitlogic.zorka.common.util.ZorkaUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * Local disk journal of ZICO packets that could not be sent to collector. Packets are stored in memory
+ * mapped segment files (spill-NNNNNNNNNNNNNNNN.zsj) as length prefixed entries containing the same
+ * Fressian data that would be sent to collector. Each spilled packet is encoded with fresh symbol state,
+ * so it does not depend on other packets and can be replayed (or evicted) on its own.
+ * <p/>
+ * Entry layout: payload length (4 bytes, negated when entry has been replayed), number of records
+ * (4 bytes), payload. Zero length marks end of data in a segment. Replayed entries are marked in place,
+ * so journal left by previous agent run is replayed from where it stopped. Total size of segments is
+ * bounded, oldest segments are evicted when new data exceeds the budget.
+ * <p/>
+ * Journal is used by single output thread, so its methods are not expected to be called concurrently.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class ZicoSpillJournal {
+
+    private static final ZorkaLog log = ZorkaLogger.getLog(ZicoSpillJournal.class);
+
+    private static final String PREFIX = "spill-", SUFFIX = ".zsj";
+
+    /**
+     * Entry header length (payload length + number of records)
+     */
+    private static final int ENTRY_HEADER = 8;
+
+    /**
+     * Directory containing segment files
+     */
+    private File dir;
+
+    /**
+     * Maximum total size of segment files
+     */
+    private long maxSize;
+
+    /**
+     * Default segment size (segments can be bigger if single packet does not fit)
+     */
+    private long segmentSize;
+
+    /**
+     * Segments (oldest first, new entries are appended to the last one)
+     */
+    private LinkedList<Segment> segments = new LinkedList<Segment>();
+
+    /**
+     * ID of next segment
+     */
+    private long nextSegment;
+
+    /**
+     * Current total size of segments
+     */
+    private long size;
+
+
+    /**
+     * Opens spill journal. Segments left by previous runs are opened and will be replayed.
+     *
+     * @param dir         directory containing segment files (will be created if necessary)
+     * @param maxSize     maximum total size of segment files
+     * @param segmentSize segment size
+     * @throws IOException if directory cannot be created or segment files cannot be opened
+     */
+    public ZicoSpillJournal(File dir, long maxSize, long segmentSize) throws IOException {
+        this.dir = dir;
+        this.maxSize = maxSize;
+        this.segmentSize = Math.min(segmentSize, Integer.MAX_VALUE);
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create spill directory: " + dir);
+        }
+
+        String[] names = dir.list();
+        Arrays.sort(names);
+
+        for (String name : names) {
+            if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                long id;
+                try {
+                    id = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()), 16);
+                } catch (NumberFormatException e) {
+                    log.warn(ZorkaLogger.ZCL_STORE, "Skipping spill segment with malformed name: " + name);
+                    continue;
+                }
+                File f = new File(dir, name);
+                Segment seg = new Segment(f, map(f, f.length()));
+                nextSegment = Math.max(nextSegment, id + 1);
+
+                if (seg.entries > 0) {
+                    segments.add(seg);
+                    size += seg.buf.capacity();
+                } else {
+                    delete(seg);
+                }
+            }
+        }
+
+        if (segments.size() > 0) {
+            log.info(ZorkaLogger.ZCL_STORE, "Found " + getRecords() + " spilled records in " + dir);
+        }
+    }
+
+
+    private static MappedByteBuffer map(File f, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            // Mapping stays valid after file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } finally {
+            raf.close();
+        }
+    }
+
+
+    /**
+     * Releases segment mapping and deletes segment file. Segment buffer must not be used afterwards.
+     */
+    private void delete(Segment seg) {
+        ZorkaUtil.unmap(seg.buf);
+        if (!seg.file.delete()) {
+            log.warn(ZorkaLogger.ZCL_STORE, "Cannot delete spill segment " + seg.file);
+        }
+    }
+
+
+    /**
+     * Appends packet to journal. Evicts oldest segments if size budget is exceeded.
+     *
+     * @param data    buffer containing encoded packet
+     * @param offs    packet offset in buffer
+     * @param length  packet length
+     * @param records number of records in packet
+     * @throws IOException if new segment cannot be created
+     */
+    public void append(byte[] data, int offs, int length, int records) throws IOException {
+        Segment seg = segments.isEmpty() ? null : segments.getLast();
+
+        if (seg == null || seg.buf.capacity() - seg.writePos < ENTRY_HEADER + length) {
+            long id = nextSegment++;
+            File f = new File(dir, String.format("%s%016x%s", PREFIX, id, SUFFIX));
+            seg = new Segment(f, map(f, Math.max(segmentSize, ENTRY_HEADER + length)));
+            segments.add(seg);
+            size += seg.buf.capacity();
+        }
+
+        ByteBuffer b = seg.buf.duplicate();
+        b.position(seg.writePos + ENTRY_HEADER);
+        b.put(data, offs, length);
+        seg.buf.putInt(seg.writePos + 4, records);
+        seg.buf.putInt(seg.writePos, length); // Written last, so partially written entry is not visible
+
+        seg.writePos += ENTRY_HEADER + length;
+        seg.entries++;
+        seg.records += records;
+
+        AgentDiagnostics.inc(AgentDiagnostics.ZICO_TRACES_SPILLED, records);
+
+        while (size > maxSize && segments.size() > 1) {
+            Segment old = segments.removeFirst();
+            size -= old.buf.capacity();
+            AgentDiagnostics.inc(AgentDiagnostics.ZICO_TRACES_EVICTED, old.records);
+            log.warn(ZorkaLogger.ZCL_STORE, "Spill journal size exceeded. Evicting " + old.records + " records.");
+            delete(old);
+        }
+    }
+
+
+    /**
+     * Returns oldest packet that has not been replayed yet.
+     *
+     * @return encoded packet or null if journal is empty
+     */
+    public byte[] peek() {
+        if (segments.isEmpty()) {
+            return null;
+        }
+
+        Segment seg = segments.getFirst();
+        byte[] data = new byte[seg.buf.getInt(seg.readPos)];
+
+        ByteBuffer b = seg.buf.duplicate();
+        b.position(seg.readPos + ENTRY_HEADER);
+        b.get(data);
+
+        return data;
+    }
+
+
+    /**
+     * Marks oldest packet as replayed. Segment file is deleted when all its packets have been replayed.
+     */
+    public void remove() {
+        if (segments.isEmpty()) {
+            return;
+        }
+
+        Segment seg = segments.getFirst();
+        int length = seg.buf.getInt(seg.readPos), records = seg.buf.getInt(seg.readPos + 4);
+
+        seg.buf.putInt(seg.readPos, -length);
+        seg.readPos += ENTRY_HEADER + length;
+        seg.entries--;
+        seg.records -= records;
+
+        AgentDiagnostics.inc(AgentDiagnostics.ZICO_TRACES_REPLAYED, records);
+
+        if (seg.entries == 0) {
+            segments.removeFirst();
+            size -= seg.buf.capacity();
+            delete(seg);
+        }
+    }
+
+
+    /**
+     * Returns true if there are no packets waiting for replay.
+     *
+     * @return true if journal is empty
+     */
+    public boolean isEmpty() {
+        return segments.isEmpty();
+    }
+
+
+    /**
+     * Returns number of records waiting for replay.
+     *
+     * @return number of records
+     */
+    public long getRecords() {
+        long n = 0;
+        for (Segment seg : segments) {
+            n += seg.records;
+        }
+        return n;
+    }
+
+
+    /**
+     * Returns total size of segment files.
+     *
+     * @return size (bytes)
+     */
+    public long getSize() {
+        return size;
+    }
+
+
+    /**
+     * Flushes segments to disk.
+     */
+    public void flush() {
+        for (Segment seg : segments) {
+            seg.buf.force();
+        }
+    }
+
+
+    /**
+     * Journal segment (single memory mapped file).
+     */
+    private static class Segment {
+
+        private final File file;
+
+        private final MappedByteBuffer buf;
+
+        /**
+         * Position of oldest entry not replayed yet and position of next entry to be written.
+         */
+        private int readPos, writePos;
+
+        /**
+         * Number of entries and records not replayed yet.
+         */
+        private int entries, records;
+
+
+        /**
+         * Opens segment. Skips entries that have been replayed and finds end of data.
+         */
+        private Segment(File file, MappedByteBuffer buf) {
+            this.file = file;
+            this.buf = buf;
+
+            int pos = 0;
+
+            readPos = -1;
+
+            while (pos + ENTRY_HEADER <= buf.capacity()) {
+                int length = buf.getInt(pos);
+
+                if (length == 0 || pos + ENTRY_HEADER + Math.abs(length) > buf.capacity()) {
+                    break;
+                }
+
+                if (length > 0) {
+                    if (readPos < 0) {
+                        readPos = pos;
+                    }
+                    entries++;
+                    records += buf.getInt(pos + 4);
+                }
+
+                pos += ENTRY_HEADER + Math.abs(length);
+            }
+
+            writePos = pos;
+
+            if (readPos < 0) {
+                readPos = pos;
+            }
+        }
+    }
+}
@@ -29,12 +29,20 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
 
 /**
  * Tracer output sending data to remote ZICO collector. It automatically handles reconnections and retransmissions,
  * lumps data into bigger packets for better throughput, keeps track of symbols already sent etc.
+ * <p/>
+ * Output can pipeline packets: up to window packets can be sent without waiting for acknowledgements. Collector
+ * handles packets of a connection in order, so acknowledgements are matched with sent packets by sequence. When
+ * connection breaks, only unacknowledged packets are encoded again and retransmitted.
+ * <p/>
+ * If spill journal is configured, packets that cannot be delivered are written to local disk instead of being
+ * lost. As long as journal is not empty, new data is appended to it (so order is preserved) and journal is
+ * replayed when connection to collector can be established again.
  *
  * @author rafal.lewczuk@jitlogic.com
  */
@@ -65,7 +73,22 @@ public class ZicoTraceOutput extends ZorkaAsyncThread<SymbolicRecord> implements
     /**
      * Output buffer
      */
-    private ByteArrayOutputStream os;
+    private PacketBuffer os;
+
+    /**
+     * Maximum number of unacknowledged packets
+     */
+    private int window;
+
+    /**
+     * Packets sent but not acknowledged yet (oldest first)
+     */
+    private LinkedList<Packet> inflight = new LinkedList<Packet>();
+
+    /**
+     * Sequence number of next packet
+     */
+    private long seq;
 
     /**
      * Maximum retransmission retries
@@ -82,6 +105,21 @@ public class ZicoTraceOutput extends ZorkaAsyncThread<SymbolicRecord> implements
      */
     private long packetSize;
 
+    /**
+     * Minimum interval between reconnection attempts while data is being spilled to disk (milliseconds)
+     */
+    private long spillRetryInterval = 10000;
+
+    /**
+     * Spill journal (or null if undelivered data should be dropped)
+     */
+    private ZicoSpillJournal spill;
+
+    /**
+     * Time of next reconnection attempt when replaying spilled data
+     */
+    private long nextReplay;
+
     /**
      * Creates trace output object.
      *
@@ -100,8 +138,34 @@ public class ZicoTraceOutput extends ZorkaAsyncThread<SymbolicRecord> implements
      */
     public ZicoTraceOutput(TraceWriter writer, String addr, int port, String hostname, String auth,
                            int qlen, long packetSize, int retries, long retryTime, long retryTimeExp, int timeout) throws IOException {
+        this(writer, addr, port, hostname, auth, qlen, packetSize, retries, retryTime, retryTimeExp, timeout, 1);
+    }
+
+
+    /**
+     * Creates trace output object with pipelined transmission.
+     *
+     * @param writer       trace writer for encoding transmitted data
+     * @param addr         host name or IP address of remote ZICO collector
+     * @param port         port number of remote ZICO collector
+     * @param hostname     name this client will advertise itself when connecting to ZICO collector
+     * @param auth         passphrase for this client (makes sense only when
+     * @param qlen         output queue length
+     * @param packetSize   maximum (recommended) packet size (actual packets might exceed this a bit)
+     * @param retries      maximum number of retries
+     * @param retryTime    base retry time
+     * @param retryTimeExp retry time exponent
+     * @param timeout      socket read timeout for ZICO connections
+     * @param window       maximum number of unacknowledged packets (1 - wait for each acknowledgement)
+     * @throws IOException when connection to remote server cannot be established;
+     */
+    public ZicoTraceOutput(TraceWriter writer, String addr, int port, String hostname, String auth,
+                           int qlen, long packetSize, int retries, long retryTime, long retryTimeExp, int timeout,
+                           int window) throws IOException {
         super("zico-output", qlen, 1);
 
+        dropCounter = AgentDiagnostics.ZICO_PACKETS_DROPPED;
+
         this.hostname = hostname;
         this.auth = auth;
 
@@ -109,16 +173,17 @@ public class ZicoTraceOutput extends ZorkaAsyncThread<SymbolicRecord> implements
         this.retryTime = retryTime;
         this.retryTimeExp = retryTimeExp;
         this.packetSize = packetSize;
+        this.window = Math.max(1, window);
 
         conn = new ZicoClientConnector(addr, port, timeout);
 
         this.writer = writer;
-        this.os = new ByteArrayOutputStream(512 * 1024);
+        this.os = new PacketBuffer(512 * 1024);
         this.writer.setOutput(this);
 
         log.info(ZorkaLogger.ZAG_CONFIG, "Configured tracer output: host=" + hostname + ", retries=" + retries
             + ", retryTime=" + retryTime + ", packetSize=" + packetSize + ", addr=" + addr + ", port=" + port
-            + ", timeout=" + timeout);
+            + ", timeout=" + timeout + ", window=" + this.window);
     }
 
 
@@ -128,29 +193,42 @@ public class ZicoTraceOutput extends ZorkaAsyncThread<SymbolicRecord> implements
     }
 
 
-    @Override
-    public boolean submit(SymbolicRecord obj) {
-        boolean submitted = false;
-        try {
-            submitted = submitQueue.offer(obj, 1, TimeUnit.MILLISECONDS);
-        } catch (InterruptedException e) {
-        }
+    /**
+     * Configures spill journal. Has to be called before output thread is started.
+     *
+     * @param spill spill journal
+     */
+    public void setSpill(ZicoSpillJournal spill) {
+        this.spill = spill;
+    }
 
-        if (!submitted) {
-            AgentDiagnostics.inc(AgentDiagnostics.ZICO_PACKETS_DROPPED);
-        }
 
-        return submitted;
+    /**
+     * Sets minimum interval between reconnection attempts while data is being spilled to disk.
+     *
+     * @param spillRetryInterval interval (milliseconds)
+     */
+    public void setSpillRetryInterval(long spillRetryInterval) {
+        this.spillRetryInterval = spillRetryInterval;
     }
 
 
     @Override
     protected void process(List<SymbolicRecord> records) {
+
+        if (spill != null && !spill.isEmpty()) {
+            spill(new ArrayList<SymbolicRecord>(records));
+            replay();
+            return;
+        }
+
         long rt = retryTime;
 
         List<SymbolicRecord> packet = new ArrayList<SymbolicRecord>();
         packet.addAll(records);
 
+        boolean resend = false;
+
         for (int i = 0; i < retries; i++) {
             try {
                 if (!conn.isOpen()) {
@@ -159,28 +237,34 @@ public class ZicoTraceOutput extends ZorkaAsyncThread<SymbolicRecord> implements
                     conn.connect();
                 }
 
-                os.reset();
-                writer.softReset();
-
-                for (SymbolicRecord rec : packet) {
-                    writer.write(rec);
+                if (resend) {
+                    for (Packet p : inflight) {
+                        send(p, false);
+                    }
+                    resend = false;
                 }
 
-                while (os.size() < packetSize && submitQueue.size() > 0) {
-                    SymbolicRecord rec = submitQueue.take();
-                    packet.add(rec);
-                    writer.write(rec);
+                if (packet != null) {
+                    Packet p = new Packet(seq++, packet);
+                    send(p, true);
+                    inflight.add(p);
+                    packet = null;
                 }
 
-                byte[] data = os.toByteArray();
-                log.debug(ZorkaLogger.ZTR_TRACER_DBG, "Sending ZICO packet: len=" + data.length);
-                conn.send(ZicoPacket.ZICO_DATA, data);
-                ZicoPacket rslt = conn.recv();
-                log.debug(ZorkaLogger.ZTR_TRACER_DBG, "Received response: status=" + rslt.getStatus());
-                if (rslt.getStatus() != ZicoPacket.ZICO_OK) {
-                    throw new ZicoException(rslt.getStatus(), "Error submitting data.");
+                // Keep pipeline full only as long as there is more data to send
+                int limit = submitQueue.size() > 0 ? window - 1 : 0;
+
+                while (inflight.size() > limit) {
+                    ZicoPacket rslt = conn.recv();
+                    Packet p = inflight.getFirst();
+                    log.debug(ZorkaLogger.ZTR_TRACER_DBG, "Received response: seq=" + p.seq
+                            + ", status=" + rslt.getStatus());
+                    if (rslt.getStatus() != ZicoPacket.ZICO_OK) {
+                        throw new ZicoException(rslt.getStatus(), "Error submitting data.");
+                    }
+                    inflight.removeFirst();
+                    AgentDiagnostics.inc(AgentDiagnostics.ZICO_PACKETS_SENT);
                 }
-                AgentDiagnostics.inc(AgentDiagnostics.ZICO_PACKETS_SENT);
                 return;
             } catch (SocketTimeoutException e) {
                 log.info(ZorkaLogger.ZCL_STORE, "Resetting collector connection.");
@@ -194,6 +278,9 @@ public class ZicoTraceOutput extends ZorkaAsyncThread<SymbolicRecord> implements
                 AgentDiagnostics.inc(AgentDiagnostics.ZICO_RECONNECTS);
             }
 
+            // Symbols are sent again after reconnection, so unacknowledged packets have to be encoded again
+            resend = true;
+
             try {
                 log.debug(ZorkaLogger.ZTR_TRACER_DBG, "Will retry (wait=" + rt + ")");
                 Thread.sleep(rt);
@@ -204,11 +291,136 @@ public class ZicoTraceOutput extends ZorkaAsyncThread<SymbolicRecord> implements
             rt *= retryTimeExp;
         } // for ( ... )
 
-        AgentDiagnostics.inc(AgentDiagnostics.ZICO_PACKETS_LOST);
+        if (spill != null) {
+            log.error(ZorkaLogger.ZCL_STORE, "Too many errors while trying to send trace. Spilling data to disk.");
+            for (Packet p : inflight) {
+                spill(p.records);
+            }
+            if (packet != null) {
+                spill(packet);
+            }
+            inflight.clear();
+            nextReplay = System.currentTimeMillis() + spillRetryInterval;
+            return;
+        }
+
+        AgentDiagnostics.inc(AgentDiagnostics.ZICO_PACKETS_LOST, inflight.size() + (packet != null ? 1 : 0));
+        inflight.clear();
         log.error(ZorkaLogger.ZCL_STORE, "Too many errors while trying to send trace. Giving up. Trace will be lost.");
     }
 
 
+    /**
+     * Encodes records and appends them to spill journal. Packet is filled with records from submit queue
+     * up to packet size. Symbol state of writer is reset, so spilled packet contains all symbols it needs.
+     *
+     * @param records records to be spilled
+     */
+    private void spill(List<SymbolicRecord> records) {
+        try {
+            os.reset();
+            writer.reset();
+
+            for (SymbolicRecord rec : records) {
+                writer.write(rec);
+            }
+
+            while (os.size() < packetSize && submitQueue.size() > 0) {
+                SymbolicRecord rec = submitQueue.poll();
+                if (rec == null) {
+                    break;
+                }
+                records.add(rec);
+                writer.write(rec);
+            }
+
+            if (records.size() > 0) {
+                spill.append(os.buffer(), 0, os.size(), records.size());
+            }
+        } catch (IOException e) {
+            log.error(ZorkaLogger.ZCL_STORE, "Cannot write spill journal. Trace will be lost.", e);
+            AgentDiagnostics.inc(AgentDiagnostics.ZICO_PACKETS_LOST);
+        }
+    }
+
+
+    /**
+     * Replays spilled packets (oldest first). Reconnection attempts are made no more often than
+     * spillRetryInterval. Records arriving when replay is in progress are spilled as well if
+     * submit queue is more than half full, so they are neither dropped nor sent out of order.
+     */
+    private void replay() {
+        if (System.currentTimeMillis() < nextReplay) {
+            return;
+        }
+
+        try {
+            if (!conn.isOpen()) {
+                writer.reset();
+                conn.connect();
+                conn.hello(hostname, auth);
+            }
+
+            log.info(ZorkaLogger.ZCL_STORE, "Replaying " + spill.getRecords() + " spilled records.");
+
+            while (!spill.isEmpty()) {
+                conn.send(ZicoPacket.ZICO_DATA, spill.peek());
+                ZicoPacket rslt = conn.recv();
+                if (rslt.getStatus() != ZicoPacket.ZICO_OK) {
+                    throw new ZicoException(rslt.getStatus(), "Error submitting spilled data.");
+                }
+                spill.remove();
+                AgentDiagnostics.inc(AgentDiagnostics.ZICO_PACKETS_SENT);
+
+                if (submitQueue.size() > submitQueue.remainingCapacity()) {
+                    spill(new ArrayList<SymbolicRecord>());
+                }
+            }
+
+            // Writer state has been reset by spill(), it does not reflect symbols sent via this connection
+            writer.reset();
+        } catch (Exception e) {
+            log.error(ZorkaLogger.ZCL_STORE, "Cannot replay spilled data: " + e + ". Will retry later.");
+            try {
+                conn.close();
+            } catch (IOException e1) {
+                log.error(ZorkaLogger.ZCL_STORE, "Error disconnecting " + conn.getAddr() + ":" + conn.getPort(), e1);
+            }
+            AgentDiagnostics.inc(AgentDiagnostics.ZICO_RECONNECTS);
+            nextReplay = System.currentTimeMillis() + spillRetryInterval;
+        }
+    }
+
+
+    /**
+     * Encodes and sends packet. Encoded data is sent directly from output buffer.
+     *
+     * @param p     packet
+     * @param fill  if true, additional records will be taken from submit queue until packet size is reached
+     * @throws IOException when network error occurs
+     */
+    private void send(Packet p, boolean fill) throws IOException {
+        os.reset();
+        writer.softReset();
+
+        for (SymbolicRecord rec : p.records) {
+            writer.write(rec);
+        }
+
+        while (fill && os.size() < packetSize && submitQueue.size() > 0) {
+            SymbolicRecord rec = submitQueue.poll();
+            if (rec == null) {
+                break;
+            }
+            p.records.add(rec);
+            writer.write(rec);
+        }
+
+        log.debug(ZorkaLogger.ZTR_TRACER_DBG, "Sending ZICO packet: seq=" + p.seq + ", len=" + os.size());
+        conn.send(ZicoPacket.ZICO_DATA, os.buffer(), 0, os.size());
+    }
+
+
     @Override
     public void open() {
         log.info(ZorkaLogger.ZSP_CONFIG, "Starting network tracer output: " + hostname
@@ -228,6 +440,9 @@ public class ZicoTraceOutput extends ZorkaAsyncThread<SymbolicRecord> implements
     public synchronized void close() {
         log.info(ZorkaLogger.ZSP_CONFIG, "Stopping network tracer output: " + hostname
                 + " -> " + conn.getAddr() + ":" + conn.getPort());
+        if (spill != null) {
+            spill.flush();
+        }
         try {
             conn.close();
         } catch (IOException e) {
@@ -235,4 +450,34 @@ public class ZicoTraceOutput extends ZorkaAsyncThread<SymbolicRecord> implements
         }
     }
 
+
+    /**
+     * Packet sent to collector (kept until acknowledged).
+     */
+    private static class Packet {
+
+        private final long seq;
+
+        private final List<SymbolicRecord> records;
+
+        private Packet(long seq, List<SymbolicRecord> records) {
+            this.seq = seq;
+            this.records = records;
+        }
+    }
+
+
+    /**
+     * Output buffer giving access to its internal array, so encoded packets don't have to be copied.
+     */
+    private static class PacketBuffer extends ByteArrayOutputStream {
+
+        private PacketBuffer(int size) {
+            super(size);
+        }
+
+        private byte[] buffer() {
+            return buf;
+        }
+    }
 }
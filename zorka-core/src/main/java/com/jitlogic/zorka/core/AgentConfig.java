@@ -74,6 +74,8 @@ public class AgentConfig extends ZorkaConfig {
 
         FileTrapper.ENABLE_FSYNC = boolCfg("zorka.log.fsync", false);
 
+        ZorkaAsyncThread.setDefaultQueueStrategy(stringCfg("zorka.async.queue", "blocking"));
+
         if (boolCfg("zorka.filelog", true)) {
             initFileTrapper();
         }
@@ -32,6 +32,7 @@ import com.jitlogic.zorka.core.integ.*;
 import com.jitlogic.zorka.core.mbeans.MBeanServerRegistry;
 import com.jitlogic.zorka.core.normproc.NormLib;
 
+import java.util.List;
 import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.*;
@@ -253,6 +254,19 @@ public class AgentInstance implements ZorkaService {
                 new AttrGetter(getSymbolRegistry(), "size()"));
 
         registry.getOrRegister("java", mbeanName, "stats", stats);
+
+        final AdaptiveTraceFilter filter = getTracer().getAdaptiveFilter();
+
+        if (filter != null) {
+            registry.getOrRegister("java", mbeanName, "TracerAutoExcluded",
+                    new ValGetter() {
+                        @Override
+                        public Object get() {
+                            List<String> excluded = filter.getExcluded();
+                            return excluded.toArray(new String[excluded.size()]);
+                        }
+                    });
+        }
     }
 
 
@@ -303,7 +317,8 @@ public class AgentInstance implements ZorkaService {
         if (connExecutor == null) {
             int rt = config.intCfg("zorka.req.threads", 8);
             connExecutor = new ThreadPoolExecutor(rt, rt, 1000, TimeUnit.MILLISECONDS,
-                    new ArrayBlockingQueue<Runnable>(config.intCfg("zorka.req.queue", 64)));
+                    new ArrayBlockingQueue<Runnable>(config.intCfg("zorka.req.queue", 64)),
+                    ThreadContext.threadFactory());
         }
         return connExecutor;
     }
@@ -313,7 +328,8 @@ public class AgentInstance implements ZorkaService {
         if (mainExecutor == null) {
             int rt = config.intCfg("zorka.req.threads", 8);
             mainExecutor = new ThreadPoolExecutor(rt, rt, 1000, TimeUnit.MILLISECONDS,
-                    new ArrayBlockingQueue<Runnable>(config.intCfg("zorka.req.queue", 64)));
+                    new ArrayBlockingQueue<Runnable>(config.intCfg("zorka.req.queue", 64)),
+                    ThreadContext.threadFactory());
         }
         return mainExecutor;
     }
@@ -321,7 +337,7 @@ public class AgentInstance implements ZorkaService {
     private synchronized ScheduledExecutorService getScheduledExecutor() {
         if (scheduledExecutor == null) {
             int rt = config.intCfg("zorka.req.threads", 8);
-            scheduledExecutor = Executors.newScheduledThreadPool(rt);
+            scheduledExecutor = Executors.newScheduledThreadPool(rt, ThreadContext.threadFactory());
         }
         return scheduledExecutor;
     }
@@ -329,12 +345,29 @@ public class AgentInstance implements ZorkaService {
     public synchronized Tracer getTracer() {
         if (tracer == null) {
             tracer = new Tracer(getTracerMatcherSet(), getSymbolRegistry());
+            if (config.boolCfg("tracer", false) && config.boolCfg("tracer.adaptive", false)) {
+                createAdaptiveFilter();
+            }
             MainSubmitter.setTracer(getTracer());
         }
         return tracer;
     }
 
 
+    private void createAdaptiveFilter() {
+        long interval = config.longCfg("tracer.adaptive.interval", 60000L);
+        AdaptiveTraceFilter filter = new AdaptiveTraceFilter(tracer, getSymbolRegistry(), getRetransformer(),
+                config.longCfg("tracer.adaptive.calls", 100000L),
+                config.intCfg("tracer.adaptive.ratio", 99),
+                config.intCfg("tracer.adaptive.budget", 256), interval);
+
+        log.info(ZorkaLogger.ZAG_CONFIG, "Enabling adaptive tracer filter.");
+
+        tracer.setAdaptiveFilter(filter);
+        getScheduledExecutor().scheduleWithFixedDelay(filter, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+
     public synchronized SpyRetransformer getRetransformer() {
         return retransformer;
     }
@@ -345,6 +378,7 @@ public class AgentInstance implements ZorkaService {
             classTransformer = new SpyClassTransformer(getSymbolRegistry(), getTracer(),
                     getConfig().boolCfg("zorka.spy.compute.frames", true),
                     stats, getRetransformer());
+            classTransformer.setInlineStats(getConfig().boolCfg("zorka.spy.inline.stats", true));
         }
         return classTransformer;
     }
@@ -504,7 +538,7 @@ public class AgentInstance implements ZorkaService {
     public synchronized PerfMonLib getPerfMonLib() {
 
         if (perfMonLib == null) {
-            perfMonLib = new PerfMonLib(getSymbolRegistry(), getMetricsRegistry(), getTracer(), getMBeanServerRegistry());
+            perfMonLib = new PerfMonLib(getSymbolRegistry(), getMetricsRegistry(), getTracer(), getMBeanServerRegistry(), config);
         }
 
         return perfMonLib;
@@ -519,7 +553,7 @@ public class AgentInstance implements ZorkaService {
     public MBeanServerRegistry getMBeanServerRegistry() {
 
         if (mBeanServerRegistry == null) {
-            mBeanServerRegistry = new MBeanServerRegistry();
+            mBeanServerRegistry = new MBeanServerRegistry(config);
         }
 
         return mBeanServerRegistry;
@@ -561,6 +595,10 @@ public class AgentInstance implements ZorkaService {
         if (nagiosAgent != null) {
             nagiosAgent.shutdown();
         }
+
+        if (perfMonLib != null) {
+            perfMonLib.shutdown();
+        }
     }
 
 
@@ -0,0 +1,416 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Query compiled to direct method call. Most queries coming from monitoring systems are simple
+ * library calls with literal arguments, eg. zorka.jmx("java", "java.lang:type=Memory", "HeapMemoryUsage", "used").
+ * Such queries are parsed once, resolved to library object and method, and then evaluated without
+ * entering BeanShell interpreter. Queries of other shapes are evaluated by interpreter as usual.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class CompiledQuery {
+
+    /**
+     * Marks queries that have to be evaluated by interpreter.
+     */
+    public static final CompiledQuery INTERPRETED = new CompiledQuery(null, null, null, false);
+
+    /**
+     * Library object
+     */
+    private final Object target;
+
+    /**
+     * Called method
+     */
+    private final Method method;
+
+    /**
+     * Call arguments (already converted to method parameter types)
+     */
+    private final Object[] args;
+
+    /**
+     * If true, trailing arguments are passed as variable arguments array
+     */
+    private final boolean varArgs;
+
+
+    private CompiledQuery(Object target, Method method, Object[] args, boolean varArgs) {
+        this.target = target;
+        this.method = method;
+        this.args = args;
+        this.varArgs = varArgs;
+    }
+
+
+    /**
+     * Returns true if query can be evaluated directly (without interpreter).
+     */
+    public boolean isDirect() {
+        return method != null;
+    }
+
+
+    /**
+     * Calls library method.
+     *
+     * @return method result
+     */
+    public Object eval() {
+        try {
+            return method.invoke(target, varArgs ? packVarArgs() : args);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Cannot call " + method, e);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+
+
+    private Object[] packVarArgs() {
+        Class<?>[] types = method.getParameterTypes();
+        int n = types.length - 1;
+        Object[] rslt = new Object[types.length];
+        System.arraycopy(args, 0, rslt, 0, n);
+        Object va = Array.newInstance(types[n].getComponentType(), args.length - n);
+        for (int i = n; i < args.length; i++) {
+            Array.set(va, i - n, args[i]);
+        }
+        rslt[n] = va;
+        return rslt;
+    }
+
+
+    /**
+     * Compiles query. Only queries in form of lib.method(literal, literal, ...) are compiled, where lib is
+     * a plain java object, arguments are string, numeric or boolean literals and exactly one public method
+     * accepts them.
+     *
+     * @param expr  query
+     * @param agent BSH agent (used to look up library objects)
+     * @return compiled query or INTERPRETED
+     */
+    public static CompiledQuery compile(String expr, ZorkaBshAgent agent) {
+        Parser p = new Parser(expr);
+
+        String lib = p.ident();
+        if (lib == null || !p.next('.')) {
+            return INTERPRETED;
+        }
+
+        String name = p.ident();
+        if (name == null || !p.next('(')) {
+            return INTERPRETED;
+        }
+
+        List<Object> args = new ArrayList<Object>();
+
+        if (!p.next(')')) {
+            do {
+                Object arg = p.literal();
+                if (arg == null) {
+                    return INTERPRETED;
+                }
+                args.add(arg);
+            } while (p.next(','));
+
+            if (!p.next(')')) {
+                return INTERPRETED;
+            }
+        }
+
+        p.next(';');
+
+        if (!p.end()) {
+            return INTERPRETED;
+        }
+
+        Object target = agent.get(lib);
+
+        // Scripted objects, primitives etc. are left to interpreter
+        if (target == null || target.getClass().getName().startsWith("bsh.")
+                || !Modifier.isPublic(target.getClass().getModifiers())) {
+            return INTERPRETED;
+        }
+
+        CompiledQuery rslt = null;
+
+        for (Method m : target.getClass().getMethods()) {
+            if (!m.getName().equals(name) || Modifier.isStatic(m.getModifiers())
+                    || !Modifier.isPublic(m.getDeclaringClass().getModifiers())) {
+                continue;
+            }
+
+            CompiledQuery q = match(target, m, args);
+
+            if (q != null) {
+                if (rslt != null) {
+                    // Ambiguous call
+                    return INTERPRETED;
+                }
+                rslt = q;
+            }
+        }
+
+        return rslt != null ? rslt : INTERPRETED;
+    }
+
+
+    private static CompiledQuery match(Object target, Method m, List<Object> args) {
+        Class<?>[] types = m.getParameterTypes();
+        Object[] a = new Object[args.size()];
+
+        if (!m.isVarArgs()) {
+            if (types.length != args.size()) {
+                return null;
+            }
+            for (int i = 0; i < types.length; i++) {
+                if (null == (a[i] = convert(args.get(i), types[i]))) {
+                    return null;
+                }
+            }
+            return new CompiledQuery(target, m, a, false);
+        }
+
+        int n = types.length - 1;
+
+        if (args.size() < n) {
+            return null;
+        }
+
+        Class<?> vt = types[n].getComponentType();
+
+        for (int i = 0; i < args.size(); i++) {
+            if (null == (a[i] = convert(args.get(i), i < n ? types[i] : vt))) {
+                return null;
+            }
+        }
+
+        return new CompiledQuery(target, m, a, true);
+    }
+
+
+    /**
+     * Converts literal to parameter type (only conversions done by interpreter for literals are performed).
+     *
+     * @param v literal value
+     * @param t parameter type
+     * @return converted value or null if literal cannot be passed as parameter of this type
+     */
+    private static Object convert(Object v, Class<?> t) {
+        if (t.isInstance(v)) {
+            return v;
+        }
+
+        if (!t.isPrimitive()) {
+            return null;
+        }
+
+        if (v instanceof Boolean) {
+            return t == Boolean.TYPE ? v : null;
+        }
+
+        if (!(v instanceof Number) || v instanceof Double && t != Double.TYPE) {
+            return null;
+        }
+
+        Number n = (Number) v;
+
+        if (t == Integer.TYPE) {
+            return v instanceof Integer ? v : null;
+        } else if (t == Long.TYPE) {
+            return n.longValue();
+        } else if (t == Double.TYPE) {
+            return n.doubleValue();
+        } else if (t == Float.TYPE) {
+            return n.floatValue();
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Simple query tokenizer.
+     */
+    private static class Parser {
+
+        private final String s;
+
+        private int pos;
+
+
+        private Parser(String s) {
+            this.s = s;
+        }
+
+
+        private void skip() {
+            while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) {
+                pos++;
+            }
+        }
+
+
+        private boolean end() {
+            skip();
+            return pos == s.length();
+        }
+
+
+        private boolean next(char c) {
+            skip();
+            if (pos < s.length() && s.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+
+        private String ident() {
+            skip();
+            int start = pos;
+            if (pos < s.length() && Character.isJavaIdentifierStart(s.charAt(pos))) {
+                pos++;
+                while (pos < s.length() && Character.isJavaIdentifierPart(s.charAt(pos))) {
+                    pos++;
+                }
+                return s.substring(start, pos);
+            }
+            return null;
+        }
+
+
+        private Object literal() {
+            skip();
+
+            if (pos >= s.length()) {
+                return null;
+            }
+
+            char c = s.charAt(pos);
+
+            if (c == '"') {
+                return string();
+            }
+
+            if (c == '-' || Character.isDigit(c)) {
+                return number();
+            }
+
+            String id = ident();
+
+            if ("true".equals(id)) {
+                return Boolean.TRUE;
+            } else if ("false".equals(id)) {
+                return Boolean.FALSE;
+            }
+
+            return null;
+        }
+
+
+        private String string() {
+            StringBuilder sb = new StringBuilder();
+
+            for (pos++; pos < s.length(); pos++) {
+                char c = s.charAt(pos);
+                if (c == '"') {
+                    pos++;
+                    return sb.toString();
+                }
+                if (c == '\\') {
+                    if (++pos >= s.length()) {
+                        return null;
+                    }
+                    c = s.charAt(pos);
+                    switch (c) {
+                        case 'n': sb.append('\n'); break;
+                        case 't': sb.append('\t'); break;
+                        case 'r': sb.append('\r'); break;
+                        case '"':
+                        case '\'':
+                        case '\\':
+                            sb.append(c);
+                            break;
+                        default:
+                            // Unicode, octal etc. escapes are left to interpreter
+                            return null;
+                    }
+                } else {
+                    sb.append(c);
+                }
+            }
+
+            return null;
+        }
+
+
+        private Number number() {
+            int start = pos;
+
+            if (s.charAt(pos) == '-') {
+                pos++;
+            }
+
+            boolean fp = false;
+
+            while (pos < s.length()) {
+                char c = s.charAt(pos);
+                if (c == '.') {
+                    fp = true;
+                } else if (!Character.isDigit(c)) {
+                    break;
+                }
+                pos++;
+            }
+
+            String n = s.substring(start, pos);
+
+            try {
+                if (pos < s.length() && Character.isJavaIdentifierPart(s.charAt(pos))) {
+                    char c = s.charAt(pos++);
+                    if (c == 'L' || c == 'l') {
+                        return fp ? null : Long.parseLong(n);
+                    }
+                    return null;
+                }
+                return fp ? (Number) Double.parseDouble(n) : (Number) Integer.parseInt(n);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -69,6 +69,11 @@ public class ZorkaBshAgent implements ZorkaAgent, ZorkaService {
 
     private Set<String> loadedScripts = new HashSet<String>();
 
+    /**
+     * Compiled queries (LRU)
+     */
+    private Map<String, CompiledQuery> queryCache;
+
     /**
      * Standard constructor.
      *
@@ -83,6 +88,15 @@ public class ZorkaBshAgent implements ZorkaAgent, ZorkaService {
         this.mainExecutor = mainExecutor;
         this.timeout = timeout;
         this.config = config;
+
+        final int cacheSize = config.intCfg("zorka.query.cache.size", 1024);
+
+        queryCache = new LinkedHashMap<String, CompiledQuery>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledQuery> eldest) {
+                return size() > cacheSize;
+            }
+        };
     }
 
 
@@ -94,6 +108,7 @@ public class ZorkaBshAgent implements ZorkaAgent, ZorkaService {
      * @param obj  object
      */
     public void put(String name, Object obj) {
+        clearQueryCache();
         try {
             interpreter.set(name, obj);
         } catch (EvalError e) {
@@ -129,13 +144,54 @@ public class ZorkaBshAgent implements ZorkaAgent, ZorkaService {
 
     /**
      * Evaluates BSH query. If evaluation error occurs, it is thrown out as EvalError.
+     * Simple library calls are evaluated directly, without entering interpreter (see CompiledQuery).
      *
      * @param expr query string
      * @return evaluation result
      * @throws EvalError
      */
     public Object eval(String expr) throws EvalError {
-        return interpreter.eval(expr);
+        CompiledQuery query = compile(expr);
+        return query.isDirect() ? query.eval() : interpreter.eval(expr);
+    }
+
+
+    /**
+     * Returns compiled query from cache or compiles it.
+     *
+     * @param expr query string
+     * @return compiled query (CompiledQuery.INTERPRETED if query has to be evaluated by interpreter)
+     */
+    private CompiledQuery compile(String expr) {
+        CompiledQuery query;
+
+        synchronized (queryCache) {
+            query = queryCache.get(expr);
+        }
+
+        if (query != null) {
+            AgentDiagnostics.inc(AgentDiagnostics.QUERY_CACHE_HITS);
+        } else {
+            AgentDiagnostics.inc(AgentDiagnostics.QUERY_CACHE_MISSES);
+            query = CompiledQuery.compile(expr, this);
+            synchronized (queryCache) {
+                queryCache.put(expr, query);
+            }
+        }
+
+        AgentDiagnostics.inc(query.isDirect(), AgentDiagnostics.QUERY_DIRECT_CALLS);
+
+        return query;
+    }
+
+
+    /**
+     * Drops all compiled queries. This is necessary whenever objects in global namespace change.
+     */
+    public void clearQueryCache() {
+        synchronized (queryCache) {
+            queryCache.clear();
+        }
     }
 
 
@@ -158,6 +214,7 @@ public class ZorkaBshAgent implements ZorkaAgent, ZorkaService {
      * @param script path to script
      */
     public synchronized String loadScript(String script) {
+        clearQueryCache();
         String path = ZorkaUtil.path(config.stringCfg(AgentConfig.PROP_SCRIPTS_DIR, null), script);
         Reader rdr = null;
         try {
@@ -246,6 +303,7 @@ public class ZorkaBshAgent implements ZorkaAgent, ZorkaService {
 
     public void restart() {
         interpreter = new Interpreter();
+        clearQueryCache();
     }
 
     @Override
@@ -17,10 +17,12 @@
 
 package com.jitlogic.zorka.core;
 
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
 import javax.management.*;
+import javax.management.remote.JMXConnector;
 
 import com.jitlogic.zorka.common.ZorkaService;
 import com.jitlogic.zorka.common.stats.AgentDiagnostics;
@@ -68,6 +70,8 @@ public class ZorkaLib implements ZorkaService {
     private String hostname;
 
     private AvgRateCounter rateCounter = new AvgRateCounter(this);
+
+    private PercentileCounter percentileCounter = new PercentileCounter(this);
     private Map<String, FileTrapper> fileTrappers = new ConcurrentHashMap<String, FileTrapper>();
 
     private TaskScheduler scheduler = TaskScheduler.instance();
@@ -142,7 +146,7 @@ public class ZorkaLib implements ZorkaService {
         }
         ClassLoader cl0 = Thread.currentThread().getContextClassLoader(), cl1 = mbsRegistry.getClassLoader(conname);
 
-        Set<ObjectName> names = ObjectInspector.queryNames(conn, args.get(1).toString());
+        Set<ObjectName> names = mbsRegistry.queryNames(conname, args.get(1).toString());
         if (args.size() == 2) {
             for (ObjectName name : names) {
                 objs.add(new JmxObject(name, conn, cl1));
@@ -154,7 +158,7 @@ public class ZorkaLib implements ZorkaService {
             for (ObjectName name : names) {
                 Object obj = null;
                 try {
-                    obj = conn.getAttribute(name, args.get(2).toString());
+                    obj = mbsRegistry.getAttribute(conname, name, args.get(2).toString());
                 } catch (AttributeNotFoundException e) {
                     log.error(ZorkaLogger.ZAG_ERRORS, "Object '" + conname + "|" + name + "' has no attribute '" + args.get(2) + "'.", e);
                 } catch (Exception e) {
@@ -223,7 +227,7 @@ public class ZorkaLib implements ZorkaService {
             return null;
         }
 
-        Set<ObjectName> names = ObjectInspector.queryNames(conn, argList.get(1).toString());
+        Set<ObjectName> names = mbsRegistry.queryNames(conname, argList.get(1).toString());
 
         if (names.isEmpty()) {
             return null;
@@ -242,7 +246,7 @@ public class ZorkaLib implements ZorkaService {
             if (cl1 != null) {
                 Thread.currentThread().setContextClassLoader(cl1);
             }
-            obj = conn.getAttribute(name, argList.get(2).toString());
+            obj = mbsRegistry.getAttribute(conname, name, argList.get(2).toString());
         } catch (AttributeNotFoundException e) {
             log.error(ZorkaLogger.ZAG_ERRORS, "Object '" + conname + "|" + name + "' has no attribute '" + argList.get(2) + "'.", e);
             return null;
@@ -419,6 +423,45 @@ public class ZorkaLib implements ZorkaService {
     }
 
 
+    /**
+     * Calculates percentile of execution times over a time window. Similarly to rate(), caller has
+     * to call this function periodically in order to maintain collected samples.
+     *
+     * @param args first two arguments are mbean server name and object name, last two arguments are
+     *             percentile (eg. 99.9) and time horizon (in seconds or AVG1, AVG5, AVG15), all remaining
+     *             middle arguments are part of attribute chain needed to reach from mbean to method call
+     *             statistic (or histogram)
+     *
+     * @return percentile value (in milliseconds)
+     */
+    public Double percentile(Object... args) {
+
+        if (args.length < 4) {
+            log.error(ZorkaLogger.ZAG_ERRORS, "Too little arguments for zorka.percentile(). At least 4 args are required");
+            return null;
+        }
+
+        Object oh = args[args.length - 1];
+        long horizon;
+
+        if (oh instanceof String && ((String) oh).matches("^AVG[0-9]+$")) {
+            horizon = Long.parseLong(oh.toString().substring(3)) * MINUTE;
+        } else {
+            horizon = rateCounter.coerce(oh) * SECOND;
+        }
+
+        Object op = args[args.length - 2];
+
+        if (horizon == 0 || !(op instanceof Number)) {
+            log.error(ZorkaLogger.ZAG_ERRORS, "Invalid percentile or time horizon in zorka.percentile()");
+            return null;
+        }
+
+        return percentileCounter.get(Arrays.asList(ZorkaUtil.clipArray(args, args.length - 2)),
+                ((Number) op).doubleValue(), horizon);
+    }
+
+
     /**
      * Sends DEBUG message to zorka log.
      *
@@ -550,6 +593,20 @@ public class ZorkaLib implements ZorkaService {
     }
 
 
+    /**
+     * Registers remote mbean server in agent mbean server registry along with its connector.
+     * Scanners querying this mbean server will refresh their object names when connector
+     * reports lost notifications or broken connection.
+     *
+     * @param name      name at which mbean server will be registered
+     * @param connector connector of remote mbean server
+     * @throws IOException if connector cannot return mbean server connection
+     */
+    public void registerMbs(String name, JMXConnector connector) throws IOException {
+        mbsRegistry.register(name, connector, connector.getClass().getClassLoader());
+    }
+
+
     public boolean isMbsRegistered(String name) {
         return mbsRegistry.lookup(name) != null;
     }
@@ -638,6 +695,26 @@ public class ZorkaLib implements ZorkaService {
     }
 
 
+    /**
+     * Creates ranking of items provided by rank lister. Ranking is recalculated in background,
+     * so queries reading it never wait for reranks.
+     *
+     * @param lister     rank lister (eg. thread rank lister)
+     * @param maxSize    maximum number of items in ranking
+     * @param metric     metric used as rank criterium
+     * @param average    average used as rank criterium
+     * @param rerankTime how often ranking is recalculated (in milliseconds)
+     * @param <T>        ranked item type
+     * @return rank list object
+     */
+    public <T extends Rankable<?>> RankList<T> rankList(RankLister<T> lister, int maxSize, int metric, int average,
+                                                        long rerankTime) {
+        RankList<T> rankList = new RankList<T>(lister, maxSize, metric, average, rerankTime);
+        rankList.schedule(scheduler);
+        return rankList;
+    }
+
+
     /**
      * Looks for file trapper and returns if trapper exists.
      *
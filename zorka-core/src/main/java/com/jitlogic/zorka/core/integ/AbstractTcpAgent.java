@@ -24,17 +24,30 @@ import com.jitlogic.zorka.common.util.ZorkaLogger;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Abstract class that implements basic functionality of a service
  * listening on TCP port, handling TCP connections and processing
  * requests using ZorkaBshAgent.
  *
+ * Connections are handled by a single selector thread: incoming data is accumulated
+ * in per-connection buffers and complete requests are passed to BSH agent, so slow or
+ * stalled clients don't block other clients. Replies are posted by request handlers
+ * and written by selector thread.
+ *
  * @author rafal.lewczuk@jitlogic.com
  */
 public abstract class AbstractTcpAgent implements Runnable, ZorkaService {
@@ -50,9 +63,9 @@ public abstract class AbstractTcpAgent implements Runnable, ZorkaService {
     private ZorkaBshAgent agent;
 
     /**
-     * Connections accepting thread
+     * Connections handling thread
      */
-    private Thread thread;
+    private volatile Thread thread;
 
     /**
      * Thread main loop will run as long as this attribute is true
@@ -85,10 +98,35 @@ public abstract class AbstractTcpAgent implements Runnable, ZorkaService {
      */
     private List<InetAddress> allowedAddrs = new ArrayList<InetAddress>();
 
+    /**
+     * If true, connections are kept open after reply is sent, so clients can send more requests
+     */
+    private boolean keepAlive;
+
+    /**
+     * Idle connections are closed after this time (milliseconds)
+     */
+    private long idleTimeout;
+
+    /**
+     * Size of per-connection input buffer (maximum request size)
+     */
+    private int bufSize;
+
     /**
      * TCP server socket
      */
-    private ServerSocket socket;
+    private ServerSocketChannel socket;
+
+    /**
+     * Selector handling server socket and all accepted connections
+     */
+    private Selector selector;
+
+    /**
+     * Connections with replies waiting to be written
+     */
+    private Queue<TcpConnection> replies = new ConcurrentLinkedQueue<TcpConnection>();
 
     /**
      * Query translator
@@ -138,6 +176,10 @@ public abstract class AbstractTcpAgent implements Runnable, ZorkaService {
                 log.error(ZorkaLogger.ZAG_ERRORS, "Cannot parse " + prefix + ".server.addr in zorka.properties", e);
             }
         }
+
+        keepAlive = config.boolCfg(prefix + ".keepalive", false);
+        idleTimeout = config.longCfg(prefix + ".idle.timeout", 30000L);
+        bufSize = config.intCfg(prefix + ".buffer.size", 2048);
     }
 
 
@@ -147,7 +189,12 @@ public abstract class AbstractTcpAgent implements Runnable, ZorkaService {
     public void start() {
         if (!running) {
             try {
-                socket = new ServerSocket(listenPort, 0, listenAddr);
+                selector = Selector.open();
+                socket = ServerSocketChannel.open();
+                socket.socket().setReuseAddress(true);
+                socket.socket().bind(new InetSocketAddress(listenAddr, listenPort));
+                socket.configureBlocking(false);
+                socket.register(selector, SelectionKey.OP_ACCEPT);
                 running = true;
                 thread = new Thread(this);
                 thread.setName("ZORKA-" + prefix + "-main");
@@ -156,6 +203,7 @@ public abstract class AbstractTcpAgent implements Runnable, ZorkaService {
                 log.info(ZorkaLogger.ZAG_CONFIG, "ZORKA-" + prefix + " core is listening at " + listenAddr + ":" + listenPort + ".");
             } catch (IOException e) {
                 log.error(ZorkaLogger.ZAG_ERRORS, "I/O error while starting " + prefix + " core:" + e.getMessage());
+                closeAll();
             }
         }
     }
@@ -168,28 +216,22 @@ public abstract class AbstractTcpAgent implements Runnable, ZorkaService {
     public void stop() {
         if (running) {
             running = false;
-            try {
-                if (socket != null) {
-                    socket.close();
-                    socket = null;
+            selector.wakeup();
+            for (int i = 0; i < 100; i++) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
                 }
-                for (int i = 0; i < 100; i++) {
-                    try {
-                        Thread.sleep(10);
-                    } catch (InterruptedException e) {
-                    }
-                    if (thread == null) {
-                        return;
-                    }
+                if (thread == null) {
+                    return;
                 }
+            }
 
-                log.warn(ZorkaLogger.ZAG_WARNINGS, "ZORKA-" + prefix + " thread didn't stop after 1000 milliseconds. Shutting down forcibly.");
+            log.warn(ZorkaLogger.ZAG_WARNINGS, "ZORKA-" + prefix + " thread didn't stop after 1000 milliseconds. Shutting down forcibly.");
 
-                thread.stop();
-                thread = null;
-            } catch (IOException e) {
-                log.error(ZorkaLogger.ZAG_ERRORS, "I/O error in zabbix core main loop: " + e.getMessage());
-            }
+            thread.stop();
+            thread = null;
+            closeAll();
         }
     }
 
@@ -202,61 +244,196 @@ public abstract class AbstractTcpAgent implements Runnable, ZorkaService {
     public void shutdown() {
         log.info(ZorkaLogger.ZAG_CONFIG, "Shutting down " + prefix + " agent ...");
         stop();
-        if (socket != null) {
-            try {
-                socket.close();
-            } catch (IOException e) {
-            }
-            socket = null;
+        closeAll();
+    }
+
+    /**
+     * This abstract method parses requests from data received via accepted connections and
+     * creates request handlers for them.
+     *
+     * @param conn connection request has been received from (handler will post reply to it)
+     * @param buf  received data; if complete request is found, its bytes have to be consumed (buffer
+     *             position moved after it), otherwise buffer position must be left unchanged
+     * @param eof  true if peer closed its side of connection (no more data will arrive)
+     * @return request handler or null if buffer does not contain complete request yet
+     * @throws IOException if request is malformed (connection will be closed)
+     */
+    protected abstract ZorkaRequestHandler newRequest(TcpConnection conn, ByteBuffer buf, boolean eof)
+            throws IOException;
+
+
+    boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+
+    /**
+     * Passes request to BSH agent.
+     *
+     * @param rh request handler
+     */
+    void submit(ZorkaRequestHandler rh) {
+        try {
+            agent.exec(rh.getReq(), rh);
+        } catch (Exception e) {
+            log.error(ZorkaLogger.ZAG_ERRORS, "Error occured when processing request.", e);
+            rh.handleError(e);
         }
     }
 
+
     /**
-     * This abstract method creates new request handlers for accepted TCP connections.
+     * Notifies selector thread that reply is ready to be written.
      *
-     * @param sock socket representing accepted connection
-     * @return request handler for new connection
+     * @param conn connection
      */
-    protected abstract ZorkaRequestHandler newRequest(Socket sock);
+    void replyReady(TcpConnection conn) {
+        replies.add(conn);
+        Selector sel = selector;
+        if (sel != null) {
+            sel.wakeup();
+        }
+    }
+
 
     @Override
     public void run() {
 
+        long tCheck = System.currentTimeMillis();
+
         while (running) {
-            Socket sock;
-            ZorkaRequestHandler rh = null;
             try {
-                sock = socket.accept();
-                if (!allowedAddr(sock)) {
-                    log.warn(ZorkaLogger.ZAG_WARNINGS, "Illegal connection attempt from '" + socket.getInetAddress() + "'.");
-                    sock.close();
-                } else {
-                    rh = newRequest(sock);
-                    String req = rh.getReq();
-                    agent.exec(req, rh);
+                selector.select(1000);
+
+                for (TcpConnection conn = replies.poll(); conn != null; conn = replies.poll()) {
+                    handle(conn, SelectionKey.OP_WRITE);
                 }
+
+                Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        handle((TcpConnection) key.attachment(), key.readyOps());
+                    }
+                }
+
+                long t = System.currentTimeMillis();
+
+                if (t - tCheck > 1000) {
+                    closeIdle(t);
+                    tCheck = t;
+                }
+            } catch (ClosedSelectorException e) {
+                break;
             } catch (Exception e) {
                 if (running) {
                     log.error(ZorkaLogger.ZAG_ERRORS, "Error occured when processing request.", e);
                 }
-                if (running && rh != null) {
-                    rh.handleError(e);
-                }
             }
+        }
+
+        closeAll();
+
+        thread = null;
+
+    }
 
-            rh = null;
 
+    private void accept() throws IOException {
+        SocketChannel ch = socket.accept();
+
+        if (ch == null) {
+            return;
         }
 
-        thread = null;
+        if (!allowedAddr(ch.socket().getInetAddress())) {
+            log.warn(ZorkaLogger.ZAG_WARNINGS, "Illegal connection attempt from '" + ch.socket().getInetAddress() + "'.");
+            ch.close();
+            return;
+        }
+
+        ch.configureBlocking(false);
+        TcpConnection conn = new TcpConnection(this, ch, bufSize);
+        conn.setKey(ch.register(selector, SelectionKey.OP_READ, conn));
+    }
+
+
+    private void handle(TcpConnection conn, int ops) {
+        try {
+            if (0 != (ops & SelectionKey.OP_READ)) {
+                conn.read();
+            }
+            if (0 != (ops & SelectionKey.OP_WRITE)) {
+                conn.write();
+            }
+        } catch (Exception e) {
+            log.debug(ZorkaLogger.ZAG_DEBUG, "Closing " + prefix + " connection from " + conn.getAddress() + ": " + e);
+            conn.close();
+        }
+    }
+
 
+    /**
+     * Closes connections that are idle (not waiting for reply) for too long.
+     *
+     * @param t current time
+     */
+    private void closeIdle(long t) {
+        for (SelectionKey key : selector.keys()) {
+            Object obj = key.attachment();
+            if (obj instanceof TcpConnection) {
+                TcpConnection conn = (TcpConnection) obj;
+                if (!conn.isBusy() && t - conn.getLastActivity() > idleTimeout) {
+                    conn.close();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Closes server socket, all connections and selector.
+     */
+    private synchronized void closeAll() {
+        if (selector != null) {
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof TcpConnection) {
+                        ((TcpConnection) key.attachment()).close();
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                // Already closed
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+            }
+        }
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+            socket = null;
+        }
+        replies.clear();
     }
 
 
-    private boolean allowedAddr(Socket sock) {
+    private boolean allowedAddr(InetAddress peer) {
 
         for (InetAddress addr : allowedAddrs) {
-            if (addr.equals(sock.getInetAddress())) {
+            if (addr.equals(peer)) {
                 return true;
             }
         }
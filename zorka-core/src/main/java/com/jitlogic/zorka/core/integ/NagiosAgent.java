@@ -18,7 +18,8 @@ package com.jitlogic.zorka.core.integ;
 import com.jitlogic.zorka.core.ZorkaBshAgent;
 import com.jitlogic.zorka.common.util.ZorkaConfig;
 
-import java.net.Socket;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Nagios agent integrates Zorka with Nagios server. It handles incoming NRPE
@@ -38,8 +39,9 @@ public class NagiosAgent extends AbstractTcpAgent {
     }
 
     @Override
-    protected ZorkaRequestHandler newRequest(Socket sock) {
-        return new NrpeRequestHandler(sock, translator);
+    protected ZorkaRequestHandler newRequest(TcpConnection conn, ByteBuffer buf, boolean eof) throws IOException {
+        NrpePacket pkt = NrpePacket.fromBuffer(buf);
+        return pkt != null ? new NrpeRequestHandler(conn, pkt, translator) : null;
     }
 
 }
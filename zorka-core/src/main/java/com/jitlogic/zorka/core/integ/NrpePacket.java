@@ -47,6 +47,9 @@ public class NrpePacket {
     /** NRPE response */
     public static final short RESPONSE_PACKET = 2;
 
+    /** NRPE packet size */
+    public static final int PACKET_SIZE = 1036;
+
     /** Protocol version */
     private int version;
 
@@ -99,6 +102,29 @@ public class NrpePacket {
         return pkt;
     }
 
+    /**
+     * Creates NRPE packet out of data received in a buffer.
+     *
+     * @param buf buffer with received data (in read mode); if complete packet is present,
+     *            buffer position is moved after it, otherwise it is left unchanged;
+     *
+     * @return NRPE packet or null if buffer does not contain complete packet
+     *
+     * @throws IOException if packet is malformed
+     */
+    public static NrpePacket fromBuffer(ByteBuffer buf) throws IOException {
+        if (buf.remaining() < PACKET_SIZE) {
+            return null;
+        }
+
+        byte[] b = new byte[PACKET_SIZE];
+        buf.get(b);
+
+        NrpePacket pkt = new NrpePacket();
+        pkt.decode(b, PACKET_SIZE);
+        return pkt;
+    }
+
     public static NrpePacket response(int rc, String msg) { return newInstance(2, NrpePacket.RESPONSE_PACKET, rc, msg); }
 
     public static NrpePacket error(String msg) {
@@ -116,9 +142,22 @@ public class NrpePacket {
      * @throws IOException if I/O error occurs
      */
     public void decode(InputStream is) throws IOException {
-        byte[] buf = new byte[1036];
+        byte[] buf = new byte[PACKET_SIZE];
         int len = is.read(buf);
+        decode(buf, len);
+    }
+
 
+    /**
+     * Parses packet data and populates fields with parsed values
+     *
+     * @param buf packet data
+     *
+     * @param len data length
+     *
+     * @throws IOException if packet is malformed
+     */
+    private void decode(byte[] buf, int len) throws IOException {
         // Extract packet header
         ByteBuffer bb = ByteBuffer.wrap(buf).order(ByteOrder.BIG_ENDIAN);
         version = bb.getShort();
@@ -139,7 +178,7 @@ public class NrpePacket {
 
         int msglen = 0;
 
-        for (int i = 10; i < 1036; i++) {
+        for (int i = 10; i < PACKET_SIZE; i++) {
             if (buf[i] == 0) {
                 msglen = i - 10;
                 break;
@@ -165,7 +204,7 @@ public class NrpePacket {
         bb.putShort((short)version).putShort((short)type).putInt(0).putShort((short)resultCode);
 
         byte[] msg = data.getBytes();
-        byte[] pkt = new byte[1036];
+        byte[] pkt = new byte[PACKET_SIZE];
 
         System.arraycopy(bb.array(), 0, pkt, 0, 10);
         System.arraycopy(msg,  0, pkt, 10, msg.length);
@@ -19,8 +19,8 @@ import com.jitlogic.zorka.common.stats.AgentDiagnostics;
 import com.jitlogic.zorka.common.util.ZorkaLogger;
 import com.jitlogic.zorka.common.util.ZorkaLog;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.net.Socket;
 
 /**
  * Handles Nagios NRPE requests and passes them to BSH agent.
@@ -38,9 +38,9 @@ public class NrpeRequestHandler implements ZorkaRequestHandler {
     private NrpePacket req;
 
     /**
-     * Accepted connection socket
+     * Connection request has been received from
      */
-    private Socket socket;
+    private TcpConnection conn;
 
     /**
      * Request handling start timestamp.
@@ -60,10 +60,12 @@ public class NrpeRequestHandler implements ZorkaRequestHandler {
     /**
      * Creates NRPE request handler object
      *
-     * @param socket accepted connection socket
+     * @param conn connection request has been received from
+     * @param req  request packet
      */
-    public NrpeRequestHandler(Socket socket, QueryTranslator translator) {
-        this.socket = socket;
+    public NrpeRequestHandler(TcpConnection conn, NrpePacket req, QueryTranslator translator) {
+        this.conn = conn;
+        this.req = req;
         this.tStart = System.nanoTime();
         this.translator = translator;
 
@@ -78,15 +80,6 @@ public class NrpeRequestHandler implements ZorkaRequestHandler {
 
         AgentDiagnostics.inc(AgentDiagnostics.NAGIOS_TIME, tStop - tStart);
 
-        if (req == null) {
-            log.error(ZorkaLogger.ZAG_ERRORS, "Error: nagios request is null (propably parse error or deadlock)");
-            try {
-                socket.close();
-            } catch (IOException e) {
-            }
-            return;
-        }
-
         NrpePacket resp = null;
         if (rslt instanceof NrpePacket) {
             NrpePacket pkt = (NrpePacket) rslt;
@@ -95,18 +88,7 @@ public class NrpeRequestHandler implements ZorkaRequestHandler {
             resp = req.createResponse((short) 0, "" + rslt);
         }
 
-        try {
-            resp.encode(socket.getOutputStream());
-            socket.getOutputStream().flush();
-        } catch (IOException e) {
-            log.error(ZorkaLogger.ZAG_ERRORS, "Error sending NRPE response", e);
-        } finally {
-            try {
-                socket.close();
-            } catch (IOException e) {
-                log.error(ZorkaLogger.ZAG_ERRORS, "Error closing network socket", e);
-            }
-        }
+        send(resp);
     }
 
 
@@ -118,33 +100,28 @@ public class NrpeRequestHandler implements ZorkaRequestHandler {
 
         AgentDiagnostics.inc(AgentDiagnostics.NAGIOS_TIME, tStop - tStart);
 
-        NrpePacket resp = req.createResponse(3, "Error: " + e);
+        send(req.createResponse(3, "Error: " + e));
+    }
+
+
+    /**
+     * Encodes response packet and posts it to connection.
+     *
+     * @param resp response packet
+     */
+    private void send(NrpePacket resp) {
         try {
-            resp.encode(socket.getOutputStream());
-        } catch (IOException e1) {
+            ByteArrayOutputStream os = new ByteArrayOutputStream(NrpePacket.PACKET_SIZE);
+            resp.encode(os);
+            conn.reply(os.toByteArray());
+        } catch (IOException e) {
             log.error(ZorkaLogger.ZAG_ERRORS, "Error sending NRPE response", e);
-        } finally {
-            try {
-                socket.close();
-            } catch (IOException e2) {
-                log.error(ZorkaLogger.ZAG_ERRORS, "Error closing network socket", e);
-            }
         }
     }
 
 
     @Override
     public String getReq() {
-
-        if (req == null) {
-            try {
-                req = NrpePacket.fromStream(socket.getInputStream());
-            } catch (IOException e) {
-                log.error(ZorkaLogger.ZAG_ERRORS, "Error parsing NRPE packet", e);
-                return "";
-            }
-        }
-
         return translator.translate(req.getData());
     }
 }
@@ -0,0 +1,247 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.integ;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Represents single connection accepted by AbstractTcpAgent. Incoming data is accumulated in a buffer
+ * (reused for subsequent requests) until protocol handler finds complete request in it. Replies are
+ * posted by request handlers (from worker threads) and written by agent selector thread.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class TcpConnection {
+
+    /**
+     * Agent owning this connection
+     */
+    private AbstractTcpAgent agent;
+
+    /**
+     * Connection channel
+     */
+    private SocketChannel channel;
+
+    /**
+     * Selection key of this connection (registered in agent selector)
+     */
+    private SelectionKey key;
+
+    /**
+     * Input buffer (in write mode between reads)
+     */
+    private ByteBuffer in;
+
+    /**
+     * Reply waiting to be written (or null)
+     */
+    private ByteBuffer out;
+
+    /**
+     * True if request has been submitted and connection waits for reply
+     */
+    private boolean busy;
+
+    /**
+     * True if peer closed its side of connection
+     */
+    private boolean eof;
+
+    /**
+     * True if connection should be closed after reply is written
+     */
+    private boolean closeAfterReply;
+
+    /**
+     * Last activity time (used to close idle connections)
+     */
+    private volatile long tLast;
+
+
+    TcpConnection(AbstractTcpAgent agent, SocketChannel channel, int bufSize) {
+        this.agent = agent;
+        this.channel = channel;
+        this.in = ByteBuffer.allocate(bufSize);
+        this.tLast = System.currentTimeMillis();
+    }
+
+
+    /**
+     * Returns address of connected peer.
+     *
+     * @return peer address
+     */
+    public InetAddress getAddress() {
+        return channel.socket().getInetAddress();
+    }
+
+
+    /**
+     * Posts reply. This method can be called from any thread, reply will be written by agent thread.
+     * Connection will be closed after reply is written unless agent keeps connections alive.
+     *
+     * @param data reply data
+     */
+    public void reply(byte[] data) {
+        reply(data, false);
+    }
+
+
+    /**
+     * Posts reply. This method can be called from any thread, reply will be written by agent thread.
+     *
+     * @param data  reply data
+     * @param close if true, connection will be closed after reply is written
+     */
+    public void reply(byte[] data, boolean close) {
+        synchronized (this) {
+            out = ByteBuffer.wrap(data);
+            closeAfterReply = close;
+        }
+        agent.replyReady(this);
+    }
+
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+
+    long getLastActivity() {
+        return tLast;
+    }
+
+
+    synchronized boolean isBusy() {
+        return busy;
+    }
+
+
+    /**
+     * Reads available data and submits complete requests (called by agent thread).
+     *
+     * @throws IOException if I/O error occurs or request is malformed
+     */
+    void read() throws IOException {
+        tLast = System.currentTimeMillis();
+
+        if (!in.hasRemaining()) {
+            throw new IOException("Request too long.");
+        }
+
+        if (channel.read(in) < 0) {
+            eof = true;
+            key.interestOps(0);
+        }
+
+        process();
+    }
+
+
+    /**
+     * Looks for complete request in input buffer and submits it. Only one request at a time is processed,
+     * so replies are sent in the same order as requests.
+     *
+     * @throws IOException if request is malformed
+     */
+    private void process() throws IOException {
+        if (isBusy()) {
+            return;
+        }
+
+        in.flip();
+
+        ZorkaRequestHandler rh;
+
+        try {
+            rh = agent.newRequest(this, in, eof);
+        } finally {
+            in.compact();
+        }
+
+        if (rh != null) {
+            synchronized (this) {
+                busy = true;
+            }
+            key.interestOps(0);
+            agent.submit(rh);
+        } else if (eof) {
+            close();
+        }
+    }
+
+
+    /**
+     * Writes pending reply (called by agent thread).
+     *
+     * @throws IOException if I/O error occurs
+     */
+    void write() throws IOException {
+        ByteBuffer buf;
+        boolean close;
+
+        synchronized (this) {
+            buf = out;
+            close = closeAfterReply;
+        }
+
+        if (buf == null || !key.isValid()) {
+            return;
+        }
+
+        tLast = System.currentTimeMillis();
+
+        channel.write(buf);
+
+        if (buf.hasRemaining()) {
+            key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+
+        synchronized (this) {
+            out = null;
+            busy = false;
+        }
+
+        if (close || eof || !agent.isKeepAlive()) {
+            close();
+        } else {
+            key.interestOps(SelectionKey.OP_READ);
+            process();
+        }
+    }
+
+
+    /**
+     * Closes connection.
+     */
+    void close() {
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing interesting here
+        }
+    }
+}
@@ -25,7 +25,6 @@ import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -33,7 +32,6 @@ import java.util.concurrent.TimeUnit;
 import com.jitlogic.zorka.common.ZorkaService;
 import com.jitlogic.zorka.common.zabbix.ActiveCheckQueryItem;
 import com.jitlogic.zorka.common.zabbix.ActiveCheckResponse;
-import com.jitlogic.zorka.common.zabbix.ActiveCheckResult;
 import com.jitlogic.zorka.common.stats.AgentDiagnostics;
 import com.jitlogic.zorka.common.util.ZabbixUtils;
 import com.jitlogic.zorka.common.util.ZorkaConfig;
@@ -79,6 +77,10 @@ public class ZabbixActiveAgent implements Runnable, ZorkaService {
 	private int maxCacheSize;
 
 
+	/** If true, results of the same item are coalesced in sent batches */
+	private boolean coalesce;
+
+
 	/* Connection Settings */
 	private InetAddress activeAddr;
 	private String defaultAddr;
@@ -90,7 +92,8 @@ public class ZabbixActiveAgent implements Runnable, ZorkaService {
 	/* Scheduler Management */
 	private ScheduledExecutorService scheduler;
 	private HashMap<ActiveCheckQueryItem, ScheduledFuture<?>> runningTasks;
-	private ConcurrentLinkedQueue<ActiveCheckResult> resultsQueue;
+	private ZabbixActiveResultQueue resultsQueue;
+	private ZabbixActiveSenderTask sender;
 	private ScheduledFuture<?> senderTask;
 
 	/* BSH agent */
@@ -149,13 +152,14 @@ public class ZabbixActiveAgent implements Runnable, ZorkaService {
 		senderInterval = config.intCfg(prefix + ".sender.interval", 60);
 		maxBatchSize = config.intCfg(prefix + ".batch.size", 10);
 		maxCacheSize = config.intCfg(prefix + ".cache.size", 150);
-		log.info(ZorkaLogger.ZAG_INFO, "ZabbixActive Agent (" + agentHost + ") will send up to " + maxBatchSize + " metrics every " + 
-				senderInterval + " seconds. Agent will persist up to " + maxCacheSize + " metrics per " + (senderInterval*2) + 
-				" seconds, exceeding records will be discarded.");
+		coalesce = config.boolCfg(prefix + ".coalesce", false);
+		log.info(ZorkaLogger.ZAG_INFO, "ZabbixActive Agent (" + agentHost + ") will send metrics in batches of up to " + maxBatchSize +
+				" every " + senderInterval + " seconds. Agent will persist up to " + maxCacheSize +
+				" metrics, oldest records will be discarded.");
 
 		/* scheduler's infra */
 		runningTasks = new HashMap<ActiveCheckQueryItem, ScheduledFuture<?>>();
-		resultsQueue = new ConcurrentLinkedQueue<ActiveCheckResult>();
+		resultsQueue = new ZabbixActiveResultQueue(maxCacheSize);
 	}
 
 
@@ -199,6 +203,9 @@ public class ZabbixActiveAgent implements Runnable, ZorkaService {
 			try {
 				log.debug(ZorkaLogger.ZAG_DEBUG, "ZabbixActive cancelling sender task...");
 				senderTask.cancel(true);
+				if (sender != null) {
+					sender.close();
+				}
 				
 				log.debug(ZorkaLogger.ZAG_DEBUG, "ZabbixActive cancelling all ZorkaBsh tasks...");
 				for (ActiveCheckQueryItem task : runningTasks.keySet()) {
@@ -338,10 +345,7 @@ public class ZabbixActiveAgent implements Runnable, ZorkaService {
 	}
 
 	private void scheduleTasks() {
-		ZabbixActiveSenderTask sender = new ZabbixActiveSenderTask(activeAddr, activePort, resultsQueue, maxBatchSize);
+		sender = new ZabbixActiveSenderTask(activeAddr, activePort, resultsQueue, maxBatchSize, coalesce);
 		senderTask = scheduler.scheduleAtFixedRate(sender, senderInterval, senderInterval, TimeUnit.SECONDS);
-		
-		ZabbixActiveCleanerTask cleaner = new ZabbixActiveCleanerTask(resultsQueue, maxCacheSize);
-		senderTask = scheduler.scheduleAtFixedRate(cleaner, senderInterval*2, senderInterval*2, TimeUnit.SECONDS);
 	}
 }
\ No newline at end of file
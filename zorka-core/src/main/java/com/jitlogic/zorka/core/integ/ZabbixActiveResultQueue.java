@@ -0,0 +1,98 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.integ;
+
+import com.jitlogic.zorka.common.stats.AgentDiagnostics;
+import com.jitlogic.zorka.common.zabbix.ActiveCheckResult;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded queue of active check results waiting to be sent to zabbix server. Queue keeps track
+ * of its size (so checking it does not require traversing queue) and drops oldest results
+ * when it overflows.
+ */
+public class ZabbixActiveResultQueue {
+
+    /** Queued results */
+    private final ConcurrentLinkedQueue<ActiveCheckResult> queue = new ConcurrentLinkedQueue<ActiveCheckResult>();
+
+    /** Number of queued results */
+    private final AtomicInteger size = new AtomicInteger(0);
+
+    /** Maximum number of queued results */
+    private final int capacity;
+
+
+    /**
+     * Creates result queue.
+     *
+     * @param capacity maximum number of results kept in queue
+     */
+    public ZabbixActiveResultQueue(int capacity) {
+        this.capacity = capacity;
+    }
+
+
+    /**
+     * Adds result to queue. If queue is full, oldest result is discarded.
+     *
+     * @param result active check result
+     */
+    public void offer(ActiveCheckResult result) {
+        queue.offer(result);
+
+        if (size.incrementAndGet() > capacity && poll() != null) {
+            AgentDiagnostics.inc(AgentDiagnostics.ZABBIX_ACTIVE_DROPPED);
+        }
+    }
+
+
+    /**
+     * Removes and returns oldest result.
+     *
+     * @return result or null if queue is empty
+     */
+    public ActiveCheckResult poll() {
+        ActiveCheckResult result = queue.poll();
+
+        if (result != null) {
+            size.decrementAndGet();
+        }
+
+        return result;
+    }
+
+
+    /**
+     * Returns number of queued results.
+     */
+    public int size() {
+        return size.get();
+    }
+
+
+    /**
+     * Discards all queued results.
+     */
+    public void clear() {
+        while (poll() != null) {
+            // Nothing here
+        }
+    }
+}
@@ -18,96 +18,323 @@
 package com.jitlogic.zorka.core.integ;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.Iterator;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+import com.jitlogic.zorka.common.stats.AgentDiagnostics;
 import com.jitlogic.zorka.common.zabbix.ActiveCheckResult;
 import com.jitlogic.zorka.common.util.ZabbixUtils;
 import com.jitlogic.zorka.common.util.ZorkaLog;
 import com.jitlogic.zorka.common.util.ZorkaLogger;
 
+/**
+ * Sends queued active check results to zabbix server. Results are sent in batches until queue is empty.
+ * Connection is kept open as long as server does not close it. Messages are encoded directly into reusable
+ * buffer. Batch not confirmed by server (due to connection errors) is resent in next cycle.
+ */
 public class ZabbixActiveSenderTask implements Runnable {
 	/**
 	 * Logger
 	 */
 	private static final ZorkaLog log = ZorkaLogger.getLog(ZabbixActiveSenderTask.class);
 
+	/** Zabbix message header (without length) */
+	private static final byte[] ZBX_HDR = {(byte) 'Z', (byte) 'B', (byte) 'X', (byte) 'D', 0x01};
+
+	/** Header length (including message length) */
+	private static final int HDR_LEN = 13;
+
+	/** Socket timeout (in milliseconds) */
+	private static final int SO_TIMEOUT = 30000;
+
+	/** Buffers bigger than this are not kept between cycles */
+	private static final int MAX_BUF_SIZE = 1024 * 1024;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
 	private InetAddress serverAddr;
 	private int serverPort;
 
-	private ConcurrentLinkedQueue<ActiveCheckResult> responseQueue;
-
-	private long clock;
+	private ZabbixActiveResultQueue responseQueue;
 
 	private int maxBatchSize;
 
+	/** If true, results of the same item are coalesced in a batch (only the latest one is sent) */
+	private boolean coalesce;
+
 	private final String _SUCCESS = "success";
 
-	public ZabbixActiveSenderTask(InetAddress serverAddr, int serverPort, ConcurrentLinkedQueue<ActiveCheckResult> responseQueue, int maxBatchSize){
+	/** Connection to zabbix server (or null if not connected) */
+	private volatile Socket socket;
+
+	/** Results taken from queue but not confirmed by server yet */
+	private List<ActiveCheckResult> batch = new ArrayList<ActiveCheckResult>();
+
+	/** Message buffer */
+	private byte[] buf = new byte[4096];
+
+	/** Message length (including header) */
+	private int pos;
+
+	public ZabbixActiveSenderTask(InetAddress serverAddr, int serverPort, ZabbixActiveResultQueue responseQueue,
+								  int maxBatchSize, boolean coalesce) {
 		this.serverAddr = serverAddr;
 		this.serverPort = serverPort;
 		this.responseQueue = responseQueue;
 		this.maxBatchSize = maxBatchSize;
+		this.coalesce = coalesce;
 	}
 
 	@Override
 	public void run() {
 		log.debug(ZorkaLogger.ZAG_DEBUG, "ZabbixActiveSender run...");
-		Socket socket = null;
+
 		try {
-			clock = (new Date()).getTime() / 1000L;
+			do {
+				if (batch.isEmpty()) {
+					fillBatch();
+				}
+
+				if (batch.isEmpty() || !send()) {
+					break;
+				}
+
+				batch.clear();
+			} while (responseQueue.size() > 0);
+		} finally {
+			if (buf.length > MAX_BUF_SIZE) {
+				buf = new byte[4096];
+			}
+			log.debug(ZorkaLogger.ZAG_DEBUG, "ZabbixActiveSender finished");
+		}
+	}
 
-			socket = new Socket(serverAddr, serverPort);
-			ZabbixActiveRequest request = new ZabbixActiveRequest(socket);
+	/**
+	 * Closes connection to zabbix server (this also interrupts sender waiting for server).
+	 */
+	public void close() {
+		Socket sock = socket;
+		socket = null;
 
-			/* copy cache */
-			int endIndex = responseQueue.size();
-			endIndex = (endIndex > maxBatchSize)? maxBatchSize : endIndex; 
+		if (sock != null) {
+			try {
+				sock.close();
+			} catch (IOException e) {
+				log.debug(ZorkaLogger.ZAG_DEBUG, "Error closing connection to zabbix server", e);
+			}
+		}
+	}
 
-			ArrayList<ActiveCheckResult> results = new ArrayList<ActiveCheckResult>();
-			Iterator<ActiveCheckResult> iterator = responseQueue.iterator();
-			for (int i = 0; i < endIndex; i++) {
-				results.add(iterator.next());
+	private void fillBatch() {
+		if (!coalesce) {
+			ActiveCheckResult result;
+			while (batch.size() < maxBatchSize && (result = responseQueue.poll()) != null) {
+				batch.add(result);
 			}
+			return;
+		}
+
+		Map<String, ActiveCheckResult> results = new LinkedHashMap<String, ActiveCheckResult>();
+		ActiveCheckResult result;
 
-			log.debug(ZorkaLogger.ZAG_DEBUG, "ZabbixActiveSender " + endIndex + " items cached");
+		while (results.size() < maxBatchSize && (result = responseQueue.poll()) != null) {
+			// Result is moved to the end, so its position reflects the latest value
+			if (results.remove(result.getKey()) != null) {
+				AgentDiagnostics.inc(AgentDiagnostics.ZABBIX_ACTIVE_COALESCED);
+			}
+			results.put(result.getKey(), result);
+		}
 
-			if (results.size() > 0) {
-				/* send message */
-				String message = ZabbixUtils.createAgentData(results, clock);
+		batch.addAll(results.values());
+	}
+
+	/**
+	 * Sends current batch. If reused connection turns out to be closed by server, batch is resent using new one.
+	 *
+	 * @return true if batch has been handled by server, false if it has to be resent later
+	 */
+	private boolean send() {
+		encode(System.currentTimeMillis() / 1000L);
+
+		for (int attempt = 0; attempt < 2; attempt++) {
+			Socket sock = socket;
+			boolean reused = sock != null;
+			try {
+				if (sock == null) {
+					sock = new Socket(serverAddr, serverPort);
+					sock.setSoTimeout(SO_TIMEOUT);
+					socket = sock;
+				}
+
+				OutputStream out = sock.getOutputStream();
+				out.write(buf, 0, pos);
+				out.flush();
+
+				String response = ZabbixUtils.decode(sock.getInputStream());
+
+				if (response == null) {
+					throw new IOException("Connection closed by zabbix server.");
+				}
 
-				request.send(message);
-				log.debug(ZorkaLogger.ZAG_DEBUG, "ZabbixActiveSender message sent: " + message);
+				checkClosed(sock);
 
-				/* verify OK */
-				String response = request.getReq();
 				if (response.contains(_SUCCESS)) {
-					/* remove AgentData from cache */
-					for (int count = 0; count < endIndex; count++) {
-						responseQueue.poll();
-					}
-					log.debug(ZorkaLogger.ZAG_DEBUG, "ZabbixActiveSender " + endIndex + " items removed from cache");
+					AgentDiagnostics.inc(AgentDiagnostics.ZABBIX_ACTIVE_SENT, batch.size());
+					log.debug(ZorkaLogger.ZAG_DEBUG, "ZabbixActiveSender " + batch.size() + " items sent");
+				} else {
+					// Rejected batch would be rejected again, so it is not retried
+					AgentDiagnostics.inc(AgentDiagnostics.ZABBIX_ACTIVE_ERRORS);
+					log.error(ZorkaLogger.ZAG_ERRORS, "Zabbix server rejected " + batch.size() + " items: " + response);
 				}
+
+				return true;
+			} catch (IOException e) {
+				close();
+				if (!reused) {
+					AgentDiagnostics.inc(AgentDiagnostics.ZABBIX_ACTIVE_ERRORS);
+					log.error(ZorkaLogger.ZAG_ERRORS, "Cannot send active check results to " + serverAddr + ":"
+							+ serverPort + ". Will retry later.", e);
+					return false;
+				}
+				log.debug(ZorkaLogger.ZAG_DEBUG, "Connection to zabbix server closed. Reconnecting.");
 			}
+		}
 
-		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
-			log.debug(ZorkaLogger.ZAG_DEBUG, "ZabbixActiveSender finished");
-			if (socket != null) {
-				try {
-					socket.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				} finally {
-					socket = null;
+		return false;
+	}
+
+	/**
+	 * Closes connection if server closed it after response (zabbix servers usually do).
+	 */
+	private void checkClosed(Socket sock) throws IOException {
+		try {
+			sock.setSoTimeout(1);
+			if (sock.getInputStream().read() != -1) {
+				log.debug(ZorkaLogger.ZAG_DEBUG, "Unexpected data from zabbix server. Closing connection.");
+			}
+			close();
+		} catch (SocketTimeoutException e) {
+			// Connection is still open and can be reused.
+			sock.setSoTimeout(SO_TIMEOUT);
+		}
+	}
+
+	/**
+	 * Encodes agent data message for current batch (the same way as ZabbixUtils.createAgentData() and
+	 * ZabbixUtils.zbx_format() do, except that strings are encoded as UTF-8).
+	 */
+	private void encode(long clock) {
+		pos = HDR_LEN;
+
+		ascii("{\"request\":\"agent data\",\"data\":[");
+
+		for (int i = 0; i < batch.size(); i++) {
+			ActiveCheckResult result = batch.get(i);
+			ascii(i == 0 ? "{" : ",{");
+			boolean next = field("host", result.getHost(), false);
+			next = field("key", result.getKey(), next);
+			next = field("value", result.getValue(), next);
+			ascii(next ? ",\"lastlogsize\":" : "\"lastlogsize\":");
+			ascii(Integer.toString(result.getLastlogsize()));
+			ascii(",\"clock\":");
+			ascii(Long.toString(result.getClock()));
+			ascii("}");
+		}
+
+		ascii("],\"clock\":");
+		ascii(Long.toString(clock));
+		ascii("}");
+
+		System.arraycopy(ZBX_HDR, 0, buf, 0, ZBX_HDR.length);
+
+		long len = pos - HDR_LEN;
+
+		for (int i = ZBX_HDR.length; i < HDR_LEN; i++) {
+			buf[i] = (byte) (len & 0xff);
+			len >>= 8;
+		}
+	}
+
+	/**
+	 * Encodes string field (null fields are omitted).
+	 */
+	private boolean field(String name, String value, boolean next) {
+		if (value == null) {
+			return next;
+		}
+
+		if (next) {
+			ascii(",");
+		}
+
+		ascii("\"");
+		ascii(name);
+		ascii("\":\"");
+
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			ensure(6);
+			if (c == '"' || c == '\\') {
+				buf[pos++] = '\\';
+				buf[pos++] = (byte) c;
+			} else if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+				buf[pos++] = '\\';
+				switch (c) {
+					case '\n': buf[pos++] = 'n'; break;
+					case '\r': buf[pos++] = 'r'; break;
+					case '\t': buf[pos++] = 't'; break;
+					case '\b': buf[pos++] = 'b'; break;
+					case '\f': buf[pos++] = 'f'; break;
+					default:
+						buf[pos++] = 'u';
+						buf[pos++] = (byte) HEX[(c >> 12) & 0xf];
+						buf[pos++] = (byte) HEX[(c >> 8) & 0xf];
+						buf[pos++] = (byte) HEX[(c >> 4) & 0xf];
+						buf[pos++] = (byte) HEX[c & 0xf];
 				}
+			} else if (c < 0x80) {
+				buf[pos++] = (byte) c;
+			} else if (c < 0x800) {
+				buf[pos++] = (byte) (0xc0 | (c >> 6));
+				buf[pos++] = (byte) (0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+					&& Character.isLowSurrogate(value.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, value.charAt(++i));
+				buf[pos++] = (byte) (0xf0 | (cp >> 18));
+				buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+				buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+			} else {
+				buf[pos++] = (byte) (0xe0 | (c >> 12));
+				buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				buf[pos++] = (byte) (0x80 | (c & 0x3f));
 			}
 		}
+
+		ascii("\"");
+
+		return true;
+	}
+
+	private void ascii(String s) {
+		ensure(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			buf[pos++] = (byte) s.charAt(i);
+		}
+	}
+
+	private void ensure(int n) {
+		if (pos + n > buf.length) {
+			byte[] b = new byte[Math.max(buf.length * 2, pos + n)];
+			System.arraycopy(buf, 0, b, 0, pos);
+			buf = b;
+		}
 	}
 
 }
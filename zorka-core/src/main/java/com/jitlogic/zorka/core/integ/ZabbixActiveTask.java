@@ -19,7 +19,6 @@ package com.jitlogic.zorka.core.integ;
 
 import java.io.IOException;
 import java.util.Date;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import com.jitlogic.zorka.common.zabbix.ActiveCheckQueryItem;
 import com.jitlogic.zorka.common.zabbix.ActiveCheckResult;
@@ -36,11 +35,11 @@ public class ZabbixActiveTask implements Runnable, ZorkaRequestHandler {
 	private ActiveCheckQueryItem item;
 	private ZorkaBshAgent agent;
 	private QueryTranslator translator;
-	private ConcurrentLinkedQueue<ActiveCheckResult> responseQueue;
+	private ZabbixActiveResultQueue responseQueue;
 	
 	private long clock;
 	
-	public ZabbixActiveTask(String agentHost, ActiveCheckQueryItem item, ZorkaBshAgent agent, QueryTranslator translator, ConcurrentLinkedQueue<ActiveCheckResult> responseQueue){
+	public ZabbixActiveTask(String agentHost, ActiveCheckQueryItem item, ZorkaBshAgent agent, QueryTranslator translator, ZabbixActiveResultQueue responseQueue){
 		this.agentHost = agentHost;
 		this.item = item;
 		this.agent = agent;
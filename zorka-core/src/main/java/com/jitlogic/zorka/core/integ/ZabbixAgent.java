@@ -18,7 +18,8 @@
 package com.jitlogic.zorka.core.integ;
 
 
-import java.net.Socket;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import com.jitlogic.zorka.core.ZorkaBshAgent;
 import com.jitlogic.zorka.common.util.ZorkaConfig;
@@ -42,8 +43,9 @@ public class ZabbixAgent extends AbstractTcpAgent {
 
 
     @Override
-    protected ZorkaRequestHandler newRequest(Socket sock) {
-        return new ZabbixRequestHandler(sock, translator);
+    protected ZorkaRequestHandler newRequest(TcpConnection conn, ByteBuffer buf, boolean eof) throws IOException {
+        String query = ZabbixRequestHandler.decode(buf, eof);
+        return query != null ? new ZabbixRequestHandler(conn, query, translator) : null;
     }
 
 }
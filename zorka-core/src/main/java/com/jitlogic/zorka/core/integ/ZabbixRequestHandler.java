@@ -20,15 +20,14 @@ package com.jitlogic.zorka.core.integ;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
+import java.nio.ByteBuffer;
 
 import com.jitlogic.zorka.common.stats.AgentDiagnostics;
 import com.jitlogic.zorka.common.util.ZorkaLogger;
 import com.jitlogic.zorka.common.util.ZorkaLog;
 
 /**
- * Zabbix request handler is used by ZabbixAgent thread to parse queries from zabbix server and format responses.
+ * Zabbix request handler is used by ZabbixAgent to parse queries from zabbix server and format responses.
  * It handles single request, new instance of ZabbixRequestHandler is created for each new request.
  */
 public class ZabbixRequestHandler implements ZorkaRequestHandler {
@@ -39,9 +38,14 @@ public class ZabbixRequestHandler implements ZorkaRequestHandler {
     private static final ZorkaLog log = ZorkaLogger.getLog(ZabbixRequestHandler.class);
 
     /**
-     * Socket with established server connection.
+     * Connection request has been received from.
      */
-    private Socket socket;
+    private TcpConnection conn;
+
+    /**
+     * Query (as received from zabbix server)
+     */
+    private String query;
 
     /**
      * Request string
@@ -64,10 +68,12 @@ public class ZabbixRequestHandler implements ZorkaRequestHandler {
     /**
      * Standard constructor
      *
-     * @param socket open socket (result from ServerSocket.accept())
+     * @param conn  connection request has been received from
+     * @param query decoded query
      */
-    public ZabbixRequestHandler(Socket socket, QueryTranslator translator) {
-        this.socket = socket;
+    public ZabbixRequestHandler(TcpConnection conn, String query, QueryTranslator translator) {
+        this.conn = conn;
+        this.query = query;
         this.translator = translator;
         this.tStart = System.nanoTime();
 
@@ -101,65 +107,114 @@ public class ZabbixRequestHandler implements ZorkaRequestHandler {
      * @throws IOException if I/O error occurs
      */
     public static String decode(InputStream in) throws IOException {
-        byte[] buf = new byte[MAX_REQUEST_LENGTH + HDR_LEN];
-        int pos = 0;
+        ByteBuffer buf = ByteBuffer.allocate(MAX_REQUEST_LENGTH + HDR_LEN);
 
+        while (true) {
+            int len = buf.hasRemaining() ? in.read(buf.array(), buf.position(), buf.remaining()) : -1;
 
-        for (int b = in.read(); b != -1 && pos < buf.length; b = in.read()) {
-            buf[pos++] = (byte) b;
-            if (b == 0x0a) {
-                break;
+            if (len > 0) {
+                buf.position(buf.position() + len);
+            }
+
+            buf.flip();
+            String query = decode(buf, len < 0);
+            buf.compact();
+
+            if (query != null || len < 0) {
+                return query;
             }
         }
+    }
 
+
+    /**
+     * Decodes zabbix request from a buffer. Both binary (with ZBXD header) and plain text (terminated by
+     * newline) requests are recognized.
+     *
+     * @param buf buffer with received data (in read mode); if complete request is found, buffer position
+     *            is moved after it, otherwise it is left unchanged;
+     * @param eof true if no more data will arrive (request may be terminated by end of stream)
+     * @return query string or null if buffer does not contain complete request
+     * @throws IOException if request is too long
+     */
+    public static String decode(ByteBuffer buf, boolean eof) throws IOException {
+        int start = buf.position(), avail = buf.remaining();
         boolean hasHdr = true;
 
-        if (buf.length > 5) {
-            for (int i = 0; i < header.length; i++) {
-                if (buf[i] != header[i]) {
-                    hasHdr = false;
+        for (int i = 0; i < header.length; i++) {
+            if (i >= avail) {
+                if (!eof) {
+                    return null;
                 }
+                hasHdr = false;
+                break;
+            }
+            if (buf.get(start + i) != header[i]) {
+                hasHdr = false;
+                break;
             }
         }
 
+        int offs, len, next;
+
         if (hasHdr) {
-            while (pos < HDR_LEN) {
-                int b = in.read();
-                if (b == -1) {
-                    return null;
-                }
-                buf[pos++] = (byte) b;
+            if (avail < HDR_LEN) {
+                return null;
             }
 
-            long len = 0;
+            long l = 0;
 
             for (int i = 0; i < 8; i++) {
-                len |= ((long) buf[i + 5]) << (i * 8);
+                l |= ((long) (buf.get(start + i + 5) & 0xff)) << (i * 8);
             }
 
-            if (len > MAX_REQUEST_LENGTH) {
+            if (l < 0 || l > MAX_REQUEST_LENGTH) {
+                throw new IOException("Zabbix request too long: " + l);
+            }
+
+            if (avail < HDR_LEN + l) {
                 return null;
             }
 
-            while (pos < len + HDR_LEN) {
-                int b = in.read();
-                if (b == -1) {
+            offs = HDR_LEN;
+            len = (int) l;
+            next = HDR_LEN + len;
+        } else {
+            len = -1;
+
+            for (int i = 0; i < avail; i++) {
+                if (buf.get(start + i) == 0x0a) {
+                    len = i;
+                    break;
+                }
+            }
+
+            if (len < 0) {
+                if (avail > MAX_REQUEST_LENGTH) {
+                    throw new IOException("Zabbix request too long.");
+                }
+                if (!eof || avail == 0) {
                     return null;
                 }
-                buf[pos++] = (byte) b;
+                len = avail;
             }
+
+            offs = 0;
+            next = Math.min(len + 1, avail);
         }
 
-        if (buf[pos - 1] == 0x0a) {
-            pos--;
+        if (len > 0 && buf.get(start + offs + len - 1) == 0x0a) {
+            len--;
         }
 
-        StringBuffer sb = new StringBuffer(pos);
+        StringBuilder sb = new StringBuilder(len);
 
-        for (int i = hasHdr ? 13 : 0; i < pos; i++) {
-            sb.append((char) buf[i]);
+        for (int i = 0; i < len; i++) {
+            sb.append((char) buf.get(start + offs + i));
         }
 
+        buf.position(start + next);
+
         return sb.toString();
     }
 
@@ -236,17 +291,14 @@ public class ZabbixRequestHandler implements ZorkaRequestHandler {
             buf[i + zbx_hdr.length + 8] = (byte) resp.charAt(i);
         }
 
-        OutputStream out = socket.getOutputStream();
-        out.write(buf);
-        out.flush();
+        conn.reply(buf);
     } // send()
 
 
     @Override
     public String getReq() throws IOException {
         if (req == null) {
-            String s = decode(socket.getInputStream());
-            req = translator.translate(s);
+            req = translator.translate(query);
         }
         return req;
     } // getReq()
@@ -261,12 +313,6 @@ public class ZabbixRequestHandler implements ZorkaRequestHandler {
             send(serialize(rslt));
         } catch (IOException e) {
             log.error(ZorkaLogger.ZAG_ERRORS, "I/O error returning result: " + e.getMessage());
-        } finally {
-            try {
-                socket.close();
-            } catch (IOException e) {
-                log.error(ZorkaLogger.ZAG_ERRORS, "I/O error closing socket.", e);
-            }
         }
     }
 
@@ -294,12 +340,6 @@ public class ZabbixRequestHandler implements ZorkaRequestHandler {
             send(ZBX_NOTSUPPORTED);
         } catch (IOException e1) {
             log.error(ZorkaLogger.ZAG_ERRORS, "I/O Error returning (error) result: " + e.getMessage());
-        } finally {
-            try {
-                socket.close();
-            } catch (IOException e2) {
-                log.error(ZorkaLogger.ZAG_ERRORS, "I/O error closing socket.", e2);
-            }
         }
     }
 }
@@ -17,16 +17,25 @@
 
 package com.jitlogic.zorka.core.mbeans;
 
+import com.jitlogic.zorka.common.stats.AgentDiagnostics;
+import com.jitlogic.zorka.common.util.ObjectInspector;
+import com.jitlogic.zorka.common.util.ZorkaConfig;
 import com.jitlogic.zorka.common.util.ZorkaLogger;
 import com.jitlogic.zorka.common.util.ZorkaLog;
 import com.jitlogic.zorka.core.ZorkaControl;
 import com.jitlogic.zorka.core.ZorkaControlMBean;
 
 import javax.management.*;
+import javax.management.remote.JMXConnector;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -35,6 +44,13 @@ import java.util.concurrent.ConcurrentHashMap;
  * own mbean servers. For example JBoss AS versions 4,5 or 6 maintain additional mbean server
  * (registered as 'jboss' in zorka agent).
  *
+ * Registry also caches results of object name queries and attribute values for a short time
+ * (zorka.jmx.cache.ttl milliseconds, can be overridden for each mbean server with
+ * zorka.jmx.cache.ttl.&lt;name&gt;). Monitoring systems tend to poll many attributes of the same
+ * mbean at once, so attributes of an mbean are fetched in bulk: all attributes recently asked for
+ * are fetched with single getAttributes() call and concurrent requests for the same mbean wait
+ * for this call instead of issuing their own.
+ *
  * @author rafal.lewczuk@gmail.com
  */
 public class MBeanServerRegistry {
@@ -94,6 +110,11 @@ public class MBeanServerRegistry {
      */
     private Map<String, ClassLoader> classLoaders = new ConcurrentHashMap<String, ClassLoader>();
 
+    /**
+     * Connectors of remote mbean servers (if registered with their connectors)
+     */
+    private Map<String, JMXConnector> connectors = new ConcurrentHashMap<String, JMXConnector>();
+
     /**
      * Deferred registrations queue
      */
@@ -101,6 +122,114 @@ public class MBeanServerRegistry {
 
     private ZorkaControl zorkaControl;
 
+    /**
+     * Default cache TTL (in milliseconds, 0 if caching is disabled)
+     */
+    private long defaultCacheTtl;
+
+    /**
+     * Cache TTLs configured for individual mbean servers
+     */
+    private Map<String, Long> cacheTtls = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Cached object name query results (LRU)
+     */
+    private Map<String, CachedNames> nameCache;
+
+    /**
+     * Cached attribute values of mbeans (LRU)
+     */
+    private Map<String, CachedAttrs> attrCache;
+
+
+    /**
+     * Cached result of object name query.
+     */
+    private static class CachedNames {
+        /**
+         * Matching object names
+         */
+        private final Set<ObjectName> names;
+
+        /**
+         * Time of query
+         */
+        private final long tstamp;
+
+        private CachedNames(Set<ObjectName> names, long tstamp) {
+            this.names = names;
+            this.tstamp = tstamp;
+        }
+    }
+
+
+    /**
+     * Cached attribute values of a single mbean. Requests for the same mbean synchronize on this object,
+     * so only one of them talks to mbean server at a time and others reuse its results.
+     */
+    private static class CachedAttrs {
+        /**
+         * Attributes requested so far (fetched in bulk when cached values expire)
+         */
+        private Set<String> names = new LinkedHashSet<String>();
+
+        /**
+         * Attribute values
+         */
+        private Map<String, Object> values = new HashMap<String, Object>();
+
+        /**
+         * Time of last bulk fetch
+         */
+        private long tstamp;
+    }
+
+
+    /**
+     * Creates registry with caching disabled.
+     */
+    public MBeanServerRegistry() {
+        this(0, 1024);
+    }
+
+
+    /**
+     * Creates registry with cache parameters taken from agent configuration.
+     *
+     * @param config agent configuration
+     */
+    public MBeanServerRegistry(ZorkaConfig config) {
+        this(config.longCfg("zorka.jmx.cache.ttl", 0L), config.intCfg("zorka.jmx.cache.size", 1024));
+
+        String prefix = "zorka.jmx.cache.ttl.";
+
+        for (String key : config.getProperties().stringPropertyNames()) {
+            if (key.startsWith(prefix)) {
+                cacheTtls.put(key.substring(prefix.length()), config.longCfg(key, defaultCacheTtl));
+            }
+        }
+    }
+
+
+    private MBeanServerRegistry(long defaultCacheTtl, final int cacheSize) {
+        this.defaultCacheTtl = defaultCacheTtl;
+
+        nameCache = new LinkedHashMap<String, CachedNames>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedNames> eldest) {
+                return size() > cacheSize;
+            }
+        };
+
+        attrCache = new LinkedHashMap<String, CachedAttrs>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedAttrs> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
     /**
      * Looks for a given MBean server. java and jboss mbean servers are currently available.
      *
@@ -145,6 +274,36 @@ public class MBeanServerRegistry {
     }
 
 
+    /**
+     * Registers remote mbean server along with its connector. Connection notifications of registered
+     * connector are available to components tracking state of mbean server (eg. query listers).
+     *
+     * @param mbsName     mbean server name
+     * @param connector   connector of remote mbean server
+     * @param classLoader class loader associated with mbean server connection (or null)
+     * @throws IOException if connector cannot return mbean server connection
+     */
+    public void register(String mbsName, JMXConnector connector, ClassLoader classLoader) throws IOException {
+        synchronized (this) {
+            if (!conns.containsKey(mbsName)) {
+                connectors.put(mbsName, connector);
+            }
+            register(mbsName, connector.getMBeanServerConnection(), classLoader);
+        }
+    }
+
+
+    /**
+     * Looks for connector of registered mbean server.
+     *
+     * @param name mbean server name
+     * @return connector or null if mbean server has not been registered with its connector
+     */
+    public JMXConnector getConnector(String name) {
+        return connectors.get(name);
+    }
+
+
     /**
      * Unregisters mbean server.
      *
@@ -153,6 +312,8 @@ public class MBeanServerRegistry {
     public void unregister(String name) {
 
         classLoaders.remove(name);
+        connectors.remove(name);
+        clearCache();
 
         if (conns.remove(name) == null) {
             log.error(ZorkaLogger.ZAG_ERRORS, "Trying to unregister non-existent MBean server '" + name + "'");
@@ -161,6 +322,158 @@ public class MBeanServerRegistry {
     }
 
 
+    /**
+     * Returns cache TTL for given mbean server.
+     *
+     * @param mbsName mbean server name
+     * @return TTL (in milliseconds) or 0 if results for this mbean server are not cached
+     */
+    public long getCacheTtl(String mbsName) {
+        Long ttl = cacheTtls.get(mbsName);
+        return ttl != null ? ttl : defaultCacheTtl;
+    }
+
+
+    /**
+     * Drops all cached query results and attribute values.
+     */
+    public void clearCache() {
+        synchronized (nameCache) {
+            nameCache.clear();
+        }
+        synchronized (attrCache) {
+            attrCache.clear();
+        }
+    }
+
+
+    /**
+     * Looks for object names matching given query. Results are cached if caching is enabled for this mbean server.
+     *
+     * @param mbsName mbean server name
+     * @param query   query string (object name mask)
+     * @return set of object names (possibly empty) or null if mbean server is not registered
+     */
+    public Set<ObjectName> queryNames(String mbsName, String query) {
+        MBeanServerConnection conn = lookup(mbsName);
+
+        if (conn == null) {
+            return null;
+        }
+
+        long ttl = getCacheTtl(mbsName);
+
+        if (ttl <= 0) {
+            return ObjectInspector.queryNames(conn, query);
+        }
+
+        String key = mbsName + "|" + query;
+        long t = System.currentTimeMillis();
+
+        CachedNames cn;
+
+        synchronized (nameCache) {
+            cn = nameCache.get(key);
+        }
+
+        if (cn != null && t - cn.tstamp < ttl) {
+            AgentDiagnostics.inc(AgentDiagnostics.JMX_CACHE_HITS);
+            return cn.names;
+        }
+
+        AgentDiagnostics.inc(AgentDiagnostics.JMX_CACHE_MISSES);
+
+        Set<ObjectName> names = Collections.unmodifiableSet(ObjectInspector.queryNames(conn, query));
+
+        synchronized (nameCache) {
+            nameCache.put(key, new CachedNames(names, t));
+        }
+
+        return names;
+    }
+
+
+    /**
+     * Returns attribute value of an mbean. If caching is enabled for this mbean server, cached value is returned
+     * if it is fresh enough. Otherwise all attributes recently asked for are fetched in a single getAttributes()
+     * call. Concurrent requests for the same mbean are coalesced into one call. Caller is responsible for
+     * switching context class loader if mbean server needs it.
+     *
+     * @param mbsName mbean server name
+     * @param name    object name
+     * @param attr    attribute name
+     * @return attribute value
+     * @throws Exception the same exceptions as MBeanServerConnection.getAttribute() are thrown
+     */
+    public Object getAttribute(String mbsName, ObjectName name, String attr) throws Exception {
+        MBeanServerConnection conn = lookup(mbsName);
+
+        if (conn == null) {
+            throw new InstanceNotFoundException("MBean server named '" + mbsName + "' is not registered.");
+        }
+
+        long ttl = getCacheTtl(mbsName);
+
+        if (ttl <= 0) {
+            return conn.getAttribute(name, attr);
+        }
+
+        String key = mbsName + "|" + name;
+        CachedAttrs ca;
+
+        synchronized (attrCache) {
+            ca = attrCache.get(key);
+            if (ca == null) {
+                ca = new CachedAttrs();
+                attrCache.put(key, ca);
+            }
+        }
+
+        synchronized (ca) {
+            long t = System.currentTimeMillis();
+
+            if (t - ca.tstamp < ttl && ca.values.containsKey(attr)) {
+                AgentDiagnostics.inc(AgentDiagnostics.JMX_CACHE_HITS);
+                return ca.values.get(attr);
+            }
+
+            AgentDiagnostics.inc(AgentDiagnostics.JMX_CACHE_MISSES);
+
+            ca.names.add(attr);
+
+            try {
+                if (t - ca.tstamp >= ttl) {
+                    // Refresh everything asked for recently
+                    ca.values.clear();
+                    ca.tstamp = t;
+                    fetch(conn, name, ca, ca.names.toArray(new String[ca.names.size()]));
+                } else {
+                    fetch(conn, name, ca, new String[]{attr});
+                }
+            } catch (Exception e) {
+                log.debug(ZorkaLogger.ZAG_DEBUG, "Bulk fetch of '" + mbsName + "|" + name + "' attributes failed", e);
+            }
+
+            if (ca.values.containsKey(attr)) {
+                return ca.values.get(attr);
+            }
+
+            // Attribute cannot be fetched in bulk: fall back to single call, so caller gets proper exception
+            ca.names.remove(attr);
+            return conn.getAttribute(name, attr);
+        }
+    }
+
+
+    private void fetch(MBeanServerConnection conn, ObjectName name, CachedAttrs ca, String[] attrs)
+        throws InstanceNotFoundException, ReflectionException, IOException {
+        for (Object obj : conn.getAttributes(name, attrs)) {
+            Attribute a = (Attribute) obj;
+            ca.values.put(a.getName(), a.getValue());
+        }
+    }
+
+
     /**
      * Registers object as mbean server attribute (or return existing one if already registered)
      *
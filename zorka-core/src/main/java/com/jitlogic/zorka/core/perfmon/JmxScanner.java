@@ -17,16 +17,19 @@
 package com.jitlogic.zorka.core.perfmon;
 
 import com.jitlogic.zorka.common.stats.AgentDiagnostics;
+import com.jitlogic.zorka.common.stats.MethodCallStatistic;
+import com.jitlogic.zorka.common.stats.MethodCallStatistics;
 import com.jitlogic.zorka.common.tracedata.*;
-import com.jitlogic.zorka.common.util.ObjectInspector;
 import com.jitlogic.zorka.common.util.ZorkaLog;
 import com.jitlogic.zorka.common.util.ZorkaLogger;
 import com.jitlogic.zorka.core.mbeans.MBeanServerRegistry;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.*;
 
 /**
  * Created by rlewczuk on 03.05.14.
@@ -51,6 +54,75 @@ public class JmxScanner {
      */
     protected List<QueryLister> listers = new ArrayList<QueryLister>();
 
+    /**
+     * Executor running queries in parallel (or null if queries are run sequentially)
+     */
+    protected ExecutorService executor;
+
+    /**
+     * Maximum time (in milliseconds) scanner waits for results of a single query (0 - no limit)
+     */
+    protected long timeout;
+
+    /**
+     * Execution statistics of each query
+     */
+    protected MethodCallStatistics stats = new MethodCallStatistics();
+
+    /**
+     * Query batches still running (one per mbean server)
+     */
+    private Map<String, Future<?>> pending = new ConcurrentHashMap<String, Future<?>>();
+
+
+    /**
+     * Query execution task. Tasks of the same mbean server are run sequentially by a single worker.
+     */
+    private class ListerTask extends FutureTask<List<QueryResult>> {
+
+        private final QueryLister lister;
+
+        private final ListerCall call;
+
+        private ListerTask(QueryLister lister) {
+            this(new ListerCall(lister));
+        }
+
+        private ListerTask(ListerCall call) {
+            super(call);
+            this.lister = call.lister;
+            this.call = call;
+        }
+
+        /**
+         * Returns true if worker has started executing query (so query that is not done yet has overrun its time).
+         */
+        private boolean isStarted() {
+            return call.started;
+        }
+    }
+
+
+    /**
+     * Executes query and marks it as started.
+     */
+    private class ListerCall implements Callable<List<QueryResult>> {
+
+        private final QueryLister lister;
+
+        private volatile boolean started;
+
+        private ListerCall(QueryLister lister) {
+            this.lister = lister;
+        }
+
+        @Override
+        public List<QueryResult> call() {
+            started = true;
+            return list(lister);
+        }
+    }
+
 
     public JmxScanner(MBeanServerRegistry mBeanServerRegistry, MetricsRegistry metricRegistry,
                       SymbolRegistry symbols, List<QueryLister> listers) {
@@ -86,7 +158,7 @@ public class JmxScanner {
                 attrs.put(e.getKey(), e.getValue().toString());
             }
 
-            String name = ObjectInspector.substitute(template.getName(), attrs);
+            String name = template.getNameTemplate().format(attrs);
 
             switch (template.getType()) {
                 case MetricTemplate.RAW_DATA:
@@ -131,9 +203,79 @@ public class JmxScanner {
     }
 
 
+    /**
+     * Makes scanner run queries in parallel. Queries are grouped by mbean server, each group is executed
+     * by one worker, so unresponsive mbean server does not block queries of other servers. Queries that
+     * do not return in time are skipped (along with remaining queries of the same mbean server).
+     *
+     * @param executor executor running queries (or null if queries should be run sequentially)
+     * @param timeout  maximum time (in milliseconds) to wait for single query (0 - no limit)
+     */
+    public void setExecutor(ExecutorService executor, long timeout) {
+        this.executor = executor;
+        this.timeout = timeout;
+    }
+
+
+    /**
+     * Makes scanner queries track matching object names (updated by mbean registration notifications)
+     * instead of querying mbean servers in each cycle.
+     *
+     * @param resyncInterval interval (in milliseconds) of full resynchronization of names for remote mbean
+     *                       servers (-1 - query mbean servers in each cycle)
+     */
+    public void setResyncInterval(long resyncInterval) {
+        for (QueryLister lister : listers) {
+            lister.setResyncInterval(resyncInterval);
+        }
+    }
+
+
+    /**
+     * Returns execution statistics of queries (named after queries).
+     *
+     * @return query statistics
+     */
+    public MethodCallStatistics getStats() {
+        return stats;
+    }
+
+
+    /**
+     * Replaces query statistics (eg. with statistics already published via JMX).
+     *
+     * @param stats query statistics
+     */
+    public void setStats(MethodCallStatistics stats) {
+        this.stats = stats;
+    }
+
+
+    private List<QueryResult> list(QueryLister lister) {
+        MethodCallStatistic stat = stats.getMethodCallStatistic(lister.toString());
+        long t1 = System.nanoTime();
+
+        try {
+            List<QueryResult> results = lister.list();
+            long t = System.nanoTime() - t1;
+            stat.logCall(t);
+            AgentDiagnostics.inc(AgentDiagnostics.PMON_QUERY_TIME, t);
+            return results;
+        } catch (RuntimeException e) {
+            stat.logError(System.nanoTime() - t1);
+            throw e;
+        }
+    }
+
+
     public List<PerfSample> getPerfSamples(long clock, QueryLister lister) {
+        return getPerfSamples(clock, lister, list(lister));
+    }
+
+
+    private List<PerfSample> getPerfSamples(long clock, QueryLister lister, List<QueryResult> results) {
         List<PerfSample> smpl = new ArrayList<PerfSample>();
-        for (QueryResult result : lister.list()) {
+        for (QueryResult result : results) {
             Metric metric = getMetric(lister.getMetricTemplate(), result);
             Number val = metric.getValue(clock, result.getValue());
 
@@ -173,6 +315,10 @@ public class JmxScanner {
 
 
     public List<PerfSample> getPerfSamples(long clock) {
+        if (executor != null) {
+            return getPerfSamplesParallel(clock);
+        }
+
         List<PerfSample> samples = new ArrayList<PerfSample>();
 
         for (QueryLister lister : listers) {
@@ -188,6 +334,99 @@ public class JmxScanner {
         return samples;
     }
 
+
+    private List<PerfSample> getPerfSamplesParallel(long clock) {
+        Map<String, List<ListerTask>> groups = new LinkedHashMap<String, List<ListerTask>>();
+
+        for (QueryLister lister : listers) {
+            if (lister.getMetricTemplate() != null) {
+                List<ListerTask> group = groups.get(lister.getMbsName());
+                if (group == null) {
+                    group = new ArrayList<ListerTask>();
+                    groups.put(lister.getMbsName(), group);
+                }
+                group.add(new ListerTask(lister));
+            }
+        }
+
+        for (Map.Entry<String, List<ListerTask>> e : groups.entrySet()) {
+            Future<?> prev = pending.get(e.getKey());
+
+            if (prev != null && !prev.isDone()) {
+                // Worker is still stuck in previous cycle, do not send another one
+                log.warn(ZorkaLogger.ZPM_ERRORS, "Queries of mbean server '" + e.getKey()
+                        + "' still running since previous cycle. Skipping.");
+                for (ListerTask task : e.getValue()) {
+                    task.cancel(false);
+                }
+                continue;
+            }
+
+            final List<ListerTask> group = e.getValue();
+
+            Runnable batch = new Runnable() {
+                @Override
+                public void run() {
+                    for (ListerTask task : group) {
+                        task.run();
+                    }
+                }
+            };
+
+            try {
+                pending.put(e.getKey(), executor.submit(batch));
+            } catch (RejectedExecutionException ex) {
+                // Executor has been shut down, run queries here
+                batch.run();
+            }
+        }
+
+        List<PerfSample> samples = new ArrayList<PerfSample>();
+
+        for (List<ListerTask> group : groups.values()) {
+            boolean skip = false;
+
+            for (ListerTask task : group) {
+                if (skip || task.isCancelled()) {
+                    task.cancel(true);
+                    AgentDiagnostics.inc(AgentDiagnostics.PMON_SKIPPED);
+                    continue;
+                }
+
+                log.debug(ZorkaLogger.ZPM_RUN_DEBUG, "Scanning query: %s", task.lister);
+                AgentDiagnostics.inc(AgentDiagnostics.PMON_QUERIES);
+
+                try {
+                    List<QueryResult> results = timeout > 0
+                            ? task.get(timeout, TimeUnit.MILLISECONDS) : task.get();
+                    samples.addAll(getPerfSamples(clock, task.lister, results));
+                } catch (TimeoutException ex) {
+                    task.cancel(true);
+                    if (task.isStarted()) {
+                        log.warn(ZorkaLogger.ZPM_ERRORS, "Query " + task.lister + " timed out after "
+                                + timeout + "ms. Skipping remaining queries of this mbean server.");
+                        stats.getMethodCallStatistic(task.lister.toString()).logError(timeout * 1000000L);
+                        AgentDiagnostics.inc(AgentDiagnostics.PMON_TIMEOUTS);
+                    } else {
+                        // Worker has been busy with other mbean servers and did not get to this query
+                        log.warn(ZorkaLogger.ZPM_ERRORS, "Query " + task.lister + " has not started within "
+                                + timeout + "ms. Skipping remaining queries of this mbean server.");
+                        AgentDiagnostics.inc(AgentDiagnostics.PMON_SKIPPED);
+                    }
+                    skip = true;
+                } catch (ExecutionException ex) {
+                    log.error(ZorkaLogger.ZPM_ERRORS, "Error executing query " + task.lister, ex.getCause());
+                    AgentDiagnostics.inc(AgentDiagnostics.PMON_ERRORS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return samples;
+                }
+            }
+        }
+
+        return samples;
+    }
+
     public void setAttachResults(boolean attachResults) {
         this.attachResults = attachResults;
     }
@@ -0,0 +1,178 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ *
+ * ZORKA is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ZORKA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * ZORKA. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.perfmon;
+
+import com.jitlogic.zorka.common.stats.AgentDiagnostics;
+import com.jitlogic.zorka.common.stats.LatencyHistogram;
+import com.jitlogic.zorka.common.stats.MethodCallStatistic;
+import com.jitlogic.zorka.core.ZorkaLib;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Calculates percentiles of execution times over sliding time windows. Histograms are cumulative,
+ * so each window keeps a few samples of histogram counters and subtracts the oldest sample
+ * still covering window horizon from current counters. Similarly to AvgRateCounter, caller
+ * has to query percentiles periodically in order to maintain samples. Sample arrays dropped
+ * from window are reused, so steady state queries do not allocate counter arrays.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class PercentileCounter {
+
+    /**
+     * Zorka library reference
+     */
+    private ZorkaLib zorkaLib;
+
+    /**
+     * Maintained windows
+     */
+    private ConcurrentMap<String, Window> windows = new ConcurrentHashMap<String, Window>();
+
+
+    /**
+     * Creates percentile counter.
+     *
+     * @param zorkaLib zorka library (used to look up histograms)
+     */
+    public PercentileCounter(ZorkaLib zorkaLib) {
+        this.zorkaLib = zorkaLib;
+    }
+
+
+    /**
+     * Returns percentile of execution time calculated over a time window.
+     *
+     * @param path    path to statistic or histogram object (as passed to zorka.jmx())
+     *
+     * @param p       percentile (eg. 99.9)
+     *
+     * @param horizon window length (milliseconds)
+     *
+     * @return percentile value (in milliseconds) or null if path does not point to a histogram
+     */
+    public Double get(List<Object> path, double p, long horizon) {
+        Object obj = zorkaLib.jmx(path.toArray(new Object[0]));
+
+        if (!(obj instanceof MethodCallStatistic || obj instanceof LatencyHistogram)) {
+            AgentDiagnostics.inc(AgentDiagnostics.PCT_CNT_ERRORS);
+            return null;
+        }
+
+        String tag = path.toString() + "::" + horizon;
+        Window window = windows.get(tag);
+
+        if (window == null) {
+            Window w = new Window(horizon);
+            window = windows.putIfAbsent(tag, w);
+            if (window == null) {
+                window = w;
+                AgentDiagnostics.inc(AgentDiagnostics.PCT_CNT_CREATED);
+            }
+        }
+
+        return window.percentile(System.currentTimeMillis(), obj, p) / 1000000.0;
+    }
+
+
+    /**
+     * Samples of histogram counters covering single time window.
+     */
+    private static class Window {
+
+        private final long horizon;
+
+        private final ArrayDeque<Sample> samples = new ArrayDeque<Sample>();
+
+        /**
+         * Sample dropped from window (reused by next query)
+         */
+        private Sample spare;
+
+        /**
+         * Counter deltas over window horizon (reused by all queries)
+         */
+        private final long[] delta = new long[LatencyHistogram.BUCKETS];
+
+
+        private Window(long horizon) {
+            this.horizon = horizon;
+        }
+
+
+        /**
+         * Adds sample of histogram counters and returns percentile calculated over window horizon.
+         */
+        private synchronized long percentile(long tstamp, Object obj, double p) {
+
+            // Drop samples that are not needed to cover window horizon anymore
+            while (samples.size() > 1 && second(samples).tstamp <= tstamp - horizon) {
+                spare = samples.removeFirst();
+            }
+
+            Sample sample = spare != null ? spare : new Sample();
+            spare = null;
+
+            sample.tstamp = tstamp;
+            long[] counts = sample.counts;
+
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = 0;
+            }
+
+            if (obj instanceof MethodCallStatistic) {
+                ((MethodCallStatistic) obj).addHistogramCounts(counts);
+            } else {
+                ((LatencyHistogram) obj).addCounts(counts);
+            }
+
+            Sample base = samples.peekFirst();
+
+            for (int i = 0; i < counts.length; i++) {
+                delta[i] = base != null ? counts[i] - base.counts[i] : counts[i];
+            }
+
+            samples.addLast(sample);
+
+            return LatencyHistogram.percentile(delta, p);
+        }
+    }
+
+
+    private static Sample second(ArrayDeque<Sample> samples) {
+        Iterator<Sample> i = samples.iterator();
+        i.next();
+        return i.next();
+    }
+
+
+    /**
+     * Histogram counters taken at given time.
+     */
+    private static class Sample {
+
+        private long tstamp;
+
+        private final long[] counts = new long[LatencyHistogram.BUCKETS];
+    }
+}
@@ -18,10 +18,15 @@ package com.jitlogic.zorka.core.perfmon;
 
 import com.jitlogic.zorka.core.mbeans.MBeanServerRegistry;
 import com.jitlogic.zorka.common.stats.MethodCallStatistic;
+import com.jitlogic.zorka.core.spy.ThreadContext;
 import com.jitlogic.zorka.core.spy.Tracer;
 import com.jitlogic.zorka.common.tracedata.MetricTemplate;
 import com.jitlogic.zorka.common.tracedata.MetricsRegistry;
 import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
+import com.jitlogic.zorka.common.util.ZorkaConfig;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class PerfMonLib {
 
@@ -35,11 +40,31 @@ public class PerfMonLib {
 
     private MBeanServerRegistry mbsRegistry;
 
-    public PerfMonLib(SymbolRegistry symbolRegistry, MetricsRegistry metricsRegistry, Tracer tracer, MBeanServerRegistry mbsRegistry) {
+    /** Number of scanner worker threads (0 - scanners run queries sequentially) */
+    private int scannerThreads;
+
+    /** Maximum time scanners wait for a single query (in milliseconds) */
+    private long scannerTimeout;
+
+    /** Full resynchronization interval of object names tracked by scanners (-1 - scanners query mbean servers every time) */
+    private long scannerResync;
+
+    /** Name of mbean publishing query statistics of scanners (one attribute per scanner) */
+    private String scannerStatsMBean;
+
+    /** Scanner workers (shared by all scanners, created on first use) */
+    private ExecutorService scannerExecutor;
+
+    public PerfMonLib(SymbolRegistry symbolRegistry, MetricsRegistry metricsRegistry, Tracer tracer,
+                      MBeanServerRegistry mbsRegistry, ZorkaConfig config) {
         this.tracer = tracer;
         this.mbsRegistry = mbsRegistry;
         this.symbolRegistry = symbolRegistry;
         this.metricsRegistry = metricsRegistry;
+        this.scannerThreads = config.intCfg("perfmon.scanner.threads", 4);
+        this.scannerTimeout = config.longCfg("perfmon.scanner.timeout", 10000L);
+        this.scannerResync = config.longCfg("perfmon.scanner.resync", 60000L);
+        this.scannerStatsMBean = config.stringCfg("perfmon.scanner.mbean", "zorka:type=ZorkaStats,name=Scanners");
     }
 
 
@@ -77,7 +102,29 @@ public class PerfMonLib {
      * @return scanner object
      */
     public TraceOutputJmxScanner scanner(String name, QueryDef... qdefs) {
-        return new TraceOutputJmxScanner(symbolRegistry, metricsRegistry, name, mbsRegistry, tracer, qdefs);
+        TraceOutputJmxScanner scanner = new TraceOutputJmxScanner(symbolRegistry, metricsRegistry, name, mbsRegistry, tracer, qdefs);
+        scanner.setExecutor(getScannerExecutor(), scannerTimeout);
+        scanner.setResyncInterval(scannerResync);
+        scanner.setStats(mbsRegistry.getOrRegister("java", scannerStatsMBean, name, scanner.getStats(),
+                "Query statistics of scanner " + name));
+        return scanner;
+    }
+
+
+    private synchronized ExecutorService getScannerExecutor() {
+        if (scannerExecutor == null && scannerThreads > 0) {
+            scannerExecutor = Executors.newFixedThreadPool(scannerThreads,
+                    ThreadContext.threadFactory("ZORKA-perfmon-scanner-"));
+        }
+        return scannerExecutor;
+    }
+
+
+    public synchronized void shutdown() {
+        if (scannerExecutor != null) {
+            scannerExecutor.shutdownNow();
+            scannerExecutor = null;
+        }
     }
 
 
@@ -24,9 +24,14 @@ import com.jitlogic.zorka.core.mbeans.MBeanServerRegistry;
 import com.jitlogic.zorka.common.tracedata.MetricTemplate;
 
 import javax.management.*;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 public class QueryLister {
@@ -36,12 +41,139 @@ public class QueryLister {
     private MBeanServerRegistry registry;
     private QueryDef query;
 
+    /**
+     * Interval (in milliseconds) of full resynchronization of tracked object names
+     * (or -1 if names are not tracked and mbean server is queried every time).
+     */
+    private long resyncInterval = -1;
+
+    /**
+     * Tracked object names matching query (or null if not queried yet)
+     */
+    private volatile Set<ObjectName> names;
+
+    /**
+     * Connection tracked names come from
+     */
+    private MBeanServerConnection namesConn;
+
+    /**
+     * Registration listener keeping tracked names up to date (or null if notifications are not available)
+     */
+    private NameTracker tracker;
+
+    /**
+     * Last full resynchronization of tracked names
+     */
+    private long lastSync;
+
+    /**
+     * Set when connector reports broken connection, so tracker will be subscribed again
+     */
+    private volatile boolean resubscribe;
+
+
+    /**
+     * Listens for mbean (un)registrations and updates names tracked by lister. Lister is weakly referenced,
+     * so discarded listers are garbage collected and their trackers unsubscribe on next notification.
+     * If mbean server has been registered with its connector, tracker also listens for connection
+     * notifications and drops tracked names when notifications are lost or connection is broken.
+     */
+    private static class NameTracker implements NotificationListener {
+
+        private final WeakReference<QueryLister> ref;
+        private final MBeanServerConnection conn;
+        private final ObjectName pattern;
+        private JMXConnector connector;
+
+        private NameTracker(QueryLister lister, MBeanServerConnection conn, ObjectName pattern) {
+            this.ref = new WeakReference<QueryLister>(lister);
+            this.conn = conn;
+            this.pattern = pattern;
+        }
+
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            QueryLister lister = ref.get();
+
+            if (lister == null) {
+                unsubscribe();
+                return;
+            }
+
+            if (notification instanceof JMXConnectionNotification) {
+                String type = notification.getType();
+                if (JMXConnectionNotification.NOTIFS_LOST.equals(type)) {
+                    lister.names = null;
+                } else if (JMXConnectionNotification.FAILED.equals(type)
+                        || JMXConnectionNotification.CLOSED.equals(type)) {
+                    lister.resubscribe = true;
+                    lister.names = null;
+                }
+                return;
+            }
+
+            Set<ObjectName> names = lister.names;
+
+            if (names == null || !(notification instanceof MBeanServerNotification)) {
+                return;
+            }
+
+            ObjectName on = ((MBeanServerNotification) notification).getMBeanName();
+
+            if (!pattern.apply(on)) {
+                return;
+            }
+
+            if (MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(notification.getType())) {
+                names.add(on);
+            } else if (MBeanServerNotification.UNREGISTRATION_NOTIFICATION.equals(notification.getType())) {
+                names.remove(on);
+            }
+        }
+
+        private void unsubscribe() {
+            try {
+                conn.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this);
+            } catch (Exception e) {
+                log.debug(ZorkaLogger.ZAG_DEBUG, "Cannot unsubscribe registration listener of " + pattern, e);
+            }
+
+            if (connector != null) {
+                try {
+                    connector.removeConnectionNotificationListener(this);
+                } catch (Exception e) {
+                    log.debug(ZorkaLogger.ZAG_DEBUG, "Cannot unsubscribe connection listener of " + pattern, e);
+                }
+            }
+        }
+    }
+
+
     public QueryLister(MBeanServerRegistry registry, QueryDef query) {
         this.registry = registry;
         this.query = query;
     }
 
 
+    /**
+     * Makes lister track object names matching query instead of querying mbean server on each call.
+     * Tracked names are updated by mbean registration notifications. Names of remote mbean servers
+     * (or mbean servers that cannot deliver notifications) are also fully resynchronized periodically,
+     * as remote connections can silently lose notifications. Listers used for longer periods of time
+     * (eg. by scanners) should use it.
+     *
+     * @param resyncInterval interval (in milliseconds) of full resynchronization of names of remote mbean
+     *                       servers (-1 disables tracking)
+     */
+    public synchronized void setResyncInterval(long resyncInterval) {
+        this.resyncInterval = resyncInterval;
+        if (resyncInterval < 0) {
+            reset(null);
+        }
+    }
+
+
     public List<QueryResult> list() {
 
         MBeanServerConnection conn = registry.lookup(query.getMbsName());
@@ -94,8 +226,84 @@ public class QueryLister {
     }
 
 
+    private synchronized Set<ObjectName> queryNames(MBeanServerConnection conn) {
+
+        if (resyncInterval < 0) {
+            return ObjectInspector.queryNames(conn, query.getQuery());
+        }
+
+        if (conn != namesConn || resubscribe) {
+            reset(conn);
+        }
+
+        long t = System.currentTimeMillis();
+
+        // Notifications from remote connections can be lost silently, so their names are resynchronized anyway
+        boolean reliable = tracker != null && conn instanceof MBeanServer;
+
+        // Names can be dropped by connection notifications at any time, so local copy is returned
+        Set<ObjectName> objNames = names;
+
+        if (objNames == null || (!reliable && t - lastSync >= resyncInterval)) {
+            // Set is published before querying, so (un)registrations happening meanwhile are not lost
+            objNames = Collections.newSetFromMap(new ConcurrentHashMap<ObjectName, Boolean>());
+            names = objNames;
+            objNames.addAll(ObjectInspector.queryNames(conn, query.getQuery()));
+            lastSync = t;
+        }
+
+        return objNames;
+    }
+
+
+    /**
+     * Drops tracked names and subscribes for registration notifications of new connection.
+     *
+     * @param conn new connection (or null if names will not be tracked anymore)
+     */
+    private void reset(MBeanServerConnection conn) {
+        if (tracker != null) {
+            tracker.unsubscribe();
+            tracker = null;
+        }
+
+        names = null;
+        namesConn = conn;
+        resubscribe = false;
+
+        if (conn != null) {
+            try {
+                NameTracker t = new NameTracker(this, conn, new ObjectName(query.getQuery()));
+                NotificationFilterSupport filter = new NotificationFilterSupport();
+                filter.enableType(MBeanServerNotification.REGISTRATION_NOTIFICATION);
+                filter.enableType(MBeanServerNotification.UNREGISTRATION_NOTIFICATION);
+                conn.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, t, filter, null);
+                tracker = t;
+                t.connector = registry.getConnector(query.getMbsName());
+                if (t.connector != null) {
+                    t.connector.addConnectionNotificationListener(t, null, null);
+                }
+            } catch (Exception e) {
+                log.info(ZorkaLogger.ZAG_INFO, "Registration notifications not available for " + this
+                        + ". Object names will be resynchronized every " + resyncInterval + "ms.");
+            }
+        }
+    }
+
+
+    /**
+     * Removes object name of mbean that disappeared from tracked names (if names are tracked).
+     */
+    private void forget(ObjectName on) {
+        Set<ObjectName> objNames = names;
+        if (objNames != null) {
+            objNames.remove(on);
+        }
+    }
+
+
     private List<QueryResult> getResults(MBeanServerConnection conn) {
-        Set<ObjectName> objNames = ObjectInspector.queryNames(conn, query.getQuery());
+        Set<ObjectName> objNames = queryNames(conn);
         QuerySegment seg = query.getSegments().size() > 0 ? query.getSegments().get(0) : null;
 
         List<QueryResult> results = new ArrayList(objNames.size() + 1);
@@ -125,11 +333,24 @@ public class QueryLister {
     private void getMultiResult(MBeanServerConnection conn, QuerySegment seg, List<QueryResult> results, ObjectName on) {
         Pattern pattern = (Pattern) seg.getAttr();
         try {
+            List<String> names = new ArrayList<String>();
             for (MBeanAttributeInfo attr : conn.getMBeanInfo(on).getAttributes()) {
                 if (pattern.matcher(attr.getName()).matches()) {
-                    makeResult(seg, results, on, conn.getAttribute(on, attr.getName()), attr.getName());
+                    names.add(attr.getName());
                 }
             }
+
+            if (names.isEmpty()) {
+                return;
+            }
+
+            // All matching attributes are fetched in single call
+            for (Object obj : conn.getAttributes(on, names.toArray(new String[names.size()]))) {
+                Attribute attr = (Attribute) obj;
+                makeResult(seg, results, on, attr.getValue(), attr.getName());
+            }
+        } catch (InstanceNotFoundException e) {
+            forget(on);
         } catch (Exception e) {
             log.error(ZorkaLogger.ZAG_ERRORS, "Error listing attributes of: " + on, e);
         }
@@ -142,6 +363,8 @@ public class QueryLister {
                     ? conn.getAttribute(on, seg.getAttr().toString())
                     : new JmxObject(on, conn, null),
                     seg != null ? seg.getAttr() : null);
+        } catch (InstanceNotFoundException e) {
+            forget(on);
         } catch (Exception e) {
             log.error(ZorkaLogger.ZAG_ERRORS, "Error listing results of " + query, e);
         }
@@ -205,4 +428,20 @@ public class QueryLister {
     public MetricTemplate getMetricTemplate() {
         return query.getMetricTemplate();
     }
+
+
+    public String getMbsName() {
+        return query.getMbsName();
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(query.getMbsName()).append('|').append(query.getQuery());
+        for (QuerySegment seg : query.getSegments()) {
+            sb.append('.').append(seg.getAttr());
+        }
+        return sb.toString();
+    }
 }
@@ -15,12 +15,16 @@
  */
 package com.jitlogic.zorka.core.perfmon;
 
-import com.jitlogic.zorka.common.util.ZorkaUtil;
+import com.jitlogic.zorka.common.util.ZorkaLog;
+import com.jitlogic.zorka.common.util.ZorkaLogger;
+import com.jitlogic.zorka.core.util.TaskScheduler;
 
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Maintains rank lists of objects of various types. This can be used to monitor
@@ -29,7 +33,9 @@ import java.util.concurrent.atomic.AtomicInteger;
  *
  * @param <T> rankable item type
  */
-public class RankList<T extends Rankable<?>> implements RankLister<T> {
+public class RankList<T extends Rankable<?>> implements RankLister<T>, Runnable {
+
+    private static final ZorkaLog log = ZorkaLogger.getLog(RankList.class);
 
     /**
      * Rank lister used to scan and update set of watched components.
@@ -67,9 +73,19 @@ public class RankList<T extends Rankable<?>> implements RankLister<T> {
     private AtomicInteger numReranks = new AtomicInteger(0);
 
     /**
-     * List of (ranked) objects
+     * List of (ranked) objects (published atomically after each rerank)
+     */
+    private final AtomicReference<List<T>> rankList = new AtomicReference<List<T>>();
+
+    /**
+     * Set while rerank is in progress, so concurrent readers do not rerank at the same time
      */
-    private volatile List<T> rankList;
+    private final AtomicBoolean reranking = new AtomicBoolean(false);
+
+    /**
+     * If true, list is reranked in background and readers never trigger rerank
+     */
+    private volatile boolean scheduled;
 
     /**
      * Standard constructor.
@@ -78,7 +94,7 @@ public class RankList<T extends Rankable<?>> implements RankLister<T> {
      * @param maxSize    maximum number of items shown in ranking
      * @param metric     metric used as rank criterium
      * @param average    average that will be used as rank criterium
-     * @param rerankTime how often list should be reranked
+     * @param rerankTime how often list should be reranked (0 - on every read)
      */
     public RankList(RankLister<T> lister, int maxSize, int metric, int average, long rerankTime) {
         this.lister = lister;
@@ -90,6 +106,34 @@ public class RankList<T extends Rankable<?>> implements RankLister<T> {
     }
 
 
+    /**
+     * Makes ranking recalculated in background (every rerankTime milliseconds), so readers
+     * always get already computed ranking and never wait for it.
+     *
+     * @param scheduler scheduler that will run reranks
+     *
+     * @throws IllegalArgumentException if rerank time is not positive
+     */
+    public void schedule(TaskScheduler scheduler) {
+        if (rerankTime <= 0) {
+            throw new IllegalArgumentException("Scheduled rank list needs positive rerank time (got " + rerankTime + ")");
+        }
+        scheduled = true;
+        scheduler.schedule(this, rerankTime, 0);
+    }
+
+
+    @Override
+    public void run() {
+        try {
+            tryRerank(System.currentTimeMillis());
+        } catch (Throwable e) {
+            // Exception thrown out of scheduled task would cancel all subsequent reranks
+            log.error(ZorkaLogger.ZPM_ERRORS, "Error reranking list", e);
+        }
+    }
+
+
     /**
      * Returns n-th item from ranking
      *
@@ -98,14 +142,9 @@ public class RankList<T extends Rankable<?>> implements RankLister<T> {
      */
     public T get(int n) {
 
-        checkRerank();
-
-        try {
-            return rankList.get(n);
-        } catch (IndexOutOfBoundsException e) {
-            return null;
-        }
+        List<T> lst = current();
 
+        return n >= 0 && n < lst.size() ? lst.get(n) : null;
     }
 
 
@@ -116,9 +155,7 @@ public class RankList<T extends Rankable<?>> implements RankLister<T> {
      */
     public List<T> list() {
 
-        checkRerank();
-
-        return rankList;
+        return current();
     }
 
 
@@ -129,24 +166,57 @@ public class RankList<T extends Rankable<?>> implements RankLister<T> {
      */
     public int size() {
 
-        checkRerank();
-
-        return rankList.size();
+        return current().size();
     }
 
-    private void checkRerank() {
+
+    /**
+     * Returns current ranking. Ranking is computed on first use. Later on it is recalculated by scheduler
+     * or (if ranking is not scheduled) by the first reader noticing it is outdated. Other readers get
+     * previous ranking in the meantime.
+     */
+    private List<T> current() {
+        List<T> lst = rankList.get();
+
+        if (lst == null) {
+            synchronized (this) {
+                if (rankList.get() == null) {
+                    rerank(System.currentTimeMillis());
+                }
+            }
+            return rankList.get();
+        }
+
         long tstamp = System.currentTimeMillis();
-        if (tstamp > lastTime + rerankTime) {
-            rerank(tstamp);
+
+        if (!scheduled && tstamp - lastTime >= rerankTime && tryRerank(tstamp)) {
+            lst = rankList.get();
+        }
+
+        return lst;
+    }
+
+
+    private boolean tryRerank(long tstamp) {
+        if (reranking.compareAndSet(false, true)) {
+            try {
+                rerank(tstamp);
+                return true;
+            } finally {
+                reranking.set(false);
+            }
         }
+        return false;
     }
 
 
     /**
-     * Recalculates ranking (this is done periodically).
+     * Recalculates ranking (this is done periodically). Averages are computed once per item and
+     * top items are selected using bounded min-heap, so full list is never sorted.
      *
      * @param tstamp current time
      */
+    @SuppressWarnings("unchecked")
     private void rerank(final long tstamp) {
 
         List<T> lst;
@@ -155,20 +225,87 @@ public class RankList<T extends Rankable<?>> implements RankLister<T> {
             lst = lister.list();
         }
 
-        Collections.sort(lst, new Comparator<T>() {
-            public int compare(T o1, T o2) {
-                double dd = o2.getAverage(tstamp, metric, average) - o1.getAverage(tstamp, metric, average);
-                return dd == 0.0 ? 0 : dd > 0 ? 1 : -1;
+        int n = Math.min(maxSize, lst.size());
+
+        // Heap of best items found so far, weakest item is at the root
+        double[] vals = new double[n];
+        int[] idxs = new int[n];
+        Object[] objs = new Object[n];
+        int size = 0, idx = 0;
+
+        for (T item : lst) {
+            double v = item.getAverage(tstamp, metric, average);
+
+            if (size < n) {
+                int i = size++;
+                while (i > 0 && weaker(v, idx, vals[(i-1)/2], idxs[(i-1)/2])) {
+                    int p = (i-1)/2;
+                    vals[i] = vals[p]; idxs[i] = idxs[p]; objs[i] = objs[p];
+                    i = p;
+                }
+                vals[i] = v; idxs[i] = idx; objs[i] = item;
+            } else if (n > 0 && weaker(vals[0], idxs[0], v, idx)) {
+                siftDown(vals, idxs, objs, size, v, idx, item);
+            }
+
+            idx++;
+        }
+
+        // Removing weakest items one by one fills result from its end
+        Object[] rslt = new Object[size];
+
+        while (size > 0) {
+            rslt[size-1] = objs[0];
+            size--;
+            if (size > 0) {
+                siftDown(vals, idxs, objs, size, vals[size], idxs[size], objs[size]);
             }
-        });
+        }
+
+        List<T> ranked = new ArrayList<T>(rslt.length);
+
+        for (Object obj : rslt) {
+            ranked.add((T) obj);
+        }
 
-        rankList = Collections.unmodifiableList(ZorkaUtil.clip(lst, maxSize));
+        rankList.set(Collections.unmodifiableList(ranked));
 
         lastTime = tstamp;
         numReranks.incrementAndGet();
     }
 
 
+    /**
+     * Returns true if item (v1, i1) ranks below item (v2, i2). Items with equal averages
+     * keep their order from rank lister.
+     */
+    private static boolean weaker(double v1, int i1, double v2, int i2) {
+        return v1 < v2 || (v1 == v2 && i1 > i2);
+    }
+
+
+    /**
+     * Puts item at heap root and moves it down to its place.
+     */
+    private static void siftDown(double[] vals, int[] idxs, Object[] objs, int size, double v, int idx, Object obj) {
+        int i = 0;
+
+        while (2*i+1 < size) {
+            int c = 2*i+1;
+            if (c+1 < size && weaker(vals[c+1], idxs[c+1], vals[c], idxs[c])) {
+                c++;
+            }
+            if (!weaker(vals[c], idxs[c], v, idx)) {
+                break;
+            }
+            vals[i] = vals[c]; idxs[i] = idxs[c]; objs[i] = objs[c];
+            i = c;
+        }
+
+        vals[i] = v; idxs[i] = idx; objs[i] = obj;
+    }
+
+
     /**
      * Returns number of reranks performed since rank list started.
      *
@@ -15,11 +15,14 @@
  */
 package com.jitlogic.zorka.core.perfmon;
 
+import com.jitlogic.zorka.common.util.ZorkaLog;
+import com.jitlogic.zorka.common.util.ZorkaLogger;
 import com.jitlogic.zorka.core.mbeans.MBeanServerRegistry;
 
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
 import java.util.*;
 
 /**
@@ -29,15 +32,33 @@ import java.util.*;
  */
 public class ThreadRankLister implements Runnable, RankLister<ThreadRankItem> {
 
+    private static final ZorkaLog log = ZorkaLogger.getLog(ThreadRankLister.class);
+
+    /** Orders thread infos by thread ID */
+    private static final Comparator<ThreadRankInfo> BY_ID = new Comparator<ThreadRankInfo>() {
+        @Override
+        public int compare(ThreadRankInfo o1, ThreadRankInfo o2) {
+            return o1.getId() < o2.getId() ? -1 : o1.getId() > o2.getId() ? 1 : 0;
+        }
+    };
+
     /** MBean server registry (used only to check if obtaining ThreadMXBean is possible) */
     private MBeanServerRegistry mBeanServerRegistry;
 
     /** Thread MX bean implements methods useful for obtaining information about running threads. */
     private ThreadMXBean threadMXBean;
 
-    /** Map of tracked threads. */
-    // TODO use AtomicReference for all such volatile fields
-    private volatile Map<Long,ThreadRankItem> threads = new HashMap<Long, ThreadRankItem>();
+    /**
+     * Bulk CPU time getter (com.sun.management.ThreadMXBean.getThreadCpuTime(long[])) or null
+     * if JVM does not implement it (CPU times are fetched one thread at a time then).
+     */
+    private Method bulkCpuTime;
+
+    /** IDs of tracked threads (sorted) */
+    private long[] tids = new long[0];
+
+    /** Tracked threads (in the same order as thread IDs) */
+    private volatile ThreadRankItem[] items = new ThreadRankItem[0];
 
     /**
      * Creates thread rank lister
@@ -49,13 +70,14 @@ public class ThreadRankLister implements Runnable, RankLister<ThreadRankItem> {
 
     @Override
     public List<ThreadRankItem> list() {
-        List<ThreadRankItem> lst = new ArrayList<ThreadRankItem>(threads.size()+2)     ;
+        ThreadRankItem[] itms = items;
+        List<ThreadRankItem> lst = new ArrayList<ThreadRankItem>(itms.length + 2);
 
-        for (Map.Entry<Long,ThreadRankItem> e : threads.entrySet()) {
-            lst.add(e.getValue());
+        for (ThreadRankItem item : itms) {
+            lst.add(item);
         }
 
-        return Collections.unmodifiableList(lst);
+        return lst;
     }
 
 
@@ -69,24 +91,62 @@ public class ThreadRankLister implements Runnable, RankLister<ThreadRankItem> {
         if (threadMXBean == null) {
             if (mBeanServerRegistry.lookup("java") != null) {
                 threadMXBean = ManagementFactory.getThreadMXBean();
+                bulkCpuTime = lookupBulkCpuTime(threadMXBean);
             } else {
                 return new ArrayList<ThreadRankInfo>(1);
             }
         }
 
-        ThreadInfo[] ati = threadMXBean.getThreadInfo(threadMXBean.getAllThreadIds());
+        long[] ids = threadMXBean.getAllThreadIds();
+        ThreadInfo[] ati = threadMXBean.getThreadInfo(ids);
+        long[] cpuTimes = getCpuTimes(ids);
         List<ThreadRankInfo> lst = new ArrayList<ThreadRankInfo>(ati.length);
 
-        for (ThreadInfo ti : ati) {
-            long tid = ti.getThreadId();
-            long cpuTime = threadMXBean.getThreadCpuTime(tid);
-            lst.add(new ThreadRankInfo(tid, ti.getThreadName(), cpuTime, ti.getBlockedTime()));
+        for (int i = 0; i < ati.length; i++) {
+            ThreadInfo ti = ati[i];
+            // Threads that terminated in the meantime have no info
+            if (ti != null) {
+                lst.add(new ThreadRankInfo(ti.getThreadId(), ti.getThreadName(), cpuTimes[i], ti.getBlockedTime()));
+            }
         }
 
         return lst;
     }
 
 
+    private static Method lookupBulkCpuTime(ThreadMXBean bean) {
+        try {
+            Class<?> clazz = Class.forName("com.sun.management.ThreadMXBean");
+            if (clazz.isInstance(bean)) {
+                return clazz.getMethod("getThreadCpuTime", long[].class);
+            }
+        } catch (Exception e) {
+            log.debug(ZorkaLogger.ZAG_DEBUG, "Bulk thread CPU time retrieval not available: " + e);
+        }
+        return null;
+    }
+
+
+    private long[] getCpuTimes(long[] ids) {
+        if (bulkCpuTime != null) {
+            try {
+                return (long[]) bulkCpuTime.invoke(threadMXBean, (Object) ids);
+            } catch (Exception e) {
+                log.error(ZorkaLogger.ZAG_ERRORS, "Cannot fetch thread CPU times in bulk. Falling back to single calls.", e);
+                bulkCpuTime = null;
+            }
+        }
+
+        long[] cpuTimes = new long[ids.length];
+
+        for (int i = 0; i < ids.length; i++) {
+            cpuTimes[i] = threadMXBean.getThreadCpuTime(ids[i]);
+        }
+
+        return cpuTimes;
+    }
+
+
     /**
      * Performs single cycle. Invoked from main loop in run() method.
      *
@@ -94,27 +154,56 @@ public class ThreadRankLister implements Runnable, RankLister<ThreadRankItem> {
      */
     public void runCycle(long tstamp) {
         List<ThreadRankInfo> raw = rawList();
-        int sz = Math.max(raw.size(), raw.size());
-        Map<Long,ThreadRankItem> newThreads = new HashMap<Long, ThreadRankItem>(sz*2+10, 0.5f);
+        ThreadRankInfo[] infos = new ThreadRankInfo[raw.size()];
+        int n = 0;
+
+        for (ThreadRankInfo threadInfo : raw) {
+            if (threadInfo != null) {
+                infos[n++] = threadInfo;
+            }
+        }
+
+        Arrays.sort(infos, 0, n, BY_ID);
 
         synchronized (this) {
-            for (ThreadRankInfo threadInfo : raw) {
-                if (threadInfo == null) {
-                    continue;
+            long[] oldIds = tids;
+            ThreadRankItem[] oldItems = items;
+
+            boolean same = n == oldIds.length;
+
+            for (int i = 0; same && i < n; i++) {
+                same = oldIds[i] == infos[i].getId();
+            }
+
+            if (same) {
+                // Set of threads did not change, so items are simply updated
+                for (int i = 0; i < n; i++) {
+                    oldItems[i].feed(tstamp, infos[i]);
                 }
+                return;
+            }
 
-                long tid = threadInfo.getId();
+            long[] newIds = new long[n];
+            ThreadRankItem[] newItems = new ThreadRankItem[n];
 
-                ThreadRankItem threadItem = threads.get(threadInfo.getId());
-                if (threadItem == null) {
-                    threadItem = new ThreadRankItem(threadInfo);
+            // Both arrays are sorted, so surviving threads are found in single pass
+            for (int i = 0, j = 0; i < n; i++) {
+                long tid = infos[i].getId();
+
+                while (j < oldIds.length && oldIds[j] < tid) {
+                    j++;
                 }
 
-                threadItem.feed(tstamp, threadInfo);
-                newThreads.put(threadInfo.getId(), threadItem);
+                ThreadRankItem threadItem = j < oldIds.length && oldIds[j] == tid
+                        ? oldItems[j] : new ThreadRankItem(infos[i]);
+
+                threadItem.feed(tstamp, infos[i]);
+                newIds[i] = tid;
+                newItems[i] = threadItem;
             }
 
-            threads = newThreads;
+            tids = newIds;
+            items = newItems;
         }
     }
 
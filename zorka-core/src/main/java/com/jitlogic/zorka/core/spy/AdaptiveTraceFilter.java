@@ -0,0 +1,438 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.spy;
+
+import com.jitlogic.zorka.common.stats.AgentDiagnostics;
+import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
+import com.jitlogic.zorka.common.util.ZorkaLog;
+import com.jitlogic.zorka.common.util.ZorkaLogger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Adaptive tracer filter detects traced methods that are called very often and (almost) always
+ * execute faster than tracer minimum method time, so trace builder discards them anyway. Such
+ * methods are excluded from tracer and their classes are retransformed, so they no longer pay
+ * tracer probes overhead. Number of automatically excluded methods is limited by budget. Excluded
+ * methods can be re-enabled and will not be excluded again.
+ * <p/>
+ * Trace builders count method returns in their own (per-thread) tables, so counting needs no
+ * synchronization. Tables are merged into global tallies and cleared every FLUSH_RETURNS returns
+ * or after FLUSH_PARTS-th part of interval passes, whichever comes first, so tables of idle threads
+ * do not keep stale entries. Tallies are reset each time run() is called (it is scheduled at fixed
+ * intervals), so method is considered hot if it has been called at least minCalls times in (roughly)
+ * one interval. Methods with symbol IDs that do not fit in packed keys are not counted.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class AdaptiveTraceFilter implements Runnable {
+
+    private static final ZorkaLog log = ZorkaLogger.getLog(AdaptiveTraceFilter.class);
+
+    /**
+     * Priority of exclusion matchers (they take precedence over configured matchers).
+     */
+    public static final int EXCLUDE_PRIORITY = 0;
+
+    /**
+     * Number of method returns counted by trace builder before its counters are merged into global tallies.
+     */
+    private static final int FLUSH_RETURNS = 65536;
+
+    /**
+     * Trace builders merge their counters at least this many times per interval.
+     */
+    private static final int FLUSH_PARTS = 4;
+
+    private static final int INITIAL_SIZE = 64;
+
+    private static final long FREE = 0;
+    private static final long MASK = 0x1fffffL;
+
+    private final Tracer tracer;
+
+    /**
+     * Maximum time (in nanoseconds) trace builders keep counters before merging them into global tallies.
+     */
+    private final long flushTime;
+
+    private final SymbolRegistry symbols;
+
+    private final SpyRetransformer retransformer;
+
+    /**
+     * Minimum number of calls (in one interval) for method to be considered hot.
+     */
+    private final long minCalls;
+
+    /**
+     * Minimum percentage of calls that took less than tracer minimum method time.
+     */
+    private final int fastRatio;
+
+    /**
+     * Maximum number of automatically excluded methods.
+     */
+    private final int budget;
+
+    /**
+     * Global tallies: method key -> {calls, fast calls}
+     */
+    private final Map<Long, long[]> tallies = new HashMap<Long, long[]>();
+
+    /**
+     * Methods waiting for exclusion (excluded by next run() call)
+     */
+    private final Set<Long> pending = new LinkedHashSet<Long>();
+
+    /**
+     * Excluded methods and matchers added to tracer configuration
+     */
+    private final Map<Long, SpyMatcher> excluded = new LinkedHashMap<Long, SpyMatcher>();
+
+    /**
+     * Re-enabled methods (they will not be excluded again)
+     */
+    private final Set<Long> pinned = new HashSet<Long>();
+
+    /**
+     * Serializes tracer configuration changes and class retransforms.
+     */
+    private final Object applyLock = new Object();
+
+    private boolean budgetExceeded;
+
+
+    /**
+     * Creates adaptive tracer filter.
+     *
+     * @param tracer        tracer
+     * @param symbols       symbol registry (used to resolve method names)
+     * @param retransformer retransformer used to remove tracer probes from excluded methods
+     * @param minCalls      minimum number of calls in one interval
+     * @param fastRatio     minimum percentage of calls shorter than tracer minimum method time
+     * @param budget        maximum number of automatically excluded methods
+     * @param interval      interval (in milliseconds) at which run() is called
+     */
+    public AdaptiveTraceFilter(Tracer tracer, SymbolRegistry symbols, SpyRetransformer retransformer,
+                               long minCalls, int fastRatio, int budget, long interval) {
+        this.tracer = tracer;
+        this.flushTime = interval * 1000000L / FLUSH_PARTS;
+        this.symbols = symbols;
+        this.retransformer = retransformer;
+        this.minCalls = minCalls;
+        this.fastRatio = fastRatio;
+        this.budget = budget;
+    }
+
+
+    /**
+     * Creates counters for a trace builder.
+     */
+    public Counters counters() {
+        return new Counters();
+    }
+
+
+    private static long key(int classId, int methodId, int signatureId) {
+        return classId | (((long) methodId) << 21) | (((long) signatureId) << 42);
+    }
+
+
+    private String symbol(long key, int shift) {
+        return symbols.symbolName((int) ((key >> shift) & MASK));
+    }
+
+
+    private String name(long key) {
+        return symbol(key, 0) + "." + symbol(key, 21) + symbol(key, 42);
+    }
+
+
+    /**
+     * Merges counters collected by trace builder and queues methods that should be excluded.
+     */
+    private synchronized void merge(long[] keys, long[] calls, long[] fast) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == FREE || calls[i] == 0) {
+                continue;
+            }
+
+            Long key = keys[i];
+
+            if (excluded.containsKey(key) || pending.contains(key) || pinned.contains(key)) {
+                continue;
+            }
+
+            long[] t = tallies.get(key);
+
+            if (t == null) {
+                t = new long[2];
+                tallies.put(key, t);
+            }
+
+            t[0] += calls[i];
+            t[1] += fast[i];
+
+            if (t[0] >= minCalls) {
+                tallies.remove(key);
+                if (t[1] * 100 >= t[0] * fastRatio) {
+                    queue(key);
+                }
+            }
+        }
+    }
+
+
+    private void queue(Long key) {
+        if (excluded.size() + pending.size() < budget) {
+            pending.add(key);
+            log.info(ZorkaLogger.ZTR_CONFIG, "Method " + name(key) + " is hot and fast. Excluding it from tracer.");
+        } else if (!budgetExceeded) {
+            budgetExceeded = true;
+            log.warn(ZorkaLogger.ZTR_CONFIG, "Budget of automatically excluded methods (" + budget
+                    + ") exceeded. Method " + name(key) + " and next ones will not be excluded.");
+        }
+    }
+
+
+    /**
+     * Excludes pending methods from tracer and retransforms their classes. Also resets call tallies.
+     */
+    @Override
+    public void run() {
+        try {
+            synchronized (applyLock) {
+                List<SpyMatcher> matchers = new ArrayList<SpyMatcher>();
+                Set<String> classNames = new HashSet<String>();
+
+                synchronized (this) {
+                    tallies.clear();
+                    for (Long key : pending) {
+                        SpyMatcher matcher = SpyMatcher.forMethod(symbol(key, 0), symbol(key, 21), symbol(key, 42))
+                                .exclude().priority(EXCLUDE_PRIORITY);
+                        excluded.put(key, matcher);
+                        matchers.add(matcher);
+                        classNames.add(symbol(key, 0));
+                    }
+                    pending.clear();
+                }
+
+                if (matchers.size() > 0) {
+                    tracer.setMatcherSet(tracer.getMatcherSet().include(matchers.toArray(new SpyMatcher[matchers.size()])));
+                    AgentDiagnostics.inc(AgentDiagnostics.TRACER_AUTO_EXCLUDED, matchers.size());
+                    retransformer.retransform(classNames);
+                }
+            }
+        } catch (Throwable e) {
+            log.error(ZorkaLogger.ZTR_CONFIG, "Error excluding methods from tracer", e);
+        }
+    }
+
+
+    /**
+     * Re-enables tracing of automatically excluded methods. Re-enabled methods will not be excluded again.
+     *
+     * @param method method name (as returned by getExcluded()) or null to re-enable all methods
+     * @return number of re-enabled methods
+     */
+    public int reenable(String method) {
+        synchronized (applyLock) {
+            Set<SpyMatcher> matchers = new HashSet<SpyMatcher>();
+            Set<String> classNames = new HashSet<String>();
+
+            synchronized (this) {
+                for (Long key : new ArrayList<Long>(excluded.keySet())) {
+                    if (method == null || method.equals(name(key))) {
+                        matchers.add(excluded.remove(key));
+                        classNames.add(symbol(key, 0));
+                        pinned.add(key);
+                    }
+                }
+
+                for (Long key : new ArrayList<Long>(pending)) {
+                    if (method == null || method.equals(name(key))) {
+                        pending.remove(key);
+                        pinned.add(key);
+                    }
+                }
+
+                budgetExceeded = false;
+            }
+
+            if (matchers.size() > 0) {
+                List<SpyMatcher> remaining = new ArrayList<SpyMatcher>();
+                for (SpyMatcher matcher : tracer.getMatcherSet().getMatchers()) {
+                    if (!matchers.contains(matcher)) {
+                        remaining.add(matcher);
+                    }
+                }
+                tracer.setMatcherSet(new SpyMatcherSet(remaining.toArray(new SpyMatcher[remaining.size()])));
+                log.info(ZorkaLogger.ZTR_CONFIG, "Re-enabling tracing of " + matchers.size() + " methods.");
+                retransformer.retransform(classNames);
+            }
+
+            return matchers.size();
+        }
+    }
+
+
+    /**
+     * Returns names of automatically excluded methods (class name, method name and descriptor).
+     */
+    public synchronized List<String> getExcluded() {
+        List<String> ret = new ArrayList<String>(excluded.size());
+
+        for (Long key : excluded.keySet()) {
+            ret.add(name(key));
+        }
+
+        return ret;
+    }
+
+
+    /**
+     * Returns names of methods waiting for exclusion.
+     */
+    public synchronized List<String> getPending() {
+        List<String> ret = new ArrayList<String>(pending.size());
+
+        for (Long key : pending) {
+            ret.add(name(key));
+        }
+
+        return ret;
+    }
+
+
+    /**
+     * Per-thread method return counters (kept by trace builders). Open addressing hash table
+     * indexed by packed class, method and signature symbol IDs.
+     */
+    public class Counters {
+
+        private long[] keys = new long[INITIAL_SIZE], calls = new long[INITIAL_SIZE], fast = new long[INITIAL_SIZE];
+
+        private int numEntries, numReturns;
+
+        /**
+         * Time of first return counted since last flush
+         */
+        private long firstReturn;
+
+
+        /**
+         * Counts method return.
+         *
+         * @param classId     class symbol ID
+         * @param methodId    method symbol ID
+         * @param signatureId method signature symbol ID
+         * @param time        method execution time
+         * @param tstamp      method return time (nanoseconds, as passed to trace builder)
+         */
+        public void logReturn(int classId, int methodId, int signatureId, long time, long tstamp) {
+
+            if (((classId | methodId | signatureId) & ~MASK) != 0) {
+                return; // Would collide with other methods in packed key
+            }
+
+            long key = key(classId, methodId, signatureId);
+
+            if (key == FREE) {
+                return;
+            }
+
+            if (numReturns == 0) {
+                firstReturn = tstamp;
+            }
+
+            int idx = index(keys, key);
+
+            if (keys[idx] == FREE) {
+                keys[idx] = key;
+                numEntries++;
+            }
+
+            calls[idx]++;
+
+            if (time <= Tracer.getMinMethodTime()) {
+                fast[idx]++;
+            }
+
+            if (numEntries > keys.length * 3 / 4) {
+                rehash();
+            }
+
+            if (++numReturns >= FLUSH_RETURNS || tstamp - firstReturn >= flushTime) {
+                flush();
+            }
+        }
+
+
+        /**
+         * Merges counters into global tallies and clears local table.
+         */
+        public void flush() {
+            merge(keys, calls, fast);
+            Arrays.fill(keys, FREE);
+            Arrays.fill(calls, 0);
+            Arrays.fill(fast, 0);
+            numEntries = 0;
+            numReturns = 0;
+        }
+
+
+        private int index(long[] keys, long key) {
+            int mask = keys.length - 1;
+            int idx = (int) ((key ^ (key >>> 21) ^ (key >>> 42)) * 0x9E3779B1L) & mask;
+
+            while (keys[idx] != FREE && keys[idx] != key) {
+                idx = (idx + 1) & mask;
+            }
+
+            return idx;
+        }
+
+
+        private void rehash() {
+            long[] newKeys = new long[keys.length * 2], newCalls = new long[keys.length * 2],
+                    newFast = new long[keys.length * 2];
+
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != FREE) {
+                    int idx = index(newKeys, keys[i]);
+                    newKeys[idx] = keys[i];
+                    newCalls[idx] = calls[i];
+                    newFast[idx] = fast[i];
+                }
+            }
+
+            keys = newKeys;
+            calls = newCalls;
+            fast = newFast;
+        }
+    }
+}
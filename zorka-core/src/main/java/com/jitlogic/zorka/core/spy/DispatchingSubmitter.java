@@ -24,7 +24,6 @@ import com.jitlogic.zorka.common.util.ZorkaLog;
 
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
 
 import static com.jitlogic.zorka.core.spy.SpyLib.*;
 
@@ -47,16 +46,9 @@ public class DispatchingSubmitter implements SpySubmitter {
     private SpyClassTransformer transformer;
 
     /**
-     * Submission stack is used to associate results from method entry probes with results from return/error probes.
-     * TODO what happens to submission stack when spy context disappears when some method is executing ?
+     * Maximum number of recycled records kept by each thread.
      */
-    private ThreadLocal<Stack<Map<String, Object>>> submissionStack =
-            new ThreadLocal<Stack<Map<String, Object>>>() {
-                @Override
-                public Stack<Map<String, Object>> initialValue() {
-                    return new Stack<Map<String, Object>>();
-                }
-            };
+    private static final int RECORD_POOL_SIZE = 32;
 
 
     /**
@@ -71,7 +63,53 @@ public class DispatchingSubmitter implements SpySubmitter {
 
 
     @Override
-    public void submit(int stage, int id, int submitFlags, Object[] vals) {
+    public void submit(ThreadContext ctx, int stage, int id, int submitFlags, Object[] vals) {
+        submit(ctx.getSubmissionState(this), stage, id, submitFlags, vals);
+    }
+
+
+    @Override
+    public void submit(ThreadContext ctx, int stage, int id, int submitFlags, long v0) {
+        SubmissionState state = ctx.getSubmissionState(this);
+        // Records keep values as objects, so value is boxed anyway (but not in instrumented code)
+        state.vals[0] = v0;
+
+        try {
+            submit(state, stage, id, submitFlags, state.vals);
+        } finally {
+            state.clearVals();
+        }
+    }
+
+
+    @Override
+    public void submit(ThreadContext ctx, int stage, int id, int submitFlags, int count,
+                       Object v0, Object v1, Object v2, Object v3) {
+        SubmissionState state = ctx.getSubmissionState(this);
+        Object[] vals = state.vals;
+        vals[0] = v0;
+        vals[1] = v1;
+        vals[2] = v2;
+        vals[3] = v3;
+
+        try {
+            submit(state, stage, id, submitFlags, vals);
+        } finally {
+            state.clearVals();
+        }
+    }
+
+
+    /**
+     * Dispatches submission to processing chains of associated spy definition.
+     *
+     * @param state       thread local submission state
+     * @param stage       method bytecode point where probe has been installed (entry, return, error)
+     * @param id          spy context ID
+     * @param submitFlags submission flags
+     * @param vals        submitted values
+     */
+    private void submit(SubmissionState state, int stage, int id, int submitFlags, Object[] vals) {
 
         if (ZorkaLogger.isLogLevel(ZorkaLogger.ZSP_SUBMIT)) {
             log.debug(ZorkaLogger.ZSP_SUBMIT, "Submitted: stage=" + stage + ", id=" + id + ", flags=" + submitFlags);
@@ -83,31 +121,38 @@ public class DispatchingSubmitter implements SpySubmitter {
             return;
         }
 
-        Map<String, Object> record = getRecord(stage, ctx, submitFlags, vals);
+        Map<String, Object> record = ctx.getSpyDefinition().isCompiled()
+                ? getCompiledRecord(state, stage, ctx, submitFlags, vals)
+                : getRecord(state, stage, ctx, submitFlags, vals);
+
+        Map<String, Object> orig = record;
 
         SpyDefinition sdef = ctx.getSpyDefinition();
 
         if (null == (record = process(stage, sdef, record))) {
+            state.release(orig);
             return;
         }
 
         if (submitFlags == SF_NONE) {
-            submissionStack.get().push(record);
+            state.push(record);
             return;
         }
 
         AgentDiagnostics.inc(AgentDiagnostics.SPY_SUBMISSIONS);
 
-        if (sdef.getProcessors(ON_SUBMIT).size() > 0 && null == (record = process(ON_SUBMIT, sdef, record))) {
-            return;
+        if (sdef.getProcessors(ON_SUBMIT).size() > 0) {
+            process(ON_SUBMIT, sdef, record);
         }
 
+        state.release(orig);
     }
 
 
     /**
      * Retrieves or creates spy record for probe submission purposes.
      *
+     * @param state       thread local submission state
      * @param stage       method bytecode point where probe has been installed (entry, return, error)
      * @param ctx         spy context associated with submitting probe
      * @param submitFlags controls whether SUBMIT chain should be immediately processed or record should be
@@ -115,7 +160,8 @@ public class DispatchingSubmitter implements SpySubmitter {
      * @param vals        submitted values
      * @return spy record
      */
-    private Map<String, Object> getRecord(int stage, SpyContext ctx, int submitFlags, Object[] vals) {
+    private Map<String, Object> getRecord(SubmissionState state, int stage, SpyContext ctx,
+                                          int submitFlags, Object[] vals) {
 
         Map<String, Object> record;
 
@@ -125,15 +171,13 @@ public class DispatchingSubmitter implements SpySubmitter {
                 record = ZorkaUtil.map(".CTX", ctx, ".STAGE", 0, ".STAGES", 0);
                 break;
             case SF_FLUSH:
-                Stack<Map<String, Object>> stack = submissionStack.get();
-                if (stack.size() > 0) {
-                    record = stack.pop();
-                    // TODO check if record belongs to proper frame, warn if not
-                } else {
+                record = state.pop();
+                if (record == null) {
                     log.error(ZorkaLogger.ZSP_ERRORS, "Submission thread local stack mismatch (ctx=" + ctx
                             + ", stage=" + stage + ", submitFlags=" + submitFlags + ")");
                     record = ZorkaUtil.map(".CTX", ctx, ".STAGE", 0, ".STAGES", 0);
                 }
+                // TODO check if record belongs to proper frame, warn if not
                 break;
             default:
                 log.error(ZorkaLogger.ZSP_ERRORS, "Illegal submission flag: " + submitFlags + ". Creating empty records.");
@@ -158,6 +202,61 @@ public class DispatchingSubmitter implements SpySubmitter {
     }
 
 
+    /**
+     * Retrieves or creates compiled spy record. Records are taken from thread local pool and
+     * probe values are stored directly in slots resolved by record layout of spy definition.
+     *
+     * @param state       thread local submission state
+     * @param stage       method bytecode point where probe has been installed (entry, return, error)
+     * @param ctx         spy context associated with submitting probe
+     * @param submitFlags controls whether SUBMIT chain should be immediately processed or record should be
+     *                    stored in thread local stack (and wait for another probe submission)
+     * @param vals        submitted values
+     * @return spy record
+     */
+    private Map<String, Object> getCompiledRecord(SubmissionState state, int stage, SpyContext ctx,
+                                                  int submitFlags, Object[] vals) {
+
+        Map<String, Object> record = null;
+
+        if (submitFlags == SF_FLUSH) {
+            record = state.pop();
+            if (record == null) {
+                log.error(ZorkaLogger.ZSP_ERRORS, "Submission thread local stack mismatch (ctx=" + ctx
+                        + ", stage=" + stage + ", submitFlags=" + submitFlags + ")");
+            }
+        } else if (submitFlags != SF_IMMEDIATE && submitFlags != SF_NONE) {
+            log.error(ZorkaLogger.ZSP_ERRORS, "Illegal submission flag: " + submitFlags + ". Creating empty records.");
+        }
+
+        if (record == null) {
+            record = state.acquire(ctx);
+        }
+
+        if (!(record instanceof SpyRecord)) {
+            // Record pushed by sdef before switching to compiled mode, handle it in legacy way
+            List<SpyProbe> probes = ctx.getSpyDefinition().getProbes(stage);
+            for (int i = 0; i < probes.size(); i++) {
+                record.put(probes.get(i).getDstField(), vals[i]);
+            }
+            record.put(".STAGES", (Integer) record.get(".STAGES") | (1 << stage));
+            record.put(".STAGE", stage);
+            return record;
+        }
+
+        SpyRecord rec = (SpyRecord) record;
+        int[] slots = ((SpyContext) rec.get(".CTX")).getSpyDefinition().getRecordLayout().getProbeSlots(stage);
+
+        for (int i = 0; i < slots.length; i++) {
+            rec.putSlot(slots[i], vals[i]);
+        }
+
+        rec.markStage(stage);
+
+        return rec;
+    }
+
+
     /**
      * Processes specified processing chain of sdef in record
      *
@@ -169,14 +268,19 @@ public class DispatchingSubmitter implements SpySubmitter {
     private Map<String, Object> process(int stage, SpyDefinition sdef, Map<String, Object> record) {
         List<SpyProcessor> processors = sdef.getProcessors(stage);
 
-        record.put(".STAGES", (Integer) record.get(".STAGES") | (1 << stage));
-        record.put(".STAGE", stage);
+        if (record instanceof SpyRecord) {
+            ((SpyRecord) record).markStage(stage);
+        } else {
+            record.put(".STAGES", (Integer) record.get(".STAGES") | (1 << stage));
+            record.put(".STAGE", stage);
+        }
 
         if (ZorkaLogger.isAgentLevel(ZorkaLogger.ZSP_ARGPROC)) {
             log.debug(ZorkaLogger.ZSP_ARGPROC, "Processing records (stage=" + stage + ")");
         }
 
-        for (SpyProcessor processor : processors) {
+        for (int i = 0; i < processors.size(); i++) {
+            SpyProcessor processor = processors.get(i);
             try {
                 if (null == (record = processor.process(record))) {
                     break;
@@ -190,4 +294,71 @@ public class DispatchingSubmitter implements SpySubmitter {
         return record;
     }
 
+
+    /**
+     * Per-thread submission state (kept in thread context). Submission stack is used to associate results
+     * from method entry probes with results from return/error probes. Pool keeps recycled records for sdefs
+     * working in compiled record mode.
+     * TODO what happens to submission stack when spy context disappears when some method is executing ?
+     */
+    static class SubmissionState {
+
+        /** Records waiting for flush */
+        private Map<String, Object>[] stack = new Map[16];
+
+        /** Number of records on stack */
+        private int stackSize;
+
+        /** Recycled records */
+        private SpyRecord[] pool = new SpyRecord[RECORD_POOL_SIZE];
+
+        /** Number of records in pool */
+        private int poolSize;
+
+        /** Values passed by probes submitting up to 4 values (consumed before processing starts) */
+        private Object[] vals = new Object[4];
+
+
+        private void push(Map<String, Object> record) {
+            if (stackSize == stack.length) {
+                Map<String, Object>[] newStack = new Map[stack.length * 2];
+                System.arraycopy(stack, 0, newStack, 0, stack.length);
+                stack = newStack;
+            }
+            stack[stackSize++] = record;
+        }
+
+
+        private Map<String, Object> pop() {
+            if (stackSize == 0) {
+                return null;
+            }
+
+            Map<String, Object> record = stack[--stackSize];
+            stack[stackSize] = null;
+            return record;
+        }
+
+
+        private void clearVals() {
+            vals[0] = vals[1] = vals[2] = vals[3] = null;
+        }
+
+
+        private SpyRecord acquire(SpyContext ctx) {
+            SpyRecord record = poolSize > 0 ? pool[--poolSize] : new SpyRecord();
+            return record.init(ctx);
+        }
+
+
+        private void release(Map<String, Object> record) {
+            if (record instanceof SpyRecord) {
+                SpyRecord rec = (SpyRecord) record;
+                rec.reset();
+                if (poolSize < pool.length) {
+                    pool[poolSize++] = rec;
+                }
+            }
+        }
+    }
 }
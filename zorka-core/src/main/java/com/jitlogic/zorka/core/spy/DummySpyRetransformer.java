@@ -20,6 +20,7 @@ import com.jitlogic.zorka.common.util.ZorkaLogger;
 import com.jitlogic.zorka.core.AgentConfig;
 
 import java.lang.instrument.Instrumentation;
+import java.util.Set;
 
 
 public class DummySpyRetransformer implements SpyRetransformer {
@@ -36,6 +37,12 @@ public class DummySpyRetransformer implements SpyRetransformer {
         return false;
     }
 
+    @Override
+    public boolean retransform(Set<String> classNames) {
+        log.warn(ZorkaLogger.ZSP_CONFIG, "Ignoring classes retransform due to lack of platform support.");
+        return false;
+    }
+
     @Override
     public boolean isEnabled() {
         return false;
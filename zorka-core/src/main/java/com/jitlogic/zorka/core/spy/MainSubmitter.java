@@ -17,11 +17,14 @@
 
 package com.jitlogic.zorka.core.spy;
 
-import bsh.EvalError;
 import com.jitlogic.zorka.common.stats.AgentDiagnostics;
+import com.jitlogic.zorka.common.stats.MethodCallStatistic;
+import com.jitlogic.zorka.common.util.ZorkaUtil;
 import com.jitlogic.zorka.common.util.ZorkaLog;
 import com.jitlogic.zorka.common.util.ZorkaLogger;
 
+import static java.lang.Math.max;
+
 /**
  * Main submitter contains static methods that can be called directly by
  * instrumentation probes. It forwards requests to actual submitter that
@@ -44,16 +47,12 @@ public class MainSubmitter {
     private static Tracer tracer;
 
     /**
-     * Thread local
+     * Statistics updated directly by inlined probes (indexed by spy context ID)
      */
-    private static ThreadLocal<Boolean> inSubmit = new ThreadLocal<Boolean>() {
-        public Boolean initialValue() {
-            return false;
-        }
-    };
+    private static volatile MethodCallStatistic[] statistics = new MethodCallStatistic[0];
 
     /**
-     * This method is called by spy probes.
+     * This method is called by spy probes fetching more than 4 values.
      *
      * @param stage       entry, return point or error handling point of spy probe
      * @param id          spy context ID
@@ -61,30 +60,241 @@ public class MainSubmitter {
      * @param vals        values fetched by probe
      */
     public static void submit(int stage, int id, int submitFlags, Object[] vals) {
+        ThreadContext ctx = enterSubmit();
+
+        if (ctx != null) {
+            try {
+                submitter.submit(ctx, stage, id, submitFlags, vals);
+            } catch (Throwable e) {
+                submitError(e);
+            } finally {
+                leaveSubmit(ctx);
+            }
+        }
+    }
+
+
+    /**
+     * This method is called by spy probes fetching no values.
+     *
+     * @param stage       entry, return point or error handling point of spy probe
+     * @param id          spy context ID
+     * @param submitFlags submit flags
+     */
+    public static void submit(int stage, int id, int submitFlags) {
+        ThreadContext ctx = enterSubmit();
+
+        if (ctx != null) {
+            try {
+                submitter.submit(ctx, stage, id, submitFlags, 0, null, null, null, null);
+            } catch (Throwable e) {
+                submitError(e);
+            } finally {
+                leaveSubmit(ctx);
+            }
+        }
+    }
+
+
+    /**
+     * This method is called by spy probes fetching single long value (typically a timestamp),
+     * so instrumented code does not need to box it.
+     *
+     * @param stage       entry, return point or error handling point of spy probe
+     * @param id          spy context ID
+     * @param submitFlags submit flags
+     * @param v0          value fetched by probe
+     */
+    public static void submit(int stage, int id, int submitFlags, long v0) {
+        ThreadContext ctx = enterSubmit();
+
+        if (ctx != null) {
+            try {
+                submitter.submit(ctx, stage, id, submitFlags, v0);
+            } catch (Throwable e) {
+                submitError(e);
+            } finally {
+                leaveSubmit(ctx);
+            }
+        }
+    }
+
+
+    /**
+     * This method is called by spy probes fetching one value.
+     *
+     * @param stage       entry, return point or error handling point of spy probe
+     * @param id          spy context ID
+     * @param submitFlags submit flags
+     * @param v0          value fetched by probe
+     */
+    public static void submit(int stage, int id, int submitFlags, Object v0) {
+        ThreadContext ctx = enterSubmit();
+
+        if (ctx != null) {
+            try {
+                submitter.submit(ctx, stage, id, submitFlags, 1, v0, null, null, null);
+            } catch (Throwable e) {
+                submitError(e);
+            } finally {
+                leaveSubmit(ctx);
+            }
+        }
+    }
+
+
+    /**
+     * This method is called by spy probes fetching two values.
+     *
+     * @param stage       entry, return point or error handling point of spy probe
+     * @param id          spy context ID
+     * @param submitFlags submit flags
+     * @param v0          first value fetched by probe
+     * @param v1          second value fetched by probe
+     */
+    public static void submit(int stage, int id, int submitFlags, Object v0, Object v1) {
+        ThreadContext ctx = enterSubmit();
+
+        if (ctx != null) {
+            try {
+                submitter.submit(ctx, stage, id, submitFlags, 2, v0, v1, null, null);
+            } catch (Throwable e) {
+                submitError(e);
+            } finally {
+                leaveSubmit(ctx);
+            }
+        }
+    }
+
+
+    /**
+     * This method is called by spy probes fetching three values.
+     *
+     * @param stage       entry, return point or error handling point of spy probe
+     * @param id          spy context ID
+     * @param submitFlags submit flags
+     * @param v0          first value fetched by probe
+     * @param v1          second value fetched by probe
+     * @param v2          third value fetched by probe
+     */
+    public static void submit(int stage, int id, int submitFlags, Object v0, Object v1, Object v2) {
+        ThreadContext ctx = enterSubmit();
+
+        if (ctx != null) {
+            try {
+                submitter.submit(ctx, stage, id, submitFlags, 3, v0, v1, v2, null);
+            } catch (Throwable e) {
+                submitError(e);
+            } finally {
+                leaveSubmit(ctx);
+            }
+        }
+    }
+
+
+    /**
+     * This method is called by spy probes fetching four values.
+     *
+     * @param stage       entry, return point or error handling point of spy probe
+     * @param id          spy context ID
+     * @param submitFlags submit flags
+     * @param v0          first value fetched by probe
+     * @param v1          second value fetched by probe
+     * @param v2          third value fetched by probe
+     * @param v3          fourth value fetched by probe
+     */
+    public static void submit(int stage, int id, int submitFlags, Object v0, Object v1, Object v2, Object v3) {
+        ThreadContext ctx = enterSubmit();
 
-        if (inSubmit.get()) {
-            return;
+        if (ctx != null) {
+            try {
+                submitter.submit(ctx, stage, id, submitFlags, 4, v0, v1, v2, v3);
+            } catch (Throwable e) {
+                submitError(e);
+            } finally {
+                leaveSubmit(ctx);
+            }
         }
+    }
+
+
+    /**
+     * This method is called by inlined statistics probes on method return.
+     *
+     * @param id     spy context ID
+     * @param tstart method entry timestamp
+     */
+    public static void logCall(int id, long tstart) {
+        long t = System.nanoTime() - tstart;
 
         try {
-            tracer.getHandler().disable();
-            if (submitter != null) {
-                inSubmit.set(true);
-                submitter.submit(stage, id, submitFlags, vals);
+            MethodCallStatistic[] stats = statistics;
+            if (id < stats.length && stats[id] != null) {
+                stats[id].logCall(t);
             }
-        } catch (EvalError e) {
-            log.debug(ZorkaLogger.ZSP_ERRORS, "Error submitting value from instrumented code: ", e);
-            AgentDiagnostics.inc(AgentDiagnostics.SPY_ERRORS);
         } catch (Throwable e) {
-            log.debug(ZorkaLogger.ZSP_ERRORS, "Error submitting value from instrumented code: ", e);
-            AgentDiagnostics.inc(AgentDiagnostics.SPY_ERRORS);
-        } finally {
-            inSubmit.set(false);
-            tracer.getHandler().enable();
+            submitError(e);
         }
     }
 
 
+    /**
+     * This method is called by inlined statistics probes on method error.
+     *
+     * @param id     spy context ID
+     * @param tstart method entry timestamp
+     */
+    public static void logError(int id, long tstart) {
+        long t = System.nanoTime() - tstart;
+
+        try {
+            MethodCallStatistic[] stats = statistics;
+            if (id < stats.length && stats[id] != null) {
+                stats[id].logError(t);
+            }
+        } catch (Throwable e) {
+            submitError(e);
+        }
+    }
+
+
+    /**
+     * Marks current thread as submitting and disables tracer for submission time. Returns null
+     * if there is no submitter configured or current thread is already submitting something
+     * (eg. when instrumented code is called by processors).
+     *
+     * @return context of current thread (to be passed to leaveSubmit())
+     */
+    private static ThreadContext enterSubmit() {
+        if (submitter == null) {
+            return null;
+        }
+
+        ThreadContext ctx = ThreadContext.get();
+
+        if (ctx.inSubmit) {
+            return null;
+        }
+
+        ctx.getHandler(tracer).disable();
+        ctx.inSubmit = true;
+
+        return ctx;
+    }
+
+
+    private static void leaveSubmit(ThreadContext ctx) {
+        ctx.inSubmit = false;
+        ctx.getHandler(tracer).enable();
+    }
+
+
+    private static void submitError(Throwable e) {
+        log.debug(ZorkaLogger.ZSP_ERRORS, "Error submitting value from instrumented code: ", e);
+        AgentDiagnostics.inc(AgentDiagnostics.SPY_ERRORS);
+    }
+
+
     /**
      * This method is called by tracer probes at method start.
      *
@@ -95,7 +305,7 @@ public class MainSubmitter {
 
         if (tracer != null) {
             try {
-                tracer.getHandler().traceEnter(classId, methodId, signatureId, System.nanoTime());
+                ThreadContext.get().getHandler(tracer).traceEnter(classId, methodId, signatureId, System.nanoTime());
             } catch (Throwable e) {
                 log.debug(ZorkaLogger.ZTR_TRACE_ERRORS, "Error executing traceEnter", e);
                 AgentDiagnostics.inc(AgentDiagnostics.TRACER_ERRORS);
@@ -114,7 +324,7 @@ public class MainSubmitter {
 
         if (tracer != null) {
             try {
-                tracer.getHandler().traceReturn(System.nanoTime());
+                ThreadContext.get().getHandler(tracer).traceReturn(System.nanoTime());
             } catch (Throwable e) {
                 log.debug(ZorkaLogger.ZTR_TRACE_ERRORS, "Error executing traceReturn", e);
                 AgentDiagnostics.inc(AgentDiagnostics.TRACER_ERRORS);
@@ -135,7 +345,7 @@ public class MainSubmitter {
 
         if (tracer != null) {
             try {
-                tracer.getHandler().traceError(exception, System.nanoTime());
+                ThreadContext.get().getHandler(tracer).traceError(exception, System.nanoTime());
             } catch (Throwable e) {
                 log.debug(ZorkaLogger.ZTR_TRACE_ERRORS, "Error executing traceError", e);
                 AgentDiagnostics.inc(AgentDiagnostics.TRACER_ERRORS);
@@ -155,6 +365,31 @@ public class MainSubmitter {
     }
 
 
+    /**
+     * Sets statistic updated by inlined probes of given spy context.
+     *
+     * @param id        spy context ID
+     * @param statistic method call statistic (or null to stop collecting)
+     */
+    public static synchronized void registerStatistic(int id, MethodCallStatistic statistic) {
+        MethodCallStatistic[] stats = statistics;
+
+        if (id >= stats.length) {
+            if (statistic == null) {
+                return;
+            }
+            MethodCallStatistic[] newStats = new MethodCallStatistic[max(id + 1, stats.length * 2)];
+            System.arraycopy(stats, 0, newStats, 0, stats.length);
+            stats = newStats;
+        } else {
+            stats = ZorkaUtil.copyArray(stats);
+        }
+
+        stats[id] = statistic;
+        statistics = stats;
+    }
+
+
     /**
      * Sets backing trace event handler.
      *
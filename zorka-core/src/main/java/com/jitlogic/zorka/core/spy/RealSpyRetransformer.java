@@ -24,6 +24,7 @@ import java.lang.instrument.Instrumentation;
 import java.lang.instrument.UnmodifiableClassException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 public class RealSpyRetransformer implements SpyRetransformer {
 
@@ -64,6 +65,30 @@ public class RealSpyRetransformer implements SpyRetransformer {
             }
         }
 
+        return retransform(classes);
+    }
+
+
+    @Override
+    public boolean retransform(Set<String> classNames) {
+        if (instrumentation == null || !instrumentation.isRetransformClassesSupported()) {
+            log.warn(ZorkaLogger.ZSP_CONFIG, "Class retransform is not supported. Skipping.");
+            return false;
+        }
+
+        List<Class<?>> classes = new ArrayList<Class<?>>();
+
+        for (Class<?> clazz : instrumentation.getAllLoadedClasses()) {
+            if (classNames.contains(clazz.getName()) && instrumentation.isModifiableClass(clazz)) {
+                classes.add(clazz);
+            }
+        }
+
+        return retransform(classes);
+    }
+
+
+    private boolean retransform(List<Class<?>> classes) {
         if (classes.size() > 0) {
 
             log.info(ZorkaLogger.ZSP_CONFIG, "Retransforming " + classes.size() + " classes.");
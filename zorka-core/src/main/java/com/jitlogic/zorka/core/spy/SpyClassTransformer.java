@@ -31,6 +31,8 @@ import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * This is main class transformer installed in JVM by Zorka agent (see premain() method).
@@ -44,28 +46,54 @@ public class SpyClassTransformer implements ClassFileTransformer {
      */
     private final ZorkaLog log = ZorkaLogger.getLog(this.getClass());
 
+    /**
+     * Initial size of spy context array
+     */
+    private static final int INITIAL_CTX_SLOTS = 1024;
+
     /**
      * All spy defs configured
      */
     private Map<String, SpyDefinition> sdefs = new LinkedHashMap<String, SpyDefinition>();
 
+    /**
+     * Class name index of spy definitions (rebuilt every time spy definitions change)
+     */
+    private volatile SdefIndex sdefIndex = new SdefIndex(new SpyDefinition[0]);
+
+    /**
+     * Class name index of tracer matchers (rebuilt when tracer matcher set changes)
+     */
+    private volatile SpyMatcherIndex tracerIndex;
+
 
     /**
      * SpyContext counter.
      */
-    private int nextId = 1;
+    private AtomicInteger nextId = new AtomicInteger(1);
 
     /**
-     * Map of spy contexts (by ID)
+     * Spy contexts indexed directly by ID. Array is replaced by a bigger copy when it runs out
+     * of space, so readers (probes submitting data) never take locks.
      */
-    private Map<Integer, SpyContext> ctxById = new ConcurrentHashMap<Integer, SpyContext>();
+    private volatile AtomicReferenceArray<SpyContext> ctxById = new AtomicReferenceArray<SpyContext>(INITIAL_CTX_SLOTS);
+
+    /**
+     * Serializes context array stores and grows
+     */
+    private final Object ctxLock = new Object();
 
     private int writerFlags;
 
+    /**
+     * If true, pure statistics collecting sdefs will be handled by inlined probes (see SpyMethodVisitor)
+     */
+    private boolean inlineStats;
+
     /**
      * Map of spy contexts (by instance)
      */
-    private Map<SpyContext, SpyContext> ctxInstances = new HashMap<SpyContext, SpyContext>();
+    private ConcurrentHashMap<SpyContext, SpyContext> ctxInstances = new ConcurrentHashMap<SpyContext, SpyContext>();
 
     private ThreadLocal<Boolean> transformLock = new ThreadLocal<Boolean>();
 
@@ -107,11 +135,27 @@ public class SpyClassTransformer implements ClassFileTransformer {
     }
 
 
+    public boolean isInlineStats() {
+        return inlineStats;
+    }
+
+
+    /**
+     * Enables or disables inlining of pure statistics collecting sdefs. Only classes transformed afterwards are affected.
+     *
+     * @param inlineStats true to enable inlining
+     */
+    public void setInlineStats(boolean inlineStats) {
+        this.inlineStats = inlineStats;
+    }
+
+
     /**
      * Returns context by its ID
      */
     public SpyContext getContext(int id) {
-        return ctxById.get(id);
+        AtomicReferenceArray<SpyContext> ctxs = ctxById;
+        return id < ctxs.length() ? ctxs.get(id) : null;
     }
 
 
@@ -126,15 +170,60 @@ public class SpyClassTransformer implements ClassFileTransformer {
      *         TODO BUG one context ID refers only to one sdef, so using multiple sdefs on a single method will result errors (submitting data from all probes only to first one)
      */
     public SpyContext lookup(SpyContext keyCtx) {
-        synchronized (this) { // TODO get rid of synchronized, use
-            SpyContext ctx = ctxInstances.get(keyCtx);
+        SpyContext ctx = ctxInstances.get(keyCtx);
+
+        if (ctx == null) {
+            int id = nextId.getAndIncrement();
+            keyCtx.setId(id);
+
+            // Context must be reachable by ID before any other thread can see (and use) it
+            putContext(id, keyCtx);
+
+            ctx = ctxInstances.putIfAbsent(keyCtx, keyCtx);
+
             if (ctx == null) {
                 ctx = keyCtx;
-                ctx.setId(nextId++);
-                ctxInstances.put(ctx, ctx);
-                ctxById.put(ctx.getId(), ctx);
+            } else {
+                // Lost race with other thread, this ID will be left unused
+                putContext(id, null);
+            }
+        }
+
+        return ctx;
+    }
+
+
+    /**
+     * Stores context in context array. Array is grown (and replaced) if needed. Stores and grows are
+     * performed under the same lock, so no store can be lost while array is being copied. Readers
+     * (getContext()) don't need to lock.
+     *
+     * @param id  context ID
+     *
+     * @param ctx spy context
+     */
+    private void putContext(int id, SpyContext ctx) {
+        synchronized (ctxLock) {
+            AtomicReferenceArray<SpyContext> ctxs = ctxById;
+
+            if (id >= ctxs.length()) {
+                int len = ctxs.length();
+
+                while (len <= id) {
+                    len *= 2;
+                }
+
+                AtomicReferenceArray<SpyContext> nctxs = new AtomicReferenceArray<SpyContext>(len);
+
+                for (int i = 0; i < ctxs.length(); i++) {
+                    nctxs.set(i, ctxs.get(i));
+                }
+
+                nctxs.set(id, ctx);
+                ctxById = nctxs;
+            } else {
+                ctxs.set(id, ctx);
             }
-            return ctx;
         }
     }
 
@@ -152,7 +241,10 @@ public class SpyClassTransformer implements ClassFileTransformer {
         log.info(ZorkaLogger.ZSP_CONFIG, (osdef == null ? "Adding " : "Replacing ")
                 + sdef.getName() + " spy definition.");
 
-        boolean shouldRetransform = osdef != null && !osdef.sameProbes(sdef) && !retransformer.isEnabled();
+        boolean sameCode = osdef != null && osdef.sameProbes(sdef) && (!inlineStats ||
+                (osdef.getInlineStatsCollector() == null) == (sdef.getInlineStatsCollector() == null));
+
+        boolean shouldRetransform = osdef != null && !sameCode && !retransformer.isEnabled();
 
         if (shouldRetransform) {
             log.warn(ZorkaLogger.ZSP_CONFIG, "Cannot overwrite spy definition '" + osdef.getName()
@@ -161,8 +253,9 @@ public class SpyClassTransformer implements ClassFileTransformer {
         }
 
         sdefs.put(sdef.getName(), sdef);
+        rebuildIndex();
 
-        if (retransformer.isEnabled() && (osdef == null || !osdef.sameProbes(sdef))) {
+        if (retransformer.isEnabled() && !sameCode) {
             retransformer.retransform(osdef != null ? osdef.getMatcherSet() : null, sdef.getMatcherSet(), true);
         } else {
             log.info(ZorkaLogger.ZSP_CONFIG, "Probes didn't change for " + sdef.getName() + ". Retransform not needed.");
@@ -173,6 +266,10 @@ public class SpyClassTransformer implements ClassFileTransformer {
                 SpyContext ctx = e.getValue();
                 if (ctx.getSpyDefinition() == osdef) {
                     ctx.setSpyDefinition(sdef);
+                    if (sameCode && inlineStats && sdef.getInlineStatsCollector() != null) {
+                        // Inlined probes are not retransformed, so they have to be pointed to new statistic
+                        MainSubmitter.registerStatistic(ctx.getId(), sdef.getInlineStatsCollector().getStatistic(ctx));
+                    }
                 }
             }
         }
@@ -194,21 +291,17 @@ public class SpyClassTransformer implements ClassFileTransformer {
             log.info(ZorkaLogger.ZSP_CONFIG, "Removing spy definition: " + sdef.getName());
 
             sdefs.remove(sdef.getName());
+            rebuildIndex();
 
-            Set<SpyContext> ctxs = new HashSet<SpyContext>();
-            Set<Integer> ids = new HashSet<Integer>();
-
-            for (Map.Entry<Integer, SpyContext> e : ctxById.entrySet()) {
-                ids.add(e.getKey());
-                ctxs.add(e.getValue());
-            }
+            AtomicReferenceArray<SpyContext> ctxs = ctxById;
 
-            for (Integer id : ids) {
-                ctxById.remove(id);
-            }
-
-            for (SpyContext ctx : ctxs) {
-                ctxInstances.remove(ctx);
+            for (int id = 0; id < ctxs.length(); id++) {
+                SpyContext ctx = ctxs.get(id);
+                if (ctx != null) {
+                    ctxInstances.remove(ctx);
+                    ctxs.set(id, null);
+                    MainSubmitter.registerStatistic(id, null);
+                }
             }
 
             if (retransformer.isEnabled()) {
@@ -221,6 +314,32 @@ public class SpyClassTransformer implements ClassFileTransformer {
     }
 
 
+    /**
+     * Rebuilds class name index of spy definitions. Must be called every time spy definitions change.
+     */
+    private synchronized void rebuildIndex() {
+        sdefIndex = new SdefIndex(sdefs.values().toArray(new SpyDefinition[sdefs.size()]));
+    }
+
+
+    /**
+     * Returns class name index of tracer matchers, rebuilding it if tracer configuration has changed.
+     *
+     * @return tracer index
+     */
+    private SpyMatcherIndex getTracerIndex() {
+        SpyMatcherIndex index = tracerIndex;
+        SpyMatcherSet matcherSet = tracer.getMatcherSet();
+
+        if (index == null || index.getMatcherSet(0) != matcherSet) {
+            index = new SpyMatcherIndex(Collections.singletonList(matcherSet));
+            tracerIndex = index;
+        }
+
+        return index;
+    }
+
+
     public SpyDefinition getSdef(String name) {
         return sdefs.get(name);
     }
@@ -259,10 +378,11 @@ public class SpyClassTransformer implements ClassFileTransformer {
         }
 
         long st1 = System.nanoTime();
-        for (Map.Entry<String, SpyDefinition> e : sdefs.entrySet()) {
-            SpyDefinition sdef = e.getValue();
-            if (sdef.getMatcherSet().classMatch(clazzName)) {
-                found.add(sdef);
+        SdefIndex si = sdefIndex;
+        boolean[] matches = si.index.classMatch(clazzName);
+        for (int i = 0; i < si.sdefs.length; i++) {
+            if (matches[i]) {
+                found.add(si.sdefs[i]);
             }
         }
         long st2 = System.nanoTime();
@@ -270,7 +390,7 @@ public class SpyClassTransformer implements ClassFileTransformer {
         spyLookups.logCall(st2 - st1);
 
         long lt1 = System.nanoTime();
-        boolean tracerMatch = tracer.getMatcherSet().classMatch(clazzName);
+        boolean tracerMatch = getTracerIndex().classMatch(clazzName)[0];
         long lt2 = System.nanoTime();
 
         tracerLookups.logCall(lt2 - lt1);
@@ -289,7 +409,8 @@ public class SpyClassTransformer implements ClassFileTransformer {
             ClassReader cr = new ClassReader(classfileBuffer);
             ClassWriter cw = new ClassWriter(cr, writerFlags);
             ClassVisitor scv = createVisitor(classLoader, clazzName, found, tracer, cw);
-            cr.accept(scv, 0);
+            // Inlined probes add local variables, so frames have to be either recomputed or passed in expanded form
+            cr.accept(scv, inlineStats && writerFlags == 0 ? ClassReader.EXPAND_FRAMES : 0);
             buf = cw.toByteArray();
 
             long tt2 = System.nanoTime();
@@ -316,4 +437,25 @@ public class SpyClassTransformer implements ClassFileTransformer {
         return new SpyClassVisitor(this, classLoader, symbolRegistry, className, found, tracer, cw);
     }
 
+
+    /**
+     * Spy definitions along with their class name index.
+     */
+    private static class SdefIndex {
+
+        private final SpyDefinition[] sdefs;
+
+        private final SpyMatcherIndex index;
+
+        private SdefIndex(SpyDefinition[] sdefs) {
+            List<SpyMatcherSet> matcherSets = new ArrayList<SpyMatcherSet>(sdefs.length);
+
+            for (SpyDefinition sdef : sdefs) {
+                matcherSets.add(sdef.getMatcherSet());
+            }
+
+            this.sdefs = sdefs;
+            this.index = new SpyMatcherIndex(matcherSets);
+        }
+    }
 }
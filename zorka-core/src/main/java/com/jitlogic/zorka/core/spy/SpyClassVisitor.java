@@ -192,7 +192,8 @@ public class SpyClassVisitor extends ClassVisitor {
 
         if (ctxs.size() > 0 || doTrace) {
             return new SpyMethodVisitor(m, doTrace ? symbolRegistry : null, className,
-                    classAnnotations, classInterfaces, access, methodName, methodDesc, ctxs, mv);
+                    classAnnotations, classInterfaces, access, methodName, methodDesc, ctxs,
+                    transformer.isInlineStats(), mv);
         }
 
         return mv;
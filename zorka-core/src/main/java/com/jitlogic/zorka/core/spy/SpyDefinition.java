@@ -17,6 +17,8 @@
 package com.jitlogic.zorka.core.spy;
 
 import com.jitlogic.zorka.common.util.ZorkaUtil;
+import com.jitlogic.zorka.core.spy.plugins.TimeDiffProcessor;
+import com.jitlogic.zorka.core.spy.plugins.ZorkaStatsCollector;
 
 import java.util.*;
 
@@ -58,6 +60,16 @@ public class SpyDefinition {
      */
     private SpyMatcherSet matcherSet = new SpyMatcherSet();
 
+    /**
+     * If true, submitter will use recycled, array backed records (see SpyRecord) for this sdef.
+     */
+    private boolean compiled;
+
+    /**
+     * Record layout (compiled lazily when first record is created)
+     */
+    private volatile SpyRecordLayout recordLayout;
+
     /**
      * Creates partially configured spy definition that is suitable for measuring
      * method execution times.
@@ -103,6 +115,7 @@ public class SpyDefinition {
         this.probes = ZorkaUtil.copyArray(orig.probes);
         this.processors = ZorkaUtil.copyArray(orig.processors);
         this.matcherSet = new SpyMatcherSet(orig.matcherSet);
+        this.compiled = orig.compiled;
     }
 
 
@@ -136,6 +149,63 @@ public class SpyDefinition {
         return name;
     }
 
+
+    /**
+     * Returns true if this sdef works in compiled record mode.
+     *
+     * @return true if records are compiled
+     */
+    public boolean isCompiled() {
+        return compiled;
+    }
+
+
+    /**
+     * Instructs submitter to use compiled records for this sdef. Field names are resolved to
+     * slot indexes at configuration time and records are recycled after processing, so submissions
+     * do not allocate anything on common path. Processors and collectors attached to compiled sdef
+     * must not retain references to records passed to them.
+     *
+     * @return augmented spy definition
+     */
+    public SpyDefinition compiled() {
+        SpyDefinition sdef = new SpyDefinition(this);
+        sdef.compiled = true;
+        return sdef;
+    }
+
+
+    /**
+     * Returns record layout for this sdef.
+     *
+     * @return record layout
+     */
+    public SpyRecordLayout getRecordLayout() {
+        SpyRecordLayout layout = recordLayout;
+
+        if (layout == null) {
+            synchronized (this) {
+                if (recordLayout == null) {
+                    recordLayout = new SpyRecordLayout(this);
+                }
+                layout = recordLayout;
+            }
+        }
+
+        return layout;
+    }
+
+
+    /**
+     * Adds field to record layout. Called when processor puts field not declared by probes
+     * into compiled record, so subsequent records can keep it in a slot.
+     *
+     * @param field field name
+     */
+    public synchronized void extendRecordLayout(String field) {
+        recordLayout = getRecordLayout().extend(this, field);
+    }
+
     /**
      * Instructs spy what should be collected at the beginning of a method.
      *
@@ -244,6 +314,47 @@ public class SpyDefinition {
     }
 
 
+    /**
+     * Returns statistics collector if this sdef only measures execution time (time probes on entry, return
+     * and optionally error, time difference and zorka statistics collector in submit chain) and statistic
+     * depends only on spy context. Such sdefs are handled by inlined probes and skip submitter altogether.
+     *
+     * @return statistics collector or null if sdef is not suitable for inlining
+     */
+    public ZorkaStatsCollector getInlineStatsCollector() {
+        List<SpyProbe> enter = getProbes(ON_ENTER), ret = getProbes(ON_RETURN), err = getProbes(ON_ERROR);
+
+        if (enter.size() != 1 || !(enter.get(0) instanceof SpyTimeProbe)
+                || ret.size() != 1 || !(ret.get(0) instanceof SpyTimeProbe) || err.size() > 1) {
+            return null;
+        }
+
+        String tstart = enter.get(0).getDstField(), tstop = ret.get(0).getDstField();
+
+        if (err.size() == 1 && !(err.get(0) instanceof SpyTimeProbe && tstop.equals(err.get(0).getDstField()))) {
+            return null;
+        }
+
+        if (getProcessors(ON_ENTER).size() > 0 || getProcessors(ON_RETURN).size() > 0
+                || getProcessors(ON_ERROR).size() > 0 || getProbes(ON_SUBMIT).size() > 0) {
+            return null;
+        }
+
+        List<SpyProcessor> processors = getProcessors(ON_SUBMIT);
+
+        if (processors.size() != 2 || !(processors.get(0) instanceof TimeDiffProcessor)
+                || !(processors.get(1) instanceof ZorkaStatsCollector)) {
+            return null;
+        }
+
+        TimeDiffProcessor tdiff = (TimeDiffProcessor) processors.get(0);
+        ZorkaStatsCollector collector = (ZorkaStatsCollector) processors.get(1);
+
+        return tstart.equals(tdiff.getStartField()) && tstop.equals(tdiff.getStopField())
+                && collector.isInlinable(tdiff.getResultField()) ? collector : null;
+    }
+
+
     public boolean sameProbes(SpyDefinition sdef) {
         for (int i = 0; i < 4; i++) {
             if (!ZorkaUtil.objEquals(this.getProbes(i), sdef.getProbes(i))) {
@@ -161,6 +161,7 @@ public class SpyLib {
     public static final int ACTION_STATS = 0x01;
     public static final int ACTION_ENTER = 0x02;
     public static final int ACTION_EXIT = 0x04;
+    public static final int ACTION_STRIPED = 0x08;
 
     public static final String TRACE = "TRACE";
     public static final String DEBUG = "DEBUG";
@@ -583,7 +584,8 @@ public class SpyLib {
      * @param keyExpr         key expression
      * @param timeField       field containing execution time (in nanoseconds)
      * @param throughputField field containing throughput value (or null to skip throughput calculation)
-     * @param actions         which actions will be performed: ENTER, EXIT or STATS (or combination of them)
+     * @param actions         which actions will be performed: ENTER, EXIT or STATS (or combination of them),
+     *                        add STRIPED to use striped counters for heavily contended methods
      * @return collector object
      */
     public SpyProcessor zorkaStats(String mbsName, String beanName, String attrName, String keyExpr,
@@ -97,6 +97,21 @@ public class SpyMatcher {
      */
     public static final int ANY_FILTER = ACC_PUBLIC | ACC_PRIVATE | ACC_PROTECTED | ACC_PKGPRIV;
 
+    /**
+     * Class name pattern is a literal class name
+     */
+    public static final int CM_EXACT = 1;
+
+    /**
+     * Class name pattern is a literal prefix followed by '**' (matches all names starting with prefix)
+     */
+    public static final int CM_PREFIX = 2;
+
+    /**
+     * Class name pattern needs regular expression (literal prefix can still be used to filter candidates)
+     */
+    public static final int CM_REGEX = 3;
+
     /**
      * Access bits and custom matcher flags
      */
@@ -109,6 +124,16 @@ public class SpyMatcher {
 
     private int priority = DEFAULT_PRIORITY;
 
+    /**
+     * Literal prefix of class name pattern (all matching class names start with it)
+     */
+    private String classPrefix = "";
+
+    /**
+     * Class name pattern type (CM_EXACT, CM_PREFIX or CM_REGEX)
+     */
+    private int classMatchType = CM_REGEX;
+
 
     public static SpyMatcher fromString(String strMatch) {
         int priority = DEFAULT_PRIORITY;
@@ -135,6 +160,22 @@ public class SpyMatcher {
     }
 
 
+    /**
+     * Creates matcher matching exactly one method (of given name and descriptor) in given class.
+     *
+     * @param className  class name
+     * @param methodName method name
+     * @param methodDesc method descriptor
+     * @return spy matcher
+     */
+    public static SpyMatcher forMethod(String className, String methodName, String methodDesc) {
+        SpyMatcher m = new SpyMatcher(BY_CLASS_NAME | BY_METHOD_NAME | BY_METHOD_SIGNATURE, 0,
+                className, methodName, null);
+        m.signaturePattern = Pattern.compile(Pattern.quote(methodDesc));
+        return m;
+    }
+
+
     /**
      * Creates spy matcher
      *
@@ -151,6 +192,19 @@ public class SpyMatcher {
         this.classPattern = toSymbolMatch(className);
         this.methodPattern = toSymbolMatch(methodName);
         this.signaturePattern = toDescriptorMatch(retType, argTypes);
+
+        if (className != null && !className.startsWith("~")) {
+            int ix = 0;
+            while (ix < className.length() && "*[]()?+|^{}\\".indexOf(className.charAt(ix)) == -1) {
+                ix++;
+            }
+            classPrefix = className.substring(0, ix);
+            if (ix == className.length()) {
+                classMatchType = CM_EXACT;
+            } else if ("**".equals(className.substring(ix))) {
+                classMatchType = CM_PREFIX;
+            }
+        }
     }
 
 
@@ -166,6 +220,8 @@ public class SpyMatcher {
         this.methodPattern = orig.methodPattern;
         this.signaturePattern = orig.signaturePattern;
         this.priority = orig.priority;
+        this.classPrefix = orig.classPrefix;
+        this.classMatchType = orig.classMatchType;
     }
 
 
@@ -346,6 +402,16 @@ public class SpyMatcher {
     }
 
 
+    public String getClassPrefix() {
+        return classPrefix;
+    }
+
+
+    public int getClassMatchType() {
+        return classMatchType;
+    }
+
+
     /**
      * Marks trace as inverted trace (matching methods will be excluded rathern than included).
      *
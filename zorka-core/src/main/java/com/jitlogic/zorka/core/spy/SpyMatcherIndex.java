@@ -0,0 +1,233 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.spy;
+
+import java.util.*;
+
+import static com.jitlogic.zorka.core.spy.SpyMatcher.*;
+
+/**
+ * Precompiled class name index over a number of matcher sets. Class name matchers are placed
+ * in a trie by literal prefixes of their patterns, so for a given class name only matchers
+ * whose prefixes match are examined. Literal class names and 'prefix.**' patterns are
+ * matched without regular expressions. Index gives the same results as calling
+ * SpyMatcherSet.classMatch() on each matcher set (first matcher that decides wins).
+ * <p/>
+ * Index is immutable, so it has to be rebuilt when configuration changes.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class SpyMatcherIndex {
+
+    /**
+     * Entry type: matcher decides regardless of class name (annotation and interface matchers)
+     */
+    private static final int CM_ALWAYS = 0;
+
+    /**
+     * Matcher sets index has been built from
+     */
+    private final SpyMatcherSet[] matcherSets;
+
+    /**
+     * Trie root
+     */
+    private final Node root;
+
+
+    /**
+     * Builds index.
+     *
+     * @param matcherSets matcher sets (results of classMatch() will be in the same order)
+     */
+    public SpyMatcherIndex(List<SpyMatcherSet> matcherSets) {
+        this.matcherSets = matcherSets.toArray(new SpyMatcherSet[matcherSets.size()]);
+
+        BuildNode broot = new BuildNode();
+
+        for (int set = 0; set < this.matcherSets.length; set++) {
+            List<SpyMatcher> matchers = this.matcherSets[set].getMatchers();
+            for (int order = 0; order < matchers.size(); order++) {
+                SpyMatcher m = matchers.get(order);
+                if (m.hasFlags(BY_CLASS_ANNOTATION | BY_INTERFACE | BY_METHOD_ANNOTATION)) {
+                    broot.entries.add(new Entry(set, order, m, CM_ALWAYS));
+                } else if (m.hasFlags(BY_CLASS_NAME)) {
+                    BuildNode n = broot;
+                    String prefix = m.getClassPrefix();
+                    for (int i = 0; i < prefix.length(); i++) {
+                        n = n.child(prefix.charAt(i));
+                    }
+                    n.entries.add(new Entry(set, order, m, m.getClassMatchType()));
+                }
+            }
+        }
+
+        root = broot.compile();
+    }
+
+
+    /**
+     * Returns number of matcher sets in this index.
+     *
+     * @return number of matcher sets
+     */
+    public int size() {
+        return matcherSets.length;
+    }
+
+
+    /**
+     * Returns matcher set index has been built from.
+     *
+     * @param set matcher set index
+     *
+     * @return matcher set
+     */
+    public SpyMatcherSet getMatcherSet(int set) {
+        return matcherSets[set];
+    }
+
+
+    /**
+     * Checks class name against all matcher sets.
+     *
+     * @param className class name
+     *
+     * @return array of results (in the same order as matcher sets index has been built from)
+     */
+    public boolean[] classMatch(String className) {
+        int[] best = new int[matcherSets.length];
+        SpyMatcher[] found = new SpyMatcher[matcherSets.length];
+
+        Arrays.fill(best, Integer.MAX_VALUE);
+
+        Node n = root;
+        int len = className.length();
+
+        for (int depth = 0; n != null; depth++) {
+
+            for (Entry e : n.entries) {
+                if (e.order < best[e.set] && e.matches(className, depth, len)) {
+                    best[e.set] = e.order;
+                    found[e.set] = e.matcher;
+                }
+            }
+
+            n = depth < len ? n.child(className.charAt(depth)) : null;
+        }
+
+        boolean[] rslt = new boolean[matcherSets.length];
+
+        for (int i = 0; i < rslt.length; i++) {
+            rslt[i] = found[i] != null && SpyMatcherSet.finalClassMatch(found[i]);
+        }
+
+        return rslt;
+    }
+
+
+    /**
+     * Matcher placed in index.
+     */
+    private static class Entry {
+
+        private final int set, order, type;
+
+        private final SpyMatcher matcher;
+
+        private Entry(int set, int order, SpyMatcher matcher, int type) {
+            this.set = set;
+            this.order = order;
+            this.matcher = matcher;
+            this.type = type;
+        }
+
+        /**
+         * Checks class name (its prefix of given length has been already matched by trie).
+         */
+        private boolean matches(String className, int depth, int len) {
+            switch (type) {
+                case CM_ALWAYS:
+                    return true;
+                case CM_EXACT:
+                    return depth == len;
+                case CM_PREFIX:
+                    return len > depth;
+                default:
+                    return matcher.getClassPattern().matcher(className).matches();
+            }
+        }
+    }
+
+
+    /**
+     * Compiled trie node (child characters are sorted, so children can be found using binary search).
+     */
+    private static class Node {
+
+        private final char[] chars;
+
+        private final Node[] children;
+
+        private final Entry[] entries;
+
+        private Node(char[] chars, Node[] children, Entry[] entries) {
+            this.chars = chars;
+            this.children = children;
+            this.entries = entries;
+        }
+
+        private Node child(char ch) {
+            int ix = Arrays.binarySearch(chars, ch);
+            return ix >= 0 ? children[ix] : null;
+        }
+    }
+
+
+    /**
+     * Trie node used when building index.
+     */
+    private static class BuildNode {
+
+        private final TreeMap<Character, BuildNode> children = new TreeMap<Character, BuildNode>();
+
+        private final List<Entry> entries = new ArrayList<Entry>();
+
+        private BuildNode child(char ch) {
+            BuildNode n = children.get(ch);
+            if (n == null) {
+                n = new BuildNode();
+                children.put(ch, n);
+            }
+            return n;
+        }
+
+        private Node compile() {
+            char[] chars = new char[children.size()];
+            Node[] nodes = new Node[children.size()];
+
+            int i = 0;
+            for (Map.Entry<Character, BuildNode> e : children.entrySet()) {
+                chars[i] = e.getKey();
+                nodes[i] = e.getValue().compile();
+                i++;
+            }
+
+            return new Node(chars, nodes, entries.toArray(new Entry[entries.size()]));
+        }
+    }
+}
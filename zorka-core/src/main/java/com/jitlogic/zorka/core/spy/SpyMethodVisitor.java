@@ -18,12 +18,15 @@
 package com.jitlogic.zorka.core.spy;
 
 import com.jitlogic.zorka.common.stats.AgentDiagnostics;
+import com.jitlogic.zorka.common.stats.MethodCallStatistic;
 import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
 import com.jitlogic.zorka.common.util.ZorkaLog;
 import com.jitlogic.zorka.common.util.ZorkaLogger;
+import com.jitlogic.zorka.core.spy.plugins.ZorkaStatsCollector;
 import org.objectweb.asm.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import static org.objectweb.asm.Opcodes.*;
@@ -52,12 +55,24 @@ public class SpyMethodVisitor extends MethodVisitor {
      */
     private final static String SUBMIT_METHOD = "submit";
     private final static String SUBMIT_SIGNATURE = "(III[Ljava/lang/Object;)V";
+    private final static String SUBMIT_LONG_SIGNATURE = "(IIIJ)V";
+    private final static int SUBMIT_MAX_ARGS = 4;
+    private final static String[] SUBMIT_SIGNATURES = {
+            "(III)V",
+            "(IIILjava/lang/Object;)V",
+            "(IIILjava/lang/Object;Ljava/lang/Object;)V",
+            "(IIILjava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)V",
+            "(IIILjava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)V"
+    };
     private static final String ENTER_METHOD = "traceEnter";
     private static final String ENTER_SIGNATURE = "(III)V";
     private static final String RETURN_METHOD = "traceReturn";
     private static final String RETURN_SIGNATURE = "()V";
     private static final String ERROR_METHOD = "traceError";
     private static final String ERROR_SIGNATURE = "(Ljava/lang/Throwable;)V";
+    private static final String LOG_CALL_METHOD = "logCall";
+    private static final String LOG_ERROR_METHOD = "logError";
+    private static final String LOG_SIGNATURE = "(IJ)V";
 
     /**
      * Access flags of (instrumented) method
@@ -141,6 +156,26 @@ public class SpyMethodVisitor extends MethodVisitor {
 
     private int spyProbesEmitted = 0, tracerProbesEmitted = 0;
 
+    /**
+     * If true, pure statistics collecting contexts will be handled by inlined probes (see emitInlineEnter()).
+     */
+    private boolean inlineStats;
+
+    /**
+     * Local variable slots keeping start timestamps of inlined contexts (indexed as ctxs, -1 if context is not inlined)
+     */
+    private int[] inlineSlots;
+
+    /**
+     * First local variable slot reserved for inlined probes (slot just after method arguments)
+     */
+    private int inlineBase;
+
+    /**
+     * Number of local variable slots reserved for inlined probes. Method's own local variables are shifted by this.
+     */
+    private int inlineShift;
+
     /**
      * Standard constructor.
      *
@@ -149,13 +184,14 @@ public class SpyMethodVisitor extends MethodVisitor {
      * @param methodName      method name
      * @param methodSignature method descriptor
      * @param ctxs            spy contexts interested in receiving data from this visitor
+     * @param inlineStats     true if pure statistics collecting contexts should be handled by inlined probes
      * @param mv              method visitor (next in processing chain)
      *                        TODO add explicit doTrace argument
      */
     public SpyMethodVisitor(boolean matches, SymbolRegistry symbolRegistry,
                             String className, List<String> classAnnotations, List<String> classInterfaces,
                             int access, String methodName, String methodSignature,
-                            List<SpyContext> ctxs, MethodVisitor mv) {
+                            List<SpyContext> ctxs, boolean inlineStats, MethodVisitor mv) {
         super(Opcodes.ASM4, mv);
         this.matches = matches;
         this.symbolRegistry = symbolRegistry;
@@ -166,6 +202,7 @@ public class SpyMethodVisitor extends MethodVisitor {
         this.methodName = methodName;
         this.methodSignature = methodSignature;
         this.ctxs = ctxs;
+        this.inlineStats = inlineStats;
 
         argTypes = Type.getArgumentTypes(methodSignature);
         returnType = Type.getReturnType(methodSignature);
@@ -228,6 +265,9 @@ public class SpyMethodVisitor extends MethodVisitor {
                     access, methodName, methodSignature, annotations));
         }
 
+        if (inlineStats) {
+            allocInlineSlots();
+        }
 
         // Emit trace probe if required
         if (symbolRegistry != null) {
@@ -246,7 +286,9 @@ public class SpyMethodVisitor extends MethodVisitor {
             }
             SpyContext ctx = ctxs.get(i);
             SpyDefinition sdef = ctx.getSpyDefinition();
-            if (sdef.getProbes(ON_ENTER).size() > 0 || sdef.getProcessors(ON_ENTER).size() > 0) {
+            if (isInlined(i)) {
+                stackDelta = max(stackDelta, emitInlineEnter(i));
+            } else if (sdef.getProbes(ON_ENTER).size() > 0 || sdef.getProcessors(ON_ENTER).size() > 0) {
                 stackDelta = max(stackDelta, emitProbes(ON_ENTER, ctx));
             }
         }
@@ -255,6 +297,57 @@ public class SpyMethodVisitor extends MethodVisitor {
     }
 
 
+    @Override
+    public void visitVarInsn(int opcode, int var) {
+        mv.visitVarInsn(opcode, remapSlot(var));
+    }
+
+
+    @Override
+    public void visitIincInsn(int var, int increment) {
+        mv.visitIincInsn(remapSlot(var), increment);
+    }
+
+
+    @Override
+    public void visitLocalVariable(String name, String desc, String signature, Label start, Label end, int index) {
+        mv.visitLocalVariable(name, desc, signature, start, end, remapSlot(index));
+    }
+
+
+    @Override
+    public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+        if (inlineShift > 0 && (type == F_NEW || type == F_FULL)) {
+            // Timestamp slots are inserted just after method arguments. Compressed frames are not handled here,
+            // so transformer either recomputes frames or reads them in expanded form when inlining is enabled.
+            List<Object> locals = new ArrayList<Object>(nLocal + inlineShift);
+            int idx = 0, slot = 0;
+
+            while (idx < nLocal && slot < inlineBase) {
+                Object t = local[idx++];
+                locals.add(t);
+                slot += (LONG.equals(t) || DOUBLE.equals(t)) ? 2 : 1;
+            }
+
+            for (; slot < inlineBase; slot++) {
+                locals.add(TOP);
+            }
+
+            for (int i = 0; i < inlineShift; i += 2) {
+                locals.add(LONG);
+            }
+
+            while (idx < nLocal) {
+                locals.add(local[idx++]);
+            }
+
+            mv.visitFrame(type, locals.size(), locals.toArray(), nStack, stack);
+        } else {
+            mv.visitFrame(type, nLocal, local, nStack, stack);
+        }
+    }
+
+
     @Override
     public void visitInsn(int opcode) {
         if (opcode >= IRETURN && opcode <= RETURN) {
@@ -270,7 +363,9 @@ public class SpyMethodVisitor extends MethodVisitor {
                 }
                 SpyContext ctx = ctxs.get(i);
                 SpyDefinition sdef = ctx.getSpyDefinition();
-                if (getSubmitFlags(ctx.getSpyDefinition(), ON_ENTER) == SF_NONE ||
+                if (isInlined(i)) {
+                    stackDelta = max(stackDelta, emitInlineExit(i, LOG_CALL_METHOD));
+                } else if (getSubmitFlags(ctx.getSpyDefinition(), ON_ENTER) == SF_NONE ||
                         sdef.getProbes(ON_RETURN).size() > 0 || sdef.getProcessors(ON_RETURN).size() > 0) {
                     stackDelta = max(stackDelta, emitProbes(ON_RETURN, ctx));
                 }
@@ -304,7 +399,11 @@ public class SpyMethodVisitor extends MethodVisitor {
             }
             SpyContext ctx = ctxs.get(i);
             SpyDefinition sdef = ctx.getSpyDefinition();
-            if (getSubmitFlags(ctx.getSpyDefinition(), ON_ENTER) == SF_NONE ||
+            if (isInlined(i)) {
+                if (sdef.getProbes(ON_ERROR).size() > 0) {
+                    stackDelta = max(stackDelta, emitInlineExit(i, LOG_ERROR_METHOD) + 1);
+                }
+            } else if (getSubmitFlags(ctx.getSpyDefinition(), ON_ENTER) == SF_NONE ||
                     sdef.getProbes(ON_ERROR).size() > 0 || sdef.getProcessors(ON_ERROR).size() > 0) {
                 stackDelta = max(stackDelta, emitProbes(ON_ERROR, ctx));
             }
@@ -317,7 +416,7 @@ public class SpyMethodVisitor extends MethodVisitor {
 
         mv.visitInsn(ATHROW);
         mv.visitTryCatchBlock(lTryFrom, lTryTo, lTryHandler, null);
-        mv.visitMaxs(maxStack + stackDelta, max(maxLocals, retValProbeSlot + 1));
+        mv.visitMaxs(maxStack + stackDelta, max(maxLocals + inlineShift, remapSlot(retValProbeSlot) + 1));
 
         if (spyProbesEmitted > 0 || tracerProbesEmitted > 0) {
             AgentDiagnostics.inc(AgentDiagnostics.METHODS_INSTRUMENTED);
@@ -446,33 +545,124 @@ public class SpyMethodVisitor extends MethodVisitor {
         emitLoadInt(ctx.getId());
         emitLoadInt(submitFlags);
 
-        int sd = 3;
+        int sd = 3, ld;
 
-        // Create an array with fetched data (or push null)
-        if (probeElements.size() > 0) {
+        if (probeElements.size() == 1 && (ld = probeElements.get(0).emitLong(this, stage)) >= 0) {
+            // Single long value (eg. timestamp) is passed unboxed
+            sd = max(sd, ld + 3);
+            mv.visitMethodInsn(INVOKESTATIC, SUBMIT_CLASS, SUBMIT_METHOD, SUBMIT_LONG_SIGNATURE);
+        } else if (probeElements.size() <= SUBMIT_MAX_ARGS) {
+            // Up to 4 values are passed directly as arguments, so no array is needed
+            for (int i = 0; i < probeElements.size(); i++) {
+                sd = max(sd, probeElements.get(i).emit(this, stage, 0) + 3 + i);
+            }
+            mv.visitMethodInsn(INVOKESTATIC, SUBMIT_CLASS, SUBMIT_METHOD, SUBMIT_SIGNATURES[probeElements.size()]);
+        } else {
+            // Create an array with fetched data
             emitLoadInt(probeElements.size());
             mv.visitTypeInsn(ANEWARRAY, "java/lang/Object");
             for (int i = 0; i < probeElements.size(); i++) {
-                SpyProbe element = probeElements.get(i);
                 mv.visitInsn(DUP);
                 emitLoadInt(i);
                 sd = max(sd, probeElements.get(i).emit(this, stage, 0) + 6);
                 mv.visitInsn(AASTORE);
             }
-        } else {
-            mv.visitInsn(ACONST_NULL);
-            sd++;
+            mv.visitMethodInsn(INVOKESTATIC, SUBMIT_CLASS, SUBMIT_METHOD, SUBMIT_SIGNATURE);
         }
 
-        // Call MainSubmitter.submit()
-        mv.visitMethodInsn(INVOKESTATIC, SUBMIT_CLASS, SUBMIT_METHOD, SUBMIT_SIGNATURE);
-
         spyProbesEmitted++;
 
         return sd;
     }
 
 
+    /**
+     * Checks which matching contexts can be handled by inlined probes and reserves local variable
+     * slots for their start timestamps. Statistics of such contexts are resolved here and registered
+     * in MainSubmitter, so inlined probes can update them directly.
+     */
+    private void allocInlineSlots() {
+        inlineBase = (access & ACC_STATIC) == 0 ? 1 : 0;
+
+        for (Type t : argTypes) {
+            inlineBase += t.getSize();
+        }
+
+        for (int i = 0; i < ctxs.size(); i++) {
+            if (!ctxMatches.get(i)) {
+                continue;
+            }
+
+            SpyContext ctx = ctxs.get(i);
+            ZorkaStatsCollector collector = ctx.getSpyDefinition().getInlineStatsCollector();
+            MethodCallStatistic statistic = collector != null ? collector.getStatistic(ctx) : null;
+
+            if (statistic != null) {
+                if (inlineSlots == null) {
+                    inlineSlots = new int[ctxs.size()];
+                    Arrays.fill(inlineSlots, -1);
+                }
+                MainSubmitter.registerStatistic(ctx.getId(), statistic);
+                inlineSlots[i] = inlineBase + inlineShift;
+                inlineShift += 2;
+                log.debug(ZorkaLogger.ZSP_METHOD_DBG, "Inlining statistics of %s in %s.%s",
+                        ctx.getSpyDefinition().getName(), className, methodName);
+            }
+        }
+    }
+
+
+    private boolean isInlined(int ctxIdx) {
+        return inlineSlots != null && inlineSlots[ctxIdx] >= 0;
+    }
+
+
+    /**
+     * Translates local variable slot of original method code to slot in instrumented code.
+     *
+     * @param slot original slot
+     * @return slot after reserving space for inlined probes
+     */
+    private int remapSlot(int slot) {
+        return slot >= inlineBase ? slot + inlineShift : slot;
+    }
+
+
+    /**
+     * Emits inlined probe on method entry: start timestamp is saved in reserved local variable slot.
+     *
+     * @param ctxIdx context index
+     * @return number of JVM stack slots consumed
+     */
+    private int emitInlineEnter(int ctxIdx) {
+        mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J");
+        mv.visitVarInsn(LSTORE, inlineSlots[ctxIdx]);
+
+        spyProbesEmitted++;
+
+        return 2;
+    }
+
+
+    /**
+     * Emits inlined probe on method return or error: calls MainSubmitter.logCall() or MainSubmitter.logError()
+     * with context ID and start timestamp.
+     *
+     * @param ctxIdx context index
+     * @param method submitter method name
+     * @return number of JVM stack slots consumed
+     */
+    private int emitInlineExit(int ctxIdx, String method) {
+        emitLoadInt(ctxs.get(ctxIdx).getId());
+        mv.visitVarInsn(LLOAD, inlineSlots[ctxIdx]);
+        mv.visitMethodInsn(INVOKESTATIC, SUBMIT_CLASS, method, LOG_SIGNATURE);
+
+        spyProbesEmitted++;
+
+        return 3;
+    }
+
+
     /**
      * Emits instruction that loads integer constant onto JVM stack
      *
@@ -66,6 +66,21 @@ public abstract class SpyProbe implements SpyDefArg {
     public abstract int emit(SpyMethodVisitor mv, int stage, int opcode);
 
 
+    /**
+     * Emits probe bytecode that leaves unboxed long value on JVM stack. Probes that cannot fetch
+     * long values emit nothing and return -1, so caller falls back to boxed value (see emit()).
+     *
+     * @param mv output method visitor
+     *
+     * @param stage point in method code probe is being inserted
+     *
+     * @return number of JVM stack slots emitted code consumes or -1 if no code has been emitted
+     */
+    public int emitLong(SpyMethodVisitor mv, int stage) {
+        return -1;
+    }
+
+
     /**
      * Fetches return value or thrown exception. If return value is of basic type, it is automatically boxed.
      *
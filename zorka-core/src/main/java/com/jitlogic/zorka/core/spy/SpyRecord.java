@@ -0,0 +1,330 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.spy;
+
+import java.util.*;
+
+/**
+ * Array backed spy record used by spy definitions working in compiled record mode. Fields
+ * declared by record layout are kept in slots, all other fields go to overflow map that
+ * is created only when needed. Records are recycled by submitter, so processors must not
+ * keep references to them after processing (copy record if it needs to be retained).
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class SpyRecord extends AbstractMap<String, Object> {
+
+    /** Marks empty slots (as null is legal field value) */
+    private static final Object NONE = new Object();
+
+    /** Spy definition record has been created for */
+    private SpyDefinition sdef;
+
+    /** Record layout */
+    private SpyRecordLayout layout;
+
+    /** Slot values */
+    private Object[] vals = new Object[0];
+
+    /** Number of non-empty slots */
+    private int count;
+
+    /** Fields not declared in record layout */
+    private Map<String, Object> extra;
+
+
+    /**
+     * Prepares (empty) record for use with given spy context.
+     *
+     * @param ctx spy context
+     *
+     * @return this record
+     */
+    public SpyRecord init(SpyContext ctx) {
+        sdef = ctx.getSpyDefinition();
+        layout = sdef.getRecordLayout();
+
+        if (vals.length < layout.size()) {
+            vals = new Object[layout.size()];
+        }
+
+        Arrays.fill(vals, NONE);
+
+        vals[SpyRecordLayout.SLOT_CTX] = ctx;
+        vals[SpyRecordLayout.SLOT_STAGE] = 0;
+        vals[SpyRecordLayout.SLOT_STAGES] = 0;
+        count = 3;
+
+        return this;
+    }
+
+
+    /**
+     * Releases all references held by this record, so it can be safely kept in record pool.
+     */
+    public void reset() {
+        Arrays.fill(vals, NONE);
+        count = 0;
+        extra = null;
+        sdef = null;
+        layout = null;
+    }
+
+
+    /**
+     * Stores value directly in a slot.
+     *
+     * @param slot slot number (as resolved by record layout)
+     *
+     * @param val value
+     */
+    public void putSlot(int slot, Object val) {
+        if (vals[slot] == NONE) {
+            count++;
+        }
+        vals[slot] = val;
+    }
+
+
+    /**
+     * Returns value directly from a slot.
+     *
+     * @param slot slot number (as resolved by record layout)
+     *
+     * @return value or null if slot is empty
+     */
+    public Object getSlot(int slot) {
+        Object v = vals[slot];
+        return v != NONE ? v : null;
+    }
+
+
+    /**
+     * Marks stage as current and adds it to processed stages bitmask.
+     *
+     * @param stage stage
+     */
+    public void markStage(int stage) {
+        vals[SpyRecordLayout.SLOT_STAGES] = (Integer) vals[SpyRecordLayout.SLOT_STAGES] | (1 << stage);
+        vals[SpyRecordLayout.SLOT_STAGE] = stage;
+    }
+
+
+    @Override
+    public Object get(Object key) {
+        int slot = layout.slot(key);
+
+        if (slot >= 0) {
+            return getSlot(slot);
+        }
+
+        return extra != null ? extra.get(key) : null;
+    }
+
+
+    @Override
+    public boolean containsKey(Object key) {
+        int slot = layout.slot(key);
+
+        if (slot >= 0) {
+            return vals[slot] != NONE;
+        }
+
+        return extra != null && extra.containsKey(key);
+    }
+
+
+    @Override
+    public Object put(String key, Object val) {
+        int slot = layout.slot(key);
+
+        if (slot >= 0) {
+            Object v = getSlot(slot);
+            putSlot(slot, val);
+            return v;
+        }
+
+        if (extra == null) {
+            extra = new HashMap<String, Object>();
+            sdef.extendRecordLayout(key);
+        }
+
+        return extra.put(key, val);
+    }
+
+
+    @Override
+    public Object remove(Object key) {
+        int slot = layout.slot(key);
+
+        if (slot >= 0) {
+            Object v = getSlot(slot);
+            if (vals[slot] != NONE) {
+                vals[slot] = NONE;
+                count--;
+            }
+            return v;
+        }
+
+        return extra != null ? extra.remove(key) : null;
+    }
+
+
+    @Override
+    public int size() {
+        return count + (extra != null ? extra.size() : 0);
+    }
+
+
+    @Override
+    public void clear() {
+        Arrays.fill(vals, NONE);
+        count = 0;
+        extra = null;
+    }
+
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return SpyRecord.this.size();
+            }
+        };
+    }
+
+
+    /**
+     * Slot entry (writes through to record slot).
+     */
+    private class SlotEntry implements Entry<String, Object> {
+
+        private final int slot;
+
+        private SlotEntry(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        public String getKey() {
+            return layout.name(slot);
+        }
+
+        @Override
+        public Object getValue() {
+            return getSlot(slot);
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            Object v = getSlot(slot);
+            putSlot(slot, value);
+            return v;
+        }
+
+        @Override
+        public int hashCode() {
+            Object v = getValue();
+            return getKey().hashCode() ^ (v != null ? v.hashCode() : 0);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Entry)) {
+                return false;
+            }
+            Entry e = (Entry) obj;
+            Object v = getValue();
+            return getKey().equals(e.getKey()) && (v == null ? e.getValue() == null : v.equals(e.getValue()));
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+
+
+    /**
+     * Iterates over non-empty slots first, then over overflow map.
+     */
+    private class EntryIterator implements Iterator<Entry<String, Object>> {
+
+        private int next, last = -1;
+
+        private Iterator<Entry<String, Object>> extraIter;
+
+        private EntryIterator() {
+            next = advance(0);
+        }
+
+        private int advance(int pos) {
+            while (pos < layout.size() && vals[pos] == NONE) {
+                pos++;
+            }
+            return pos;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next < layout.size()) {
+                return true;
+            }
+
+            if (extraIter == null && extra != null) {
+                extraIter = extra.entrySet().iterator();
+            }
+
+            return extraIter != null && extraIter.hasNext();
+        }
+
+        @Override
+        public Entry<String, Object> next() {
+            if (next < layout.size()) {
+                last = next;
+                next = advance(next + 1);
+                return new SlotEntry(last);
+            }
+
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            last = -1;
+            return extraIter.next();
+        }
+
+        @Override
+        public void remove() {
+            if (last >= 0) {
+                vals[last] = NONE;
+                count--;
+                last = -1;
+            } else if (extraIter != null) {
+                extraIter.remove();
+            } else {
+                throw new IllegalStateException();
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.spy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maps spy record field names to slot indexes. Layouts are immutable and are compiled
+ * from spy definitions at configuration time, so that compiled spy records can store
+ * fields in plain arrays instead of hash maps.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class SpyRecordLayout {
+
+    /** Slot of spy context field (.CTX) */
+    public static final int SLOT_CTX = 0;
+
+    /** Slot of current stage field (.STAGE) */
+    public static final int SLOT_STAGE = 1;
+
+    /** Slot of processed stages bitmask (.STAGES) */
+    public static final int SLOT_STAGES = 2;
+
+    /** Field names (indexed by slot number) */
+    private final String[] names;
+
+    /** Open addressing hash table (slot number + 1, 0 marks empty bucket) */
+    private final int[] table;
+
+    /** Hash table mask */
+    private final int mask;
+
+    /** Slot numbers of probe destination fields (for each stage) */
+    private final int[][] probeSlots;
+
+
+    /**
+     * Compiles record layout for given spy definition. Reserved fields (.CTX, .STAGE, .STAGES)
+     * always occupy first three slots, then destination fields of all probes follow.
+     *
+     * @param sdef spy definition
+     */
+    public SpyRecordLayout(SpyDefinition sdef) {
+        this(sdef, fieldNames(sdef));
+    }
+
+
+    private SpyRecordLayout(SpyDefinition sdef, List<String> fields) {
+        names = fields.toArray(new String[fields.size()]);
+
+        int sz = 8;
+        while (sz < names.length * 2) {
+            sz <<= 1;
+        }
+
+        table = new int[sz];
+        mask = sz - 1;
+
+        for (int i = 0; i < names.length; i++) {
+            int h = names[i].hashCode() & mask;
+            while (table[h] != 0) {
+                h = (h + 1) & mask;
+            }
+            table[h] = i + 1;
+        }
+
+        probeSlots = new int[4][];
+        for (int stage = 0; stage < probeSlots.length; stage++) {
+            List<SpyProbe> probes = sdef.getProbes(stage);
+            probeSlots[stage] = new int[probes.size()];
+            for (int i = 0; i < probes.size(); i++) {
+                probeSlots[stage][i] = slot(probes.get(i).getDstField());
+            }
+        }
+    }
+
+
+    private static List<String> fieldNames(SpyDefinition sdef) {
+        List<String> fields = new ArrayList<String>();
+
+        fields.add(".CTX");
+        fields.add(".STAGE");
+        fields.add(".STAGES");
+
+        for (int stage = 0; stage < 4; stage++) {
+            for (SpyProbe probe : sdef.getProbes(stage)) {
+                if (!fields.contains(probe.getDstField())) {
+                    fields.add(probe.getDstField());
+                }
+            }
+        }
+
+        return fields;
+    }
+
+
+    /**
+     * Returns layout with additional field. This is used when processors put fields that
+     * have not been declared by probes, so subsequent records will not need overflow maps.
+     *
+     * @param sdef spy definition this layout has been compiled for
+     *
+     * @param name new field name
+     *
+     * @return extended layout (or the same layout if field is already mapped)
+     */
+    public SpyRecordLayout extend(SpyDefinition sdef, String name) {
+        if (slot(name) >= 0) {
+            return this;
+        }
+
+        List<String> fields = new ArrayList<String>(names.length + 1);
+
+        for (String n : names) {
+            fields.add(n);
+        }
+
+        fields.add(name);
+
+        return new SpyRecordLayout(sdef, fields);
+    }
+
+
+    /**
+     * Looks up slot number of a field.
+     *
+     * @param name field name
+     *
+     * @return slot number or -1 if field is not mapped in this layout
+     */
+    public int slot(Object name) {
+        if (name == null) {
+            return -1;
+        }
+
+        int h = name.hashCode() & mask;
+
+        for (int s = table[h]; s != 0; s = table[h]) {
+            String n = names[s - 1];
+            if (n == name || n.equals(name)) {
+                return s - 1;
+            }
+            h = (h + 1) & mask;
+        }
+
+        return -1;
+    }
+
+
+    /**
+     * Returns field name mapped to given slot.
+     *
+     * @param slot slot number
+     *
+     * @return field name
+     */
+    public String name(int slot) {
+        return names[slot];
+    }
+
+
+    /**
+     * Returns number of slots in this layout.
+     *
+     * @return number of slots
+     */
+    public int size() {
+        return names.length;
+    }
+
+
+    /**
+     * Returns slot numbers probe values submitted at given stage should be stored in.
+     *
+     * @param stage stage (ON_ENTER, ON_RETURN, ON_ERROR, ON_SUBMIT)
+     *
+     * @return array of slot numbers (in the same order as probes)
+     */
+    public int[] getProbeSlots(int stage) {
+        return probeSlots[stage];
+    }
+}
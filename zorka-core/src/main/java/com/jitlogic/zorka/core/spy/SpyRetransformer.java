@@ -16,10 +16,20 @@ package com.jitlogic.zorka.core.spy;
  * along with this software. If not, see <http://www.gnu.org/licenses/>.
  */
 
+import java.util.Set;
+
 public interface SpyRetransformer {
 
     boolean retransform(SpyMatcherSet oldSet, SpyMatcherSet newSet, boolean isSdef);
 
+    /**
+     * Retransforms loaded classes of given names.
+     *
+     * @param classNames class names
+     * @return true if any class has been retransformed
+     */
+    boolean retransform(Set<String> classNames);
+
     boolean isEnabled();
 
 }
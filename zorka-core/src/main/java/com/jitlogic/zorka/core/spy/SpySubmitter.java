@@ -26,6 +26,8 @@ public interface SpySubmitter {
     /**
      * Receives spy probe submission.
      *
+     * @param ctx context of current thread (already fetched by MainSubmitter)
+     *
      * @param stage determines if submission comes from method entry, method return or method error handling code
      *
      * @param id spy context ID
@@ -34,6 +36,48 @@ public interface SpySubmitter {
      *
      * @param vals fetched values (or null if no values are fetched)
      */
-    void submit(int stage, int id, int submitFlags, Object[] vals);
+    void submit(ThreadContext ctx, int stage, int id, int submitFlags, Object[] vals);
+
+
+    /**
+     * Receives spy probe submission carrying single long value (eg. timestamp fetched by time probe).
+     * This keeps boxing out of instrumented code, submitters may still box value when processing it.
+     *
+     * @param ctx context of current thread (already fetched by MainSubmitter)
+     *
+     * @param stage determines if submission comes from method entry, method return or method error handling code
+     *
+     * @param id spy context ID
+     *
+     * @param submitFlags submission flags
+     *
+     * @param v0 fetched value
+     */
+    void submit(ThreadContext ctx, int stage, int id, int submitFlags, long v0);
+
+
+    /**
+     * Receives spy probe submission carrying up to 4 values. This is used by probes fetching
+     * only a few values, so no array has to be allocated by instrumented code.
+     *
+     * @param ctx context of current thread (already fetched by MainSubmitter)
+     *
+     * @param stage determines if submission comes from method entry, method return or method error handling code
+     *
+     * @param id spy context ID
+     *
+     * @param submitFlags submission flags
+     *
+     * @param count number of fetched values (remaining arguments are null)
+     *
+     * @param v0 first fetched value
+     *
+     * @param v1 second fetched value
+     *
+     * @param v2 third fetched value
+     *
+     * @param v3 fourth fetched value
+     */
+    void submit(ThreadContext ctx, int stage, int id, int submitFlags, int count, Object v0, Object v1, Object v2, Object v3);
 
 }
@@ -43,6 +43,13 @@ public class SpyTimeProbe extends SpyProbe {
     }
 
 
+    @Override
+    public int emitLong(SpyMethodVisitor mv, int stage) {
+        mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J");
+        return 2;
+    }
+
+
     @Override
     public int hashCode() {
         return 31 * getDstField().hashCode();
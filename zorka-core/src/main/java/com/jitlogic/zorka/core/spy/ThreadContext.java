@@ -0,0 +1,177 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.spy;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per-thread agent state: trace builder, submission state (submission stack and record pool)
+ * and reentrancy flag. Instrumented code entry points fetch it once and pass it along, so only
+ * one thread local lookup is performed per call. Threads created by agent thread factories carry
+ * their context in a field, so no thread local lookup is needed at all.
+ *
+ * Context keeps state of a single tracer and a single dispatching submitter (as agent has only
+ * one of each). If other tracer or submitter is used in the same thread, state is recreated.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class ThreadContext {
+
+    /**
+     * Contexts of threads that are not carrier threads.
+     */
+    private static final ThreadLocal<ThreadContext> contexts =
+            new ThreadLocal<ThreadContext>() {
+                @Override
+                public ThreadContext initialValue() {
+                    return new ThreadContext();
+                }
+            };
+
+    /** Tracer owning cached trace builder */
+    private Tracer tracer;
+
+    /** Trace builder of current thread */
+    private TraceBuilder handler;
+
+    /** Dispatching submitter owning cached submission state */
+    private DispatchingSubmitter submitter;
+
+    /** Submission state (submission stack and recycled records) of current thread */
+    private DispatchingSubmitter.SubmissionState submissionState;
+
+    /** True if thread is currently submitting values from spy probes */
+    boolean inSubmit;
+
+    /** Pool numbers used in names of threads created by default thread factories */
+    private static final AtomicInteger poolNumber = new AtomicInteger(1);
+
+
+    /**
+     * Returns context of current thread.
+     */
+    public static ThreadContext get() {
+        Thread thread = Thread.currentThread();
+
+        if (thread instanceof CarrierThread) {
+            return ((CarrierThread) thread).context;
+        }
+
+        return contexts.get();
+    }
+
+
+    /**
+     * Returns trace builder of current thread for given tracer.
+     *
+     * @param tracer tracer
+     * @return trace builder
+     */
+    public TraceBuilder getHandler(Tracer tracer) {
+        if (this.tracer != tracer) {
+            this.handler = tracer.createHandler();
+            this.tracer = tracer;
+        }
+
+        return handler;
+    }
+
+
+    /**
+     * Returns submission state of current thread for given submitter.
+     *
+     * @param submitter dispatching submitter
+     * @return submission state
+     */
+    DispatchingSubmitter.SubmissionState getSubmissionState(DispatchingSubmitter submitter) {
+        if (this.submitter != submitter) {
+            this.submissionState = new DispatchingSubmitter.SubmissionState();
+            this.submitter = submitter;
+        }
+
+        return submissionState;
+    }
+
+
+    /**
+     * Creates thread factory for agent thread pools that used default thread factory. Created threads
+     * carry their contexts in a field, otherwise they are the same as threads created by
+     * Executors.defaultThreadFactory() (non-daemon, normal priority, named pool-N-thread-M).
+     *
+     * @return thread factory
+     */
+    public static ThreadFactory threadFactory() {
+        SecurityManager sm = System.getSecurityManager();
+        final ThreadGroup group = sm != null ? sm.getThreadGroup() : Thread.currentThread().getThreadGroup();
+        final String prefix = "pool-" + poolNumber.getAndIncrement() + "-thread-";
+
+        return new ThreadFactory() {
+            private int n;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new CarrierThread(group, r, prefix + (++n));
+                thread.setDaemon(false);
+                thread.setPriority(Thread.NORM_PRIORITY);
+                return thread;
+            }
+        };
+    }
+
+
+    /**
+     * Creates thread factory for agent thread pools. Created threads are daemon threads
+     * carrying their contexts in a field.
+     *
+     * @param prefix thread name prefix
+     * @return thread factory
+     */
+    public static ThreadFactory threadFactory(final String prefix) {
+        return new ThreadFactory() {
+            private int n;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new CarrierThread(r, prefix + (++n));
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+
+    /**
+     * Thread carrying its context in a field.
+     */
+    public static class CarrierThread extends Thread {
+
+        /** Thread context */
+        private final ThreadContext context = new ThreadContext();
+
+
+        public CarrierThread(Runnable runnable, String name) {
+            super(runnable, name);
+        }
+
+
+        public CarrierThread(ThreadGroup group, Runnable runnable, String name) {
+            super(group, runnable, name);
+        }
+    }
+}
@@ -54,6 +54,21 @@ public class TraceBuilder {
      */
     private int numRecords = 0;
 
+    /**
+     * Discarded trace records kept for reuse (see Tracer.getRecordPoolSize())
+     */
+    private TraceRecord[] pool = new TraceRecord[16];
+
+    /**
+     * Number of records in pool
+     */
+    private int poolSize = 0;
+
+    /**
+     * Method return counters of adaptive tracer filter (or null if not used)
+     */
+    private AdaptiveTraceFilter.Counters counters;
+
 
     /**
      * Creates new trace builder object.
@@ -66,6 +81,18 @@ public class TraceBuilder {
     }
 
 
+    /**
+     * Creates new trace builder object reporting method returns to adaptive tracer filter.
+     *
+     * @param output object completed traces will be submitted to
+     * @param filter adaptive tracer filter (or null)
+     */
+    public TraceBuilder(TracerOutput output, SymbolRegistry symbols, AdaptiveTraceFilter filter) {
+        this(output, symbols);
+        this.counters = filter != null ? filter.counters() : null;
+    }
+
+
     public void traceBegin(int traceId, long clock, int flags) {
 
         if (ttop == null) {
@@ -100,7 +127,7 @@ public class TraceBuilder {
 
         if (!ttop.isEmpty()) {
             if (ttop.inTrace()) {
-                ttop = new TraceRecord(ttop);
+                ttop = newRecord(ttop);
                 numRecords++;
             } else {
                 ttop.clean();
@@ -142,11 +169,17 @@ public class TraceBuilder {
         }
 
         while (!(ttop.getClassId() != 0) && ttop.getParent() != null) {
+            TraceRecord tr = ttop;
             ttop = ttop.getParent();
+            recycle(tr);
         }
 
         ttop.setTime(tstamp - ttop.getTime());
 
+        if (counters != null) {
+            counters.logReturn(ttop.getClassId(), ttop.getMethodId(), ttop.getSignatureId(), ttop.getTime(), tstamp);
+        }
+
         pop();
     }
 
@@ -170,7 +203,9 @@ public class TraceBuilder {
         }
 
         while (!(ttop.getClassId() != 0) && ttop.getParent() != null) {
+            TraceRecord tr = ttop;
             ttop = ttop.getParent();
+            recycle(tr);
         }
 
         ttop.setException(exception);
@@ -236,9 +271,9 @@ public class TraceBuilder {
      */
     private void pop() {
 
-        boolean clean = true;
+        boolean clean = true, submitted = false;
 
-        TraceRecord parent = ttop.getParent();
+        TraceRecord parent = ttop.getParent(), discarded = null;
 
         popException();
 
@@ -251,6 +286,7 @@ public class TraceBuilder {
                 submit(ttop);
                 AgentDiagnostics.inc(AgentDiagnostics.TRACES_SUBMITTED);
                 clean = false;
+                submitted = true;
             } else {
                 AgentDiagnostics.inc(AgentDiagnostics.TRACES_DROPPED);
             }
@@ -268,10 +304,14 @@ public class TraceBuilder {
 
 
                 if (!ttop.hasFlag(TraceRecord.OVERFLOW_FLAG)) {
-                    reparentTop(parent);
-
+                    if (reparentTop(parent) && !submitted) {
+                        discarded = ttop;
+                    }
                 } else {
                     parent.getMarker().markFlags(TraceMarker.OVERFLOW_FLAG);
+                    if (!submitted) {
+                        discarded = ttop;
+                    }
                 }
                 clean = false;
             }
@@ -287,11 +327,15 @@ public class TraceBuilder {
             if (parent != null) {
                 ttop = parent;
             } else {
-                ttop = new TraceRecord(null);
+                ttop = newRecord(null);
                 numRecords = 0;
             }
         }
 
+        if (discarded != null) {
+            recycle(discarded);
+        }
+
     }
 
 
@@ -310,7 +354,15 @@ public class TraceBuilder {
     }
 
 
-    private void reparentTop(TraceRecord parent) {
+    /**
+     * Attaches top record to its parent. If top record is interim record that can be dropped,
+     * its only child is attached directly to parent.
+     *
+     * @param parent parent record
+     *
+     * @return true if top record has been dropped (and can be recycled)
+     */
+    private boolean reparentTop(TraceRecord parent) {
         // Drop interim record if necessary
         if (ttop.getMarker().hasFlag(TraceMarker.DROP_INTERIM) && ttop.isInterimDroppable()
                 && ttop.getTime() - ttop.getChild(0).getTime() < Tracer.getMinMethodTime()) {
@@ -320,14 +372,52 @@ public class TraceBuilder {
             child.markFlag(TraceRecord.DROPPED_PARENT);
             numRecords--;
             parent.addChild(child);
+            return true;
         } else {
             parent.addChild(ttop);
+            return false;
+        }
+    }
+
+
+    /**
+     * Returns new trace record. Records discarded earlier are reused if available.
+     *
+     * @param parent parent record
+     *
+     * @return trace record
+     */
+    private TraceRecord newRecord(TraceRecord parent) {
+        if (poolSize > 0) {
+            TraceRecord tr = pool[--poolSize];
+            pool[poolSize] = null;
+            tr.setParent(parent);
+            return tr;
+        }
+        return new TraceRecord(parent);
+    }
+
+
+    /**
+     * Puts discarded record into record pool (if there is still room for it).
+     *
+     * @param tr discarded trace record (must not be referenced from any other record)
+     */
+    private void recycle(TraceRecord tr) {
+        int maxSize = Tracer.getRecordPoolSize();
+        if (poolSize < maxSize) {
+            if (poolSize == pool.length) {
+                TraceRecord[] newPool = new TraceRecord[Math.min(pool.length * 2, maxSize)];
+                System.arraycopy(pool, 0, newPool, 0, pool.length);
+                pool = newPool;
+            }
+            tr.reset();
+            pool[poolSize++] = tr;
         }
     }
 
 
     private void submit(TraceRecord record) {
-        record.fixup(symbols);
         if (record.getException() != null || record.hasFlag(TraceRecord.EXCEPTION_PASS)) {
             record.getMarker().markFlags(TraceMarker.ERROR_MARK);
         }
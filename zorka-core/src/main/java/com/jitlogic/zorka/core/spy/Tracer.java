@@ -43,6 +43,11 @@ public class Tracer implements TracerOutput {
      */
     private static int maxTraceRecords = 4096;
 
+    /**
+     * Maximum number of discarded trace records kept by each trace builder for reuse.
+     */
+    private static int recordPoolSize = 64;
+
 
     private AtomicReference<List<ZorkaAsyncThread<SymbolicRecord>>> outputs
             = new AtomicReference<List<ZorkaAsyncThread<SymbolicRecord>>>(new ArrayList<ZorkaAsyncThread<SymbolicRecord>>());
@@ -63,6 +68,11 @@ public class Tracer implements TracerOutput {
      */
     private boolean traceSpyMethods = true;
 
+    /**
+     * Adaptive filter excluding hot and fast methods from tracer (or null if not enabled).
+     */
+    private AdaptiveTraceFilter adaptiveFilter;
+
 
     public static long getMinMethodTime() {
         return minMethodTime;
@@ -84,6 +94,16 @@ public class Tracer implements TracerOutput {
     }
 
 
+    public static int getRecordPoolSize() {
+        return recordPoolSize;
+    }
+
+
+    public static void setRecordPoolSize(int poolSize) {
+        recordPoolSize = poolSize;
+    }
+
+
     public boolean isTraceSpyMethods() {
         return traceSpyMethods;
     }
@@ -94,15 +114,20 @@ public class Tracer implements TracerOutput {
     }
 
 
+    public AdaptiveTraceFilter getAdaptiveFilter() {
+        return adaptiveFilter;
+    }
+
+
     /**
-     * Thread local serving trace builder objects for application threads
+     * Sets adaptive filter. Note that only trace builders created afterwards will
+     * count method calls, so it should be set before application starts.
+     *
+     * @param adaptiveFilter adaptive filter
      */
-    private ThreadLocal<TraceBuilder> localHandlers =
-            new ThreadLocal<TraceBuilder>() {
-                public TraceBuilder initialValue() {
-                    return new TraceBuilder(Tracer.this, symbolRegistry);
-                }
-            };
+    public void setAdaptiveFilter(AdaptiveTraceFilter adaptiveFilter) {
+        this.adaptiveFilter = adaptiveFilter;
+    }
 
 
     public Tracer(SpyMatcherSet matcherSet, SymbolRegistry symbolRegistry) {
@@ -117,7 +142,17 @@ public class Tracer implements TracerOutput {
      * @return trace event handler (trace builder object)
      */
     public TraceBuilder getHandler() {
-        return localHandlers.get();
+        return ThreadContext.get().getHandler(this);
+    }
+
+
+    /**
+     * Creates trace builder for application thread. Trace builders are kept in thread contexts.
+     *
+     * @return trace event handler (trace builder object)
+     */
+    protected TraceBuilder createHandler() {
+        return new TraceBuilder(this, symbolRegistry, adaptiveFilter);
     }
 
 
@@ -18,10 +18,13 @@ package com.jitlogic.zorka.core.spy;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 import com.jitlogic.zorka.common.tracedata.FileTraceOutput;
 import com.jitlogic.zorka.common.tracedata.FressianTraceWriter;
+import com.jitlogic.zorka.common.tracedata.IndexedFileTraceOutput;
 import com.jitlogic.zorka.common.tracedata.MetricsRegistry;
 import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
 import com.jitlogic.zorka.common.tracedata.SymbolicRecord;
@@ -33,6 +36,7 @@ import com.jitlogic.zorka.common.util.ZorkaConfig;
 import com.jitlogic.zorka.common.util.ZorkaLog;
 import com.jitlogic.zorka.common.util.ZorkaLogger;
 import com.jitlogic.zorka.common.zabbix.ZabbixTraceOutput;
+import com.jitlogic.zorka.common.zico.ZicoSpillJournal;
 import com.jitlogic.zorka.common.zico.ZicoTraceOutput;
 import com.jitlogic.zorka.core.spy.plugins.TraceAttrProcessor;
 import com.jitlogic.zorka.core.spy.plugins.TraceBeginProcessor;
@@ -69,6 +73,21 @@ public class TracerLib {
      */
     private int defaultTraceFlags = TraceMarker.DROP_INTERIM;
 
+    /**
+     * Submit queue strategy for tracer outputs (null means agent default)
+     */
+    private String queueStrategy;
+
+    /**
+     * Spill journal directory for network outputs (null means spilling is disabled)
+     */
+    private String spillPath;
+
+    /**
+     * Spill journal size limits
+     */
+    private long spillSize, spillSegmentSize;
+
     /**
      * Creates tracer library object.
      *
@@ -403,6 +422,9 @@ public class TracerLib {
     public ZorkaAsyncThread<SymbolicRecord> toFile(String path, int maxFiles, long maxSize, boolean compress) {
         TraceWriter writer = new FressianTraceWriter(symbolRegistry, metricsRegistry);
         FileTraceOutput output = new FileTraceOutput(writer, new File(config.formatCfg(path)), maxFiles, maxSize, compress);
+        if (queueStrategy != null) {
+            output.setQueueStrategy(queueStrategy);
+        }
         output.start();
         return output;
     }
@@ -413,6 +435,29 @@ public class TracerLib {
     }
 
 
+    /**
+     * Creates indexed trace file writer. Traces are stored in memory mapped segment files along with
+     * index files, so they can be selectively read (by time range or error status) with IndexedTraceReader.
+     *
+     * @param path        path to a file (segment files will be named after it)
+     * @param maxSegments maximum number of segments kept
+     * @param segmentSize segment size
+     * @param compress    trace chunks will be compressed if true
+     * @return indexed trace file writer
+     */
+    public ZorkaAsyncThread<SymbolicRecord> toIndexedFile(String path, int maxSegments, long segmentSize,
+                                                          boolean compress) {
+        FressianTraceWriter writer = new FressianTraceWriter(symbolRegistry, metricsRegistry);
+        IndexedFileTraceOutput output = new IndexedFileTraceOutput(writer, new File(config.formatCfg(path)),
+                maxSegments, segmentSize, compress);
+        if (queueStrategy != null) {
+            output.setQueueStrategy(queueStrategy);
+        }
+        output.start();
+        return output;
+    }
+
+
     public ZorkaAsyncThread<SymbolicRecord> toZico(String addr, int port, String hostname, String auth) throws IOException {
         return toZico(addr, port, hostname, auth, 64, 8 * 1024 * 1024, 10, 125, 2, 60000);
     }
@@ -430,9 +475,38 @@ public class TracerLib {
     public ZorkaAsyncThread<SymbolicRecord> toZico(String addr, int port, String hostname, String auth,
                                                    int qlen, long packetSize, int retries, long retryTime, long retryTimeExp,
                                                    int timeout) throws IOException {
+        return toZico(addr, port, hostname, auth, qlen, packetSize, retries, retryTime, retryTimeExp, timeout, 1);
+    }
+
+
+    /**
+     * Creates trace network sender that pipelines packets. Up to window packets will be sent
+     * without waiting for collector acknowledgements.
+     *
+     * @param addr     collector host name or IP address
+     * @param port     collector port
+     * @param hostname agent name - this will be presented in collector console;
+     * @param window   maximum number of unacknowledged packets
+     * @return
+     * @throws IOException
+     */
+    public ZorkaAsyncThread<SymbolicRecord> toZico(String addr, int port, String hostname, String auth,
+                                                   int qlen, long packetSize, int retries, long retryTime, long retryTimeExp,
+                                                   int timeout, int window) throws IOException {
         TraceWriter writer = new FressianTraceWriter(symbolRegistry, metricsRegistry);
         ZicoTraceOutput output = new ZicoTraceOutput(writer, addr, port, hostname, auth, qlen, packetSize,
-                retries, retryTime, retryTimeExp, timeout);
+                retries, retryTime, retryTimeExp, timeout, window);
+        if (spillPath != null) {
+            try {
+                output.setSpill(new ZicoSpillJournal(new File(spillPath), spillSize, spillSegmentSize));
+            } catch (IOException e) {
+                log.error(ZorkaLogger.ZTR_ERRORS, "Cannot open spill journal in " + spillPath
+                        + ". Undelivered traces will be lost.", e);
+            }
+        }
+        if (queueStrategy != null) {
+            output.setQueueStrategy(queueStrategy);
+        }
         output.start();
         return output;
     }
@@ -456,6 +530,9 @@ public class TracerLib {
 //        TraceWriter writer = new FressianTraceWriter(symbolRegistry, metricsRegistry);
         ZabbixTraceOutput output = new ZabbixTraceOutput(symbolRegistry, metricsRegistry, addr, port, hostname, qlen, packetSize,
         		retries, retryTime, retryTimeExp, timeout, interval);
+        if (queueStrategy != null) {
+            output.setQueueStrategy(queueStrategy);
+        }
         output.start();
         return output;
     }
@@ -551,6 +628,89 @@ public class TracerLib {
     }
 
 
+    /**
+     * Sets maximum number of discarded trace records kept by each application thread for reuse.
+     * Pooled records are used for frames that are later discarded by tracer (eg. due to short
+     * execution time), so deep call trees do not produce garbage. Setting it to 0 disables pooling.
+     *
+     * @param poolSize maximum number of pooled records per thread (64 by default)
+     */
+    public void setTracerRecordPoolSize(int poolSize) {
+        Tracer.setRecordPoolSize(poolSize);
+    }
+
+
+    public int getTracerRecordPoolSize() {
+        return Tracer.getRecordPoolSize();
+    }
+
+
+    /**
+     * Returns methods automatically excluded from tracer by adaptive filter (see tracer.adaptive setting).
+     *
+     * @return list of methods (class name, method name and descriptor)
+     */
+    public List<String> getAutoExcluded() {
+        AdaptiveTraceFilter filter = tracer.getAdaptiveFilter();
+        return filter != null ? filter.getExcluded() : new ArrayList<String>();
+    }
+
+
+    /**
+     * Re-enables tracing of method automatically excluded by adaptive filter. Re-enabled method
+     * will not be excluded again.
+     *
+     * @param method method name (as returned by getAutoExcluded())
+     * @return number of re-enabled methods
+     */
+    public int reenable(String method) {
+        AdaptiveTraceFilter filter = tracer.getAdaptiveFilter();
+        return filter != null ? filter.reenable(method) : 0;
+    }
+
+
+    /**
+     * Re-enables tracing of all methods automatically excluded by adaptive filter.
+     *
+     * @return number of re-enabled methods
+     */
+    public int reenableAll() {
+        return reenable(null);
+    }
+
+
+    /**
+     * Sets submit queue strategy for tracer outputs created afterwards. Use "blocking" for standard
+     * blocking queue or "park", "spin", "yield" for lock-free ring buffer with given wait strategy
+     * (see ZorkaAsyncThread.setQueueStrategy()).
+     *
+     * @param strategy queue strategy (or null to use agent default)
+     */
+    public void setTracerQueueStrategy(String strategy) {
+        this.queueStrategy = strategy;
+    }
+
+
+    public String getTracerQueueStrategy() {
+        return queueStrategy;
+    }
+
+
+    /**
+     * Enables spill journal for ZICO outputs created afterwards. Traces that cannot be delivered
+     * to collector will be stored in local files and replayed when collector becomes available.
+     *
+     * @param path        journal directory
+     * @param size        maximum journal size (oldest data is evicted when exceeded)
+     * @param segmentSize journal segment size
+     */
+    public void setTracerSpill(String path, long size, long segmentSize) {
+        this.spillPath = path != null ? config.formatCfg(path) : null;
+        this.spillSize = size;
+        this.spillSegmentSize = segmentSize;
+    }
+
+
     public void setTraceSpyMethods(boolean tsm) {
         tracer.setTraceSpyMethods(tsm);
     }
@@ -16,7 +16,7 @@
  */
 package com.jitlogic.zorka.core.spy.plugins;
 
-import com.jitlogic.zorka.common.util.ObjectInspector;
+import com.jitlogic.zorka.common.util.StringTemplate;
 import com.jitlogic.zorka.core.spy.SpyProcessor;
 
 import java.util.Map;
@@ -36,7 +36,7 @@ public class StringFormatProcessor implements SpyProcessor {
     /**
      * Format expression
      */
-    private String expr;
+    private StringTemplate expr;
 
     /**
      * Maximum length
@@ -51,13 +51,13 @@ public class StringFormatProcessor implements SpyProcessor {
      */
     public StringFormatProcessor(String dstField, String expr, int len) {
         this.dstField = dstField;
-        this.expr = expr;
+        this.expr = StringTemplate.compile(expr);
         this.len = len;
     }
 
     @Override
     public Map<String, Object> process(Map<String, Object> record) {
-        String s = ObjectInspector.substitute(expr, record);
+        String s = expr.format(record);
 
         if (len > 0 && s.length() > len) {
             s = s.substring(0, len);
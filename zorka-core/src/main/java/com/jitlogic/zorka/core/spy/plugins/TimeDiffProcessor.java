@@ -56,6 +56,21 @@ public class TimeDiffProcessor implements SpyProcessor {
     }
 
 
+    public String getStartField() {
+        return tstart;
+    }
+
+
+    public String getStopField() {
+        return tstop;
+    }
+
+
+    public String getResultField() {
+        return rslt;
+    }
+
+
     @Override
     public Map<String, Object> process(Map<String, Object> record) {
         Object v1 = record.get(tstart),
@@ -19,7 +19,7 @@ package com.jitlogic.zorka.core.spy.plugins;
 import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
 import com.jitlogic.zorka.common.tracedata.TaggedValue;
 import com.jitlogic.zorka.common.tracedata.TraceRecord;
-import com.jitlogic.zorka.common.util.ObjectInspector;
+import com.jitlogic.zorka.common.util.StringTemplate;
 import com.jitlogic.zorka.common.util.ZorkaLogger;
 import com.jitlogic.zorka.common.util.ZorkaLog;
 import com.jitlogic.zorka.core.spy.SpyProcessor;
@@ -62,6 +62,11 @@ public class TraceAttrProcessor implements SpyProcessor {
      */
     private String srcVal;
 
+    /**
+     * Compiled format expression (for string formatting processors)
+     */
+    private StringTemplate srcTemplate;
+
     /**
      * Trace ID (if any).
      */
@@ -93,6 +98,7 @@ public class TraceAttrProcessor implements SpyProcessor {
                               String srcVal, String attrName, String attrTag) {
         this.tracer = tracer;
         this.srcVal = srcVal;
+        this.srcTemplate = type == STRING_FORMAT_PROCESSOR ? StringTemplate.compile(srcVal) : null;
         this.symbolRegistry = symbolRegistry;
         this.type = type;
         this.traceId = -1;
@@ -120,7 +126,7 @@ public class TraceAttrProcessor implements SpyProcessor {
     public Map<String, Object> process(Map<String, Object> record) {
 
         Object val = type == FIELD_GETTING_PROCESSOR ? record.get(srcVal)
-                : ObjectInspector.substitute(srcVal, record);
+                : srcTemplate.format(record);
 
         if (val != null) {
             if (ZorkaLogger.isLogLevel(ZorkaLogger.ZSP_ARGPROC)) {
@@ -17,7 +17,7 @@
 package com.jitlogic.zorka.core.spy.plugins;
 
 import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
-import com.jitlogic.zorka.common.util.ObjectInspector;
+import com.jitlogic.zorka.common.util.StringTemplate;
 import com.jitlogic.zorka.core.spy.SpyProcessor;
 import com.jitlogic.zorka.core.spy.TraceBuilder;
 import com.jitlogic.zorka.core.spy.Tracer;
@@ -39,9 +39,9 @@ public class TraceBeginProcessor implements SpyProcessor {
 
 
     /**
-     * Trace name symbol ID.
+     * Trace name (or format string)
      */
-    private String traceName;
+    private StringTemplate traceName;
 
     private SymbolRegistry symbolRegistry;
 
@@ -66,7 +66,7 @@ public class TraceBeginProcessor implements SpyProcessor {
      */
     public TraceBeginProcessor(Tracer tracer, String traceName, long minimumTraceTime, int flags, SymbolRegistry symbolRegistry) {
         this.tracer = tracer;
-        this.traceName = traceName;
+        this.traceName = StringTemplate.compile(traceName);
         this.symbolRegistry = symbolRegistry;
         this.minimumTraceTime = minimumTraceTime;
         this.flags = flags;
@@ -75,7 +75,7 @@ public class TraceBeginProcessor implements SpyProcessor {
     @Override
     public Map<String, Object> process(Map<String, Object> record) {
         TraceBuilder traceBuilder = tracer.getHandler();
-        int traceId = symbolRegistry.symbolId(ObjectInspector.substitute(traceName, record));
+        int traceId = symbolRegistry.symbolId(traceName.format(record));
         traceBuilder.traceBegin(traceId, System.currentTimeMillis(), flags);
 
         if (minimumTraceTime >= 0) {
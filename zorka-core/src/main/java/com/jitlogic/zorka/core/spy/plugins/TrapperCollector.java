@@ -44,9 +44,15 @@ public class TrapperCollector implements SpyProcessor {
 
 
     /**
-     * Tag, message, error templates and error field
+     * Tag, message and error templates
      */
-    private String tag, message, errExpr, errField;
+    private StringTemplate tag, message, errExpr;
+
+
+    /**
+     * Error field
+     */
+    private String errField;
 
 
     /**
@@ -64,9 +70,9 @@ public class TrapperCollector implements SpyProcessor {
 
         this.trapper = trapper;
         this.logLevel = logLevel;
-        this.tag = tag;
-        this.message = message;
-        this.errExpr = errExpr;
+        this.tag = tag != null ? StringTemplate.compile(tag) : null;
+        this.message = message != null ? StringTemplate.compile(message) : null;
+        this.errExpr = errExpr != null ? StringTemplate.compile(errExpr) : null;
         this.errField = errField;
     }
 
@@ -80,14 +86,13 @@ public class TrapperCollector implements SpyProcessor {
             return record;
         }
 
-        String tag = ObjectInspector.substitute(this.tag, record);
+        String tag = this.tag.format(record);
         String msg;
 
         if (errExpr != null) {
-            msg = ObjectInspector.substitute(
-                    0 != ((Integer) record.get(".STAGES") & (1 << SpyLib.ON_ERROR)) ? errExpr : message, record);
+            msg = (0 != ((Integer) record.get(".STAGES") & (1 << SpyLib.ON_ERROR)) ? errExpr : message).format(record);
         } else {
-            msg = ObjectInspector.substitute(message, record);
+            msg = message.format(record);
         }
 
         trapper.trap(logLevel, tag, msg, (Throwable) record.get(errField));
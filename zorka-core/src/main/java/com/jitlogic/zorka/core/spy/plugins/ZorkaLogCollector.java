@@ -16,7 +16,7 @@
 
 package com.jitlogic.zorka.core.spy.plugins;
 
-import com.jitlogic.zorka.common.util.ObjectInspector;
+import com.jitlogic.zorka.common.util.StringTemplate;
 import com.jitlogic.zorka.common.util.ZorkaLogger;
 import com.jitlogic.zorka.common.util.ZorkaLogLevel;
 import com.jitlogic.zorka.core.spy.SpyProcessor;
@@ -27,7 +27,8 @@ public class ZorkaLogCollector implements SpyProcessor {
 
     private ZorkaLogger logger;
     private ZorkaLogLevel logLevel;
-    private String tag, message;
+    private String tag;
+    private StringTemplate message;
     private String fCond, fErr;
 
 
@@ -35,7 +36,7 @@ public class ZorkaLogCollector implements SpyProcessor {
         this.logger = ZorkaLogger.getLogger();
         this.logLevel = logLevel;
         this.tag = tag;
-        this.message = message;
+        this.message = message != null ? StringTemplate.compile(message) : null;
         this.fCond = fCond;
         this.fErr = fErr;
     }
@@ -56,7 +57,7 @@ public class ZorkaLogCollector implements SpyProcessor {
             e = (Throwable) record.get(fErr);
         }
 
-        logger.trap(logLevel, tag, ObjectInspector.substitute(message, record), e);
+        logger.trap(logLevel, tag, message.format(record), e);
 
         return record;
     }
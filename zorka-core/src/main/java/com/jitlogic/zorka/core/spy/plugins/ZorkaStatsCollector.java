@@ -26,6 +26,7 @@ import com.jitlogic.zorka.common.util.ZorkaLog;
 import com.jitlogic.zorka.core.spy.SpyContext;
 import com.jitlogic.zorka.core.spy.SpyProcessor;
 
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
@@ -42,6 +43,7 @@ public class ZorkaStatsCollector implements SpyProcessor {
     public static final int ACTION_STATS = 0x01;
     public static final int ACTION_ENTER = 0x02;
     public static final int ACTION_EXIT = 0x04;
+    public static final int ACTION_STRIPED = 0x08;
 
     public static final String CLASS_NAME = "className";
     public static final String METHOD_NAME = "methodName";
@@ -191,7 +193,7 @@ public class ZorkaStatsCollector implements SpyProcessor {
         if (mbeanFlags == 0 && attrFlags == 0) {
             // Object name and attribute name are constant ...
             cachedStatistics = registry.getOrRegister(mbsName, mbeanTemplate, attrTemplate,
-                    new MethodCallStatistics(), "Call stats");
+                    new MethodCallStatistics(0 != (actions & ACTION_STRIPED)), "Call stats");
 
             if (statFlags == 0) {
                 cachedStatistic = cachedStatistics.getMethodCallStatistic(statTemplate);
@@ -211,29 +213,7 @@ public class ZorkaStatsCollector implements SpyProcessor {
         MethodCallStatistic statistic = cachedStatistic;
 
         if (statistic == null) {
-
-            MethodCallStatistics statistics = cachedStatistics;
-            SpyContext ctx = (SpyContext) record.get(".CTX");
-
-            if (statistics == null) {
-                prefetch(record, ctx);
-
-                statistics = statsCacheEnabled ? statsCache.get(ctx) : null;
-
-                if (statistics == null) {
-                    String mbeanName = subst(mbeanTemplate, record, ctx, mbeanFlags);
-                    String attrName = subst(attrTemplate, record, ctx, attrFlags);
-                    statistics = registry.getOrRegister(mbsName, mbeanName, attrName,
-                            new MethodCallStatistics(), "Call stats");
-                    if (statsCacheEnabled) {
-                        statsCache.putIfAbsent(ctx, statistics);
-                    }
-                }
-            }
-
-            String key = statFlags != 0 ? subst(statTemplate, record, ctx, statFlags) : statTemplate;
-
-            statistic = statistics.getMethodCallStatistic(key);
+            statistic = getStatistic(record, (SpyContext) record.get(".CTX"));
         }
 
         if (0 != (actions & ACTION_STATS)) {
@@ -252,6 +232,64 @@ public class ZorkaStatsCollector implements SpyProcessor {
     }
 
 
+    /**
+     * Looks up (or registers) statistic for given record.
+     *
+     * @param record spy record
+     * @param ctx    spy context
+     * @return method call statistic
+     */
+    private MethodCallStatistic getStatistic(Map<String, Object> record, SpyContext ctx) {
+        MethodCallStatistics statistics = cachedStatistics;
+
+        if (statistics == null) {
+            prefetch(record, ctx);
+
+            statistics = statsCacheEnabled ? statsCache.get(ctx) : null;
+
+            if (statistics == null) {
+                String mbeanName = subst(mbeanTemplate, record, ctx, mbeanFlags);
+                String attrName = subst(attrTemplate, record, ctx, attrFlags);
+                statistics = registry.getOrRegister(mbsName, mbeanName, attrName,
+                        new MethodCallStatistics(0 != (actions & ACTION_STRIPED)), "Call stats");
+                if (statsCacheEnabled) {
+                    statsCache.putIfAbsent(ctx, statistics);
+                }
+            }
+        }
+
+        String key = statFlags != 0 ? subst(statTemplate, record, ctx, statFlags) : statTemplate;
+
+        return statistics.getMethodCallStatistic(key);
+    }
+
+
+    /**
+     * Returns true if this collector only logs execution times from given field into statistic whose name
+     * depends only on spy context (eg. ${className}, ${methodName}), not on other record fields. Such statistic
+     * can be resolved when method is instrumented and updated directly by inlined probes.
+     *
+     * @param timeField execution time field
+     * @return true if collector can be replaced by inlined probes
+     */
+    public boolean isInlinable(String timeField) {
+        return (actions & ~ACTION_STRIPED) == ACTION_STATS && throughputField == null
+                && this.timeField.equals(timeField)
+                && 0 == ((mbeanFlags | attrFlags | statFlags) & HAS_OTHER_NAME);
+    }
+
+
+    /**
+     * Resolves statistic of given spy context. Only usable for collectors that are inlinable (see isInlinable()).
+     *
+     * @param ctx spy context
+     * @return method call statistic
+     */
+    public MethodCallStatistic getStatistic(SpyContext ctx) {
+        return cachedStatistic != null ? cachedStatistic : getStatistic(new HashMap<String, Object>(), ctx);
+    }
+
+
     /**
      * Returns true if given context attribute is needed to format at least one string.
      * Strings that consist solely of context attribute macro are not counted.
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.test.agent;
+
+import com.jitlogic.zorka.common.stats.AgentDiagnostics;
+import com.jitlogic.zorka.core.CompiledQuery;
+import com.jitlogic.zorka.core.test.support.ZorkaFixture;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CompiledQueryUnitTest extends ZorkaFixture {
+
+    public static class TestLib {
+
+        private String prefix;
+
+        public TestLib(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public String join(String foo, String... parts) {
+            StringBuilder sb = new StringBuilder(prefix);
+            sb.append(foo);
+            for (String part : parts) {
+                sb.append(":").append(part);
+            }
+            return sb.toString();
+        }
+
+        public String types(long l, int i, double d, boolean b) {
+            return prefix + l + "," + i + "," + d + "," + b;
+        }
+
+        public Object ambiguous(String s) {
+            return s;
+        }
+
+        public Object ambiguous(Object o) {
+            return o;
+        }
+
+        public Object fail() {
+            throw new IllegalStateException("failed");
+        }
+    }
+
+
+    @Before
+    public void setUp() {
+        mBeanServerRegistry.register("java", java.lang.management.ManagementFactory.getPlatformMBeanServer(), null);
+        zorkaAgent.put("test", new TestLib(">"));
+    }
+
+
+    private boolean direct(String expr) {
+        return CompiledQuery.compile(expr, zorkaAgent).isDirect();
+    }
+
+
+    @Test
+    public void testRecognizeSimpleLibraryCalls() {
+        assertTrue(direct("zorka.jmx(\"java\",\"java.lang:type=Runtime\",\"SpecVersion\")"));
+        assertTrue(direct(" test.join ( \"a\" ) ; "));
+        assertTrue(direct("test.types(1, 2, 3.5, true)"));
+
+        assertFalse("arithmetic", direct("2+3"));
+        assertFalse("nested calls", direct("test.join(test.join(\"a\"))"));
+        assertFalse("variables", direct("test.join(x)"));
+        assertFalse("unknown object", direct("nothing.join(\"a\")"));
+        assertFalse("unknown method", direct("test.nothing(\"a\")"));
+        assertFalse("ambiguous call", direct("test.ambiguous(\"a\")"));
+        assertFalse("trailing garbage", direct("test.join(\"a\") + 1"));
+        assertFalse("unicode escapes", direct("test.join(\"\\u0041\")"));
+        assertFalse("double passed as int", direct("test.types(1, 2.0, 3.5, true)"));
+    }
+
+
+    @Test
+    public void testDirectCalls() throws Exception {
+        assertEquals(">a", zorkaAgent.eval("test.join(\"a\")"));
+        assertEquals(">a:b:c", zorkaAgent.eval("test.join(\"a\", \"b\", \"c\")"));
+        assertEquals(">a\"b\\c", zorkaAgent.eval("test.join(\"a\\\"b\\\\c\")"));
+        assertEquals(">1,2,3.5,true", zorkaAgent.eval("test.types(1, 2, 3.5, true)"));
+        assertEquals(">-1,-2,-3.0,false", zorkaAgent.eval("test.types(-1L, -2, -3, false)"));
+        assertEquals(System.getProperty("java.vm.specification.version"),
+                zorkaAgent.eval("zorka.jmx(\"java\",\"java.lang:type=Runtime\",\"SpecVersion\")"));
+    }
+
+
+    @Test
+    public void testQueriesAreCachedAndCacheIsClearedWhenNamespaceChanges() throws Exception {
+        long hits = AgentDiagnostics.get(AgentDiagnostics.QUERY_CACHE_HITS);
+        long misses = AgentDiagnostics.get(AgentDiagnostics.QUERY_CACHE_MISSES);
+        long direct = AgentDiagnostics.get(AgentDiagnostics.QUERY_DIRECT_CALLS);
+
+        assertEquals(">a:b", zorkaAgent.eval("test.join(\"a\", \"b\")"));
+        assertEquals(">a:b", zorkaAgent.eval("test.join(\"a\", \"b\")"));
+        assertEquals(5, zorkaAgent.eval("2+3"));
+        assertEquals(5, zorkaAgent.eval("2+3"));
+
+        assertEquals(2, AgentDiagnostics.get(AgentDiagnostics.QUERY_CACHE_HITS) - hits);
+        assertEquals(2, AgentDiagnostics.get(AgentDiagnostics.QUERY_CACHE_MISSES) - misses);
+        assertEquals(2, AgentDiagnostics.get(AgentDiagnostics.QUERY_DIRECT_CALLS) - direct);
+
+        zorkaAgent.put("test", new TestLib("<"));
+
+        assertEquals("<a:b", zorkaAgent.eval("test.join(\"a\", \"b\")"));
+    }
+
+
+    @Test(expected = IllegalStateException.class)
+    public void testExceptionsArePassedToCaller() throws Exception {
+        zorkaAgent.eval("test.fail()");
+    }
+}
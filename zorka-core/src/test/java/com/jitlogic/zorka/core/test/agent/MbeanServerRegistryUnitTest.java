@@ -16,9 +16,16 @@
 
 package com.jitlogic.zorka.core.test.agent;
 
+import com.jitlogic.zorka.core.mbeans.MBeanServerRegistry;
 import com.jitlogic.zorka.core.test.support.ZorkaFixture;
 
 import org.junit.Test;
+
+import javax.management.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static org.junit.Assert.*;
 
 public class MbeanServerRegistryUnitTest  extends ZorkaFixture {
@@ -32,4 +39,171 @@ public class MbeanServerRegistryUnitTest  extends ZorkaFixture {
         assertSame(obj2, mBeanServerRegistry.getOrRegister("xxx", "test:name=Test", "stats2", obj2));
     }
 
+
+    /**
+     * Dynamic mbean counting calls made by registry.
+     */
+    public static class CountingBean implements DynamicMBean {
+
+        private AtomicInteger bulkCalls = new AtomicInteger(), singleCalls = new AtomicInteger();
+
+        private List<String> lastFetch = new ArrayList<String>();
+
+        private long delay;
+
+        public CountingBean(long delay) {
+            this.delay = delay;
+        }
+
+        @Override
+        public Object getAttribute(String attr) throws AttributeNotFoundException {
+            singleCalls.incrementAndGet();
+            if (!attr.startsWith("a")) {
+                throw new AttributeNotFoundException(attr);
+            }
+            return attr.toUpperCase();
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attrs) {
+            bulkCalls.incrementAndGet();
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+            }
+            AttributeList lst = new AttributeList();
+            synchronized (this) {
+                lastFetch.clear();
+                for (String attr : attrs) {
+                    lastFetch.add(attr);
+                    if (attr.startsWith("a")) {
+                        lst.add(new Attribute(attr, attr.toUpperCase()));
+                    }
+                }
+            }
+            return lst;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            return null;
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            return new MBeanInfo(CountingBean.class.getName(), "test", null, null, null, null);
+        }
+    }
+
+
+    private MBeanServerRegistry cachingRegistry(CountingBean bean, long ttl) throws Exception {
+        config.setCfg("zorka.jmx.cache.ttl", 0);
+        config.setCfg("zorka.jmx.cache.ttl.test", ttl);
+
+        MBeanServer mbs = MBeanServerFactory.newMBeanServer();
+        mbs.registerMBean(bean, new ObjectName("test:type=Counting"));
+
+        MBeanServerRegistry registry = new MBeanServerRegistry(config);
+        registry.register("test", mbs, null);
+        registry.register("java", java.lang.management.ManagementFactory.getPlatformMBeanServer(), null);
+
+        return registry;
+    }
+
+
+    @Test
+    public void testCacheTtlIsConfiguredPerMbeanServer() throws Exception {
+        MBeanServerRegistry registry = cachingRegistry(new CountingBean(0), 1000);
+
+        assertEquals(1000, registry.getCacheTtl("test"));
+        assertEquals(0, registry.getCacheTtl("java"));
+
+        assertNotSame(registry.queryNames("java", "java.lang:type=Runtime"),
+                registry.queryNames("java", "java.lang:type=Runtime"));
+        assertSame(registry.queryNames("test", "test:type=*"), registry.queryNames("test", "test:type=*"));
+        assertEquals(1, registry.queryNames("test", "test:type=*").size());
+        assertNull(registry.queryNames("nonexistent", "test:type=*"));
+    }
+
+
+    @Test
+    public void testAttributesRequestedTogetherAreFetchedInBulk() throws Exception {
+        CountingBean bean = new CountingBean(0);
+        MBeanServerRegistry registry = cachingRegistry(bean, 100);
+        ObjectName name = new ObjectName("test:type=Counting");
+
+        assertEquals("A1", registry.getAttribute("test", name, "a1"));
+        assertEquals("A2", registry.getAttribute("test", name, "a2"));
+        assertEquals("A1", registry.getAttribute("test", name, "a1"));
+        assertEquals(2, bean.bulkCalls.get());
+
+        Thread.sleep(150);
+
+        assertEquals("A2", registry.getAttribute("test", name, "a2"));
+        assertEquals("A1", registry.getAttribute("test", name, "a1"));
+        assertEquals(3, bean.bulkCalls.get());
+        assertEquals(2, bean.lastFetch.size());
+        assertEquals(0, bean.singleCalls.get());
+    }
+
+
+    @Test
+    public void testMissingAttributesAreReportedAsUsual() throws Exception {
+        CountingBean bean = new CountingBean(0);
+        MBeanServerRegistry registry = cachingRegistry(bean, 1000);
+        ObjectName name = new ObjectName("test:type=Counting");
+
+        try {
+            registry.getAttribute("test", name, "nonexistent");
+            fail("Should throw AttributeNotFoundException");
+        } catch (AttributeNotFoundException e) {
+        }
+
+        assertEquals(1, bean.singleCalls.get());
+    }
+
+
+    @Test
+    public void testConcurrentRequestsShareSingleFetch() throws Exception {
+        final CountingBean bean = new CountingBean(50);
+        final MBeanServerRegistry registry = cachingRegistry(bean, 60000);
+        final ObjectName name = new ObjectName("test:type=Counting");
+        final AtomicInteger results = new AtomicInteger();
+
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < 8; i++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if ("A1".equals(registry.getAttribute("test", name, "a1"))) {
+                            results.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                    }
+                }
+            }));
+        }
+
+        for (Thread t : threads) {
+            t.start();
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertEquals(8, results.get());
+        assertEquals(1, bean.bulkCalls.get());
+    }
 }
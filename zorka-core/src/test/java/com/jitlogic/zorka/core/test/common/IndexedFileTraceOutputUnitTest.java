@@ -0,0 +1,257 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.test.common;
+
+import com.jitlogic.zorka.common.stats.AgentDiagnostics;
+import com.jitlogic.zorka.common.tracedata.*;
+import com.jitlogic.zorka.common.util.ZorkaUtil;
+import com.jitlogic.zorka.common.zico.ZicoDataProcessor;
+import com.jitlogic.zorka.core.test.support.ZorkaFixture;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+// TODO move this test to zorka-common some day
+public class IndexedFileTraceOutputUnitTest extends ZorkaFixture {
+
+    private SymbolRegistry symbols = new SymbolRegistry();
+
+    private MetricsRegistry metrics = new MetricsRegistry();
+
+
+    /**
+     * Collects objects loaded by reader.
+     */
+    private static class Collector implements ZicoDataProcessor {
+
+        private Map<Integer, String> symbols = new HashMap<Integer, String>();
+
+        private List<TraceRecord> traces = new ArrayList<TraceRecord>();
+
+        private boolean committed;
+
+        @Override
+        public void process(Object obj) throws IOException {
+            if (obj instanceof Symbol) {
+                symbols.put(((Symbol) obj).getId(), ((Symbol) obj).getName());
+            } else if (obj instanceof TraceRecord) {
+                traces.add((TraceRecord) obj);
+            }
+        }
+
+        @Override
+        public void commit() {
+            committed = true;
+        }
+    }
+
+
+    private File path() {
+        return new File(getTmpDir(), "trace.ztr");
+    }
+
+
+    private TraceRecord trace(int i, boolean error) {
+        TraceRecord tr = new TraceRecord();
+        tr.setClassId(symbols.symbolId("com.acme.Class" + i));
+        tr.setMethodId(symbols.symbolId("method" + i));
+        tr.setSignatureId(symbols.symbolId("()V"));
+        tr.setTime(i * 1000);
+        tr.setCalls(1);
+        tr.setFlags(TraceRecord.TRACE_BEGIN);
+        TraceMarker marker = new TraceMarker(symbols.symbolId("TRACE"), 1000 + i * 10);
+        if (error) {
+            marker.markFlags(TraceMarker.ERROR_MARK);
+        }
+        tr.setMarker(marker);
+        return tr;
+    }
+
+
+    private void write(IndexedFileTraceOutput output, int n) {
+        output.open();
+        for (int i = 0; i < n; i++) {
+            assertTrue(output.submit(trace(i, i % 5 == 0)));
+            output.runCycle();
+        }
+        output.close();
+    }
+
+
+    private int count(String suffix) {
+        int n = 0;
+        for (String name : new File(getTmpDir()).list()) {
+            if (name.endsWith(suffix)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+
+    private void checkSelectiveLoad(boolean compress) throws Exception {
+        write(new IndexedFileTraceOutput(new FressianTraceWriter(symbols, metrics), path(), 100, 1024, compress), 20);
+
+        assertTrue("traces should be spread across segments", count(IndexedFileTraceOutput.DATA_SUFFIX) > 1);
+
+        IndexedTraceReader reader = new IndexedTraceReader(path());
+
+        assertEquals(20, reader.getEntries().size());
+        assertEquals(5, reader.find(1050, 1100, false).size());
+        assertEquals(4, reader.find(0, Long.MAX_VALUE, true).size());
+
+        Collector collector = new Collector();
+        List<TraceIndexEntry> selected = reader.find(1100, 1200, false);
+        reader.load(selected, collector);
+
+        assertTrue(collector.committed);
+        assertEquals(10, collector.traces.size());
+
+        for (int i = 0; i < 10; i++) {
+            TraceRecord tr = collector.traces.get(i);
+            assertEquals(1100 + i * 10, tr.getClock());
+            assertEquals("com.acme.Class" + (i + 10), collector.symbols.get(tr.getClassId()));
+            assertEquals("method" + (i + 10), collector.symbols.get(tr.getMethodId()));
+        }
+    }
+
+
+    @Test
+    public void testWriteAndLoadSelectedTraces() throws Exception {
+        checkSelectiveLoad(false);
+    }
+
+
+    @Test
+    public void testWriteAndLoadSelectedCompressedTraces() throws Exception {
+        checkSelectiveLoad(true);
+    }
+
+
+    @Test
+    public void testLoadErrorTracesOnly() throws Exception {
+        write(new IndexedFileTraceOutput(new FressianTraceWriter(symbols, metrics), path(), 100, 1024, true), 20);
+
+        IndexedTraceReader reader = new IndexedTraceReader(path());
+        Collector collector = new Collector();
+        reader.load(reader.find(0, Long.MAX_VALUE, true), collector);
+
+        assertEquals(4, collector.traces.size());
+
+        for (TraceRecord tr : collector.traces) {
+            assertTrue(tr.getMarker().hasFlag(TraceMarker.ERROR_MARK));
+            assertNotNull(collector.symbols.get(tr.getClassId()));
+        }
+    }
+
+
+    @Test
+    public void testOldSegmentsAreRemoved() throws Exception {
+        write(new IndexedFileTraceOutput(new FressianTraceWriter(symbols, metrics), path(), 2, 512, false), 20);
+
+        assertEquals(2, count(IndexedFileTraceOutput.DATA_SUFFIX));
+        assertEquals(2, count(IndexedFileTraceOutput.INDEX_SUFFIX));
+
+        // Remaining segments are still readable on their own
+        IndexedTraceReader reader = new IndexedTraceReader(path());
+        Collector collector = new Collector();
+        reader.load(reader.getEntries(), collector);
+
+        assertTrue(collector.traces.size() > 0);
+        assertEquals(reader.getEntries().size(), collector.traces.size());
+
+        for (TraceRecord tr : collector.traces) {
+            assertNotNull(collector.symbols.get(tr.getClassId()));
+        }
+    }
+
+
+    @Test
+    public void testClosedSegmentIsUnmappedAndTruncated() throws Exception {
+        write(new IndexedFileTraceOutput(new FressianTraceWriter(symbols, metrics), path(), 2, 1024 * 1024, false), 3);
+
+        File segment = new File(getTmpDir(), new File(getTmpDir()).list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(IndexedFileTraceOutput.DATA_SUFFIX);
+            }
+        })[0]);
+
+        assertTrue("segment should be truncated", segment.length() < 1024 * 1024);
+        assertTrue("segment should be deletable", segment.delete());
+    }
+
+
+    @Test
+    public void testUnmapBuffer() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(new File(getTmpDir(), "test.dat"), "rw");
+        try {
+            MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 4096);
+            assertTrue(ZorkaUtil.unmap(buf));
+        } finally {
+            raf.close();
+        }
+        assertFalse(ZorkaUtil.unmap(ByteBuffer.allocate(16)));
+    }
+
+
+    @Test
+    public void testTracesAreCountedAsLostUntilSegmentCanBeOpened() throws Exception {
+        File dir = new File(getTmpDir(), "missing");
+        File path = new File(dir, "trace.ztr");
+        long lost = AgentDiagnostics.get(AgentDiagnostics.FILE_TRACES_LOST);
+
+        IndexedFileTraceOutput output = new IndexedFileTraceOutput(
+                new FressianTraceWriter(symbols, metrics), path, 2, 1024, false);
+        output.open();
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(output.submit(trace(i, false)));
+            output.runCycle();
+        }
+
+        assertEquals(3, AgentDiagnostics.get(AgentDiagnostics.FILE_TRACES_LOST) - lost);
+
+        // Output recovers once segment can be opened, failed attempts don't consume segment numbers
+        assertTrue(dir.mkdirs());
+        assertTrue(output.submit(trace(3, false)));
+        output.runCycle();
+        output.close();
+
+        assertEquals(3, AgentDiagnostics.get(AgentDiagnostics.FILE_TRACES_LOST) - lost);
+        assertTrue(IndexedFileTraceOutput.segmentFile(dir, "trace", 1, IndexedFileTraceOutput.DATA_SUFFIX).exists());
+
+        IndexedTraceReader reader = new IndexedTraceReader(path);
+        Collector collector = new Collector();
+        reader.load(reader.getEntries(), collector);
+
+        assertEquals(1, collector.traces.size());
+        assertEquals(3000L, collector.traces.get(0).getTime());
+    }
+}
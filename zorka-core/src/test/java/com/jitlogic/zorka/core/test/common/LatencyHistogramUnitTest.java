@@ -0,0 +1,119 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.test.common;
+
+import com.jitlogic.zorka.common.stats.LatencyHistogram;
+import com.jitlogic.zorka.common.stats.MethodCallStatistic;
+import com.jitlogic.zorka.common.stats.StripedMethodCallStatistic;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+// TODO move this test to zorka-common some day
+public class LatencyHistogramUnitTest {
+
+    @Test
+    public void testBucketBoundaries() {
+        for (long v : new long[] { 0, 1, 7, 8, 15, 16, 17, 1000, 123456789L, 1L << 39 }) {
+            int idx = LatencyHistogram.bucket(v);
+            assertTrue("value " + v, LatencyHistogram.bucketValue(idx) >= v);
+            assertTrue("value " + v, idx == 0 || LatencyHistogram.bucketValue(idx - 1) < v);
+        }
+
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket(Long.MAX_VALUE));
+    }
+
+
+    @Test
+    public void testRelativeErrorOfPercentiles() {
+        LatencyHistogram h = new LatencyHistogram();
+
+        for (long i = 1; i <= 1000; i++) {
+            h.record(i * 1000000L);
+        }
+
+        assertEquals(1000L, h.getCount());
+
+        long p50 = h.getPercentile(50.0), p99 = h.getPercentile(99.0);
+
+        assertTrue("p50=" + p50, p50 >= 500000000L && p50 <= 500000000L * 9 / 8);
+        assertTrue("p99=" + p99, p99 >= 990000000L && p99 <= 990000000L * 9 / 8);
+        assertEquals(0L, new LatencyHistogram().getPercentile(99.0));
+    }
+
+
+    @Test
+    public void testMergeHistogramCounts() {
+        LatencyHistogram h1 = new LatencyHistogram(), h2 = new LatencyHistogram();
+
+        h1.record(100);
+        h2.record(200);
+        h2.record(10);
+
+        long[] counts = h2.addCounts(h1.addCounts(new long[LatencyHistogram.BUCKETS]));
+        LatencyHistogram merged = new LatencyHistogram(counts);
+
+        assertEquals(3L, merged.getCount());
+        assertEquals(10L, merged.getPercentile(1.0));
+        assertEquals(200L, merged.getPercentile(100.0) & ~7L);
+        assertEquals(1L, h1.getCount());
+    }
+
+
+    @Test
+    public void testStripedStatisticMergesHistogramsOfAllStripes() throws Exception {
+        final StripedMethodCallStatistic st = new StripedMethodCallStatistic("test", 8);
+        Thread[] threads = new Thread[8];
+
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        st.logCall(1000000L);
+                    }
+                    st.logError(8000000L);
+                }
+            });
+            threads[i].start();
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertEquals(8008L, st.getCalls());
+        assertEquals(8008L, st.getHistogram().getCount());
+        assertEquals(st.getHistogram().getPercentile(50.0) / 1000000L, st.getP50());
+        assertTrue(st.getHistogram().getPercentile(100.0) >= 8000000L);
+    }
+
+
+    @Test
+    public void testCallsAndErrorsAreRecordedOnceInHistogram() {
+        MethodCallStatistic st = new MethodCallStatistic("test");
+
+        st.logCall(1000000L);
+        st.logError(2000000L);
+        st.logCall(3000000L, 10);
+        st.logError(4000000L, 20);
+
+        assertEquals(4L, st.getCalls());
+        assertEquals(2L, st.getErrors());
+        assertEquals(st.getCalls(), st.getHistogram().getCount());
+    }
+}
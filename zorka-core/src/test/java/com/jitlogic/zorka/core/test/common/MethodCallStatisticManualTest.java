@@ -0,0 +1,85 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.test.common;
+
+import com.jitlogic.zorka.common.stats.MethodCallStatistic;
+import com.jitlogic.zorka.common.stats.StripedMethodCallStatistic;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compares scalability of standard and striped method call statistics when single
+ * statistic is updated from 1 to N threads. Not run automatically, start it manually
+ * when tuning statistics.
+ */
+public class MethodCallStatisticManualTest {
+
+    private static final int CALLS = 2000000;
+
+
+    private long run(final MethodCallStatistic stat, int nthreads) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[nthreads];
+
+        for (int t = 0; t < nthreads; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < CALLS; i++) {
+                        stat.markEnter();
+                        stat.logCall(i & 1023);
+                        stat.markExit();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        long t1 = System.nanoTime();
+        start.countDown();
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        return System.nanoTime() - t1;
+    }
+
+
+    @Test
+    public void testCompareStandardAndStripedStatisticScaling() throws Exception {
+        int maxThreads = Runtime.getRuntime().availableProcessors() * 2;
+
+        // Warm up
+        run(new MethodCallStatistic("W"), 2);
+        run(new StripedMethodCallStatistic("W"), 2);
+
+        for (int n = 1; n <= maxThreads; n *= 2) {
+            long calls = (long) CALLS * n;
+            long tStd = run(new MethodCallStatistic("A"), n);
+            long tStriped = run(new StripedMethodCallStatistic("B"), n);
+            System.out.println("Threads " + n + ": standard=" + (calls * 1000L / tStd) + " calls/us, striped="
+                    + (calls * 1000L / tStriped) + " calls/us");
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.test.common;
+
+import com.jitlogic.zorka.common.util.ObjectInspector;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures ObjectInspector.get() on object graphs resembling what typical servlet and JDBC
+ * probes fetch (request URI, session ID, SQL of a statement, connection URL) and compares it
+ * with resolving accessors via reflection on every call. Not run automatically.
+ */
+// TODO move this test to zorka-common some day
+public class ObjectInspectorManualTest {
+
+    private static final int CALLS = 1000000;
+
+
+    public interface Session {
+        String getId();
+        boolean isNew();
+    }
+
+
+    public interface Request {
+        String getRequestURI();
+        Session getSession();
+        Map<String, Object> getAttributes();
+    }
+
+
+    private static class SessionImpl implements Session {
+        private String id = "0123456789ABCDEF";
+
+        public String getId() {
+            return id;
+        }
+
+        public boolean isNew() {
+            return false;
+        }
+    }
+
+
+    private static class RequestImpl implements Request {
+        private Session session = new SessionImpl();
+        private Map<String, Object> attributes = new HashMap<String, Object>();
+
+        public String getRequestURI() {
+            return "/app/index.jsp";
+        }
+
+        public Session getSession() {
+            return session;
+        }
+
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+    }
+
+
+    private static class MetaData {
+        public String getURL() {
+            return "jdbc:h2:mem:test";
+        }
+    }
+
+
+    private static class Connection {
+        private MetaData metaData = new MetaData();
+
+        public MetaData getMetaData() {
+            return metaData;
+        }
+    }
+
+
+    private static class Statement {
+        private String sql = "select * from users where id = ?";
+        private Connection connection = new Connection();
+
+        public Connection getConnection() {
+            return connection;
+        }
+    }
+
+
+    private static final Object[][] PATHS = {
+            {"requestURI"},
+            {"session", "id"},
+            {"session", "new"},
+            {"sql"},
+            {"connection", "metaData", "URL"},
+    };
+
+
+    /**
+     * Resolves attribute the way ObjectInspector did before accessors were cached.
+     */
+    private static Object getUncached(Object obj, String name) throws Exception {
+        String cname = name.substring(0, 1).toUpperCase() + name.substring(1);
+
+        Method method = ObjectInspector.lookupMethod(obj.getClass(), "get" + cname);
+
+        if (method == null) {
+            method = ObjectInspector.lookupMethod(obj.getClass(), "is" + cname);
+        }
+
+        if (method == null) {
+            method = ObjectInspector.lookupMethod(obj.getClass(), name);
+        }
+
+        if (method != null) {
+            method.setAccessible(true);
+            return method.invoke(obj);
+        }
+
+        Field field = ObjectInspector.lookupField(obj.getClass(), name);
+        field.setAccessible(true);
+        return field.get(obj);
+    }
+
+
+    private long run(Object[] roots, boolean cached) throws Exception {
+        long t1 = System.nanoTime();
+        int n = 0;
+
+        for (int i = 0; i < CALLS; i++) {
+            Object[] path = PATHS[i % PATHS.length];
+            Object obj = roots[i % PATHS.length];
+
+            if (cached) {
+                obj = ObjectInspector.get(obj, path);
+            } else {
+                for (Object key : path) {
+                    obj = getUncached(obj, (String) key);
+                }
+            }
+
+            if (obj != null) {
+                n++;
+            }
+        }
+
+        assertEquals(CALLS, n);
+
+        return System.nanoTime() - t1;
+    }
+
+
+    @Test
+    public void testCompareCachedAndUncachedAccess() throws Exception {
+        Request request = new RequestImpl();
+        Statement statement = new Statement();
+        Object[] roots = {request, request, request, statement, statement};
+
+        // Warm up
+        run(roots, true);
+        run(roots, false);
+
+        for (int i = 0; i < 3; i++) {
+            long tCached = run(roots, true);
+            long tUncached = run(roots, false);
+            System.out.println("cached=" + (tCached / CALLS) + " ns/get, uncached=" + (tUncached / CALLS) + " ns/get");
+        }
+    }
+}
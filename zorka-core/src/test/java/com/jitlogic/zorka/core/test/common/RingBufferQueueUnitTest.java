@@ -0,0 +1,126 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.test.common;
+
+import com.jitlogic.zorka.common.util.RingBufferQueue;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+// TODO move this test to zorka-common some day
+public class RingBufferQueueUnitTest {
+
+    @Test
+    public void testOfferAndPollInOrder() throws Exception {
+        RingBufferQueue<Integer> q = new RingBufferQueue<Integer>(4, RingBufferQueue.WAIT_PARK);
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(q.offer(i));
+        }
+
+        assertEquals(4, q.size());
+        assertEquals((Integer) 0, q.peek());
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals((Integer) i, q.poll());
+        }
+
+        assertNull(q.poll());
+        assertEquals(0, q.size());
+    }
+
+
+    @Test
+    public void testOfferFailsImmediatelyWhenFull() throws Exception {
+        RingBufferQueue<Integer> q = new RingBufferQueue<Integer>(2, RingBufferQueue.WAIT_PARK);
+
+        assertTrue(q.offer(1));
+        assertTrue(q.offer(2));
+        assertFalse(q.offer(3));
+        assertFalse(q.offer(3, 1, TimeUnit.MILLISECONDS));
+
+        assertEquals((Integer) 1, q.poll());
+        assertTrue(q.offer(3));
+        assertEquals(0, q.remainingCapacity());
+    }
+
+
+    @Test
+    public void testWrapAroundAndDrain() throws Exception {
+        RingBufferQueue<Integer> q = new RingBufferQueue<Integer>(4, RingBufferQueue.WAIT_YIELD);
+        List<Integer> lst = new ArrayList<Integer>();
+
+        for (int i = 0; i < 10; i++) {
+            q.offer(i);
+            q.offer(i + 100);
+            q.drainTo(lst);
+        }
+
+        assertEquals(20, lst.size());
+        assertEquals((Integer) 109, lst.get(19));
+    }
+
+
+    @Test(timeout = 10000)
+    public void testMultipleProducersSingleConsumer() throws Exception {
+        final RingBufferQueue<Integer> q = new RingBufferQueue<Integer>(64, RingBufferQueue.WAIT_PARK);
+        final int nthreads = 4, nitems = 10000;
+        Thread[] producers = new Thread[nthreads];
+
+        for (int t = 0; t < nthreads; t++) {
+            producers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < nitems; i++) {
+                            q.put(i);
+                        }
+                    } catch (InterruptedException e) {
+                        // Test will fail on wrong sum anyway
+                    }
+                }
+            });
+            producers[t].start();
+        }
+
+        long sum = 0;
+
+        for (int i = 0; i < nthreads * nitems; i++) {
+            sum += q.take();
+        }
+
+        for (Thread t : producers) {
+            t.join();
+        }
+
+        assertEquals((long) nthreads * nitems * (nitems - 1) / 2, sum);
+        assertNull(q.poll(1, TimeUnit.MILLISECONDS));
+    }
+
+
+    @Test
+    public void testParseWaitStrategy() {
+        assertEquals(RingBufferQueue.WAIT_PARK, RingBufferQueue.waitStrategy("park"));
+        assertEquals(RingBufferQueue.WAIT_SPIN, RingBufferQueue.waitStrategy("SPIN"));
+        assertEquals(RingBufferQueue.WAIT_YIELD, RingBufferQueue.waitStrategy("yield"));
+        assertEquals(-1, RingBufferQueue.waitStrategy("blocking"));
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.test.common;
+
+import com.jitlogic.zorka.common.util.StringTemplate;
+import com.jitlogic.zorka.common.util.ZorkaUtil;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+// TODO move this test to zorka-common some day
+public class StringTemplateUnitTest {
+
+    private static final StringTemplate INNER = StringTemplate.compile("inner:${X}");
+
+
+    /**
+     * Object formatting another template in its toString() method (as instrumented code might do).
+     */
+    private static class Nested {
+        @Override
+        public String toString() {
+            return INNER.format(ZorkaUtil.<String, Object>map("X", "abc"));
+        }
+    }
+
+
+    @Test
+    public void testFormatRecords() {
+        StringTemplate t = StringTemplate.compile("${A}/${B.length()}/${C:none}/${D~2}/${E|F}!");
+        Map<String, Object> rec = ZorkaUtil.<String, Object>map("A", 1, "B", "abcd", "D", "xyz", "F", "f");
+
+        assertFalse(t.isConstant());
+        assertEquals("1/4/none/xy/f!", t.format(rec));
+
+        rec.put("E", "e");
+        rec.put("C", "c");
+        assertEquals("1/4/c/xy/e!", t.format(rec));
+    }
+
+
+    @Test
+    public void testFormatArrays() {
+        StringTemplate t = StringTemplate.compile("[${0}:${1.length()}:${2:def}:${3|0}]");
+        assertEquals("[a:3:def:a]", t.format(new Object[]{"a", "bcd", null, null}));
+    }
+
+
+    @Test
+    public void testConstantTemplates() {
+        String s = "no variables here";
+        assertTrue(StringTemplate.compile(s).isConstant());
+        assertSame(s, StringTemplate.compile(s).format(ZorkaUtil.<String, Object>map()));
+        assertEquals("", StringTemplate.compile("").format(new Object[0]));
+    }
+
+
+    @Test
+    public void testSpecialCharsAreCopiedLiterally() {
+        StringTemplate t = StringTemplate.compile("<${A}>");
+        assertEquals("<a $1 \\b>", t.format(ZorkaUtil.<String, Object>map("A", "a $1 \\b")));
+    }
+
+
+    @Test
+    public void testNestedFormattingInTheSameThread() {
+        StringTemplate t = StringTemplate.compile("outer:${A}:${B}");
+        assertEquals("outer:inner:abc:b", t.format(ZorkaUtil.<String, Object>map("A", new Nested(), "B", "b")));
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.test.common;
+
+import com.jitlogic.zorka.common.stats.AgentDiagnostics;
+import com.jitlogic.zorka.common.zico.ZicoSpillJournal;
+import com.jitlogic.zorka.core.test.support.ZorkaFixture;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+// TODO move this test to zorka-common some day
+public class ZicoSpillJournalUnitTest extends ZorkaFixture {
+
+    private File dir() {
+        return new File(getTmpDir(), "spill");
+    }
+
+
+    private static byte[] data(int n, int len) {
+        byte[] b = new byte[len];
+        for (int i = 0; i < len; i++) {
+            b[i] = (byte) (n + i);
+        }
+        return b;
+    }
+
+
+    @Test
+    public void testAppendAndReplayInOrder() throws Exception {
+        ZicoSpillJournal journal = new ZicoSpillJournal(dir(), 1024 * 1024, 256);
+
+        assertTrue(journal.isEmpty());
+        assertNull(journal.peek());
+
+        // 10 entries of 100 bytes will not fit into single segment
+        for (int i = 0; i < 10; i++) {
+            journal.append(data(i, 100), 0, 100, 2);
+        }
+
+        assertEquals(20, journal.getRecords());
+        assertTrue(dir().list().length > 1);
+
+        for (int i = 0; i < 10; i++) {
+            assertArrayEquals(data(i, 100), journal.peek());
+            journal.remove();
+        }
+
+        assertTrue(journal.isEmpty());
+        assertEquals(0, journal.getSize());
+        assertEquals("all segments should be deleted", 0, dir().list().length);
+    }
+
+
+    @Test
+    public void testPacketBiggerThanSegment() throws Exception {
+        ZicoSpillJournal journal = new ZicoSpillJournal(dir(), 1024 * 1024, 64);
+
+        journal.append(data(1, 10), 0, 10, 1);
+        journal.append(data(2, 1000), 0, 1000, 1);
+
+        assertArrayEquals(data(1, 10), journal.peek());
+        journal.remove();
+        assertArrayEquals(data(2, 1000), journal.peek());
+    }
+
+
+    @Test
+    public void testReopenResumesReplay() throws Exception {
+        ZicoSpillJournal journal = new ZicoSpillJournal(dir(), 1024 * 1024, 256);
+
+        for (int i = 0; i < 5; i++) {
+            journal.append(data(i, 100), 0, 100, 1);
+        }
+
+        journal.remove();
+        journal.remove();
+        journal.flush();
+
+        journal = new ZicoSpillJournal(dir(), 1024 * 1024, 256);
+
+        assertEquals(3, journal.getRecords());
+
+        for (int i = 2; i < 5; i++) {
+            assertArrayEquals(data(i, 100), journal.peek());
+            journal.remove();
+        }
+
+        assertTrue(journal.isEmpty());
+
+        // New segments are not mixed up with old ones
+        journal.append(data(7, 10), 0, 10, 1);
+        assertArrayEquals(data(7, 10), journal.peek());
+    }
+
+
+    @Test
+    public void testSkipSegmentsWithMalformedNames() throws Exception {
+        assertTrue(dir().mkdirs());
+        assertTrue(new File(dir(), "spill-xyz.zsj").createNewFile());
+
+        ZicoSpillJournal journal = new ZicoSpillJournal(dir(), 1024 * 1024, 256);
+
+        assertTrue(journal.isEmpty());
+
+        journal.append(data(1, 10), 0, 10, 1);
+        assertArrayEquals(data(1, 10), journal.peek());
+    }
+
+
+    @Test
+    public void testEvictOldestSegmentsWhenSizeExceeded() throws Exception {
+        long evicted = AgentDiagnostics.get(AgentDiagnostics.ZICO_TRACES_EVICTED);
+
+        // Two entries per segment, at most 3 segments
+        ZicoSpillJournal journal = new ZicoSpillJournal(dir(), 3 * 256, 256);
+
+        for (int i = 0; i < 10; i++) {
+            journal.append(data(i, 100), 0, 100, 1);
+        }
+
+        assertEquals(3 * 256, journal.getSize());
+        assertEquals(3, dir().list().length);
+        assertEquals(6, journal.getRecords());
+        assertEquals(4, AgentDiagnostics.get(AgentDiagnostics.ZICO_TRACES_EVICTED) - evicted);
+
+        assertArrayEquals(data(4, 100), journal.peek());
+    }
+}
@@ -0,0 +1,270 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.test.common;
+
+import com.jitlogic.zorka.common.tracedata.MetadataChecker;
+import com.jitlogic.zorka.common.tracedata.SymbolicRecord;
+import com.jitlogic.zorka.common.tracedata.TraceOutput;
+import com.jitlogic.zorka.common.tracedata.TraceWriter;
+import com.jitlogic.zorka.common.zico.ZicoConnector;
+import com.jitlogic.zorka.common.zico.ZicoPacket;
+import com.jitlogic.zorka.common.zico.ZicoSpillJournal;
+import com.jitlogic.zorka.common.zico.ZicoTraceOutput;
+import com.jitlogic.zorka.core.test.support.TestUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.jitlogic.zorka.common.zico.ZicoPacket.*;
+import static org.junit.Assert.*;
+
+// TODO move this test to zorka-common some day
+public class ZicoTraceOutputUnitTest {
+
+    private ServerSocket server;
+
+    private Thread serverThread;
+
+    private AtomicInteger received = new AtomicInteger(0);
+
+
+    /**
+     * Server side of ZICO connection (only receives packets and sends replies).
+     */
+    private static class ServerConnector extends ZicoConnector {
+
+        private ServerConnector(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = socket.getInputStream();
+            this.out = socket.getOutputStream();
+        }
+
+        private ZicoPacket read() throws IOException {
+            return recv();
+        }
+    }
+
+
+    /**
+     * Encodes each record as a single byte.
+     */
+    private static class TestWriter implements TraceWriter {
+
+        private TraceOutput output;
+
+        @Override
+        public void write(SymbolicRecord record) throws IOException {
+            output.getOutputStream().write(1);
+        }
+
+        @Override
+        public void setOutput(TraceOutput output) {
+            this.output = output;
+        }
+
+        @Override
+        public void reset() {
+        }
+
+        @Override
+        public void softReset() {
+        }
+    }
+
+
+    private static final SymbolicRecord REC = new SymbolicRecord() {
+        @Override
+        public void traverse(MetadataChecker checker) throws IOException {
+        }
+    };
+
+
+    private abstract class ServerTask implements Runnable {
+
+        protected abstract void handle(ServerConnector conn) throws IOException;
+
+        @Override
+        public void run() {
+            try {
+                while (!server.isClosed()) {
+                    ServerConnector conn = new ServerConnector(server.accept());
+                    try {
+                        handle(conn);
+                    } catch (IOException e) {
+                        // Client disconnected
+                    } finally {
+                        conn.close();
+                    }
+                }
+            } catch (IOException e) {
+                // Server closed
+            }
+        }
+    }
+
+
+    private void startServer(ServerTask task) {
+        serverThread = new Thread(task);
+        serverThread.setDaemon(true);
+        serverThread.start();
+    }
+
+
+    private ZicoTraceOutput output(int window) throws IOException {
+        return new ZicoTraceOutput(new TestWriter(), "127.0.0.1", server.getLocalPort(), "test", "",
+                64, 1, 3, 10, 2, 5000, window);
+    }
+
+
+    private void submitAndProcess(ZicoTraceOutput output, int n) {
+        for (int i = 0; i < n; i++) {
+            assertTrue(output.submit(REC));
+        }
+
+        while (output.getSubmitQueue().size() > 0) {
+            output.runCycle();
+        }
+    }
+
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0);
+    }
+
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+        if (serverThread != null) {
+            serverThread.join(5000);
+        }
+    }
+
+
+    @Test(timeout = 20000)
+    public void testPipelinedPacketsAreSentBeforeAcknowledgements() throws Exception {
+        // Server acknowledges only when it has received 4 packets, so it works only with pipelining
+        startServer(new ServerTask() {
+            @Override
+            protected void handle(ServerConnector conn) throws IOException {
+                int pending = 0;
+                while (true) {
+                    if (conn.read().getStatus() == ZICO_DATA) {
+                        received.incrementAndGet();
+                        pending++;
+                    }
+                    if (pending == 4) {
+                        for (int i = 0; i < pending; i++) {
+                            conn.send(ZICO_OK);
+                        }
+                        pending = 0;
+                    }
+                }
+            }
+        });
+
+        ZicoTraceOutput output = output(4);
+        submitAndProcess(output, 8);
+        output.close();
+
+        assertEquals(8, received.get());
+    }
+
+
+    @Test(timeout = 20000)
+    public void testRetransmitOnlyUnacknowledgedPacketsAfterReconnect() throws Exception {
+        final AtomicInteger connections = new AtomicInteger(0);
+
+        // First connection breaks after acknowledging first of three packets
+        startServer(new ServerTask() {
+            @Override
+            protected void handle(ServerConnector conn) throws IOException {
+                boolean first = connections.incrementAndGet() == 1;
+                int n = 0;
+                while (true) {
+                    if (conn.read().getStatus() == ZICO_DATA) {
+                        n++;
+                        if (first && n == 3) {
+                            return;
+                        }
+                        if (!first) {
+                            received.incrementAndGet();
+                        }
+                    }
+                    if (!first || n == 1) {
+                        conn.send(ZICO_OK);
+                    }
+                }
+            }
+        });
+
+        ZicoTraceOutput output = output(4);
+        submitAndProcess(output, 3);
+        output.close();
+
+        assertEquals(2, connections.get());
+        assertEquals(2, received.get());
+    }
+
+
+    @Test(timeout = 20000)
+    public void testSpillWhenCollectorIsDownAndReplayLater() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "zorka-spill-test");
+        TestUtil.rmrf(dir);
+
+        ZicoTraceOutput output = output(1);
+        ZicoSpillJournal spill = new ZicoSpillJournal(dir, 1024 * 1024, 64 * 1024);
+        output.setSpill(spill);
+        output.setSpillRetryInterval(0);
+
+        // Nobody listens on this port
+        int port = server.getLocalPort();
+        server.close();
+
+        submitAndProcess(output, 3);
+
+        assertEquals(3, spill.getRecords());
+
+        server = new ServerSocket(port);
+        startServer(new ServerTask() {
+            @Override
+            protected void handle(ServerConnector conn) throws IOException {
+                while (true) {
+                    if (conn.read().getStatus() == ZICO_DATA) {
+                        received.incrementAndGet();
+                    }
+                    conn.send(ZICO_OK);
+                }
+            }
+        });
+
+        // Spilled packets are replayed before new one, new one is sent via journal to keep order
+        submitAndProcess(output, 1);
+        output.close();
+
+        assertTrue(spill.isEmpty());
+        assertEquals(0, dir.list().length);
+        assertEquals(4, received.get());
+    }
+}
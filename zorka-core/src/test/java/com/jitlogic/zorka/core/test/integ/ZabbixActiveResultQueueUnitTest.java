@@ -0,0 +1,107 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.test.integ;
+
+import com.jitlogic.zorka.common.stats.AgentDiagnostics;
+import com.jitlogic.zorka.common.zabbix.ActiveCheckResult;
+import com.jitlogic.zorka.core.integ.ZabbixActiveResultQueue;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ZabbixActiveResultQueueUnitTest {
+
+    private static ActiveCheckResult result(String key) {
+        ActiveCheckResult result = new ActiveCheckResult();
+        result.setHost("test");
+        result.setKey(key);
+        result.setValue("1");
+        return result;
+    }
+
+
+    private static long dropped() {
+        return AgentDiagnostics.get(AgentDiagnostics.ZABBIX_ACTIVE_DROPPED);
+    }
+
+
+    @Test
+    public void testQueueDropsOldestResults() {
+        long dropped = dropped();
+        ZabbixActiveResultQueue queue = new ZabbixActiveResultQueue(2);
+
+        queue.offer(result("a"));
+        queue.offer(result("b"));
+        queue.offer(result("c"));
+
+        assertEquals(2, queue.size());
+        assertEquals(1, dropped() - dropped);
+        assertEquals("b", queue.poll().getKey());
+    }
+
+
+    @Test
+    public void testQueueWithZeroCapacityKeepsNothing() {
+        long dropped = dropped();
+        ZabbixActiveResultQueue queue = new ZabbixActiveResultQueue(0);
+
+        queue.offer(result("a"));
+        queue.offer(result("b"));
+
+        assertEquals(0, queue.size());
+        assertEquals(2, dropped() - dropped);
+        assertNull(queue.poll());
+    }
+
+
+    @Test
+    public void testQueueWithCapacityOfOneKeepsLatestResult() {
+        long dropped = dropped();
+        ZabbixActiveResultQueue queue = new ZabbixActiveResultQueue(1);
+
+        queue.offer(result("a"));
+        assertEquals(0, dropped() - dropped);
+
+        queue.offer(result("b"));
+        queue.offer(result("c"));
+
+        assertEquals(1, queue.size());
+        assertEquals(2, dropped() - dropped);
+        assertEquals("c", queue.poll().getKey());
+        assertEquals(0, queue.size());
+    }
+
+
+    @Test
+    public void testDrainQueueAfterOverflow() {
+        ZabbixActiveResultQueue queue = new ZabbixActiveResultQueue(3);
+
+        for (String key : new String[] { "a", "b", "c", "d", "e" }) {
+            queue.offer(result(key));
+        }
+
+        assertEquals("c", queue.poll().getKey());
+        assertEquals("d", queue.poll().getKey());
+        assertEquals("e", queue.poll().getKey());
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+
+        queue.offer(result("f"));
+        assertEquals(1, queue.size());
+        assertEquals("f", queue.poll().getKey());
+    }
+}
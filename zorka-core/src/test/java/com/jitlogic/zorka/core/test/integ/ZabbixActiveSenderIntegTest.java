@@ -0,0 +1,191 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.test.integ;
+
+import com.google.gson.Gson;
+import com.jitlogic.zorka.common.stats.AgentDiagnostics;
+import com.jitlogic.zorka.common.util.ZabbixUtils;
+import com.jitlogic.zorka.common.zabbix.ActiveCheckQuery;
+import com.jitlogic.zorka.common.zabbix.ActiveCheckResult;
+import com.jitlogic.zorka.core.integ.ZabbixActiveResultQueue;
+import com.jitlogic.zorka.core.integ.ZabbixActiveSenderTask;
+import com.jitlogic.zorka.core.test.support.ZorkaFixture;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ZabbixActiveSenderIntegTest extends ZorkaFixture {
+
+    private static final int PORT = 10066;
+
+    private ServerSocket server;
+
+    private ZabbixActiveSenderTask sender;
+
+    private final List<ActiveCheckQuery> received = Collections.synchronizedList(new ArrayList<ActiveCheckQuery>());
+
+    private volatile int connections;
+
+
+    /**
+     * Starts fake zabbix server accepting agent data.
+     */
+    private void startServer(final boolean keepAlive) throws Exception {
+        server = new ServerSocket(PORT);
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Socket sock = server.accept();
+                        connections++;
+                        String msg;
+                        while (null != (msg = ZabbixUtils.decode(sock.getInputStream()))) {
+                            // Decoder reads bytes as characters
+                            byte[] b = new byte[msg.length()];
+                            for (int i = 0; i < b.length; i++) {
+                                b[i] = (byte) msg.charAt(i);
+                            }
+                            msg = new String(b, "UTF-8");
+                            received.add(new Gson().fromJson(msg, ActiveCheckQuery.class));
+                            sock.getOutputStream().write(ZabbixUtils.zbx_format(
+                                    "{\"response\":\"success\",\"info\":\"processed: 1\"}"));
+                            sock.getOutputStream().flush();
+                            if (!keepAlive) {
+                                break;
+                            }
+                        }
+                        sock.close();
+                    }
+                } catch (IOException e) {
+                    // Server closed
+                }
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+    }
+
+
+    @After
+    public void tearDown() throws Exception {
+        if (sender != null) {
+            sender.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+
+    private static ActiveCheckResult result(String key, String value, long clock) {
+        ActiveCheckResult result = new ActiveCheckResult();
+        result.setHost("test");
+        result.setKey(key);
+        result.setValue(value);
+        result.setClock(clock);
+        return result;
+    }
+
+
+    private ZabbixActiveResultQueue queue(ActiveCheckResult... results) {
+        ZabbixActiveResultQueue queue = new ZabbixActiveResultQueue(100);
+        for (ActiveCheckResult result : results) {
+            queue.offer(result);
+        }
+        return queue;
+    }
+
+
+    @Test(timeout = 10000)
+    public void testSendBatchesOverPersistentConnection() throws Exception {
+        startServer(true);
+        ZabbixActiveResultQueue queue = queue(result("a", "1", 1), result("b", "2", 2), result("c", "3", 3));
+        sender = new ZabbixActiveSenderTask(InetAddress.getByName("127.0.0.1"), PORT, queue, 2, false);
+
+        sender.run();
+        queue.offer(result("d", "4", 4));
+        sender.run();
+
+        assertEquals(1, connections);
+        assertEquals(3, received.size());
+        assertEquals(0, queue.size());
+        assertEquals("agent data", received.get(0).getRequest());
+        assertEquals(2, received.get(0).getData().size());
+        assertEquals("c", received.get(1).getData().get(0).getKey());
+        assertEquals("4", received.get(2).getData().get(0).getValue());
+    }
+
+
+    @Test(timeout = 10000)
+    public void testReconnectWhenServerClosesConnection() throws Exception {
+        startServer(false);
+        ZabbixActiveResultQueue queue = queue(result("a", "1", 1));
+        sender = new ZabbixActiveSenderTask(InetAddress.getByName("127.0.0.1"), PORT, queue, 10, false);
+
+        sender.run();
+        queue.offer(result("b", "2", 2));
+        sender.run();
+
+        assertEquals(2, received.size());
+        assertEquals(2, connections);
+        assertEquals("b", received.get(1).getData().get(0).getKey());
+    }
+
+
+    @Test(timeout = 10000)
+    public void testUnsentBatchIsRetained() throws Exception {
+        long errors = AgentDiagnostics.get(AgentDiagnostics.ZABBIX_ACTIVE_ERRORS);
+        ZabbixActiveResultQueue queue = queue(result("a", "1", 1));
+        sender = new ZabbixActiveSenderTask(InetAddress.getByName("127.0.0.1"), PORT, queue, 10, false);
+
+        sender.run();
+        assertEquals(1, AgentDiagnostics.get(AgentDiagnostics.ZABBIX_ACTIVE_ERRORS) - errors);
+
+        startServer(true);
+        sender.run();
+
+        assertEquals(1, received.size());
+        assertEquals("a", received.get(0).getData().get(0).getKey());
+    }
+
+
+    @Test(timeout = 10000)
+    public void testCoalesceResultsOfTheSameItemAndEscapeStrings() throws Exception {
+        startServer(true);
+        String value = "\"quoted\" \\ \n\t\u0001 za\u017c\u00f3\u0142\u0107 \ud83d\ude00";
+        ZabbixActiveResultQueue queue = queue(result("a", "1", 1), result("b", value, 2), result("a", "3", 3));
+        sender = new ZabbixActiveSenderTask(InetAddress.getByName("127.0.0.1"), PORT, queue, 10, true);
+
+        sender.run();
+
+        List<ActiveCheckResult> data = received.get(0).getData();
+        assertEquals(2, data.size());
+        assertEquals(value, data.get(0).getValue());
+        assertEquals("a", data.get(1).getKey());
+        assertEquals("3", data.get(1).getValue());
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.test.integ;
+
+import com.jitlogic.zorka.core.integ.ZabbixAgent;
+import com.jitlogic.zorka.core.test.support.ZorkaFixture;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import static org.junit.Assert.*;
+
+public class ZabbixAgentIntegTest extends ZorkaFixture {
+
+    private static final int PORT = 10066;
+
+    private ZabbixAgent zabbixAgent;
+
+
+    private void start(boolean keepAlive) {
+        config.setCfg("zabbix.listen.port", PORT);
+        config.setCfg("zabbix.keepalive", keepAlive ? "yes" : "no");
+        zabbixAgent = new ZabbixAgent(config, zorkaAgent, translator);
+        zabbixAgent.start();
+    }
+
+
+    @After
+    public void tearDown() {
+        if (zabbixAgent != null) {
+            zabbixAgent.stop();
+        }
+    }
+
+
+    private static byte[] request(String query) {
+        byte[] buf = new byte[13 + query.length()];
+        buf[0] = 'Z'; buf[1] = 'B'; buf[2] = 'X'; buf[3] = 'D'; buf[4] = 1;
+        buf[5] = (byte) query.length();
+        for (int i = 0; i < query.length(); i++) {
+            buf[13 + i] = (byte) query.charAt(i);
+        }
+        return buf;
+    }
+
+
+    private static String response(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(is);
+        byte[] hdr = new byte[13];
+        in.readFully(hdr);
+        assertEquals('Z', hdr[0]);
+        byte[] data = new byte[hdr[5] & 0xff];
+        in.readFully(data);
+        return new String(data, "UTF-8");
+    }
+
+
+    private Socket connect() throws IOException {
+        Socket sock = new Socket("127.0.0.1", PORT);
+        sock.setSoTimeout(5000);
+        return sock;
+    }
+
+
+    @Test(timeout = 10000)
+    public void testStalledClientDoesNotBlockOtherClients() throws Exception {
+        start(false);
+
+        Socket stalled = connect();
+        stalled.getOutputStream().write(new byte[]{'Z', 'B', 'X'});
+        stalled.getOutputStream().flush();
+
+        Socket client = connect();
+        client.getOutputStream().write(request("zorka__version[]"));
+        client.getOutputStream().flush();
+
+        assertEquals(configProperties.getProperty("zorka.version"), response(client.getInputStream()));
+        assertEquals("connection should be closed after reply", -1, client.getInputStream().read());
+
+        client.close();
+        stalled.close();
+    }
+
+
+    @Test(timeout = 10000)
+    public void testPlainTextRequest() throws Exception {
+        start(false);
+
+        Socket client = connect();
+        client.getOutputStream().write("zorka__version[]\n".getBytes());
+        client.getOutputStream().flush();
+
+        assertEquals(configProperties.getProperty("zorka.version"), response(client.getInputStream()));
+
+        client.close();
+    }
+
+
+    @Test(timeout = 10000)
+    public void testKeepAliveAndPipelinedRequests() throws Exception {
+        start(true);
+
+        Socket client = connect();
+        OutputStream os = client.getOutputStream();
+
+        os.write(request("zorka__version[]"));
+        os.flush();
+        assertEquals(configProperties.getProperty("zorka.version"), response(client.getInputStream()));
+
+        // Two requests sent at once are answered in order
+        byte[] r1 = request("zorka__getHostname[]"), r2 = request("zorka__version[]");
+        byte[] buf = new byte[r1.length + r2.length];
+        System.arraycopy(r1, 0, buf, 0, r1.length);
+        System.arraycopy(r2, 0, buf, r1.length, r2.length);
+        os.write(buf);
+        os.flush();
+
+        assertEquals("test", response(client.getInputStream()));
+        assertEquals(configProperties.getProperty("zorka.version"), response(client.getInputStream()));
+
+        client.close();
+    }
+}
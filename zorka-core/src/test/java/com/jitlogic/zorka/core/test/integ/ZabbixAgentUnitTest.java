@@ -18,7 +18,9 @@
 package com.jitlogic.zorka.core.test.integ;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import com.jitlogic.zorka.core.integ.ZabbixQueryTranslator;
 import org.junit.Test;
@@ -79,4 +81,33 @@ public class ZabbixAgentUnitTest {
 		assertEquals("system.load", ZabbixRequestHandler.decode(is));
 		// TODO dotestować graniczne przypadki 
 	}
+
+
+	@Test
+	public void testParseBinaryRequestsFromBuffer() throws Exception {
+		byte[] req = { 'Z', 'B', 'X', 'D', 1, 6, 0, 0, 0, 0, 0, 0, 0, 'a', 'b', 'c', 'd', 'e', 'f' };
+
+		// Incomplete request leaves buffer intact
+		for (int i = 0; i < req.length; i++) {
+			ByteBuffer buf = ByteBuffer.wrap(req, 0, i);
+			assertNull(ZabbixRequestHandler.decode(buf, false));
+			assertEquals(0, buf.position());
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		buf.put(req).put(req).put("xyz\nuv".getBytes()).flip();
+
+		assertEquals("abcdef", ZabbixRequestHandler.decode(buf, false));
+		assertEquals("abcdef", ZabbixRequestHandler.decode(buf, false));
+		assertEquals("xyz", ZabbixRequestHandler.decode(buf, false));
+		assertNull(ZabbixRequestHandler.decode(buf, false));
+		assertEquals("uv", ZabbixRequestHandler.decode(buf, true));
+	}
+
+
+	@Test(expected = IOException.class)
+	public void testRejectTooLongRequests() throws Exception {
+		byte[] req = { 'Z', 'B', 'X', 'D', 1, 0, 0x10, 0, 0, 0, 0, 0, 0 };
+		ZabbixRequestHandler.decode(ByteBuffer.wrap(req), false);
+	}
 }
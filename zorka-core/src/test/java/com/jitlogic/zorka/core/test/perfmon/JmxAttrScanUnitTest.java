@@ -16,6 +16,7 @@
 
 package com.jitlogic.zorka.core.test.perfmon;
 
+import com.jitlogic.zorka.common.stats.AgentDiagnostics;
 import com.jitlogic.zorka.common.test.support.TestJmx;
 import com.jitlogic.zorka.common.tracedata.Metric;
 import com.jitlogic.zorka.common.tracedata.PerfRecord;
@@ -25,14 +26,18 @@ import com.jitlogic.zorka.common.util.ObjectInspector;
 import com.jitlogic.zorka.core.perfmon.TraceOutputJmxScanner;
 import com.jitlogic.zorka.core.perfmon.QueryDef;
 import com.jitlogic.zorka.core.spy.TracerOutput;
+import com.jitlogic.zorka.core.test.support.TestUtil;
 import com.jitlogic.zorka.core.test.support.ZorkaFixture;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
-import javax.management.ObjectName;
+import javax.management.*;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class JmxAttrScanUnitTest extends ZorkaFixture {
 
@@ -153,4 +158,129 @@ public class JmxAttrScanUnitTest extends ZorkaFixture {
         return bean;
     }
 
+
+    /**
+     * MBean that hangs when its attribute is read.
+     */
+    public static class HangingBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) {
+            try {
+                Thread.sleep(60000);
+            } catch (InterruptedException e) {
+            }
+            return 1L;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return attributes;
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            return null;
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            return new MBeanInfo(HangingBean.class.getName(), "test", null, null, null, null);
+        }
+    }
+
+
+    @Test(timeout = 10000)
+    public void testHangingMbeanServerDoesNotBlockOtherQueries() throws Exception {
+        MBeanServer mbs = MBeanServerFactory.newMBeanServer();
+        mbs.registerMBean(new HangingBean(), new ObjectName("slow:type=Hanging"));
+        mBeanServerRegistry.register("slow", mbs, null);
+
+        TraceOutputJmxScanner scanner = perfmon.scanner("TEST",
+                new QueryDef("slow", "slow:type=Hanging", "type").get("Val")
+                        .metric(perfmon.metric("slow", "test")),
+                new QueryDef("test", "test:type=TestJmx,*", "name").get("Nom")
+                        .metric(perfmon.metric("test", "test")));
+        ObjectInspector.setField(scanner, "output", out);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        scanner.setExecutor(executor, 200);
+
+        long timeouts = AgentDiagnostics.get(AgentDiagnostics.PMON_TIMEOUTS);
+
+        scanner.runCycle(100);
+
+        Assert.assertEquals(1, results.size());
+        Assert.assertEquals(2, ((PerfRecord) results.get(0)).getSamples().size());
+        Assert.assertEquals(1, AgentDiagnostics.get(AgentDiagnostics.PMON_TIMEOUTS) - timeouts);
+
+        Assert.assertEquals(1, scanner.getStats().getMethodCallStatistic("test|test:type=TestJmx,*.Nom").getCalls());
+        Assert.assertEquals(1, scanner.getStats().getMethodCallStatistic("slow|slow:type=Hanging.Val").getErrors());
+
+        executor.shutdownNow();
+    }
+
+
+    @Test(timeout = 10000)
+    public void testQueriesNotStartedByBusyWorkerAreCountedAsSkipped() throws Exception {
+        TraceOutputJmxScanner scanner = perfmon.scanner("BUSY",
+                new QueryDef("test", "test:type=TestJmx,*", "name").get("Nom")
+                        .metric(perfmon.metric("test", "test")));
+        ObjectInspector.setField(scanner, "output", out);
+
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        scanner.setExecutor(executor, 200);
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+
+        long timeouts = AgentDiagnostics.get(AgentDiagnostics.PMON_TIMEOUTS);
+        long skipped = AgentDiagnostics.get(AgentDiagnostics.PMON_SKIPPED);
+
+        scanner.runCycle(100);
+        latch.countDown();
+
+        Assert.assertEquals(0, AgentDiagnostics.get(AgentDiagnostics.PMON_TIMEOUTS) - timeouts);
+        Assert.assertEquals(1, AgentDiagnostics.get(AgentDiagnostics.PMON_SKIPPED) - skipped);
+        Assert.assertEquals(0, scanner.getStats().getMethodCallStatistic("test|test:type=TestJmx,*.Nom").getErrors());
+
+        executor.shutdownNow();
+    }
+
+
+    @Test
+    public void testScannerQueryStatisticsArePublished() throws Exception {
+        TraceOutputJmxScanner scanner = perfmon.scanner("PUBLISHED",
+                new QueryDef("test", "test:type=TestJmx,*", "name").get("Nom")
+                        .metric(perfmon.metric("test", "test")));
+        ObjectInspector.setField(scanner, "output", out);
+
+        scanner.runCycle(100);
+
+        // Statistics are registered once agent mbean server becomes available
+        MBeanServer mbs = MBeanServerFactory.newMBeanServer();
+        mBeanServerRegistry.register("java", mbs, null);
+
+        Object stats = TestUtil.getAttr(mbs, "zorka:type=ZorkaStats,name=Scanners", "PUBLISHED");
+
+        Assert.assertSame(scanner.getStats(), stats);
+        Assert.assertTrue(scanner.getStats().getMethodCallStatistic("test|test:type=TestJmx,*.Nom").getCalls() > 0);
+    }
 }
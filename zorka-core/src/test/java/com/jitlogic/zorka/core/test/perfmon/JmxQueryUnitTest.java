@@ -27,9 +27,20 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import javax.management.MBeanServerConnection;
+import javax.management.NotificationListener;
 import javax.management.ObjectName;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class JmxQueryUnitTest extends ZorkaFixture {
 
@@ -138,6 +149,140 @@ public class JmxQueryUnitTest extends ZorkaFixture {
     }
 
 
+    @Test
+    public void testTrackedNamesAreUpdatedByRegistrationNotifications() throws Exception {
+        QueryLister lister = new QueryLister(mBeanServerRegistry,
+                new QueryDef("test", "test:type=TestJmx,*", "name").getAs("Nom", "Nom"));
+        lister.setResyncInterval(Long.MAX_VALUE);
+
+        Assert.assertEquals(2, lister.list().size());
+
+        makeTestJmx("test:name=bean3,type=TestJmx", 10, 10);
+        makeTestJmx("test:name=other,type=OtherJmx", 10, 10);
+        Assert.assertEquals(3, lister.list().size());
+
+        testMbs.unregisterMBean(new ObjectName("test:name=bean1,type=TestJmx"));
+        testMbs.unregisterMBean(new ObjectName("test:name=bean3,type=TestJmx"));
+
+        List<QueryResult> results = lister.list();
+        Assert.assertEquals(1, results.size());
+        Assert.assertEquals("bean2", results.get(0).getAttr("name"));
+    }
+
+
+    @Test
+    public void testTrackedNamesAreResynchronizedWhenNotificationsAreNotAvailable() throws Exception {
+        mBeanServerRegistry.register("remote", remoteConnection(false, new AtomicInteger()), null);
+
+        QueryLister lister = new QueryLister(mBeanServerRegistry,
+                new QueryDef("remote", "test:type=TestJmx,*", "name").getAs("Nom", "Nom"));
+        lister.setResyncInterval(Long.MAX_VALUE);
+
+        Assert.assertEquals(2, lister.list().size());
+
+        makeTestJmx("test:name=bean3,type=TestJmx", 10, 10);
+        Assert.assertEquals("not resynchronized yet", 2, lister.list().size());
+
+        testMbs.unregisterMBean(new ObjectName("test:name=bean1,type=TestJmx"));
+        Assert.assertEquals("stale names are dropped", 1, lister.list().size());
+
+        lister.setResyncInterval(0);
+        Assert.assertEquals(2, lister.list().size());
+    }
+
+
+    @Test
+    public void testTrackedNamesOfRemoteServerAreResynchronizedWhenNotificationsAreMissed() throws Exception {
+        AtomicInteger subscriptions = new AtomicInteger();
+        mBeanServerRegistry.register("remote", remoteConnection(true, subscriptions), null);
+
+        QueryLister lister = new QueryLister(mBeanServerRegistry,
+                new QueryDef("remote", "test:type=TestJmx,*", "name").getAs("Nom", "Nom"));
+        lister.setResyncInterval(Long.MAX_VALUE);
+
+        Assert.assertEquals(2, lister.list().size());
+        Assert.assertEquals("tracker registered", 1, subscriptions.get());
+
+        makeTestJmx("test:name=bean3,type=TestJmx", 10, 10);
+        Assert.assertEquals("not resynchronized yet", 2, lister.list().size());
+
+        lister.setResyncInterval(0);
+        Assert.assertEquals(3, lister.list().size());
+    }
+
+
+    @Test
+    public void testTrackedNamesAreDroppedWhenConnectorReportsLostNotifications() throws Exception {
+        AtomicInteger subscriptions = new AtomicInteger();
+        final MBeanServerConnection conn = remoteConnection(true, subscriptions);
+        final List<NotificationListener> listeners = new ArrayList<NotificationListener>();
+
+        mBeanServerRegistry.register("remote", (JMXConnector) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class[]{JMXConnector.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("getMBeanServerConnection".equals(method.getName())) {
+                    return conn;
+                }
+                if ("addConnectionNotificationListener".equals(method.getName())) {
+                    listeners.add((NotificationListener) args[0]);
+                }
+                return null;
+            }
+        }), null);
+
+        QueryLister lister = new QueryLister(mBeanServerRegistry,
+                new QueryDef("remote", "test:type=TestJmx,*", "name").getAs("Nom", "Nom"));
+        lister.setResyncInterval(Long.MAX_VALUE);
+
+        Assert.assertEquals(2, lister.list().size());
+        Assert.assertEquals(1, listeners.size());
+
+        makeTestJmx("test:name=bean3,type=TestJmx", 10, 10);
+        Assert.assertEquals("not resynchronized yet", 2, lister.list().size());
+
+        listeners.get(0).handleNotification(new JMXConnectionNotification(
+                JMXConnectionNotification.NOTIFS_LOST, this, "1", 1, "lost", null), null);
+        Assert.assertEquals(3, lister.list().size());
+        Assert.assertEquals(1, subscriptions.get());
+
+        testMbs.unregisterMBean(new ObjectName("test:name=bean3,type=TestJmx"));
+        listeners.get(0).handleNotification(new JMXConnectionNotification(
+                JMXConnectionNotification.FAILED, this, "1", 2, "failed", null), null);
+        Assert.assertEquals(2, lister.list().size());
+        Assert.assertEquals("tracker subscribed again", 2, subscriptions.get());
+    }
+
+
+    /**
+     * Creates remote-like connection to test mbean server. It either refuses registration listeners or
+     * accepts them and never delivers notifications.
+     */
+    private MBeanServerConnection remoteConnection(final boolean acceptListeners, final AtomicInteger subscriptions) {
+        return (MBeanServerConnection) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class[]{MBeanServerConnection.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("addNotificationListener".equals(method.getName())) {
+                    if (!acceptListeners) {
+                        throw new IOException("Notifications not supported.");
+                    }
+                    subscriptions.incrementAndGet();
+                    return null;
+                }
+                if ("removeNotificationListener".equals(method.getName())) {
+                    return null;
+                }
+                try {
+                    return method.invoke(testMbs, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        });
+    }
+
+
     private TestJmx makeTestJmx(String name, long nom, long div, String... md) throws Exception {
         TestJmx bean = new TestJmx();
 
@@ -26,6 +26,7 @@ import org.junit.Test;
 import static org.junit.Assert.*;
 
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 public class RankProcUnitTest extends ZorkaFixture {
 
@@ -48,4 +49,124 @@ public class RankProcUnitTest extends ZorkaFixture {
 
         assertEquals(5.0, items.get(0).getAverage(0L, 0, 0), 0.001);
     }
+
+
+    @Test
+    public void testSelectTopItemsFromLongList() {
+        double[] data = new double[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (i * 7919) % 1000;
+        }
+
+        RankList<TestRankItem> rank = new RankList<TestRankItem>(new TestRankLister("t", "avg1", data), 10, 0, 0, 100);
+        List<TestRankItem> items = rank.list();
+
+        assertEquals(10, items.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(999.0 - i, items.get(i).getAverage(0L, 0, 0), 0.001);
+        }
+    }
+
+
+    @Test
+    public void testItemsWithEqualAveragesKeepListerOrder() {
+        RankLister lister = new TestRankLister(new String[]{"t"}, new String[]{"avg1", "avg2"},
+                1, 1,  5, 2,  1, 3,  5, 4,  5, 5);
+        RankList<TestRankItem> rank = new RankList<TestRankItem>(lister, 4, 0, 0, 100);
+
+        List<TestRankItem> items = rank.list();
+
+        assertEquals(4, items.size());
+        assertEquals(2.0, items.get(0).getAverage(0L, 0, 1), 0.001);
+        assertEquals(4.0, items.get(1).getAverage(0L, 0, 1), 0.001);
+        assertEquals(5.0, items.get(2).getAverage(0L, 0, 1), 0.001);
+        assertEquals(1.0, items.get(3).getAverage(0L, 0, 1), 0.001);
+    }
+
+
+    @Test(timeout = 10000)
+    public void testReadersDoNotWaitForRerankInProgress() throws Exception {
+        final TestRankLister items = new TestRankLister("t", "avg1", 3, 2, 1);
+        final CountDownLatch entered = new CountDownLatch(1), release = new CountDownLatch(1);
+
+        final RankList<TestRankItem> rank = new RankList<TestRankItem>(new RankLister<TestRankItem>() {
+            private boolean first = true;
+            @Override
+            public List<TestRankItem> list() {
+                if (!first) {
+                    entered.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                first = false;
+                return items.list();
+            }
+        }, 2, 0, 0, 0);
+
+        assertEquals(3.0, rank.get(0).getAverage(0L, 0, 0), 0.001);
+        items.init(1, 5, 4);
+
+        // With rerank interval of 0 ranking is outdated on every read
+
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                rank.list();
+            }
+        });
+        t.start();
+        entered.await();
+
+        // Rerank is blocked in lister, so previous ranking is returned
+        assertEquals(3.0, rank.get(0).getAverage(0L, 0, 0), 0.001);
+        assertEquals(1, rank.getNumReranks());
+
+        release.countDown();
+        t.join();
+
+        assertEquals(2, rank.getNumReranks());
+        assertEquals(5.0, rank.get(0).getAverage(0L, 0, 0), 0.001);
+        assertNull(rank.get(2));
+    }
+
+
+    @Test
+    public void testScheduledRankListIsNotRerankedByReaders() throws Exception {
+        TestRankLister lister = new TestRankLister("t", "avg1", 1, 2, 3);
+        RankList<TestRankItem> rank = zorka.rankList(lister, 2, 0, 0, 60000);
+
+        while (rank.getNumReranks() == 0) {
+            Thread.sleep(1);
+        }
+
+        lister.init(9, 8, 7);
+        assertEquals(3.0, rank.get(0).getAverage(0L, 0, 0), 0.001);
+
+        rank.run();
+        assertEquals(9.0, rank.get(0).getAverage(0L, 0, 0), 0.001);
+    }
+
+
+    @Test
+    public void testFailingRerankDoesNotEscapeScheduledTask() throws Exception {
+        RankList<TestRankItem> rank = new RankList<TestRankItem>(new RankLister<TestRankItem>() {
+            @Override
+            public List<TestRankItem> list() {
+                throw new IllegalStateException("lister failed");
+            }
+        }, 2, 0, 0, 100);
+
+        rank.run();
+
+        assertEquals(0, rank.getNumReranks());
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testScheduleRankListWithNonPositiveRerankTime() throws Exception {
+        zorka.rankList(new TestRankLister("t", "avg1", 1, 2, 3), 2, 0, 0, 0);
+    }
 }
@@ -88,4 +88,46 @@ public class ThreadRankUnitTest extends ZorkaFixture {
         assertEquals(12.5, lister.list().get(0).getAverage(0L, 0,0), 0.001);
         assertEquals(2.5, lister.list().get(0).getAverage(0L, 0,1), 0.001);
     }
+
+
+    @Test
+    public void testThreadItemsAreKeptBetweenCyclesAndListedById() {
+        TestThreadRankLister lister = new TestThreadRankLister(mBeanServerRegistry)
+                .feed(3, "Thread-3", 100, 0)
+                .feed(1, "Thread-1", 100, 0);
+        lister.runCycle(1000);
+
+        ThreadRankItem item1 = lister.list().get(0), item3 = lister.list().get(1);
+        assertEquals("Thread-1", item1.getName());
+
+        lister.runCycle(2000);
+        assertSame(item1, lister.list().get(0));
+
+        lister.clear().feed(2, "Thread-2", 100, 0).feed(3, "Thread-3", 200, 0);
+        lister.runCycle(3000);
+
+        List<ThreadRankItem> items = lister.list();
+        assertEquals(2, items.size());
+        assertEquals("Thread-2", items.get(0).getName());
+        assertSame(item3, items.get(1));
+    }
+
+
+    @Test
+    public void testListRealThreads() {
+        mBeanServerRegistry.register("java", java.lang.management.ManagementFactory.getPlatformMBeanServer(), null);
+        ThreadRankLister lister = new ThreadRankLister(mBeanServerRegistry);
+
+        lister.runCycle(1000);
+        lister.runCycle(2000);
+
+        List<ThreadRankItem> items = lister.list();
+        assertTrue(items.size() > 0);
+
+        boolean found = false;
+        for (ThreadRankItem item : items) {
+            found |= item.getWrapped().getId() == Thread.currentThread().getId();
+        }
+        assertTrue("current thread should be listed", found);
+    }
 }
@@ -0,0 +1,198 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.test.spy;
+
+import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
+import com.jitlogic.zorka.core.spy.AdaptiveTraceFilter;
+import com.jitlogic.zorka.core.spy.SpyMatcher;
+import com.jitlogic.zorka.core.spy.SpyMatcherSet;
+import com.jitlogic.zorka.core.spy.SpyRetransformer;
+import com.jitlogic.zorka.core.spy.TraceBuilder;
+import com.jitlogic.zorka.core.spy.Tracer;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveTraceFilterUnitTest {
+
+    private SymbolRegistry symbols = new SymbolRegistry();
+
+    private Tracer tracer;
+
+    private AdaptiveTraceFilter filter;
+
+    private List<String> retransformed = new ArrayList<String>();
+
+    private int c1 = symbols.symbolId("com.test.Foo");
+    private int m1 = symbols.symbolId("fast");
+    private int m2 = symbols.symbolId("slow");
+    private int s1 = symbols.symbolId("()V");
+
+
+    @Before
+    public void setUp() {
+        tracer = new Tracer(new SpyMatcherSet(SpyMatcher.fromString("com.test.**")), symbols);
+        filter = new AdaptiveTraceFilter(tracer, symbols, new SpyRetransformer() {
+            @Override
+            public boolean retransform(SpyMatcherSet oldSet, SpyMatcherSet newSet, boolean isSdef) {
+                return false;
+            }
+
+            @Override
+            public boolean retransform(Set<String> classNames) {
+                retransformed.addAll(classNames);
+                return true;
+            }
+
+            @Override
+            public boolean isEnabled() {
+                return true;
+            }
+        }, 1000, 90, 1, 60000);
+        tracer.setAdaptiveFilter(filter);
+    }
+
+
+    private boolean traced(String methodName) {
+        return tracer.getMatcherSet().methodMatch("com.test.Foo", Collections.<String>emptyList(),
+                Collections.<String>emptyList(), 1, methodName, "()V", null);
+    }
+
+
+    private void calls(AdaptiveTraceFilter.Counters counters, int methodId, int n, long time) {
+        for (int i = 0; i < n; i++) {
+            counters.logReturn(c1, methodId, s1, time, i);
+        }
+        counters.flush();
+    }
+
+
+    @Test
+    public void testExcludeHotAndFastMethod() {
+        calls(filter.counters(), m1, 999, 10);
+        assertEquals(0, filter.getPending().size());
+
+        calls(filter.counters(), m1, 1, 10);
+        assertEquals(Arrays.asList("com.test.Foo.fast()V"), filter.getPending());
+        assertTrue(traced("fast"));
+
+        filter.run();
+
+        assertEquals(0, filter.getPending().size());
+        assertEquals(Arrays.asList("com.test.Foo.fast()V"), filter.getExcluded());
+        assertEquals(Arrays.asList("com.test.Foo"), retransformed);
+        assertFalse(traced("fast"));
+        assertTrue(traced("slow"));
+    }
+
+
+    @Test
+    public void testDoNotExcludeSlowOrRarelyCalledMethods() {
+        AdaptiveTraceFilter.Counters counters = filter.counters();
+        calls(counters, m2, 100, 10);
+        calls(counters, m2, 900, 1000000);
+
+        filter.run();
+
+        calls(counters, m1, 999, 10);
+
+        filter.run();
+
+        calls(counters, m1, 999, 10);
+
+        assertEquals(0, filter.getPending().size());
+        assertEquals(0, filter.getExcluded().size());
+    }
+
+
+    @Test
+    public void testCountReturnsInTraceBuilder() {
+        TraceBuilder b = tracer.getHandler();
+
+        for (int i = 0; i < 65536; i++) {
+            b.traceEnter(c1, m1, s1, i * 10L);
+            b.traceReturn(i * 10L + 5);
+        }
+
+        assertEquals(Arrays.asList("com.test.Foo.fast()V"), filter.getPending());
+    }
+
+
+    @Test
+    public void testExclusionBudget() {
+        calls(filter.counters(), m1, 1000, 10);
+        calls(filter.counters(), symbols.symbolId("other"), 1000, 10);
+
+        filter.run();
+
+        assertEquals(1, filter.getExcluded().size());
+    }
+
+
+    @Test
+    public void testReenableExcludedMethod() {
+        calls(filter.counters(), m1, 1000, 10);
+        filter.run();
+        retransformed.clear();
+
+        assertEquals(0, filter.reenable("com.test.Foo.other()V"));
+        assertEquals(1, filter.reenable("com.test.Foo.fast()V"));
+
+        assertTrue(traced("fast"));
+        assertEquals(0, filter.getExcluded().size());
+        assertEquals(Arrays.asList("com.test.Foo"), retransformed);
+        assertEquals(1, tracer.getMatcherSet().getMatchers().size());
+
+        calls(filter.counters(), m1, 1000, 10);
+        assertEquals(0, filter.getPending().size());
+    }
+
+
+    @Test
+    public void testFlushCountersAfterPartOfInterval() {
+        AdaptiveTraceFilter.Counters counters = filter.counters();
+
+        for (int i = 0; i < 999; i++) {
+            counters.logReturn(c1, m1, s1, 10, i);
+        }
+        assertEquals(0, filter.getPending().size());
+
+        // 15 seconds later counters are merged into global tallies
+        counters.logReturn(c1, m1, s1, 10, 15000000000L);
+        assertEquals(Arrays.asList("com.test.Foo.fast()V"), filter.getPending());
+    }
+
+
+    @Test
+    public void testSkipMethodsWithOutOfRangeSymbolIds() {
+        AdaptiveTraceFilter.Counters counters = filter.counters();
+
+        for (int i = 0; i < 1000; i++) {
+            counters.logReturn(c1, m1 | (1 << 21), s1, 10, i);
+        }
+        counters.flush();
+
+        assertEquals(0, filter.getPending().size());
+    }
+}
@@ -16,6 +16,7 @@
  */
 package com.jitlogic.zorka.core.test.spy;
 
+import com.jitlogic.zorka.common.stats.MethodCallStatistics;
 import com.jitlogic.zorka.core.spy.*;
 import com.jitlogic.zorka.core.test.spy.support.TestCollector;
 import com.jitlogic.zorka.core.test.support.BytecodeInstrumentationFixture;
@@ -199,6 +200,37 @@ public class BytecodeInstrumentationUnitTest extends BytecodeInstrumentationFixt
     }
 
 
+    @Test
+    public void testFetchMoreThanFourValues() throws Exception {
+        engine.add(spy.instance("x")
+                .onEnter(spy.fetchArg("E0", 1), spy.fetchArg("E1", 2), spy.fetchArg("E2", 3), spy.fetchArg("E3", 4),
+                        spy.fetchTime("E4"))
+                .include(spy.byMethod(TCLASS1, "paramMethod1")));
+
+        Object obj = instantiate(engine, TCLASS1);
+        checkForError(invoke(obj, "paramMethod1", 10, 20L, (short) 30, (byte) 40));
+
+        assertEquals("should submit one record", 1, submitter.size());
+        assertEquals("should submit five values", 5, submitter.get(0).size());
+        assertEquals("should fetch long as second parameter", Long.valueOf(20), submitter.get(0).get(1));
+        assertTrue("should pass Long", submitter.get(0).get(4) instanceof Long);
+    }
+
+
+    @Test
+    public void testFetchTimeWithOtherValues() throws Exception {
+        engine.add(spy.instance("x").onEnter(spy.fetchTime("E0"), spy.fetchArg("E1", 1))
+                .include(spy.byMethod(TCLASS1, "paramMethod1")));
+
+        Object obj = instantiate(engine, TCLASS1);
+        checkForError(invoke(obj, "paramMethod1", 10, 20L, (short) 30, (byte) 40));
+
+        assertEquals("should submit two values", 2, submitter.get(0).size());
+        assertTrue("should pass Long", submitter.get(0).get(0) instanceof Long);
+        assertEquals(Integer.valueOf(10), submitter.get(0).get(1));
+    }
+
+
     @Test
     public void testFetchBooleanCharTypeArgument() throws Exception {
         engine.add(spy.instance("x").onEnter(spy.fetchArg("E0", 1), spy.fetchArg("E1", 2))
@@ -606,4 +638,50 @@ public class BytecodeInstrumentationUnitTest extends BytecodeInstrumentationFixt
 
 
     // TODO check if ID of method with the same name is the same for two different classes
+
+
+    @Test
+    public void testInlineStatsProbes() throws Exception {
+        engine.setInlineStats(true);
+        engine.add(spy.instrument("x").include(spy.byMethod(TCLASS1, "trivialMethod"), spy.byMethod(TCLASS1, "errorMethod"))
+                .onSubmit(spy.zorkaStats("test", "test:name=${shortClassName}", "stats", "${methodName}")));
+
+        Object obj = instantiate(engine, TCLASS1);
+        invoke(obj, "trivialMethod");
+        invoke(obj, "trivialMethod");
+        invoke(obj, "errorMethod");
+
+        MethodCallStatistics stats = (MethodCallStatistics) getAttr(testMbs, "test:name=TestClass1", "stats");
+        assertEquals(2, stats.getMethodCallStatistic("trivialMethod").getCalls());
+        assertEquals(0, stats.getMethodCallStatistic("trivialMethod").getErrors());
+        assertEquals(1, stats.getMethodCallStatistic("errorMethod").getErrors());
+        assertEquals("inlined probes should not use submitter", 0, submitter.size());
+    }
+
+
+    @Test
+    public void testInlineStatsProbesInMethodWithLocalVariables() throws Exception {
+        engine.setInlineStats(true);
+        engine.add(spy.instrument("x").include(spy.byMethod(TCLASS1, "sumMethod"))
+                .onSubmit(spy.zorkaStats("test", "test:name=TestClass1", "stats", "sum")));
+
+        Object obj = instantiate(engine, TCLASS1);
+
+        assertEquals(45L, invoke(obj, "sumMethod", 10));
+        assertEquals(1, ((MethodCallStatistics) getAttr(testMbs, "test:name=TestClass1", "stats"))
+                .getMethodCallStatistic("sum").getCalls());
+    }
+
+
+    @Test
+    public void testDoNotInlineStatsDependingOnRecordContents() throws Exception {
+        engine.setInlineStats(true);
+        engine.add(spy.instrument("x").include(spy.byMethod(TCLASS1, "trivialMethod"))
+                .onSubmit(spy.zorkaStats("test", "test:name=TestClass1", "stats", "${T1}")));
+
+        Object obj = instantiate(engine, TCLASS1);
+        invoke(obj, "trivialMethod");
+
+        assertEquals("should use submitter", 2, submitter.size());
+    }
 }
@@ -19,6 +19,7 @@ package com.jitlogic.zorka.core.test.spy;
 import com.jitlogic.zorka.common.util.ZorkaUtil;
 import com.jitlogic.zorka.core.AgentConfig;
 import com.jitlogic.zorka.core.spy.SpyLib;
+import com.jitlogic.zorka.core.spy.SpyMatcherIndex;
 import com.jitlogic.zorka.core.spy.SpyMatcherSet;
 import com.jitlogic.zorka.core.test.spy.support.*;
 import com.jitlogic.zorka.core.test.support.ZorkaFixture;
@@ -312,4 +313,73 @@ public class ClassMethodMatchingUnitTest extends ZorkaFixture {
         assertTrue(sms.classMatch(TestClass2.class, true));
     }
 
+
+    @Test
+    public void testMatcherIndexGivesSameResultsAsMatcherSets() {
+        SpyMatcherSet[] sets = {
+                new SpyMatcherSet(spy.byClass("com.jitlogic.zorka.core.AgentConfig")),
+                new SpyMatcherSet(spy.byClass("com.jitlogic.**")),
+                new SpyMatcherSet(spy.byClass("com.jitlogic.*")),
+                new SpyMatcherSet(spy.byClass("java**"), spy.byClass("javax.**").exclude()),
+                new SpyMatcherSet(spy.byClass("~org\\.apache\\.[a-z]+\\.Valve")),
+                new SpyMatcherSet(
+                        spy.byMethod("java**", "*").exclude(),
+                        spy.byMethod("com.sun.**", "*").exclude(),
+                        spy.byMethod("**", "*").forTrace()),
+                new SpyMatcherSet(
+                        spy.byClass("**").priority(1000),
+                        spy.byClass("com.jitlogic.**").exclude(),
+                        spy.byClass("com.jitlogic.TestClazz").priority(10)),
+                new SpyMatcherSet(
+                        spy.byMethod("com.jitlogic.zorka.core.**", "mapRow").exclude(),
+                        spy.byClass("**")),
+                new SpyMatcherSet(spy.byClass("some.Class$1"), spy.byClass("some.Class*")),
+                new SpyMatcherSet(spy.byClass("com.jitlogic.zorka.core.test.spy.support.Test*")),
+                new SpyMatcherSet(spy.byClassAnnotation("some.Annotation")),
+                new SpyMatcherSet(spy.byClass("com.jitlogic.TestClazz").exclude(),
+                        spy.byInterfaceAndMethod("some.Interface", "*")),
+                new SpyMatcherSet(),
+        };
+
+        String[] names = {
+                "com.jitlogic.zorka.core.AgentConfig", "com.jitlogic.zorka.core.AgentConfigX",
+                "com.jitlogic.zorka.core.Agent", "com.jitlogic.TestClazz", "com.jitlogic.",
+                "com.jitlogic", "comXjitlogicXTestClazz", "java", "javax", "javax.swing.JFrame",
+                "java.util.Properties", "org.apache.catalina.Valve", "org.apache.Valve",
+                "com.sun.Foo", "some.Class$1", "some.Class$2", "some.Class",
+                "com.jitlogic.zorka.core.test.spy.support.TestClass1", "", "x",
+        };
+
+        SpyMatcherIndex index = new SpyMatcherIndex(Arrays.asList(sets));
+
+        assertEquals(sets.length, index.size());
+
+        for (String name : names) {
+            boolean[] rslt = index.classMatch(name);
+            for (int i = 0; i < sets.length; i++) {
+                assertEquals("set=" + i + ", class=" + name, sets[i].classMatch(name), rslt[i]);
+            }
+        }
+    }
+
+
+    @Test
+    public void testMatcherTypesDetectedFromClassPatterns() {
+        SpyMatcher sm = spy.byClass("com.jitlogic.zorka.core.AgentConfig");
+        assertEquals(SpyMatcher.CM_EXACT, sm.getClassMatchType());
+        assertEquals("com.jitlogic.zorka.core.AgentConfig", sm.getClassPrefix());
+
+        sm = spy.byClass("com.jitlogic.**");
+        assertEquals(SpyMatcher.CM_PREFIX, sm.getClassMatchType());
+        assertEquals("com.jitlogic.", sm.getClassPrefix());
+
+        sm = spy.byClass("com.jitlogic.*Test");
+        assertEquals(SpyMatcher.CM_REGEX, sm.getClassMatchType());
+        assertEquals("com.jitlogic.", sm.getClassPrefix());
+
+        sm = spy.byClass("~com.jitlogic.*");
+        assertEquals(SpyMatcher.CM_REGEX, sm.getClassMatchType());
+        assertEquals("", sm.getClassPrefix());
+    }
+
 }
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.test.spy;
+
+import com.jitlogic.zorka.core.spy.SpyMatcher;
+import com.jitlogic.zorka.core.spy.SpyMatcherIndex;
+import com.jitlogic.zorka.core.spy.SpyMatcherSet;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.jitlogic.zorka.core.spy.SpyMatcher.BY_CLASS_NAME;
+
+/**
+ * Compares class matching performance of plain matcher sets with precompiled class name index.
+ * Simulates typical startup with a few hundred spy definitions and tens of thousands of loaded
+ * classes. Not run automatically, start it manually when tuning class transformer.
+ */
+public class SpyMatcherIndexManualTest {
+
+    private static final int SDEFS = 150, CLASSES = 50000;
+
+    private static final String[] VENDORS = { "org.apache", "com.sun", "javax", "org.springframework",
+            "org.hibernate", "com.ibm", "oracle.jdbc", "org.jboss", "com.mycompany", "net.sf" };
+
+
+    private SpyMatcher matcher(String className) {
+        return new SpyMatcher(BY_CLASS_NAME, 1, className, "*", null);
+    }
+
+
+    private List<SpyMatcherSet> matcherSets() {
+        List<SpyMatcherSet> sets = new ArrayList<SpyMatcherSet>();
+
+        for (int i = 0; i < SDEFS; i++) {
+            String pkg = VENDORS[i % VENDORS.length] + ".module" + (i / VENDORS.length);
+            switch (i % 3) {
+                case 0:
+                    sets.add(new SpyMatcherSet(matcher(pkg + ".SomeClass" + i)));
+                    break;
+                case 1:
+                    sets.add(new SpyMatcherSet(matcher(pkg + ".**")));
+                    break;
+                default:
+                    sets.add(new SpyMatcherSet(matcher(pkg + ".*Servlet")));
+                    break;
+            }
+        }
+
+        // Tracer include/exclude list
+        sets.add(new SpyMatcherSet(
+                matcher("java**").exclude(), matcher("com.sun.**").exclude(),
+                matcher("org.apache.commons.**").exclude(), matcher("**")));
+
+        return sets;
+    }
+
+
+    private String[] classNames() {
+        String[] names = new String[CLASSES];
+
+        for (int i = 0; i < CLASSES; i++) {
+            names[i] = VENDORS[i % VENDORS.length] + ".module" + (i % 37) + ".sub" + (i % 11)
+                    + ".SomeClass" + i + ((i & 1) == 0 ? "Servlet" : "");
+        }
+
+        return names;
+    }
+
+
+    @Test
+    public void testCompareMatcherSetsWithClassNameIndex() throws Exception {
+        List<SpyMatcherSet> sets = matcherSets();
+        String[] names = classNames();
+
+        for (int pass = 0; pass < 5; pass++) {
+            long t0 = System.nanoTime();
+            int n1 = 0;
+
+            for (String name : names) {
+                for (SpyMatcherSet sms : sets) {
+                    if (sms.classMatch(name)) {
+                        n1++;
+                    }
+                }
+            }
+
+            long t1 = System.nanoTime();
+            SpyMatcherIndex index = new SpyMatcherIndex(sets);
+            long t2 = System.nanoTime();
+            int n2 = 0;
+
+            for (String name : names) {
+                for (boolean b : index.classMatch(name)) {
+                    if (b) {
+                        n2++;
+                    }
+                }
+            }
+
+            long t3 = System.nanoTime();
+
+            System.out.println("Pass " + pass + ": sets=" + ((t1 - t0) / CLASSES) + "ns/class, index="
+                    + ((t3 - t2) / CLASSES) + "ns/class (build: " + ((t2 - t1) / 1000) + "us), matches: "
+                    + n1 + "/" + n2);
+        }
+    }
+}
@@ -23,11 +23,17 @@ import com.jitlogic.zorka.core.test.support.ZorkaFixture;
 import com.jitlogic.zorka.core.spy.DispatchingSubmitter;
 import com.jitlogic.zorka.core.spy.SpyContext;
 import com.jitlogic.zorka.core.spy.SpyDefinition;
+import com.jitlogic.zorka.core.spy.SpyProcessor;
+import com.jitlogic.zorka.core.spy.SpyRecord;
 import com.jitlogic.zorka.core.spy.SpySubmitter;
+import com.jitlogic.zorka.core.spy.ThreadContext;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static org.junit.Assert.*;
@@ -55,7 +61,7 @@ public class SubmissionDispatchUnitTest extends ZorkaFixture {
                 spy.instance("x").onEnter(spy.fetchTime("E0"))).onSubmit(collector);
         SpyContext ctx = engine.lookup(new SpyContext(sdef, "com.TClass", "tMethod", "()V", 1));
 
-        submitter.submit(ON_ENTER, ctx.getId(), SF_IMMEDIATE, new Object[]{1L});
+        submitter.submit(ThreadContext.get(), ON_ENTER, ctx.getId(), SF_IMMEDIATE, new Object[]{1L});
 
         assertEquals(1, collector.size());
     }
@@ -66,10 +72,10 @@ public class SubmissionDispatchUnitTest extends ZorkaFixture {
         SpyDefinition sdef = engine.add(spy.instrument("x").onSubmit(collector));
         SpyContext ctx = engine.lookup(new SpyContext(sdef, "Class", "method", "()V", 1));
 
-        submitter.submit(ON_ENTER, ctx.getId(), SF_NONE, new Object[]{1L});
+        submitter.submit(ThreadContext.get(), ON_ENTER, ctx.getId(), SF_NONE, new Object[]{1L});
         assertEquals(0, collector.size());
 
-        submitter.submit(ON_RETURN, ctx.getId(), SF_FLUSH, new Object[]{2L});
+        submitter.submit(ThreadContext.get(), ON_RETURN, ctx.getId(), SF_FLUSH, new Object[]{2L});
         assertEquals(1, collector.size());
     }
 
@@ -79,7 +85,7 @@ public class SubmissionDispatchUnitTest extends ZorkaFixture {
         SpyDefinition sdef = engine.add(spy.instance("x").onEnter(collector));
         SpyContext ctx = engine.lookup(new SpyContext(sdef, "Class", "method", "()V", 1));
 
-        submitter.submit(ON_ENTER, ctx.getId(), SF_IMMEDIATE, new Object[]{1L});
+        submitter.submit(ThreadContext.get(), ON_ENTER, ctx.getId(), SF_IMMEDIATE, new Object[]{1L});
 
         assertEquals(1, collector.size());
         assertEquals(3, collector.get(0).size());
@@ -91,8 +97,8 @@ public class SubmissionDispatchUnitTest extends ZorkaFixture {
         SpyDefinition sdef = engine.add(spy.instrument("x").onSubmit(collector));
         SpyContext ctx = engine.lookup(new SpyContext(sdef, "Class", "method", "()V", 1));
 
-        submitter.submit(ON_ENTER, ctx.getId(), SF_NONE, new Object[]{1L});
-        submitter.submit(ON_RETURN, ctx.getId(), SF_FLUSH, new Object[]{2L});
+        submitter.submit(ThreadContext.get(), ON_ENTER, ctx.getId(), SF_NONE, new Object[]{1L});
+        submitter.submit(ThreadContext.get(), ON_RETURN, ctx.getId(), SF_FLUSH, new Object[]{2L});
 
         assertEquals(1, collector.size());
 
@@ -102,7 +108,193 @@ public class SubmissionDispatchUnitTest extends ZorkaFixture {
     }
 
 
+    private static class CopyingCollector implements SpyProcessor {
+
+        private List<Map<String, Object>> records = new ArrayList<Map<String, Object>>();
+
+        private List<Map<String, Object>> originals = new ArrayList<Map<String, Object>>();
+
+        @Override
+        public Map<String, Object> process(Map<String, Object> record) {
+            originals.add(record);
+            records.add(new HashMap<String, Object>(record));
+            return record;
+        }
+    }
+
+
+    @Test
+    public void testSubmitCompiledRecordWithBufferAndFlush() throws Exception {
+        CopyingCollector col = new CopyingCollector();
+        SpyDefinition sdef = engine.add(spy.instrument("x").compiled().onSubmit(col));
+        SpyContext ctx = engine.lookup(new SpyContext(sdef, "Class", "method", "()V", 1));
+
+        submitter.submit(ThreadContext.get(), ON_ENTER, ctx.getId(), SF_NONE, new Object[]{1L});
+        submitter.submit(ThreadContext.get(), ON_RETURN, ctx.getId(), SF_FLUSH, new Object[]{2L});
+
+        assertEquals(1, col.records.size());
+
+        Map<String, Object> sr = col.records.get(0);
+
+        assertEquals(6, sr.size());
+        assertEquals(1L, sr.get("T1"));
+        assertEquals(2L, sr.get("T2"));
+        assertEquals(1L, sr.get("T"));
+        assertEquals(ctx, sr.get(".CTX"));
+        assertEquals((1 << ON_ENTER) | (1 << ON_RETURN) | (1 << ON_SUBMIT), sr.get(".STAGES"));
+        assertTrue("Should pass compiled record.", col.originals.get(0) instanceof SpyRecord);
+    }
+
+
+    @Test
+    public void testSubmitUnboxedTimestamps() throws Exception {
+        CopyingCollector col = new CopyingCollector();
+        SpyDefinition sdef = engine.add(spy.instrument("x").onSubmit(col));
+        SpyContext ctx = engine.lookup(new SpyContext(sdef, "Class", "method", "()V", 1));
+
+        submitter.submit(ThreadContext.get(), ON_ENTER, ctx.getId(), SF_NONE, 1L);
+        submitter.submit(ThreadContext.get(), ON_RETURN, ctx.getId(), SF_FLUSH, 3L);
+
+        assertEquals(1, col.records.size());
+        assertEquals(1L, col.records.get(0).get("T1"));
+        assertEquals(3L, col.records.get(0).get("T2"));
+        assertEquals(2L, col.records.get(0).get("T"));
+    }
+
+
+    @Test
+    public void testSubmitCompiledRecordWithUnboxedValues() throws Exception {
+        CopyingCollector col = new CopyingCollector();
+        SpyDefinition sdef = engine.add(spy.instance("x").compiled()
+                .onEnter(spy.fetchArg("A", 0), spy.fetchArg("B", 1)).onReturn(spy.fetchTime("C")).onSubmit(col));
+        SpyContext ctx = engine.lookup(new SpyContext(sdef, "Class", "method", "()V", 1));
+
+        submitter.submit(ThreadContext.get(), ON_ENTER, ctx.getId(), SF_NONE, 2, "a", "b", null, null);
+        submitter.submit(ThreadContext.get(), ON_RETURN, ctx.getId(), SF_FLUSH, 42L);
+
+        assertEquals(1, col.records.size());
+        assertEquals("a", col.records.get(0).get("A"));
+        assertEquals("b", col.records.get(0).get("B"));
+        assertEquals(42L, col.records.get(0).get("C"));
+    }
+
+
+    @Test
+    public void testCompiledRecordsAreRecycled() throws Exception {
+        CopyingCollector col = new CopyingCollector();
+        SpyDefinition sdef = engine.add(spy.instrument("x").compiled().onSubmit(col));
+        SpyContext ctx = engine.lookup(new SpyContext(sdef, "Class", "method", "()V", 1));
+
+        for (int i = 0; i < 2; i++) {
+            submitter.submit(ThreadContext.get(), ON_ENTER, ctx.getId(), SF_NONE, new Object[]{1L});
+            submitter.submit(ThreadContext.get(), ON_RETURN, ctx.getId(), SF_FLUSH, new Object[]{2L});
+        }
+
+        assertEquals(2, col.records.size());
+        assertSame(col.originals.get(0), col.originals.get(1));
+        assertEquals(0, col.originals.get(0).size());
+    }
+
+
+    @Test
+    public void testCompiledRecordLayoutLearnsUndeclaredFields() throws Exception {
+        CopyingCollector col = new CopyingCollector();
+        SpyDefinition sdef = engine.add(spy.instance("x").compiled()
+                .onEnter(spy.fetchTime("T1"), spy.put("C", 42)).onSubmit(col));
+        SpyContext ctx = engine.lookup(new SpyContext(sdef, "Class", "method", "()V", 1));
+
+        assertTrue(sdef.getRecordLayout().slot("C") < 0);
+
+        submitter.submit(ThreadContext.get(), ON_ENTER, ctx.getId(), SF_IMMEDIATE, new Object[]{1L});
+
+        assertTrue(sdef.getRecordLayout().slot("C") > 0);
+        assertEquals(42, col.records.get(0).get("C"));
+    }
+
+
     // TODO test if SpyRecord marks stages properly
 
     // TODO test submission stages are marked by DispatchingSubmitter
+
+
+    @Test
+    public void testContextRegistryGrowsAndKeepsContextsReachableById() throws Exception {
+        SpyDefinition sdef = engine.add(spy.instance("x"));
+        List<SpyContext> ctxs = new ArrayList<SpyContext>();
+
+        for (int i = 0; i < 3000; i++) {
+            ctxs.add(engine.lookup(new SpyContext(sdef, "Class" + i, "method", "()V", 1)));
+        }
+
+        for (int i = 0; i < ctxs.size(); i++) {
+            SpyContext ctx = ctxs.get(i);
+            assertSame(ctx, engine.getContext(ctx.getId()));
+            assertSame(ctx, engine.lookup(new SpyContext(sdef, "Class" + i, "method", "()V", 1)));
+        }
+
+        assertNull(engine.getContext(100000));
+    }
+
+
+    @Test
+    public void testConcurrentContextLookupsReturnSingleInstance() throws Exception {
+        final SpyDefinition sdef = engine.add(spy.instance("x"));
+        final SpyContext[][] rslt = new SpyContext[4][500];
+        Thread[] threads = new Thread[rslt.length];
+
+        for (int t = 0; t < threads.length; t++) {
+            final SpyContext[] r = rslt[t];
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < r.length; i++) {
+                        r[i] = engine.lookup(new SpyContext(sdef, "Class" + i, "method", "()V", 1));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        for (int i = 0; i < rslt[0].length; i++) {
+            for (int t = 1; t < rslt.length; t++) {
+                assertSame(rslt[0][i], rslt[t][i]);
+            }
+            assertSame(rslt[0][i], engine.getContext(rslt[0][i].getId()));
+        }
+    }
+
+
+    @Test
+    public void testContextsRegisteredWhileRegistryGrowsAreNotLost() throws Exception {
+        final SpyDefinition sdef = engine.add(spy.instance("x"));
+        final SpyContext[][] rslt = new SpyContext[8][2000];
+        Thread[] threads = new Thread[rslt.length];
+
+        for (int t = 0; t < threads.length; t++) {
+            final int n = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < rslt[n].length; i++) {
+                        rslt[n][i] = engine.lookup(new SpyContext(sdef, "Class" + n + "_" + i, "method", "()V", 1));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        for (SpyContext[] r : rslt) {
+            for (SpyContext ctx : r) {
+                assertSame(ctx, engine.getContext(ctx.getId()));
+            }
+        }
+    }
 }
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.test.spy;
+
+import com.jitlogic.zorka.core.spy.MainSubmitter;
+import com.jitlogic.zorka.core.spy.ThreadContext;
+import com.jitlogic.zorka.core.test.support.ZorkaFixture;
+import org.junit.Test;
+
+/**
+ * Measures cost of traceEnter()/traceReturn() pair called by tracer probes in ordinary application
+ * threads (thread context fetched from thread local) and in carrier threads created by agent thread
+ * factories (thread context kept in thread field). Not run automatically.
+ */
+public class ThreadContextManualTest extends ZorkaFixture {
+
+    private static final int CALLS = 10000000;
+
+    private final long[] result = new long[1];
+
+
+    private final Runnable loop = new Runnable() {
+        @Override
+        public void run() {
+            long t1 = System.nanoTime();
+
+            for (int i = 0; i < CALLS; i++) {
+                MainSubmitter.traceEnter(1, 2, 3);
+                MainSubmitter.traceReturn();
+            }
+
+            result[0] = System.nanoTime() - t1;
+        }
+    };
+
+
+    private long run(Thread thread) throws Exception {
+        thread.start();
+        thread.join();
+        return result[0];
+    }
+
+
+    @Test
+    public void testCompareThreadLocalAndCarrierThreads() throws Exception {
+        // Warm up
+        run(new Thread(loop));
+        run(ThreadContext.threadFactory("BENCH-").newThread(loop));
+
+        for (int i = 0; i < 3; i++) {
+            long tLocal = run(new Thread(loop));
+            long tCarrier = run(ThreadContext.threadFactory("BENCH-").newThread(loop));
+            System.out.println("thread local: " + (tLocal / CALLS) + "." + (tLocal * 10 / CALLS % 10)
+                    + " ns/call, carrier thread: " + (tCarrier / CALLS) + "." + (tCarrier * 10 / CALLS % 10) + " ns/call");
+        }
+    }
+}
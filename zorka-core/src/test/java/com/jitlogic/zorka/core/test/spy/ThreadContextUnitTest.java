@@ -0,0 +1,129 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.test.spy;
+
+import com.jitlogic.zorka.core.spy.MainSubmitter;
+import com.jitlogic.zorka.core.spy.SpyLib;
+import com.jitlogic.zorka.core.spy.ThreadContext;
+import com.jitlogic.zorka.core.spy.TraceBuilder;
+import com.jitlogic.zorka.core.spy.Tracer;
+import com.jitlogic.zorka.core.test.support.ZorkaFixture;
+import org.junit.Test;
+
+import java.util.concurrent.ThreadFactory;
+
+import static org.junit.Assert.*;
+
+public class ThreadContextUnitTest extends ZorkaFixture {
+
+    private ThreadContext[] contexts = new ThreadContext[2];
+
+    private TraceBuilder[] handlers = new TraceBuilder[2];
+
+
+    private void runInThread(Thread thread) throws Exception {
+        thread.start();
+        thread.join(5000);
+        assertFalse("Thread should finish", thread.isAlive());
+    }
+
+
+    private Runnable collector() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                Tracer tracer = agentInstance.getTracer();
+                contexts[0] = ThreadContext.get();
+                contexts[1] = ThreadContext.get();
+                handlers[0] = tracer.getHandler();
+                handlers[1] = contexts[0].getHandler(tracer);
+            }
+        };
+    }
+
+
+    @Test
+    public void testContextIsKeptPerThread() throws Exception {
+        runInThread(new Thread(collector()));
+
+        assertNotNull(contexts[0]);
+        assertSame(contexts[0], contexts[1]);
+        assertNotSame(ThreadContext.get(), contexts[0]);
+        assertSame(handlers[0], handlers[1]);
+        assertNotSame(agentInstance.getTracer().getHandler(), handlers[0]);
+    }
+
+
+    @Test
+    public void testCarrierThreadKeepsContextInField() throws Exception {
+        ThreadFactory factory = ThreadContext.threadFactory("TEST-");
+        Thread thread = factory.newThread(collector());
+
+        assertTrue(thread instanceof ThreadContext.CarrierThread);
+        assertTrue(thread.isDaemon());
+        assertEquals("TEST-1", thread.getName());
+
+        runInThread(thread);
+
+        assertNotNull(contexts[0]);
+        assertSame(contexts[0], contexts[1]);
+        assertSame(handlers[0], handlers[1]);
+    }
+
+
+    @Test
+    public void testDefaultCarrierThreadsLookLikeDefaultPoolThreads() throws Exception {
+        Thread thread = ThreadContext.threadFactory().newThread(collector());
+
+        assertTrue(thread instanceof ThreadContext.CarrierThread);
+        assertFalse(thread.isDaemon());
+        assertEquals(Thread.NORM_PRIORITY, thread.getPriority());
+        assertTrue(thread.getName(), thread.getName().matches("pool-\\d+-thread-1"));
+    }
+
+
+    @Test
+    public void testHandlerIsRecreatedWhenOtherTracerIsUsed() {
+        Tracer tracer = new Tracer(agentInstance.getTracerMatcherSet(), agentInstance.getSymbolRegistry());
+        TraceBuilder handler = tracer.getHandler();
+
+        assertSame(handler, tracer.getHandler());
+        assertNotSame(handler, agentInstance.getTracer().getHandler());
+        assertNotSame(handler, tracer.getHandler());
+    }
+
+
+    @Test
+    public void testSubmitAndTraceFromCarrierThread() throws Exception {
+        final Throwable[] errors = new Throwable[1];
+
+        runInThread(ThreadContext.threadFactory("TEST-").newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    MainSubmitter.traceEnter(1, 2, 3);
+                    MainSubmitter.submit(SpyLib.ON_ENTER, 0, SpyLib.SF_NONE, 42L);
+                    MainSubmitter.traceReturn();
+                } catch (Throwable e) {
+                    errors[0] = e;
+                }
+            }
+        }));
+
+        assertNull(errors[0]);
+    }
+}
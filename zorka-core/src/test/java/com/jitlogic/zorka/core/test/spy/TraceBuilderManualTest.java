@@ -0,0 +1,102 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.test.spy;
+
+import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
+import com.jitlogic.zorka.common.tracedata.SymbolicRecord;
+import com.jitlogic.zorka.common.tracedata.TraceMarker;
+import com.jitlogic.zorka.core.spy.TraceBuilder;
+import com.jitlogic.zorka.core.spy.Tracer;
+import com.jitlogic.zorka.core.spy.TracerOutput;
+import org.junit.Test;
+
+/**
+ * Compares trace builder performance with and without trace record pooling.
+ * Not run automatically, start it manually when tuning tracer.
+ */
+public class TraceBuilderManualTest {
+
+    private static final int DEPTH = 32, FANOUT = 8, TRACES = 20000;
+
+    private SymbolRegistry symbols = new SymbolRegistry();
+
+    private int c1 = symbols.symbolId("some.Class");
+    private int m1 = symbols.symbolId("someMethod");
+    private int s1 = symbols.symbolId("()V");
+    private int t1 = symbols.symbolId("TRACE1");
+
+    private long clock;
+
+    private int submitted;
+
+
+    private TraceBuilder builder() {
+        return new TraceBuilder(new TracerOutput() {
+            @Override
+            public void submit(SymbolicRecord obj) {
+                submitted++;
+            }
+        }, symbols);
+    }
+
+
+    private void callTree(TraceBuilder b, int depth) {
+        for (int i = 0; i < FANOUT; i++) {
+            b.traceEnter(c1, m1, s1, clock++);
+            if (depth > 0 && i == 0) {
+                callTree(b, depth - 1);
+            }
+            b.traceReturn(clock++);
+        }
+    }
+
+
+    private long run(int poolSize) {
+        int oldPoolSize = Tracer.getRecordPoolSize();
+        Tracer.setRecordPoolSize(poolSize);
+
+        try {
+            TraceBuilder b = builder();
+
+            long t1 = System.nanoTime();
+
+            for (int i = 0; i < TRACES; i++) {
+                b.traceEnter(c1, m1, s1, clock);
+                b.traceBegin(this.t1, clock, TraceMarker.DROP_INTERIM);
+                callTree(b, DEPTH);
+                b.traceReturn(clock++);
+            }
+
+            return System.nanoTime() - t1;
+        } finally {
+            Tracer.setRecordPoolSize(oldPoolSize);
+        }
+    }
+
+
+    @Test
+    public void testCompareRecordPoolingWithPlainAllocation() throws Exception {
+        long calls = (long) TRACES * (DEPTH + 1) * FANOUT;
+
+        for (int pass = 0; pass < 5; pass++) {
+            long tPlain = run(0), tPooled = run(64);
+            System.out.println("Pass " + pass + ": plain=" + (tPlain / calls) + "ns/call, pooled="
+                    + (tPooled / calls) + "ns/call");
+        }
+    }
+}
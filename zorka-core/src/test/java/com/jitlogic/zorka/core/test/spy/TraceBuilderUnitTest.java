@@ -62,6 +62,7 @@ public class TraceBuilderUnitTest extends ZorkaFixture {
         tracer.setTracerMaxTraceRecords(4096);
         tracer.setTracerMinMethodTime(250000);
         tracer.setTracerMinTraceTime(50);
+        tracer.setTracerRecordPoolSize(64);
     }
 
     private void checkRC(int recs, int... chld) {
@@ -390,6 +391,9 @@ public class TraceBuilderUnitTest extends ZorkaFixture {
 
         assertThat(records.get(0).getException()).isNull();
         assertThat(records.get(0).getFlags()).isEqualTo(TraceRecord.EXCEPTION_PASS | TraceRecord.TRACE_BEGIN);
+        assertThat(records.get(0).getChild(0).getException()).isSameAs(e);
+
+        records.get(0).fixup(symbols);
         assertThat(records.get(0).getChild(0).getException()).isEqualTo(new SymbolicException(e, symbols, true));
     }
 
@@ -411,6 +415,8 @@ public class TraceBuilderUnitTest extends ZorkaFixture {
 
         checkRC(1, 1, 0);
 
+        records.get(0).fixup(symbols);
+
         assertThat(records.get(0).getChild(0).getException()).isEqualTo(new SymbolicException(e1, symbols, true));
         assertThat(records.get(0).getException()).isEqualTo(new SymbolicException(e2, symbols, false));
         assertThat(records.get(0).getFlags()).isEqualTo(TraceRecord.EXCEPTION_WRAP | TraceRecord.TRACE_BEGIN);
@@ -560,4 +566,43 @@ public class TraceBuilderUnitTest extends ZorkaFixture {
         assertThat(records.get(0).numAttrs()).isEqualTo(1);
     }
 
+
+    @Test
+    public void testRecycledRecordsDoNotLeakIntoSubmittedTraces() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            b.traceEnter(c1, m1, s1, 100 * MS);
+            b.traceBegin(t1, 100L, 0);
+            b.traceEnter(c1, m2, s1, 110 * MS);
+            b.traceEnter(c1, m3, s1, 111 * MS);
+            b.traceReturn(111 * MS + 10);
+            b.traceReturn(120 * MS);
+            b.traceReturn(200 * MS);
+        }
+
+        checkRC(2, 1, 0);
+
+        for (TraceRecord tr : records) {
+            assertThat(tr.getCalls()).isEqualTo(3L);
+            assertThat(tr.getChild(0).getMethodId()).isEqualTo(m2);
+            assertThat(tr.getChild(0).getCalls()).isEqualTo(2L);
+            assertThat(tr.getChild(0).getParent()).isSameAs(tr);
+        }
+    }
+
+
+    @Test
+    public void testTraceWithRecordPoolingDisabled() throws Exception {
+        tracer.setTracerRecordPoolSize(0);
+
+        b.traceEnter(c1, m1, s1, 100 * MS);
+        b.traceBegin(t1, 100L, 0);
+        b.traceEnter(c1, m2, s1, 110 * MS);
+        b.traceEnter(c1, m3, s1, 111 * MS);
+        b.traceReturn(111 * MS + 10);
+        b.traceReturn(120 * MS);
+        b.traceReturn(200 * MS);
+
+        checkRC(1, 1, 0);
+    }
+
 }
@@ -55,7 +55,7 @@ public class TracerInstrumentationUnitTest extends BytecodeInstrumentationFixtur
         invoke(obj, "trivialMethod");
 
         assertThat(field("ctxInstances").ofType(Map.class).in(engine).get().size()).isEqualTo(0);
-        assertThat(field("ctxById").ofType(Map.class).in(engine).get().size()).isEqualTo(0);
+        assertThat(engine.getContext(1)).isNull();
     }
 
 
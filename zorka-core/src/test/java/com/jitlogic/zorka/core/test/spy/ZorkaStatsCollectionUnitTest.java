@@ -17,6 +17,7 @@
 package com.jitlogic.zorka.core.test.spy;
 
 import com.jitlogic.zorka.common.stats.MethodCallStatistic;
+import com.jitlogic.zorka.common.stats.StripedMethodCallStatistic;
 import com.jitlogic.zorka.core.test.support.ZorkaFixture;
 import com.jitlogic.zorka.common.stats.MethodCallStatistics;
 import com.jitlogic.zorka.core.spy.SpyContext;
@@ -182,4 +183,103 @@ public class ZorkaStatsCollectionUnitTest extends ZorkaFixture {
         assertEquals(0L, stat.getCurThreads());
     }
 
+
+    @Test
+    public void testStripedThreadCounter() throws Exception {
+        MethodCallStatistic stat = new StripedMethodCallStatistic("A", 4);
+
+        stat.markEnter();
+        stat.markEnter();
+        assertEquals(2L, stat.getMaxThreads());
+        assertEquals(2L, stat.getCurThreads());
+
+        stat.markExit();
+        stat.markExit();
+        assertEquals(2L, stat.getMaxThreadsCLR());
+        assertEquals(0L, stat.getMaxThreads());
+        assertEquals(0L, stat.getCurThreads());
+    }
+
+
+    @Test
+    public void testCollectToStripedStatistic() throws Exception {
+        ZorkaStatsCollector collector = new ZorkaStatsCollector(mBeanServerRegistry, "test", "test:name=Test", "stats",
+                "test", "T", null, ZorkaStatsCollector.ACTION_STATS | ZorkaStatsCollector.ACTION_STRIPED);
+
+        SpyContext ctx = new SpyContext(spy.instance("x"), "TClass", "testMethod", "()V", 1);
+
+        collector.process(ZorkaUtil.<String, Object>map(".CTX", ctx, ".STAGE", ON_SUBMIT, ".STAGES", (1 << ON_RETURN), "T", 10L * MS));
+        collector.process(ZorkaUtil.<String, Object>map(".CTX", ctx, ".STAGE", ON_SUBMIT, ".STAGES", (1 << ON_ERROR), "T", 20L * MS));
+
+        MethodCallStatistics stats = (MethodCallStatistics) getAttr(testMbs, "test:name=Test", "stats");
+        MethodCallStatistic stat = (MethodCallStatistic) stats.getStatistic("test");
+
+        assertTrue(stats.isStriped());
+        assertTrue(stat instanceof StripedMethodCallStatistic);
+        assertEquals(2L, stat.getCalls());
+        assertEquals(1L, stat.getErrors());
+        assertEquals(30L, stat.getTime());
+        assertEquals(20L, stat.getMaxTimeCLR());
+        assertEquals(0L, stat.getMaxTime());
+    }
+
+
+    @Test
+    public void testStripedStatisticUpdatedFromMultipleThreads() throws Exception {
+        final MethodCallStatistic stat = new StripedMethodCallStatistic("A", 4);
+        Thread[] threads = new Thread[8];
+
+        for (int t = 0; t < threads.length; t++) {
+            final long tp = t + 1;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        stat.markEnter();
+                        stat.logCall(tp * MS, tp);
+                        stat.markExit();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertEquals(8000L, stat.getCalls());
+        assertEquals(36000L, stat.getTime());
+        assertEquals(8L, stat.getMaxTime());
+        assertEquals(36000L, stat.getThroughput());
+        assertEquals(8L, stat.getMaxThroughputCLR());
+        assertEquals(0L, stat.getMaxThroughput());
+        assertEquals(0L, stat.getCurThreads());
+        assertTrue(stat.getMaxThreads() >= 1L);
+    }
+
+
+    @Test
+    public void testPercentilesOfCollectedStatistic() throws Exception {
+        ZorkaStatsCollector collector = new ZorkaStatsCollector(mBeanServerRegistry, "test", "test:name=Test", "stats",
+                "test", "T", null, ZorkaStatsCollector.ACTION_STATS);
+
+        SpyContext ctx = new SpyContext(spy.instance("x"), "TClass", "testMethod", "()V", 1);
+
+        for (long t = 1; t <= 100; t++) {
+            collector.process(ZorkaUtil.<String, Object>map(".CTX", ctx, ".STAGE", ON_SUBMIT, ".STAGES", (1 << ON_RETURN), "T", t * MS));
+        }
+
+        MethodCallStatistics stats = (MethodCallStatistics) getAttr(testMbs, "test:name=Test", "stats");
+        MethodCallStatistic stat = (MethodCallStatistic) stats.getStatistic("test");
+
+        assertEquals(100L, stat.getHistogram().getCount());
+        assertTrue("p50=" + stat.getP50(), stat.getP50() >= 50L && stat.getP50() <= 56L);
+        assertTrue("p99=" + stat.getP99(), stat.getP99() >= 99L && stat.getP99() <= 111L);
+
+        Double p99 = zorka.percentile("test", "test:name=Test", "stats", "test", 99, 60);
+        assertNotNull(p99);
+        assertEquals((double) stat.getHistogram().getPercentile(99.0) / MS, p99, 0.001);
+    }
+
 }
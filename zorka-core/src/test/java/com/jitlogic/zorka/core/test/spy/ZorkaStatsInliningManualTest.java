@@ -0,0 +1,100 @@
+/**
+ * Copyright 2012-2014 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.test.spy;
+
+import com.jitlogic.zorka.common.stats.MethodCallStatistics;
+import com.jitlogic.zorka.core.spy.SpyClassTransformer;
+import com.jitlogic.zorka.core.test.support.ZorkaFixture;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+
+import static com.jitlogic.zorka.core.test.support.BytecodeInstrumentationFixture.TCLASS1;
+import static com.jitlogic.zorka.core.test.support.TestUtil.getAttr;
+import static com.jitlogic.zorka.core.test.support.TestUtil.instantiate;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares per-call overhead of method execution time statistics collected via submitter and
+ * processing chain with inlined statistics probes. Not run automatically.
+ */
+public class ZorkaStatsInliningManualTest extends ZorkaFixture {
+
+    private static final int CALLS = 5000000;
+
+
+    private SpyClassTransformer transformer() {
+        return new SpyClassTransformer(agentInstance.getSymbolRegistry(), agentInstance.getTracer(),
+                false, new MethodCallStatistics(), agentInstance.getRetransformer());
+    }
+
+
+    /**
+     * Instruments test class. Generic variant uses agent's transformer as records are dispatched by
+     * submitter using contexts of this transformer, inlined probes need no submitter.
+     */
+    private Object instrumented(String name, boolean inline) throws Exception {
+        SpyClassTransformer engine = inline ? transformer() : agentInstance.getClassTransformer();
+        engine.setInlineStats(inline);
+
+        engine.add(spy.instrument(name).include(spy.byMethod(TCLASS1, "trivialMethod"))
+                .onSubmit(spy.zorkaStats("test", "test:name=" + name, "stats", "${methodName}")));
+
+        return instantiate(engine, TCLASS1);
+    }
+
+
+    private long run(Object obj) throws Exception {
+        Method method = obj.getClass().getMethod("trivialMethod");
+
+        long t1 = System.nanoTime();
+
+        for (int i = 0; i < CALLS; i++) {
+            method.invoke(obj);
+        }
+
+        return System.nanoTime() - t1;
+    }
+
+
+    private long calls(String name) throws Exception {
+        return ((MethodCallStatistics) getAttr(testMbs, "test:name=" + name, "stats"))
+                .getMethodCallStatistic("trivialMethod").getCalls();
+    }
+
+
+    @Test
+    public void testCompareGenericAndInlinedStats() throws Exception {
+        Object plain = instantiate(transformer(), TCLASS1);
+        Object generic = instrumented("Generic", false);
+        Object inlined = instrumented("Inlined", true);
+
+        // Warm up
+        run(plain);
+        run(generic);
+        run(inlined);
+
+        for (int i = 0; i < 3; i++) {
+            long tPlain = run(plain), tGeneric = run(generic), tInlined = run(inlined);
+            System.out.println("plain=" + (tPlain / CALLS) + " ns/call, generic=" + ((tGeneric - tPlain) / CALLS)
+                    + " ns/call overhead, inlined=" + ((tInlined - tPlain) / CALLS) + " ns/call overhead");
+        }
+
+        assertEquals(4L * CALLS, calls("Generic"));
+        assertEquals(4L * CALLS, calls("Inlined"));
+    }
+}
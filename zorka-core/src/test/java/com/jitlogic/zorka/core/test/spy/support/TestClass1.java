@@ -73,6 +73,14 @@ public class TestClass1 {
         return 38 + s.length();
     }
 
+    public long sumMethod(int n) {
+        long sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += i;
+        }
+        return sum;
+    }
+
     public int getCalls() {
         return calls;
     }
@@ -18,6 +18,7 @@
 package com.jitlogic.zorka.core.test.spy.support;
 
 import com.jitlogic.zorka.core.spy.SpySubmitter;
+import com.jitlogic.zorka.core.spy.ThreadContext;
 import com.jitlogic.zorka.common.util.ZorkaUtil;
 
 import java.util.ArrayList;
@@ -53,7 +54,16 @@ public class TestSubmitter implements SpySubmitter {
 
     private List<SubmitEntry> entries = new ArrayList<SubmitEntry>();
 
-    public void submit(int stage, int id, int submitFlags, Object[] vals) {
+    public void submit(ThreadContext ctx, int stage, int id, int submitFlags, Object[] vals) {
+        entries.add(new SubmitEntry(stage, id, submitFlags, vals));
+    }
+
+    public void submit(ThreadContext ctx, int stage, int id, int submitFlags, long v0) {
+        entries.add(new SubmitEntry(stage, id, submitFlags, new Object[]{v0}));
+    }
+
+    public void submit(ThreadContext ctx, int stage, int id, int submitFlags, int count, Object v0, Object v1, Object v2, Object v3) {
+        Object[] vals = count > 0 ? ZorkaUtil.clipArray(new Object[]{v0, v1, v2, v3}, count) : null;
         entries.add(new SubmitEntry(stage, id, submitFlags, vals));
     }
 
@@ -288,6 +288,74 @@ public class FressianTraceFormatUnitTest {
     }
 
 
+    private int writeTraceWithErrors(int n) throws Exception {
+        TraceRecord tr = tr("some.Class", "someMethod", "()V", n, n, 0, 100);
+
+        for (int i = 0; i < n; i++) {
+            TraceRecord c = tr("other.Class", "otherMethod", "()V", 1, 1, 0, 50);
+            c.setException(new Exception("oja!"));
+            c.setParent(tr);
+            tr.addChild(c);
+        }
+
+        output.reset();
+        writer.reset();
+        writer.write(tr);
+
+        return output.size();
+    }
+
+
+    @Test
+    public void testWriteTraceWithRepeatedExceptionsEncodesStackTraceOnce() throws Exception {
+        int size2 = writeTraceWithErrors(2);
+        int size10 = writeTraceWithErrors(10);
+
+        FressianReader reader = reader();
+        Object obj = reader.readObject();
+
+        while (obj instanceof Symbol) {
+            obj = reader.readObject();
+        }
+
+        TraceRecord tr = (TraceRecord) obj;
+        SymbolicException se = (SymbolicException) tr.getChild(0).getException();
+
+        assertThat(tr.numChildren()).isEqualTo(10);
+        assertThat(se.getStackTrace().length).isGreaterThan(0);
+        assertThat(se.getStackTrace()[0].getClassId()).isEqualTo(sid(this.getClass().getName()));
+
+        for (int i = 1; i < 10; i++) {
+            assertThat(tr.getChild(i).getException()).isEqualTo(se);
+        }
+
+        // Each stack element takes at least 4 bytes, repeated stack traces are only referenced
+        assertThat((size10 - size2) / 8).isLessThan(4 * se.getStackTrace().length);
+    }
+
+
+    @Test
+    public void testReadStackTracesAfterWriterResetsItsCaches() throws Exception {
+        for (int i = 0; i < 1500; i++) {
+            TraceRecord tr = tr("some.Class", "someMethod", "()V", 1, 1, 0, 100);
+            tr.setException(new Exception("oja!"));
+            writer.write(tr);
+        }
+
+        FressianReader reader = reader();
+        int n = 0;
+
+        while (n < 1500) {
+            Object obj = reader.readObject();
+            if (obj instanceof TraceRecord) {
+                SymbolicException se = (SymbolicException) ((TraceRecord) obj).getException();
+                assertThat(se.getStackTrace()[0].getClassId()).isEqualTo(sid(this.getClass().getName()));
+                n++;
+            }
+        }
+    }
+
+
     private PerfSample ps(Metric m, long clock, Number val) {
         PerfSample ps = new PerfSample(m.getId(), val);
         ps.setClock(clock);
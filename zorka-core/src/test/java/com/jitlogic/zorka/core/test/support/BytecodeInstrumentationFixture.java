@@ -55,7 +55,7 @@ public class BytecodeInstrumentationFixture extends ZorkaFixture {
         traceBuilder = new TestTraceBuilder();
         tracerObj = new Tracer(agentInstance.getTracerMatcherSet(),
                 agentInstance.getSymbolRegistry()) {
-            public TraceBuilder getHandler() {
+            protected TraceBuilder createHandler() {
                 return traceBuilder;
             }
         };
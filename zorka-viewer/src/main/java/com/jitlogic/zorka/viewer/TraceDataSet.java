@@ -16,10 +16,13 @@
 package com.jitlogic.zorka.viewer;
 
 
+import com.jitlogic.zorka.common.tracedata.IndexedFileTraceOutput;
+import com.jitlogic.zorka.common.tracedata.IndexedTraceReader;
 import com.jitlogic.zorka.common.tracedata.TraceRecord;
 import com.jitlogic.zorka.common.tracedata.FressianTraceFormat;
 import com.jitlogic.zorka.common.tracedata.Symbol;
 import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
+import com.jitlogic.zorka.common.zico.ZicoDataProcessor;
 import org.fressian.FressianReader;
 
 import java.io.*;
@@ -61,22 +64,34 @@ public class TraceDataSet {
     }
 
 
+    private void add(Object obj) {
+        if (obj instanceof Symbol) {
+            Symbol sym = (Symbol) obj;
+            symbols.put(sym.getId(), sym.getName());
+        } else if (obj instanceof ViewerTraceRecord) {
+            ((ViewerTraceRecord) obj).fixup();
+            traceRecords.add((ViewerTraceRecord) obj);
+        } else {
+            System.err.println("Unknown object: " + obj);
+        }
+    }
+
+
     private void load(File file) {
+
+        if (file.getName().endsWith(IndexedFileTraceOutput.INDEX_SUFFIX)
+                || file.getName().endsWith(IndexedFileTraceOutput.DATA_SUFFIX)) {
+            loadIndexed(file);
+            return;
+        }
+
         InputStream is = null;
 
         try {
             is = open(file);
             FressianReader r = new FressianReader(is, FressianTraceFormat.READ_LOOKUP);
             for (Object obj = r.readObject(); obj != null; obj = r.readObject()) {
-                if (obj instanceof Symbol) {
-                    Symbol sym = (Symbol) obj;
-                    symbols.put(sym.getId(), sym.getName());
-                } else if (obj instanceof ViewerTraceRecord) {
-                    ((ViewerTraceRecord) obj).fixup();
-                    traceRecords.add((ViewerTraceRecord) obj);
-                } else {
-                    System.err.println("Unknown object: " + obj);
-                }
+                add(obj);
             }
         } catch (EOFException e) {
 
@@ -94,6 +109,25 @@ public class TraceDataSet {
     }
 
 
+    private void loadIndexed(File file) {
+        try {
+            IndexedTraceReader reader = new IndexedTraceReader(file);
+            reader.load(reader.getEntries(), new ZicoDataProcessor() {
+                @Override
+                public void process(Object obj) throws IOException {
+                    add(obj);
+                }
+
+                @Override
+                public void commit() {
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
     private InputStream open(File file) throws IOException {
         FileInputStream fis = null;
         try {